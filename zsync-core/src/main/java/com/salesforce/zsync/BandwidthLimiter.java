@@ -0,0 +1,259 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ * disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.salesforce.zsync.http.ContentRange;
+import com.salesforce.zsync.http.Credentials;
+import com.salesforce.zsync.transport.Cancellation;
+import com.salesforce.zsync.transport.RangeReceiver;
+import com.salesforce.zsync.transport.Transport;
+import com.salesforce.zsync.transport.TransportListener;
+
+/**
+ * Caps the rate at which missing blocks are retrieved from remote files. A single limiter can be shared by any number
+ * of concurrent {@link Zsync} invocations, in which case their combined throughput does not exceed the configured rate:
+ *
+ * <pre>
+ * BandwidthLimiter limiter = new BandwidthLimiter(10 * 1024 * 1024);
+ * zsync.zsync(uri, new Zsync.Options().setBandwidthLimiter(limiter).setBandwidthWeight(2));
+ * </pre>
+ *
+ * The limiter is a token bucket refilled at the configured rate that holds at most 50 milliseconds worth of bytes, so
+ * an idle period does not allow a burst exceeding the cap. Bytes are charged as they are read off the network, so no
+ * invocation overshoots by more than a single read. Ranges a transport passes on as a {@link FileChannel}, such as those
+ * of <code>file:</code> origins, are charged in full before they are handed on unwrapped, so that they can still be
+ * copied to the output file without passing through user space. While several invocations compete for bandwidth, it is shared in
+ * proportion to their {@link Zsync.Options#getBandwidthWeight() weights} using weighted fair queuing; bandwidth left
+ * unused by one invocation is available to the others.
+ *
+ * @author bbusjaeger
+ *
+ */
+public class BandwidthLimiter {
+
+  private static final long MIN_BURST_BYTES = 8192;
+
+  private final long bytesPerSecond;
+  private final long burstBytes;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = this.lock.newCondition();
+
+  // guarded by lock
+  private final PriorityQueue<Request> queue = new PriorityQueue<>();
+  private double tokens;
+  private long refilledNanos;
+  private double virtualTime;
+  private long sequence;
+
+  /**
+   * @param bytesPerSecond maximum combined rate at which all invocations using this limiter retrieve blocks
+   */
+  public BandwidthLimiter(long bytesPerSecond) {
+    checkArgument(bytesPerSecond > 0, "bytesPerSecond must be positive");
+    this.bytesPerSecond = bytesPerSecond;
+    this.burstBytes = Math.max(MIN_BURST_BYTES, bytesPerSecond / 20);
+    this.tokens = this.burstBytes;
+    this.refilledNanos = System.nanoTime();
+  }
+
+  public long getBytesPerSecond() {
+    return this.bytesPerSecond;
+  }
+
+  /**
+   * Returns a transport that charges the bytes of the ranges retrieved through the given transport against this limiter
+   * with the given weight. Reads are charged as they happen, before the ranges are buffered or written, except for
+   * ranges read from a file channel, which are charged up front.
+   */
+  Transport throttle(final Transport transport, int weight) {
+    final Share share = new Share(weight);
+    return new Transport() {
+      @Override
+      public InputStream get(URI uri, Map<String, ? extends Credentials> credentials, TransportListener listener,
+          Cancellation cancellation) throws IOException {
+        return transport.get(uri, credentials, listener, cancellation);
+      }
+
+      @Override
+      public InputStream getIfModifiedSince(URI uri, long ifModifiedSince,
+          Map<String, ? extends Credentials> credentials, TransportListener listener, Cancellation cancellation)
+          throws IOException {
+        return transport.getIfModifiedSince(uri, ifModifiedSince, credentials, listener, cancellation);
+      }
+
+      @Override
+      public void getRanges(URI uri, List<ContentRange> ranges, Map<String, ? extends Credentials> credentials,
+          final RangeReceiver receiver, TransportListener listener, Cancellation cancellation) throws IOException {
+        transport.getRanges(uri, ranges, credentials, new RangeReceiver() {
+          @Override
+          public void receive(ContentRange range, ReadableByteChannel in) throws IOException {
+            if (in instanceof FileChannel) {
+              BandwidthLimiter.this.charge(share, range.length());
+              receiver.receive(range, in);
+            } else {
+              receiver.receive(range, new ThrottledChannel(in, share));
+            }
+          }
+        }, listener, cancellation);
+      }
+
+      @Override
+      public int getConcurrency(URI uri) {
+        return transport.getConcurrency(uri);
+      }
+    };
+  }
+
+  /**
+   * Blocks until the given number of bytes may be consumed on behalf of the given share. Requests are granted in order
+   * of their virtual finish time, which advances by the number of bytes divided by the weight of the share, and may
+   * drive the bucket into debt, so that reads larger than the bucket neither starve nor exceed the rate over time.
+   */
+  void acquire(Share share, long bytes) throws InterruptedIOException {
+    this.lock.lock();
+    try {
+      final Request request =
+          new Request(Math.max(this.virtualTime, share.finish) + (double) bytes / share.weight, this.sequence++);
+      share.finish = request.finish;
+      this.queue.add(request);
+      try {
+        while (true) {
+          this.refill();
+          if (this.queue.peek() == request) {
+            if (this.tokens > 0) {
+              this.tokens -= bytes;
+              this.virtualTime = request.finish;
+              this.queue.poll();
+              this.changed.signalAll();
+              return;
+            }
+            this.changed.awaitNanos((long) Math.ceil((1 - this.tokens) * TimeUnit.SECONDS.toNanos(1)
+                / this.bytesPerSecond));
+          } else {
+            this.changed.await();
+          }
+        }
+      } catch (InterruptedException e) {
+        this.queue.remove(request);
+        this.changed.signalAll();
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting for bandwidth");
+      }
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Acquires the given number of bytes in portions no larger than the bucket, so that other shares are interleaved
+   */
+  void charge(Share share, long bytes) throws InterruptedIOException {
+    for (long remaining = bytes; remaining > 0; remaining -= this.burstBytes) {
+      this.acquire(share, Math.min(remaining, this.burstBytes));
+    }
+  }
+
+  private void refill() {
+    final long now = System.nanoTime();
+    this.tokens =
+        Math.min(this.burstBytes, this.tokens + (double) (now - this.refilledNanos) * this.bytesPerSecond
+            / TimeUnit.SECONDS.toNanos(1));
+    this.refilledNanos = now;
+  }
+
+  /**
+   * Bandwidth share of a single invocation
+   */
+  static class Share {
+    final int weight;
+    // guarded by the limiter lock
+    double finish;
+
+    Share(int weight) {
+      checkArgument(weight > 0, "weight must be positive");
+      this.weight = weight;
+    }
+  }
+
+  private class ThrottledChannel implements ReadableByteChannel {
+    private final ReadableByteChannel in;
+    private final Share share;
+
+    ThrottledChannel(ReadableByteChannel in, Share share) {
+      this.in = in;
+      this.share = share;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+      final int read = this.in.read(dst);
+      if (read > 0) {
+        BandwidthLimiter.this.acquire(this.share, read);
+      }
+      return read;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return this.in.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+      this.in.close();
+    }
+  }
+
+  private static class Request implements Comparable<Request> {
+    final double finish;
+    final long sequence;
+
+    Request(double finish, long sequence) {
+      this.finish = finish;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public int compareTo(Request o) {
+      final int c = Double.compare(this.finish, o.finish);
+      return c != 0 ? c : Long.compare(this.sequence, o.sequence);
+    }
+  }
+}
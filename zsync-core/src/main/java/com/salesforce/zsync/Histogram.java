@@ -0,0 +1,187 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ * disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of non-negative long values with bounded memory and relative precision, in the style of HdrHistogram.
+ * Values below 32 are counted exactly; larger values are counted in buckets covering 1/16 of a power of two, so any
+ * recorded value is reported with an error of at most 6.25%, regardless of magnitude.
+ * <p>
+ * Histograms are not thread-safe; {@link ZsyncStatsObserver} records into its own and hands out copies.
+ *
+ * @author bbusjaeger
+ *
+ */
+public class Histogram {
+
+  private static final int LINEAR = 32;
+  private static final int SUB_BUCKETS = 16;
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int BUCKETS = LINEAR + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final long[] counts;
+  private long count;
+  private long min = Long.MAX_VALUE;
+  private long max;
+  private double sum;
+
+  public Histogram() {
+    this.counts = new long[BUCKETS];
+  }
+
+  public Histogram(Histogram other) {
+    this.counts = Arrays.copyOf(other.counts, BUCKETS);
+    this.count = other.count;
+    this.min = other.min;
+    this.max = other.max;
+    this.sum = other.sum;
+  }
+
+  /**
+   * Records the given value
+   *
+   * @param value non-negative value
+   */
+  public void record(long value) {
+    checkArgument(value >= 0, "value must not be negative");
+    this.counts[index(value)]++;
+    this.count++;
+    this.min = Math.min(this.min, value);
+    this.max = Math.max(this.max, value);
+    this.sum += value;
+  }
+
+  public long getCount() {
+    return this.count;
+  }
+
+  /**
+   * @return smallest value recorded, or 0 if none
+   */
+  public long getMin() {
+    return this.count == 0 ? 0 : this.min;
+  }
+
+  /**
+   * @return largest value recorded, or 0 if none
+   */
+  public long getMax() {
+    return this.max;
+  }
+
+  /**
+   * @return mean of the values recorded, or 0 if none
+   */
+  public double getMean() {
+    return this.count == 0 ? 0 : this.sum / this.count;
+  }
+
+  /**
+   * Returns the largest value in the bucket containing the given percentile of the recorded values, capped by the
+   * largest value recorded.
+   *
+   * @param percentile between 0 and 100
+   * @return
+   */
+  public long getValueAtPercentile(double percentile) {
+    checkArgument(percentile >= 0 && percentile <= 100, "percentile must be between 0 and 100");
+    if (this.count == 0) {
+      return 0;
+    }
+    final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * this.count));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += this.counts[i];
+      if (seen >= rank) {
+        return Math.min(highestEquivalentValue(i), this.max);
+      }
+    }
+    return this.max;
+  }
+
+  /**
+   * Returns the histogram as a JSON object with summary statistics, common percentiles, and the non-empty buckets as
+   * <code>[lowest value, highest value, count]</code> triples.
+   *
+   * @return
+   */
+  public String toJson() {
+    final StringBuilder b = new StringBuilder();
+    b.append("{\"count\":").append(this.count);
+    b.append(",\"min\":").append(this.getMin());
+    b.append(",\"max\":").append(this.getMax());
+    b.append(",\"mean\":").append(this.getMean());
+    b.append(",\"p50\":").append(this.getValueAtPercentile(50));
+    b.append(",\"p90\":").append(this.getValueAtPercentile(90));
+    b.append(",\"p99\":").append(this.getValueAtPercentile(99));
+    b.append(",\"p999\":").append(this.getValueAtPercentile(99.9));
+    b.append(",\"buckets\":[");
+    boolean first = true;
+    for (int i = 0; i < BUCKETS; i++) {
+      if (this.counts[i] != 0) {
+        if (!first) {
+          b.append(',');
+        }
+        first = false;
+        b.append('[').append(lowestEquivalentValue(i)).append(',').append(highestEquivalentValue(i)).append(',')
+            .append(this.counts[i]).append(']');
+      }
+    }
+    return b.append("]}").toString();
+  }
+
+  @Override
+  public String toString() {
+    return this.toJson();
+  }
+
+  static int index(long value) {
+    if (value < LINEAR) {
+      return (int) value;
+    }
+    // shift such that the value falls into [SUB_BUCKETS, 2 * SUB_BUCKETS)
+    final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return LINEAR + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+  }
+
+  static long lowestEquivalentValue(int index) {
+    if (index < LINEAR) {
+      return index;
+    }
+    final int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+    return (long) ((index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS) << shift;
+  }
+
+  static long highestEquivalentValue(int index) {
+    if (index < LINEAR) {
+      return index;
+    }
+    final int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+    return lowestEquivalentValue(index) + (1L << shift) - 1;
+  }
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ * disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync;
+
+import java.nio.file.Path;
+
+/**
+ * Counters collected by the block matcher while scanning a single input file for blocks of the output file. The
+ * counters are accumulated in plain fields of the matcher, which is confined to one thread, and reported once the scan
+ * completes via {@link ZsyncObserver#inputFileMatched(MatcherMetrics)}, so collecting them adds no synchronization or
+ * callbacks to the scan loop.
+ * <p>
+ * A high ratio of {@link #getFalsePositives() false positives} to {@link #getRsumHits() rsum hits} indicates that
+ * the rsum length of the control file is too short for the number of blocks; few {@link #getBlocksMatched() matched
+ * blocks} relative to the bytes scanned indicate that the block size is too large for the changes between versions.
+ *
+ * @author bbusjaeger
+ *
+ */
+public interface MatcherMetrics {
+
+  Path getInputFile();
+
+  /**
+   * Number of bytes of the input file scanned
+   */
+  long getBytesScanned();
+
+  long getElapsedNanos();
+
+  /**
+   * Bytes scanned per second over the duration of the scan
+   */
+  long getBytesScannedPerSecond();
+
+  /**
+   * Number of rolling checksum lookups, i.e. positions in the input file tested for a match
+   */
+  long getRsumProbes();
+
+  /**
+   * Number of rolling checksum lookups matching a block of the output file
+   */
+  long getRsumHits();
+
+  /**
+   * Number of strong (MD4) checksums computed over blocks of the input file
+   */
+  long getStrongChecksums();
+
+  /**
+   * Number of rolling checksum hits not confirmed by the strong checksum
+   */
+  long getFalsePositives();
+
+  /**
+   * Number of output file blocks written from the input file
+   */
+  long getBlocksMatched();
+
+}
@@ -23,11 +23,16 @@
  */
 package com.salesforce.zsync;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.salesforce.zsync.internal.util.HttpClient.newHttpClient;
 import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
@@ -38,25 +43,55 @@ import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.salesforce.zsync.ZsyncStatsObserver.ZsyncStats;
+import com.salesforce.zsync.http.ContentRange;
 import com.salesforce.zsync.http.Credentials;
 import com.salesforce.zsync.internal.BlockMatcher;
+import com.salesforce.zsync.internal.BlockMatcherMetrics;
 import com.salesforce.zsync.internal.ChecksumValidationIOException;
 import com.salesforce.zsync.internal.ControlFile;
 import com.salesforce.zsync.internal.EventDispatcher;
 import com.salesforce.zsync.internal.Header;
+import com.salesforce.zsync.internal.MirrorRangeRetriever;
 import com.salesforce.zsync.internal.OutputFileWriter;
-import com.salesforce.zsync.internal.util.HttpClient;
+import com.salesforce.zsync.internal.SeedIndex;
+import com.salesforce.zsync.internal.SubBlockSumsReceiver;
+import com.salesforce.zsync.internal.util.FileTransport;
+import com.salesforce.zsync.internal.util.FlightRecorderEvents;
 import com.salesforce.zsync.internal.util.ObservableInputStream;
+import com.salesforce.zsync.internal.util.OkHttpTransport;
+import com.salesforce.zsync.internal.util.RangeBatchPlanner;
 import com.salesforce.zsync.internal.util.RollingBuffer;
+import com.salesforce.zsync.internal.util.SharedFileReader;
 import com.salesforce.zsync.internal.util.ZeroPaddedReadableByteChannel;
 import com.salesforce.zsync.internal.util.ZsyncUtil;
-import com.salesforce.zsync.internal.util.HttpClient.HttpError;
-import com.salesforce.zsync.internal.util.HttpClient.HttpTransferListener;
+import com.salesforce.zsync.transport.Cancellation;
+import com.salesforce.zsync.transport.InvalidResponseException;
+import com.salesforce.zsync.transport.RangeReceiver;
+import com.salesforce.zsync.transport.Transport;
+import com.salesforce.zsync.transport.TransportListener;
+import com.salesforce.zsync.transport.TransportStatusException;
 import com.salesforce.zsync.internal.util.ObservableRedableByteChannel.ObservableReadableResourceChannel;
 import com.salesforce.zsync.internal.util.TransferListener.ResourceTransferListener;
 import com.squareup.okhttp.OkHttpClient;
@@ -87,6 +122,12 @@ public class Zsync {
     private Path saveZsyncFile;
     private URI zsyncUri;
     private Map<String, Credentials> credentials = new HashMap<>(2);
+    private boolean indexInputFiles;
+    private int maxRetries = 3;
+    private long retryDelayMillis = 1000;
+    private List<URI> mirrors = new ArrayList<>(2);
+    private BandwidthLimiter bandwidthLimiter;
+    private int bandwidthWeight = 1;
 
     public Options() {
       super();
@@ -99,6 +140,12 @@ public class Zsync {
         this.saveZsyncFile = other.saveZsyncFile;
         this.zsyncUri = other.zsyncUri;
         this.credentials.putAll(other.credentials);
+        this.indexInputFiles = other.indexInputFiles;
+        this.maxRetries = other.maxRetries;
+        this.retryDelayMillis = other.retryDelayMillis;
+        this.mirrors.addAll(other.mirrors);
+        this.bandwidthLimiter = other.bandwidthLimiter;
+        this.bandwidthWeight = other.bandwidthWeight;
       }
     }
 
@@ -222,17 +269,308 @@ public class Zsync {
       return this.credentials;
     }
 
+    /**
+     * Enables persisted block indexes for input files. The first time an input file is used with a given block size, a
+     * block index is built and stored next to it as <code>&lt;name&gt;.&lt;blocksize&gt;.zsindex</code>. Subsequent
+     * runs against the same input file match block-aligned content via index lookups and skip the rolling scan of the
+     * input file entirely if the index shows it cannot match any of the remaining blocks. An index is rebuilt if the
+     * size or last modified time of its input file changes.
+     * <p>
+     * This is beneficial if the same large input file is used to construct many different output files, but costs an
+     * additional read of each input file the first time it is indexed.
+     *
+     * @param indexInputFiles
+     * @return
+     */
+    public Options setIndexInputFiles(boolean indexInputFiles) {
+      this.indexInputFiles = indexInputFiles;
+      return this;
+    }
+
+    /**
+     * Whether block indexes are used for input files
+     *
+     * @return
+     */
+    public boolean isIndexInputFiles() {
+      return this.indexInputFiles;
+    }
+
+    /**
+     * Number of times retrieval of the remaining blocks from the remote file is retried after a network failure or a
+     * server error. Blocks received completely before the failure are kept, so each retry only requests the blocks
+     * still missing. Defaults to 3; 0 disables retries.
+     *
+     * @param maxRetries
+     * @return
+     */
+    public Options setMaxRetries(int maxRetries) {
+      if (maxRetries < 0) {
+        throw new IllegalArgumentException("maxRetries cannot be negative");
+      }
+      this.maxRetries = maxRetries;
+      return this;
+    }
+
+    public int getMaxRetries() {
+      return this.maxRetries;
+    }
+
+    /**
+     * Delay before the first retry, doubled for each subsequent retry up to 30 seconds. Defaults to 1 second.
+     *
+     * @param retryDelayMillis
+     * @return
+     */
+    public Options setRetryDelayMillis(long retryDelayMillis) {
+      if (retryDelayMillis < 0) {
+        throw new IllegalArgumentException("retryDelayMillis cannot be negative");
+      }
+      this.retryDelayMillis = retryDelayMillis;
+      return this;
+    }
+
+    public long getRetryDelayMillis() {
+      return this.retryDelayMillis;
+    }
+
+    /**
+     * Additional location of the remote file to retrieve missing blocks from, in addition to the URL headers of the
+     * zsync control file. If more than one location is known, missing blocks are retrieved from all of them in
+     * parallel, giving faster mirrors a larger share of the ranges; a mirror that fails is no longer used and its
+     * ranges are retrieved from the others. Relative URIs are resolved like relative URL headers.
+     *
+     * @param mirror
+     * @return
+     */
+    public Options addMirror(URI mirror) {
+      this.mirrors.add(mirror);
+      return this;
+    }
+
+    public List<URI> getMirrors() {
+      return this.mirrors;
+    }
+
+    /**
+     * Limiter capping the rate at which missing blocks are retrieved from the remote file. The same limiter may be set
+     * on the options of any number of concurrent invocations to cap their combined rate. Not set by default.
+     *
+     * @param bandwidthLimiter
+     * @return
+     */
+    public Options setBandwidthLimiter(BandwidthLimiter bandwidthLimiter) {
+      this.bandwidthLimiter = bandwidthLimiter;
+      return this;
+    }
+
+    public BandwidthLimiter getBandwidthLimiter() {
+      return this.bandwidthLimiter;
+    }
+
+    /**
+     * Share of the {@link #getBandwidthLimiter() bandwidth limiter} this invocation receives relative to the other
+     * invocations competing for it: an invocation with weight 2 is given twice the rate of one with weight 1. Defaults
+     * to 1.
+     *
+     * @param bandwidthWeight
+     * @return
+     */
+    public Options setBandwidthWeight(int bandwidthWeight) {
+      if (bandwidthWeight <= 0) {
+        throw new IllegalArgumentException("bandwidthWeight must be positive");
+      }
+      this.bandwidthWeight = bandwidthWeight;
+      return this;
+    }
+
+    public int getBandwidthWeight() {
+      return this.bandwidthWeight;
+    }
+
+  }
+
+  /**
+   * One output file to construct as part of a multi-target {@link Zsync#zsync(List)} invocation.
+   *
+   * @author bbusjaeger
+   *
+   */
+  public static class Target {
+
+    private final URI zsyncFile;
+    private final Options options;
+    private final ZsyncObserver observer;
+
+    public Target(URI zsyncFile) {
+      this(zsyncFile, null, null);
+    }
+
+    public Target(URI zsyncFile, Options options) {
+      this(zsyncFile, options, null);
+    }
+
+    /**
+     * @param zsyncFile URI of the zsync control file for the target as passed to
+     *        {@link Zsync#zsync(URI, Options, ZsyncObserver)}
+     * @param options Optional parameters for this target, may be null
+     * @param observer Optional observer for events of this target, may be null
+     */
+    public Target(URI zsyncFile, Options options, ZsyncObserver observer) {
+      if (zsyncFile == null) {
+        throw new IllegalArgumentException("zsyncFile cannot be null");
+      }
+      this.zsyncFile = zsyncFile;
+      this.options = options;
+      this.observer = observer;
+    }
+
+    public URI getZsyncFile() {
+      return this.zsyncFile;
+    }
+
+    public Options getOptions() {
+      return this.options;
+    }
+
+    public ZsyncObserver getObserver() {
+      return this.observer;
+    }
+  }
+
+  /**
+   * Outcome of a {@link Zsync#plan(URI, Options) dry run}: the ranges of the remote file that a zsync invocation with
+   * the same parameters would have to download after matching the input files.
+   *
+   * @author bbusjaeger
+   *
+   */
+  public static class Plan {
+
+    private final Path outputFile;
+    private final List<URI> remoteFileUris;
+    private final long length;
+    private final List<ContentRange> missingRanges;
+    private final long bytesToDownload;
+    private final int requestCount;
+
+    Plan(Path outputFile, List<URI> remoteFileUris, long length, List<ContentRange> missingRanges) {
+      this.outputFile = outputFile;
+      this.remoteFileUris = remoteFileUris;
+      this.length = length;
+      this.missingRanges = missingRanges;
+      long bytes = 0;
+      for (ContentRange range : missingRanges) {
+        bytes += range.length();
+      }
+      this.bytesToDownload = bytes;
+      // project the batches requested from a single remote file with the initial limits
+      final RangeBatchPlanner planner = new RangeBatchPlanner();
+      int requests = 0;
+      for (int i = 0; i < missingRanges.size(); requests++) {
+        i += planner.next(missingRanges.subList(i, missingRanges.size())).size();
+      }
+      this.requestCount = requests;
+    }
+
+    public Path getOutputFile() {
+      return this.outputFile;
+    }
+
+    public List<URI> getRemoteFileUris() {
+      return this.remoteFileUris;
+    }
+
+    /**
+     * Length of the output file in bytes
+     *
+     * @return
+     */
+    public long getLength() {
+      return this.length;
+    }
+
+    /**
+     * Block-aligned ranges of the remote file not found in any input file, in ascending order
+     *
+     * @return
+     */
+    public List<ContentRange> getMissingRanges() {
+      return this.missingRanges;
+    }
+
+    public long getBytesMatchedLocally() {
+      return this.length - this.bytesToDownload;
+    }
+
+    public long getBytesToDownload() {
+      return this.bytesToDownload;
+    }
+
+    /**
+     * Number of range requests needed to retrieve the missing ranges from a single remote file, assuming the server
+     * honors multi-range requests. The actual number may be higher, since the batch size is adjusted to the measured
+     * throughput during the transfer.
+     *
+     * @return
+     */
+    public int getRequestCount() {
+      return this.requestCount;
+    }
+  }
+
+  /**
+   * Per-target state of a multi-target zsync invocation
+   */
+  private static class TargetState {
+    final URI zsyncFile;
+    final Options options;
+    final EventDispatcher events;
+    ControlFile controlFile;
+    Path outputFile;
+    List<URI> remoteFileUris;
+    OutputFileWriter writer;
+    Exception failure;
+
+    TargetState(URI zsyncFile, Options options, EventDispatcher events) {
+      this.zsyncFile = zsyncFile;
+      this.options = options;
+      this.events = events;
+    }
+
+    boolean isPending() {
+      return this.failure == null && !this.writer.isComplete();
+    }
   }
 
   public static final String VERSION = "0.6.2";
 
-  private final HttpClient httpClient;
+  private static final long MAX_RETRY_DELAY_MILLIS = 30000;
+
+  // size of the chunks in which an input file shared by multiple targets is read
+  private static final int SHARED_SCAN_CHUNK_SIZE = 1 << 20;
+  // number of chunks a block matcher may get ahead of the slowest one
+  private static final int SHARED_SCAN_WINDOW = 4;
+
+  /**
+   * Executors used by asynchronous invocations if none are configured, created on first use.
+   */
+  private static class DefaultExecutors {
+    static final ExecutorService IO = Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("zsync-io-%d").build());
+    static final ExecutorService CPU = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("zsync-cpu-%d").build());
+  }
+
+  private final Transport transport;
+  private final Executor ioExecutor;
+  private final Executor cpuExecutor;
 
   /**
    * Creates a new zsync client
    */
   public Zsync() {
-    this(newHttpClient());
+    this(new OkHttpTransport(newHttpClient()), null, null);
   }
 
   /**
@@ -241,12 +579,48 @@ public class Zsync {
    * @param okHttpClient
    */
   public Zsync(OkHttpClient okHttpClient) {
-    this(newHttpClient(okHttpClient));
+    this(new OkHttpTransport(okHttpClient), null, null);
   }
 
-  /* currently internal as HttpClient not exposed */
-  private Zsync(HttpClient httpClient) {
-    this.httpClient = httpClient;
+  /**
+   * Creates a new zsync client that reuses a clone of the given http client and runs the stages of
+   * {@link #zsyncAsync(URI, Options, ZsyncObserver)} invocations on the given executors: http transfers on the I/O
+   * executor; block matching and checksum validation on the CPU executor. Since no stage blocks waiting for another,
+   * bounded executors can be used to run many concurrent invocations on few threads.
+   *
+   * @param okHttpClient
+   * @param ioExecutor Executor for http transfers, or null to use a shared cached thread pool
+   * @param cpuExecutor Executor for block matching and checksum validation, or null to use a shared thread pool sized
+   *        to the number of available processors
+   */
+  public Zsync(OkHttpClient okHttpClient, Executor ioExecutor, Executor cpuExecutor) {
+    this(new OkHttpTransport(okHttpClient), ioExecutor, cpuExecutor);
+  }
+
+  /**
+   * Creates a new zsync client that retrieves the control file and remote file content via the given transport.
+   *
+   * @param transport
+   */
+  public Zsync(Transport transport) {
+    this(transport, null, null);
+  }
+
+  /**
+   * Same as {@link #Zsync(OkHttpClient, Executor, Executor)}, but retrieves the control file and remote file content
+   * via the given transport.
+   *
+   * @param transport
+   * @param ioExecutor Executor for transfers, or null to use a shared cached thread pool
+   * @param cpuExecutor Executor for block matching and checksum validation, or null to use a shared thread pool sized
+   *        to the number of available processors
+   */
+  public Zsync(Transport transport, Executor ioExecutor, Executor cpuExecutor) {
+    checkArgument(transport != null, "transport cannot be null");
+    // file URIs are always read locally
+    this.transport = new FileTransport(transport);
+    this.ioExecutor = ioExecutor;
+    this.cpuExecutor = cpuExecutor;
   }
 
   /**
@@ -320,11 +694,537 @@ public class Zsync {
     }
   }
 
+  /**
+   * Asynchronous variant of {@link #zsync(URI, Options, ZsyncObserver)}. The invocation is split into stages that run
+   * on the I/O and CPU executors configured via {@link #Zsync(OkHttpClient, Executor, Executor)}: retrieving the
+   * control file, matching blocks from input files, retrieving the remaining blocks, and validating the output file.
+   * No thread is occupied by the invocation between stages.
+   * <p>
+   * Cancelling the returned future aborts the http transfer in progress, if any, skips the remaining stages, and
+   * deletes the partially written output file. A stage already matching an input file stops after the input file has
+   * been processed. Cancellation has no effect once the output file has been validated and moved into place.
+   * <p>
+   * Observer events of one invocation are emitted sequentially, but not necessarily on the same thread. The future
+   * completes only after the final observer events have been emitted, so observers can be read once it is done; except
+   * if it is cancelled, since cancellation completes the future immediately. If the invocation fails, the future fails
+   * with a {@link ZsyncException} or a runtime exception.
+   *
+   * @param zsyncFile URI of the zsync control file generated for the target file by {@link ZsyncMake}
+   * @param options Optional parameters to the zsync operation
+   * @param observer Optional observer
+   * @return Future of the path location of the written output file
+   */
+  public ListenableFuture<Path> zsyncAsync(URI zsyncFile, Options options, ZsyncObserver observer) {
+    final EventDispatcher events = new EventDispatcher(observer == null ? new ZsyncObserver() : observer);
+    options = new Options(options); // Copy, since the supplied Options object is mutable
+    events.zsyncStarted(zsyncFile, options);
+    final AsyncZsync zsync = new AsyncZsync(zsyncFile, options, events);
+    zsync.submit(zsync.new ReadControlFile());
+    return zsync;
+  }
+
+  /**
+   * State of an asynchronous zsync invocation. Each stage submits the next one to the appropriate executor upon
+   * completion, which also publishes the state written by the stage to the next.
+   */
+  private class AsyncZsync extends AbstractFuture<Path> {
+
+    final URI zsyncFile;
+    final Options options;
+    final EventDispatcher events;
+    final Cancellation cancellation = new Cancellation();
+    ControlFile controlFile;
+    Path outputFile;
+    List<URI> remoteFileUris;
+    OutputFileWriter writer;
+    // writer at the granularity of the sub-blocks of a hierarchical control file, sharing the part file with writer
+    ControlFile subBlockControlFile;
+    OutputFileWriter subBlockWriter;
+
+    AsyncZsync(URI zsyncFile, Options options, EventDispatcher events) {
+      this.zsyncFile = zsyncFile;
+      this.options = options;
+      this.events = events;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      if (!super.cancel(mayInterruptIfRunning)) {
+        return false;
+      }
+      this.cancellation.cancel();
+      return true;
+    }
+
+    void submit(Stage stage) {
+      final Executor executor;
+      if (stage.io) {
+        executor = Zsync.this.ioExecutor == null ? DefaultExecutors.IO : Zsync.this.ioExecutor;
+      } else {
+        executor = Zsync.this.cpuExecutor == null ? DefaultExecutors.CPU : Zsync.this.cpuExecutor;
+      }
+      try {
+        executor.execute(stage);
+      } catch (RuntimeException e) {
+        this.fail(e);
+      }
+    }
+
+    void fail(Throwable t) {
+      if (this.writer != null) {
+        try {
+          this.writer.abort();
+        } catch (IOException e) {
+          t.addSuppressed(e);
+        }
+        this.writer = null;
+      }
+      if (this.isCancelled()) {
+        this.events.zsyncFailed(new CancellationException("zsync of " + this.zsyncFile + " cancelled"));
+      } else {
+        final Throwable cause;
+        if (t instanceof ChecksumValidationIOException) {
+          cause = new ZsyncChecksumValidationFailedException("Calculated checksum does not match expected checksum");
+        } else if (t instanceof IOException) {
+          cause = new ZsyncException(t);
+        } else {
+          cause = t;
+        }
+        if (cause instanceof Exception) {
+          this.events.zsyncFailed((Exception) cause);
+        }
+        this.events.zsyncComplete();
+        // only complete the future once observers have seen the final events
+        this.setException(cause);
+        return;
+      }
+      this.events.zsyncComplete();
+    }
+
+    abstract class Stage implements Runnable {
+      final boolean io;
+
+      Stage(boolean io) {
+        this.io = io;
+      }
+
+      @Override
+      public void run() {
+        if (AsyncZsync.this.isCancelled()) {
+          AsyncZsync.this.fail(new CancellationException());
+          return;
+        }
+        try {
+          this.execute();
+        } catch (Throwable t) {
+          AsyncZsync.this.fail(t);
+        }
+      }
+
+      abstract void execute() throws Exception;
+    }
+
+    class ReadControlFile extends Stage {
+      ReadControlFile() {
+        super(true);
+      }
+
+      @Override
+      void execute() throws Exception {
+        final AsyncZsync z = AsyncZsync.this;
+        z.controlFile = Zsync.this.readControlFile(z.zsyncFile, z.options, z.events, z.cancellation);
+        z.outputFile = resolveOutputFile(z.controlFile, z.options);
+        z.remoteFileUris = resolveRemoteFileUris(z.controlFile, z.options);
+        z.writer = new OutputFileWriter(z.outputFile, z.controlFile, z.events.getOutputFileWriteListener());
+        z.submit(new MatchInputFiles());
+      }
+    }
+
+    class MatchInputFiles extends Stage {
+      MatchInputFiles() {
+        super(false);
+      }
+
+      @Override
+      void execute() throws Exception {
+        final AsyncZsync z = AsyncZsync.this;
+        for (Path inputFile : z.options.getInputFiles()) {
+          if (z.isCancelled()) {
+            throw new CancellationException();
+          }
+          if (Zsync.this.processInputFile(z.writer, z.controlFile, inputFile, z.options.isIndexInputFiles(),
+              z.events)) {
+            break;
+          }
+        }
+        if (z.writer.isComplete()) {
+          z.submit(new Validate());
+        } else {
+          z.submit(z.controlFile.getHeader().getSubBlockHeader() == null ? new RetrieveRemainingBlocks()
+              : new ReadSubBlockSums());
+        }
+      }
+    }
+
+    class ReadSubBlockSums extends Stage {
+      ReadSubBlockSums() {
+        super(true);
+      }
+
+      @Override
+      void execute() throws Exception {
+        final AsyncZsync z = AsyncZsync.this;
+        z.subBlockControlFile =
+            Zsync.this.readSubBlockSums(z.zsyncFile, z.controlFile, z.writer, z.options, z.events, z.cancellation);
+        z.subBlockWriter = z.writer.refine(z.subBlockControlFile);
+        z.submit(new MatchSubBlocks());
+      }
+    }
+
+    class MatchSubBlocks extends Stage {
+      MatchSubBlocks() {
+        super(false);
+      }
+
+      @Override
+      void execute() throws Exception {
+        final AsyncZsync z = AsyncZsync.this;
+        for (Path inputFile : z.options.getInputFiles()) {
+          if (z.isCancelled()) {
+            throw new CancellationException();
+          }
+          if (Zsync.this.processInputFile(z.subBlockWriter, z.subBlockControlFile, inputFile,
+              z.options.isIndexInputFiles(), z.events)) {
+            break;
+          }
+        }
+        z.submit(z.subBlockWriter.isComplete() ? new Validate() : new RetrieveRemainingBlocks());
+      }
+    }
+
+    class RetrieveRemainingBlocks extends Stage {
+      RetrieveRemainingBlocks() {
+        super(true);
+      }
+
+      @Override
+      void execute() throws Exception {
+        final AsyncZsync z = AsyncZsync.this;
+        Zsync.this.retrieveMissingBlocks(z.remoteFileUris, z.subBlockWriter == null ? z.writer : z.subBlockWriter,
+            z.options, z.events, z.cancellation);
+        z.submit(new Validate());
+      }
+    }
+
+    class Validate extends Stage {
+      Validate() {
+        super(false);
+      }
+
+      @Override
+      void execute() throws Exception {
+        final AsyncZsync z = AsyncZsync.this;
+        final OutputFileWriter writer = z.writer;
+        // close validates and moves the output file, so it must not be aborted past this point
+        z.writer = null;
+        writer.close();
+        // only complete the future once observers have seen the final events
+        try {
+          z.events.zsyncComplete();
+        } finally {
+          z.set(z.outputFile);
+        }
+      }
+    }
+  }
+
+  /**
+   * Runs zsync for several targets at once. Behaves like invoking {@link #zsync(URI, Options, ZsyncObserver)} for each
+   * target in turn, except that an input file used by several targets is read only once: each chunk of the input file
+   * is handed to the block matchers of all targets using it, which run concurrently on the CPU executor and the calling
+   * thread. Blocks not found in any input file are then retrieved from the remote file of each target.
+   * <p>
+   * Targets with {@link Options#isIndexInputFiles()} set match their input files through the index on their own
+   * instead of joining the shared read.
+   * For targets with a hierarchical control file, the input files are matched against the sub-blocks of the blocks
+   * still missing once the shared read is done, reading those input files again for that target.
+   * <p>
+   * A failure of one target does not prevent the others from completing. If any targets fail, the exception of the
+   * first failed target is thrown after all targets have been processed, with the exceptions of further failed targets
+   * attached as suppressed exceptions.
+   *
+   * @param targets Targets to construct
+   * @return Path locations of the written output files in the order of the given targets
+   * @throws ZsyncException if any target fails
+   */
+  public List<Path> zsync(List<Target> targets) throws ZsyncException {
+    final List<TargetState> states = new ArrayList<>(targets.size());
+    for (Target target : targets) {
+      final ZsyncObserver observer = target.getObserver();
+      final EventDispatcher events = new EventDispatcher(observer == null ? new ZsyncObserver() : observer);
+      final Options options = new Options(target.getOptions());
+      events.zsyncStarted(target.getZsyncFile(), options);
+      final TargetState state = new TargetState(target.getZsyncFile(), options, events);
+      states.add(state);
+      try {
+        state.controlFile = this.readControlFile(state.zsyncFile, options, events, null);
+        state.outputFile = resolveOutputFile(state.controlFile, options);
+        state.remoteFileUris = resolveRemoteFileUris(state.controlFile, options);
+        state.writer = new OutputFileWriter(state.outputFile, state.controlFile, events.getOutputFileWriteListener());
+      } catch (ZsyncException | RuntimeException e) {
+        state.failure = e;
+      } catch (IOException e) {
+        state.failure = new ZsyncException(e);
+      }
+    }
+
+    // group targets by input file, so that each input file is read once
+    final Map<Path, List<TargetState>> inputFiles = new LinkedHashMap<>();
+    for (TargetState state : states) {
+      if (state.failure == null) {
+        for (Path inputFile : state.options.getInputFiles()) {
+          final Path key = inputFile.toAbsolutePath().normalize();
+          List<TargetState> users = inputFiles.get(key);
+          if (users == null) {
+            inputFiles.put(key, users = new ArrayList<>(2));
+          }
+          users.add(state);
+        }
+      }
+    }
+    for (Entry<Path, List<TargetState>> entry : inputFiles.entrySet()) {
+      this.processInputFile(entry.getKey(), entry.getValue());
+    }
+
+    // retrieve remaining blocks and validate each target
+    final List<Path> outputFiles = new ArrayList<>(states.size());
+    ZsyncException failure = null;
+    for (TargetState state : states) {
+      try {
+        outputFiles.add(this.completeTarget(state));
+      } catch (ZsyncException | RuntimeException exception) {
+        state.events.zsyncFailed(exception);
+        final ZsyncException e = exception instanceof ZsyncException ? (ZsyncException) exception
+            : new ZsyncException("Failed to construct " + state.zsyncFile, exception);
+        if (failure == null) {
+          failure = e;
+        } else {
+          failure.addSuppressed(e);
+        }
+      } finally {
+        state.events.zsyncComplete();
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+    return outputFiles;
+  }
+
+  /**
+   * Constructs all output files listed in the given manifest as described in {@link ZsyncManifest}. Failures to
+   * construct individual output files are reported in the returned result rather than thrown.
+   *
+   * @param manifest Output files to construct
+   * @return Statistics and failures of the output files
+   * @throws ZsyncException if interrupted while waiting for output files to be constructed
+   */
+  public ZsyncManifest.Result zsync(ZsyncManifest manifest) throws ZsyncException {
+    return manifest.run(this);
+  }
+
+  private Path completeTarget(TargetState state) throws ZsyncException {
+    if (state.writer == null) {
+      throw propagate(state.failure);
+    }
+    try (final OutputFileWriter outputFileWriter = state.writer) {
+      if (state.failure != null) {
+        throw propagate(state.failure);
+      }
+      if (!outputFileWriter.isComplete()) {
+        final OutputFileWriter target = this.refine(state.zsyncFile, state.controlFile, outputFileWriter,
+            state.options, state.options.isIndexInputFiles(), state.events);
+        if (!target.isComplete()) {
+          this.retrieveMissingBlocks(state.remoteFileUris, target, state.options, state.events, null);
+        }
+      }
+    } catch (ChecksumValidationIOException exception) {
+      throw new ZsyncChecksumValidationFailedException("Calculated checksum does not match expected checksum");
+    } catch (IOException e) {
+      throw new ZsyncException(e);
+    }
+    return state.outputFile;
+  }
+
+  private static ZsyncException propagate(Exception exception) throws ZsyncException {
+    if (exception instanceof RuntimeException) {
+      throw (RuntimeException) exception;
+    }
+    throw (ZsyncException) exception;
+  }
+
+  /**
+   * Determines which parts of the remote file a {@link #zsync(URI, Options)} invocation with the given parameters would
+   * download, without performing it. The control file is retrieved and the input files are matched against it as
+   * usual, but matched blocks are only recorded in memory: neither the output file nor its part file is written, the
+   * control file is not saved to {@link Options#getSaveZsyncFile()}, and input files are always scanned rather than
+   * indexed, so that no seed index is written either.
+   *
+   * @param zsyncFile URI of the zsync control file generated for the target file by {@link ZsyncMake}
+   * @param options Optional parameters to the zsync operation
+   * @return Plan describing the ranges to download
+   * @throws ZsyncException if the control file cannot be read or an input file cannot be matched
+   */
+  public Plan plan(URI zsyncFile, Options options) throws ZsyncException {
+    final EventDispatcher events = new EventDispatcher(new ZsyncObserver());
+    options = new Options(options).setSaveZsyncFile(null);
+    final ControlFile controlFile = this.readControlFile(zsyncFile, options, events, null);
+    final Path outputFile = resolveOutputFile(controlFile, options);
+    final List<URI> remoteFileUris = resolveRemoteFileUris(controlFile, options);
+
+    try (final OutputFileWriter outputFileWriter =
+        OutputFileWriter.inMemory(outputFile, controlFile, events.getOutputFileWriteListener())) {
+      this.processInputFiles(outputFileWriter, controlFile, options.getInputFiles(), false, events);
+      final OutputFileWriter target = this.refine(zsyncFile, controlFile, outputFileWriter, options, false, events);
+      return new Plan(outputFile, remoteFileUris, controlFile.getHeader().getLength(), target.getMissingRanges());
+    } catch (IOException e) {
+      throw new ZsyncException(e);
+    }
+  }
+
   private Path zsyncInternal(URI zsyncFile, Options options, EventDispatcher events) throws ZsyncException {
-    final ControlFile controlFile;
-    try (InputStream in = this.openZsyncFile(zsyncFile, this.httpClient, options, events)) {
-      controlFile = ControlFile.read(in);
-    } catch (HttpError e) {
+    final Map<Path, ListenableFutureTask<SeedIndex>> seedIndexes = new HashMap<>();
+    try {
+      final ControlFile controlFile = this.readControlFile(zsyncFile, options, events, null, seedIndexes);
+      final Path outputFile = resolveOutputFile(controlFile, options);
+      final List<URI> remoteFileUris = resolveRemoteFileUris(controlFile, options);
+
+      try (final OutputFileWriter outputFileWriter =
+          new OutputFileWriter(outputFile, controlFile, events.getOutputFileWriteListener())) {
+        if (!this.processInputFiles(outputFileWriter, controlFile, options.getInputFiles(),
+            options.isIndexInputFiles(), events, seedIndexes)) {
+          final OutputFileWriter target =
+              this.refine(zsyncFile, controlFile, outputFileWriter, options, options.isIndexInputFiles(), events);
+          if (!target.isComplete()) {
+            this.retrieveMissingBlocks(remoteFileUris, target, options, events, null);
+          }
+        }
+      } catch (ChecksumValidationIOException exception) {
+        throw new ZsyncChecksumValidationFailedException("Calculated checksum does not match expected checksum");
+      } catch (IOException e) {
+        throw new ZsyncException(e);
+      }
+
+      return outputFile;
+    } finally {
+      // drop the indexes not needed because reading the control file failed or earlier input files sufficed; indexes
+      // already being built are left to complete so that they can be reused next time
+      for (ListenableFutureTask<SeedIndex> seedIndex : seedIndexes.values()) {
+        seedIndex.cancel(false);
+      }
+    }
+  }
+
+  /**
+   * Retrieves the blocks still missing from the output file from the remote file. If a transfer fails part way, the
+   * blocks received completely are kept and only the remaining ones are requested again after an exponentially
+   * increasing delay, up to {@link Options#getMaxRetries()} times. If the remote file has mirrors, the blocks are
+   * retrieved from all of them in parallel; over HTTP/2, ranges are requested individually on concurrent streams. The
+   * retrieval rate is capped by the {@link Options#getBandwidthLimiter() bandwidth limiter}, if any.
+   */
+  private void retrieveMissingBlocks(List<URI> remoteFileUris, OutputFileWriter outputFileWriter, Options options,
+      EventDispatcher events, Cancellation cancellation) throws IOException {
+    final RangeReceiver receiver = events.getRangeReceiverListener(outputFileWriter);
+    final Transport transport =
+        options.getBandwidthLimiter() == null ? this.transport : options.getBandwidthLimiter().throttle(
+            this.transport, options.getBandwidthWeight());
+    long delay = options.getRetryDelayMillis();
+    for (int attempt = 0;; attempt++) {
+      try {
+        if (remoteFileUris.size() == 1 && transport.getConcurrency(remoteFileUris.get(0)) <= 1) {
+          transport.getRanges(remoteFileUris.get(0), outputFileWriter.getMissingRanges(),
+              options.getCredentials(), receiver, events.getRemoteFileRequestListener(), cancellation);
+        } else {
+          new MirrorRangeRetriever(transport, remoteFileUris, options.getCredentials(), outputFileWriter,
+              events, this.ioExecutor == null ? DefaultExecutors.IO : this.ioExecutor, cancellation).retrieve(
+              outputFileWriter.getMissingRanges());
+        }
+        return;
+      } catch (IOException e) {
+        if (attempt >= options.getMaxRetries() || !isRetryable(e)
+            || (cancellation != null && cancellation.isCancelled())) {
+          throw e;
+        }
+      }
+      try {
+        Thread.sleep(delay);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting to retry retrieving " + remoteFileUris);
+      }
+      delay = Math.min(2 * delay, MAX_RETRY_DELAY_MILLIS);
+    }
+  }
+
+  /**
+   * Network failures, including read timeouts, and server errors may be transient; client errors, invalid responses
+   * and interruption are not.
+   */
+  private static boolean isRetryable(IOException e) {
+    if (e instanceof TransportStatusException) {
+      final int code = ((TransportStatusException) e).getCode();
+      return code >= 500 || code == 408 || code == 429;
+    }
+    if (e instanceof InvalidResponseException) {
+      return false;
+    }
+    if (Thread.currentThread().isInterrupted()) {
+      return false;
+    }
+    // socket timeouts are interrupted I/O exceptions too, but do not indicate interruption of this thread
+    return !(e instanceof InterruptedIOException) || e instanceof SocketTimeoutException;
+  }
+
+  private ControlFile readControlFile(URI zsyncFile, Options options, EventDispatcher events,
+      Cancellation cancellation) throws ZsyncException {
+    return this.readControlFile(zsyncFile, options, events, cancellation, null);
+  }
+
+  /**
+   * Reads the control file. If seed indexes is not null and input files are to be indexed, the indexes of the input
+   * files are built on the CPU executor as soon as the header has been read, while the block checksums are still
+   * being retrieved, and added to the given map. The caller must cancel them once they are no longer needed. Only
+   * building the indexes overlaps with the retrieval: matching input files requires the block checksums, so input
+   * files that are not indexed are only read once the control file has been read completely.
+   */
+  private ControlFile readControlFile(URI zsyncFile, Options options, EventDispatcher events,
+      Cancellation cancellation, Map<Path, ListenableFutureTask<SeedIndex>> seedIndexes) throws ZsyncException {
+    final FlightRecorderEvents.Event event = FlightRecorderEvents.CONTROL_FILE.begin();
+    try (InputStream in = this.openZsyncFile(zsyncFile, options, events, cancellation)) {
+      final ControlFile.Reader reader = ControlFile.open(in);
+      if (seedIndexes != null && options.isIndexInputFiles()) {
+        final int blockSize = reader.getHeader().getBlocksize();
+        final Executor executor = this.cpuExecutor == null ? DefaultExecutors.CPU : this.cpuExecutor;
+        for (final Path inputFile : options.getInputFiles()) {
+          final ListenableFutureTask<SeedIndex> task = ListenableFutureTask.create(new Callable<SeedIndex>() {
+            @Override
+            public SeedIndex call() throws IOException {
+              return SeedIndex.open(inputFile, blockSize);
+            }
+          });
+          seedIndexes.put(inputFile, task);
+          try {
+            executor.execute(task);
+          } catch (RejectedExecutionException e) {
+            // built on the calling thread when matching the input file instead
+          }
+        }
+      }
+      final ControlFile controlFile = reader.read();
+      event.set(0, zsyncFile.toString()).set(1, controlFile.getHeader().getLength())
+          .set(2, controlFile.getHeader().getNumBlocks()).commit();
+      return controlFile;
+    } catch (TransportStatusException e) {
       if (e.getCode() == HTTP_NOT_FOUND) {
         throw new ZsyncControlFileNotFoundException("Zsync file " + zsyncFile + " does not exist.", e);
       }
@@ -334,8 +1234,50 @@ public class Zsync {
     } catch (IOException e) {
       throw new ZsyncException("Failed to read zsync control file", e);
     }
+  }
+
+  /**
+   * Returns the writer to retrieve the blocks still missing from the given writer into. For a hierarchical control
+   * file, the checksums of the sub-blocks of the missing blocks are retrieved and the input files are matched against
+   * them first, so that only the sub-blocks not found in the input files remain missing. Otherwise returns the given
+   * writer.
+   */
+  private OutputFileWriter refine(URI zsyncFile, ControlFile controlFile, OutputFileWriter outputFileWriter,
+      Options options, boolean index, EventDispatcher events) throws IOException {
+    if (controlFile.getHeader().getSubBlockHeader() == null || outputFileWriter.isComplete()) {
+      return outputFileWriter;
+    }
+    final ControlFile subBlockControlFile =
+        this.readSubBlockSums(zsyncFile, controlFile, outputFileWriter, options, events, null);
+    final OutputFileWriter subBlockWriter = outputFileWriter.refine(subBlockControlFile);
+    this.processInputFiles(subBlockWriter, subBlockControlFile, options.getInputFiles(), index, events);
+    return subBlockWriter;
+  }
 
-    // determine output file location
+  /**
+   * Retrieves the checksums of the sub-blocks of the blocks not yet completed by the given output file writer from a
+   * hierarchical control file with range requests. The control file is read from the local copy if there is one.
+   */
+  private ControlFile readSubBlockSums(URI zsyncFile, ControlFile controlFile, OutputFileWriter outputFileWriter,
+      Options options, EventDispatcher events, Cancellation cancellation) throws IOException {
+    final URI location;
+    if (!zsyncFile.isAbsolute()) {
+      location = Paths.get(zsyncFile.getPath()).toAbsolutePath().toUri();
+    } else if (ZsyncUtil.getPath(zsyncFile) == null && options.getSaveZsyncFile() != null) {
+      location = options.getSaveZsyncFile().toAbsolutePath().toUri();
+    } else {
+      location = zsyncFile;
+    }
+    final SubBlockSumsReceiver receiver = new SubBlockSumsReceiver(controlFile);
+    this.transport.getRanges(location, receiver.getRanges(outputFileWriter.getMissingRanges()),
+        options.getCredentials(), receiver, events.getControlFileDownloadListener(), cancellation);
+    return receiver.build();
+  }
+
+  /**
+   * Determines the output file location and registers the output file as an input file if it already exists.
+   */
+  private static Path resolveOutputFile(ControlFile controlFile, Options options) {
     Path outputFile = options.getOutputFile();
     if (outputFile == null) {
       outputFile = Paths.get(controlFile.getHeader().getFilename());
@@ -345,9 +1287,27 @@ public class Zsync {
     if (Files.exists(outputFile)) {
       options.getInputFiles().add(outputFile);
     }
+    return outputFile;
+  }
 
-    // determine remote file location
-    URI remoteFileUri = URI.create(controlFile.getHeader().getUrl());
+  /**
+   * Resolves the locations of the remote file: the URL headers of the control file followed by the configured mirrors.
+   */
+  private static List<URI> resolveRemoteFileUris(ControlFile controlFile, Options options) {
+    final Set<URI> remoteFileUris = new LinkedHashSet<>();
+    for (String url : controlFile.getHeader().getUrls()) {
+      remoteFileUris.add(resolveRemoteFileUri(URI.create(url), options));
+    }
+    for (URI mirror : options.getMirrors()) {
+      remoteFileUris.add(resolveRemoteFileUri(mirror, options));
+    }
+    if (remoteFileUris.isEmpty()) {
+      throw new IllegalArgumentException("Zsync file does not specify a remote file URL");
+    }
+    return ImmutableList.copyOf(remoteFileUris);
+  }
+
+  private static URI resolveRemoteFileUri(URI remoteFileUri, Options options) {
     if (!remoteFileUri.isAbsolute()) {
       if (options.getZsyncFileSource() == null) {
         throw new IllegalArgumentException(
@@ -355,20 +1315,7 @@ public class Zsync {
       }
       remoteFileUri = options.getZsyncFileSource().resolve(remoteFileUri);
     }
-
-    try (final OutputFileWriter outputFileWriter =
-        new OutputFileWriter(outputFile, controlFile, events.getOutputFileWriteListener())) {
-      if (!this.processInputFiles(outputFileWriter, controlFile, options.getInputFiles(), events)) {
-        this.httpClient.partialGet(remoteFileUri, outputFileWriter.getMissingRanges(), options.getCredentials(),
-            events.getRangeReceiverListener(outputFileWriter), events.getRemoteFileDownloadListener());
-      }
-    } catch (ChecksumValidationIOException exception) {
-      throw new ZsyncChecksumValidationFailedException("Calculated checksum does not match expected checksum");
-    } catch (IOException | HttpError e) {
-      throw new ZsyncException(e);
-    }
-
-    return outputFile;
+    return remoteFileUri;
   }
 
   /**
@@ -381,15 +1328,15 @@ public class Zsync {
    * parameter, so that relative file URLs in the control file can later be resolved against it.
    *
    * @param zsyncFile
-   * @param httpClient
    * @param options
+   * @param events
+   * @param cancellation
    *
    * @return
    * @throws IOException
-   * @throws HttpError
    */
-  private InputStream openZsyncFile(URI zsyncFile, HttpClient httpClient, Options options, EventDispatcher events)
-      throws IOException, HttpError {
+  private InputStream openZsyncFile(URI zsyncFile, Options options, EventDispatcher events,
+      Cancellation cancellation) throws IOException {
     final InputStream in;
     if (zsyncFile.isAbsolute()) {
       // check if it's a local URI
@@ -397,14 +1344,20 @@ public class Zsync {
       if (path == null) {
         // TODO we may want to set the redirect URL resulting from processing the http request
         options.setZsyncFileSource(zsyncFile);
-        final HttpTransferListener listener = events.getControlFileDownloadListener();
+        final TransportListener listener = events.getControlFileDownloadListener();
         final Map<String, Credentials> credentials = options.getCredentials();
         // check if we should persist the file locally
         final Path savePath = options.getSaveZsyncFile();
         if (savePath == null) {
-          in = httpClient.get(zsyncFile, credentials, listener);
+          in = this.transport.get(zsyncFile, credentials, listener, cancellation);
         } else {
-          httpClient.get(zsyncFile, savePath, credentials, listener);
+          // only retrieve the file again if it changed since it was saved
+          final InputStream modified = Files.exists(savePath) ? this.transport.getIfModifiedSince(zsyncFile,
+              Files.getLastModifiedTime(savePath).toMillis(), credentials, listener, cancellation)
+              : this.transport.get(zsyncFile, credentials, listener, cancellation);
+          if (modified != null) {
+            save(modified, savePath);
+          }
           in = this.openZsyncFile(savePath, events);
         }
       } else {
@@ -420,14 +1373,38 @@ public class Zsync {
     return in;
   }
 
+  /**
+   * Stores the given content at the given location, replacing it only once the content has been fully read
+   */
+  private static void save(InputStream content, Path path) throws IOException {
+    final Path parent = path.toAbsolutePath().getParent();
+    final Path tmp = parent.resolve(path.getFileName() + ".part");
+    Files.createDirectories(parent);
+    try (InputStream in = content) {
+      Files.copy(in, tmp, REPLACE_EXISTING);
+    }
+    Files.move(tmp, path, REPLACE_EXISTING, ATOMIC_MOVE);
+  }
+
   private InputStream openZsyncFile(Path zsyncFile, EventDispatcher events) throws IOException {
     return new ObservableInputStream(Files.newInputStream(zsyncFile), events.getControlFileReadListener());
   }
 
   private boolean processInputFiles(OutputFileWriter targetFile, ControlFile controlFile,
-      Iterable<? extends Path> inputFiles, EventDispatcher events) throws IOException {
+      Iterable<? extends Path> inputFiles, boolean index, EventDispatcher events) throws IOException {
+    return this.processInputFiles(targetFile, controlFile, inputFiles, index, events,
+        Collections.<Path, ListenableFutureTask<SeedIndex>>emptyMap());
+  }
+
+  /**
+   * Processes the given input files in order until the target file is complete, using the seed indexes already being
+   * built for the block size of the control file, if any.
+   */
+  private boolean processInputFiles(OutputFileWriter targetFile, ControlFile controlFile,
+      Iterable<? extends Path> inputFiles, boolean index, EventDispatcher events,
+      Map<Path, ListenableFutureTask<SeedIndex>> seedIndexes) throws IOException {
     for (Path inputFile : inputFiles) {
-      if (this.processInputFile(targetFile, controlFile, inputFile, events.getInputFileReadListener())) {
+      if (this.processInputFile(targetFile, controlFile, inputFile, index, events, seedIndexes.get(inputFile))) {
         return true;
       }
     }
@@ -435,23 +1412,185 @@ public class Zsync {
   }
 
   private boolean processInputFile(OutputFileWriter targetFile, ControlFile controlFile, Path inputFile,
-      ResourceTransferListener<Path> listener) throws IOException {
+      boolean index, EventDispatcher events) throws IOException {
+    return this.processInputFile(targetFile, controlFile, inputFile, index, events, null);
+  }
+
+  private boolean processInputFile(OutputFileWriter targetFile, ControlFile controlFile, Path inputFile,
+      boolean index, EventDispatcher events, ListenableFutureTask<SeedIndex> prepared) throws IOException {
+    final ResourceTransferListener<Path> listener = events.getInputFileReadListener();
     final long size;
     try (final FileChannel fileChannel = FileChannel.open(inputFile);
         final ReadableByteChannel channel =
             new ObservableReadableResourceChannel<>(fileChannel, listener, inputFile, size = fileChannel.size())) {
-      final BlockMatcher matcher = BlockMatcher.create(controlFile);
-      final int matcherBlockSize = matcher.getMatcherBlockSize();
-      final ReadableByteChannel c = zeroPad(channel, size, matcherBlockSize, controlFile.getHeader());
-      final RollingBuffer buffer = new RollingBuffer(c, matcherBlockSize, 16 * matcherBlockSize);
-      int bytes;
-      do {
-        bytes = matcher.match(targetFile, buffer);
-      } while (buffer.advance(bytes));
+      if (index && SeedIndex.isIndexable(size, controlFile.getHeader().getBlocksize())) {
+        // match aligned blocks by lookup and only fall back to rolling scan if it could find more
+        final SeedIndex seedIndex = prepared == null ? SeedIndex.open(inputFile, controlFile.getHeader().getBlocksize())
+            : getSeedIndex(prepared);
+        if (!seedIndex.match(targetFile, controlFile, fileChannel, listener)) {
+          // the seed changed without its size or modification time changing: rebuild the index next time
+          Files.deleteIfExists(SeedIndex.getIndexFile(inputFile, controlFile.getHeader().getBlocksize()));
+        } else if (targetFile.isComplete() || !seedIndex.isScanRequired(targetFile, controlFile.getHeader())) {
+          return targetFile.isComplete();
+        }
+      }
+      scan(targetFile, controlFile, inputFile, channel, size, events);
     }
     return targetFile.isComplete();
   }
 
+  private static SeedIndex getSeedIndex(ListenableFutureTask<SeedIndex> prepared) throws IOException {
+    // build the index on the calling thread if the executor has not started it yet, so that the caller never waits
+    // for a task queued behind other work or rejected by a bounded executor; no-op if already started
+    prepared.run();
+    try {
+      return prepared.get();
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException("Failed to index input file", cause);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for input file index");
+    }
+  }
+
+  /**
+   * Processes an input file on behalf of all given targets. Targets that are already complete are skipped. Failures
+   * are recorded on the affected targets rather than thrown.
+   */
+  private void processInputFile(Path inputFile, List<TargetState> targets) {
+    final List<TargetState> shared = new ArrayList<>(targets.size());
+    for (TargetState state : targets) {
+      if (!state.isPending()) {
+        continue;
+      }
+      if (state.options.isIndexInputFiles()) {
+        try {
+          this.processInputFile(state.writer, state.controlFile, inputFile, true, state.events);
+        } catch (IOException e) {
+          state.failure = new ZsyncException(e);
+        } catch (RuntimeException e) {
+          state.failure = e;
+        }
+      } else {
+        shared.add(state);
+      }
+    }
+    if (shared.isEmpty()) {
+      return;
+    }
+    try {
+      if (shared.size() == 1) {
+        final TargetState state = shared.get(0);
+        this.processInputFile(state.writer, state.controlFile, inputFile, false, state.events);
+      } else {
+        this.scanShared(inputFile, shared);
+      }
+    } catch (IOException e) {
+      for (TargetState state : shared) {
+        state.failure = new ZsyncException(e);
+      }
+    } catch (RuntimeException e) {
+      for (TargetState state : shared) {
+        state.failure = e;
+      }
+    }
+  }
+
+  /**
+   * Reads the given input file once, handing each chunk read to a block matcher per target. The matchers run on the CPU
+   * executor; any the executor rejects or has not started yet by the time this thread is done with its own are run on
+   * this thread, so that bounded executors cannot starve the scan. Matchers started late read the chunks already
+   * passed by the others from disk again.
+   */
+  private void scanShared(final Path inputFile, List<TargetState> targets) throws IOException {
+    final Executor executor = this.cpuExecutor == null ? DefaultExecutors.CPU : this.cpuExecutor;
+    try (final FileChannel fileChannel = FileChannel.open(inputFile)) {
+      final long size = fileChannel.size();
+      final SharedFileReader reader = new SharedFileReader(fileChannel, SHARED_SCAN_CHUNK_SIZE, SHARED_SCAN_WINDOW);
+      final List<ListenableFutureTask<Void>> matchers = new ArrayList<>(targets.size());
+      for (final TargetState state : targets) {
+        matchers.add(ListenableFutureTask.create(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            try (final ReadableByteChannel channel = new ObservableReadableResourceChannel<>(reader.newChannel(),
+                state.events.getInputFileReadListener(), inputFile, size)) {
+              scan(state.writer, state.controlFile, inputFile, channel, size, state.events);
+            }
+            return null;
+          }
+        }));
+      }
+      for (int i = 1; i < matchers.size(); i++) {
+        try {
+          executor.execute(matchers.get(i));
+        } catch (RejectedExecutionException e) {
+          // run on this thread below
+        }
+      }
+      for (int i = 0; i < matchers.size(); i++) {
+        // no-op if already started by the executor
+        matchers.get(i).run();
+        try {
+          matchers.get(i).get();
+        } catch (ExecutionException e) {
+          final Throwable cause = e.getCause();
+          final TargetState state = targets.get(i);
+          if (cause instanceof RuntimeException) {
+            state.failure = (RuntimeException) cause;
+          } else {
+            state.failure = new ZsyncException(cause);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          for (ListenableFutureTask<Void> matcher : matchers) {
+            matcher.cancel(true);
+          }
+          throw new InterruptedIOException("Interrupted waiting for block matchers");
+        }
+      }
+    }
+  }
+
+  /**
+   * Scans the input file for blocks of the output file and reports the counters of the matcher once done.
+   */
+  private static void scan(OutputFileWriter targetFile, ControlFile controlFile, Path inputFile,
+      ReadableByteChannel channel, long size, EventDispatcher events) throws IOException {
+    final BlockMatcher matcher = BlockMatcher.create(controlFile);
+    final int matcherBlockSize = matcher.getMatcherBlockSize();
+    final ReadableByteChannel c = zeroPad(channel, size, matcherBlockSize, controlFile.getHeader());
+    final RollingBuffer buffer = new RollingBuffer(c, matcherBlockSize, 16 * matcherBlockSize);
+    final FlightRecorderEvents.Event event = FlightRecorderEvents.INPUT_FILE_SCAN.begin();
+    final long start = System.nanoTime();
+    int bytes;
+    do {
+      bytes = matcher.match(targetFile, buffer);
+    } while (buffer.advance(bytes));
+    events.inputFileMatched(new BlockMatcherMetrics(inputFile, size, System.nanoTime() - start, matcher));
+    event.set(0, inputFile.toString()).set(1, size).set(2, matcher.getBlocksMatched()).commit();
+  }
+
+  /**
+   * Matches a single input file against the given control file in memory and returns the ranges of the target file not
+   * found in it.
+   */
+  static List<ContentRange> match(ControlFile controlFile, Path inputFile) throws IOException {
+    final EventDispatcher events = new EventDispatcher(new ZsyncObserver());
+    try (final OutputFileWriter outputFileWriter =
+        OutputFileWriter.inMemory(null, controlFile, events.getOutputFileWriteListener());
+        final FileChannel channel = FileChannel.open(inputFile)) {
+      scan(outputFileWriter, controlFile, inputFile, channel, channel.size(), events);
+      return outputFileWriter.getMissingRanges();
+    }
+  }
+
   /**
    * Pads the given channel with zeros if the length of the input file is not evenly divisible by the block size. The is
    * necessary to match how the checksums in the zsync file are computed.
@@ -0,0 +1,106 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ * disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.squareup.okhttp.OkHttpClient;
+
+/**
+ * Executors for running {@link Zsync#zsyncAsync(URI, Zsync.Options, ZsyncObserver)} invocations.
+ * <p>
+ * Most of the time of a zsync invocation is spent blocked on http reads and file writes. On Java 21 and later, the I/O
+ * stages can run on virtual threads, so that thousands of concurrent invocations do not require thousands of platform
+ * threads:
+ *
+ * <pre>
+ * new Zsync(okHttpClient, ZsyncExecutors.newVirtualThreadPerTaskExecutor(), null)
+ * </pre>
+ *
+ * Block matching and checksum validation are CPU bound and remain on a pool of platform threads. The zsync client
+ * classes on the I/O path do not block while holding a monitor, so they do not pin the carrier threads of virtual
+ * threads. The tests check that these classes have no synchronized methods on any JVM; a complete sync including
+ * OkHttp is only checked for pinned virtual threads with Flight Recorder when the tests run on Java 21 or later.
+ *
+ * @author bbusjaeger
+ *
+ */
+public class ZsyncExecutors {
+
+  // resolved reflectively, since this library is compiled for Java 7
+  private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = findNewVirtualThreadPerTaskExecutor();
+
+  private ZsyncExecutors() {}
+
+  private static Method findNewVirtualThreadPerTaskExecutor() {
+    try {
+      return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Whether the running JVM supports virtual threads
+   *
+   * @return
+   */
+  public static boolean isVirtualThreadSupported() {
+    return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+  }
+
+  /**
+   * Returns an executor that runs each task on a new virtual thread. Intended as the I/O executor passed to
+   * {@link Zsync#Zsync(OkHttpClient, java.util.concurrent.Executor, java.util.concurrent.Executor)}.
+   *
+   * @return
+   * @throws UnsupportedOperationException if the running JVM does not support virtual threads
+   */
+  public static ExecutorService newVirtualThreadPerTaskExecutor() {
+    if (NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR == null) {
+      throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+    }
+    try {
+      return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+    } catch (IllegalAccessException e) {
+      throw new UnsupportedOperationException("Virtual threads not accessible", e);
+    } catch (InvocationTargetException e) {
+      throw new UnsupportedOperationException("Failed to create virtual thread executor", e.getCause());
+    }
+  }
+
+  /**
+   * Returns an executor for the I/O stages of asynchronous invocations: a virtual thread per task executor if supported
+   * by the running JVM, otherwise a cached thread pool.
+   *
+   * @return
+   */
+  public static ExecutorService newIoExecutor() {
+    return isVirtualThreadSupported() ? newVirtualThreadPerTaskExecutor() : Executors.newCachedThreadPool();
+  }
+}
@@ -35,6 +35,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.salesforce.zsync.Zsync.Options;
 import com.salesforce.zsync.http.ContentRange;
+import com.salesforce.zsync.transport.ResponseType;
 
 
 /**
@@ -112,6 +113,20 @@ public class ZsyncForwardingObserver extends ZsyncObserver {
     }
   }
 
+  @Override
+  public void inputFileMatched(MatcherMetrics metrics) {
+    for (ZsyncObserver observer : this.observers) {
+      observer.inputFileMatched(metrics);
+    }
+  }
+
+  @Override
+  public void remoteFileBatchPlanned(List<ContentRange> ranges, int maxRanges, long maxBytes) {
+    for (ZsyncObserver observer : this.observers) {
+      observer.remoteFileBatchPlanned(ranges, maxRanges, maxBytes);
+    }
+  }
+
   @Override
   public void remoteFileDownloadingInitiated(URI uri, List<ContentRange> ranges) {
     for (ZsyncObserver observer : this.observers) {
@@ -126,6 +141,13 @@ public class ZsyncForwardingObserver extends ZsyncObserver {
     }
   }
 
+  @Override
+  public void remoteFileDownloadingStarted(URI uri, ResponseType type, long length) {
+    for (ZsyncObserver observer : this.observers) {
+      observer.remoteFileDownloadingStarted(uri, type, length);
+    }
+  }
+
   @Override
   public void remoteFileRangeReceived(ContentRange range) {
     for (ZsyncObserver observer : this.observers) {
@@ -140,6 +162,14 @@ public class ZsyncForwardingObserver extends ZsyncObserver {
     }
   }
 
+  @Override
+  public void remoteFileRequestCompleted(URI uri, ResponseType type, long timeToFirstByteNanos, long transferNanos,
+      long bytes) {
+    for (ZsyncObserver observer : this.observers) {
+      observer.remoteFileRequestCompleted(uri, type, timeToFirstByteNanos, transferNanos, bytes);
+    }
+  }
+
   @Override
   public void outputFileWritingStarted(Path outputFile, long length) {
     for (ZsyncObserver observer : this.observers) {
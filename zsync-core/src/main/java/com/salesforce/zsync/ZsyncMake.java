@@ -24,7 +24,16 @@
 package com.salesforce.zsync;
 
 import static java.nio.charset.StandardCharsets.US_ASCII;
-
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -33,7 +42,9 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -41,10 +52,18 @@ import java.nio.file.attribute.BasicFileAttributes;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.TimeZone;
 
+import com.google.common.io.ByteStreams;
+import com.salesforce.zsync.http.ContentRange;
+import com.salesforce.zsync.internal.ControlFile;
+import com.salesforce.zsync.internal.Header;
+import com.salesforce.zsync.internal.util.ResumableSha1;
 import com.salesforce.zsync.internal.util.ZsyncUtil;
 
 /**
@@ -58,6 +77,10 @@ public class ZsyncMake {
 
   private static final int BLOCK_SIZE_SMALL = 2048;
   private static final int BLOCK_SIZE_LARGE = 4096;
+  // default ratio of block size to sub-block size in hierarchical control files, e.g. 64K blocks of 2K sub-blocks
+  static final int SUB_BLOCKS_PER_BLOCK = 32;
+  // block sizes considered when analyzing previous versions of the input file
+  private static final int[] CANDIDATE_BLOCK_SIZES = {512, 1024, 2048, 4096, 8192, 16384, 32768};
 
   @SuppressWarnings("serial")
   private static final SimpleDateFormat LAST_MODIFIED_TIME_FORMAT =
@@ -172,12 +195,128 @@ public class ZsyncMake {
     }
     try (FileOutputStream outputStream = new FileOutputStream(outputFile.toFile())) {
       Result result = this.writeToStream(inputFile, outputStream, options);
-      return new FileResult(result.getSha1(), outputFile);
+      if (result.digest != null) {
+        writeDigestState(digestStateFile(outputFile), result.getSha1(), result.digest);
+      }
+      return new FileResult(result, outputFile);
     } catch (IOException exception) {
       throw new RuntimeException("zsyncmake operation failed", exception);
     }
   }
 
+  /**
+   * Updates the given zsync control file after the input file it was generated for has grown by appending data. The
+   * checksums of the blocks up to the previous length are kept and only the blocks from the previous last block onward
+   * are read and checksummed. The SHA-1 of the input file is resumed from the digest state saved next to the control
+   * file by a previous update or by {@link #writeToFile(Path, Path, Options)} with
+   * {@link Options#setAppendable(boolean) appendable} set; if there is none, the input file is hashed in full once. The
+   * digest state is saved again for the next update.
+   * <p>
+   * The previous last block is verified against its checksum to detect input files that were modified rather than
+   * appended to. If the file has grown so much that the checksum lengths zsync uses for it change, the control file is
+   * regenerated in full.
+   *
+   * @param inputFile The grown input file
+   * @param zsyncFile Control file previously generated for the input file, which is replaced
+   * @return The {@link FileResult results} of the update
+   */
+  public FileResult update(Path inputFile, Path zsyncFile) {
+    if (inputFile == null) {
+      throw new IllegalArgumentException("inputFile cannot be null");
+    }
+    if (zsyncFile == null) {
+      throw new IllegalArgumentException("zsyncFile cannot be null");
+    }
+    try (final FileChannel control = FileChannel.open(zsyncFile)) {
+      // only the header is read into memory; the retained checksums are copied from the control file as they are
+      final byte[] headerBytes = readHeader(control);
+      final int headerLength = headerBytes.length;
+      final Header header = Header.read(new ByteArrayInputStream(headerBytes));
+      final int blockSize = header.getBlocksize();
+      final long oldLength = header.getLength();
+      final long fileLength = Files.size(inputFile);
+      if (fileLength < oldLength) {
+        throw new IllegalArgumentException("input file " + inputFile + " is shorter than the length in " + zsyncFile);
+      }
+
+      final int sequenceMatches = fileLength > blockSize ? 2 : 1;
+      final int weakChecksumLength = weakChecksumLength(fileLength, blockSize, sequenceMatches);
+      final int strongChecksumLength = strongChecksumLength(fileLength, blockSize, sequenceMatches);
+      if (sequenceMatches != (header.isSeqMatches() ? 2 : 1) || weakChecksumLength != header.getRsumBytes()
+          || strongChecksumLength != header.getChecksumBytes() || header.getSubBlockHeader() != null) {
+        // existing checksums are too short for the new length, or sub-block checksums would have to be inserted
+        final Options options = new Options().setBlockSize(blockSize).setFilename(header.getFilename())
+            .setUrls(header.getUrls()).setAppendable(true);
+        if (header.getSubBlockHeader() != null) {
+          options.setSubBlockSize(header.getSubBlockHeader().getBlocksize());
+        }
+        return this.writeToFile(inputFile, zsyncFile, options);
+      }
+
+      final int checksumLength = weakChecksumLength + strongChecksumLength;
+      // an empty input file had no blocks, in which case all blocks are appended
+      final int lastBlock = Math.max(0, header.getNumBlocks() - 1);
+      final MessageDigest blockDigest = ZsyncUtil.newMD4();
+      final ByteBuffer weakBytes = ByteBuffer.allocate(4);
+      final byte[] block = new byte[blockSize];
+      final ByteBuffer checksums;
+      try (final FileChannel channel = FileChannel.open(inputFile)) {
+        // verify that the previous last block is unchanged
+        if (header.getNumBlocks() > 0) {
+          readBlock(channel, (long) lastBlock * blockSize, (int) (oldLength - (long) lastBlock * blockSize), block);
+          final ByteBuffer expected = ByteBuffer.allocate(checksumLength);
+          putBlockChecksum(expected, block, weakChecksumLength, strongChecksumLength, weakBytes, blockDigest);
+          final ByteBuffer actual = ByteBuffer.allocate(checksumLength);
+          readFully(control, actual, headerLength + (long) lastBlock * checksumLength);
+          if (!actual.equals(expected.flip())) {
+            throw new IllegalArgumentException("input file " + inputFile + " was modified, not appended to");
+          }
+        }
+
+        // recompute the previous last block, since it may have been partial, and all new blocks
+        final int numBlocks = (int) ((fileLength + blockSize - 1) / blockSize);
+        checksums = ByteBuffer.allocate((numBlocks - lastBlock) * checksumLength);
+        for (int i = lastBlock; i < numBlocks; i++) {
+          final long position = (long) i * blockSize;
+          readBlock(channel, position, (int) Math.min(blockSize, fileLength - position), block);
+          putBlockChecksum(checksums, block, weakChecksumLength, strongChecksumLength, weakBytes, blockDigest);
+        }
+        checksums.flip();
+      }
+
+      final Path digestStateFile = digestStateFile(zsyncFile);
+      final ResumableSha1 fileDigest = readDigestState(digestStateFile, header.getSha1(), oldLength);
+      hash(inputFile, fileDigest.getCheckpointLength(), fileLength, fileDigest);
+      final String sha1 = ZsyncUtil.toHexString(ByteBuffer.wrap(fileDigest.digest()));
+
+      final Path tmp = zsyncFile.resolveSibling(zsyncFile.getFileName() + ".part");
+      try (final FileChannel out = FileChannel.open(tmp, CREATE, WRITE, TRUNCATE_EXISTING)) {
+        this.writeHeaders(out, header.getFilename(), getFormattedLastModifiedTime(inputFile), blockSize, fileLength,
+            sequenceMatches, weakChecksumLength, strongChecksumLength, null, header.getUrls(), sha1);
+        final long kept = (long) lastBlock * checksumLength;
+        for (long copied = 0; copied < kept;) {
+          final long transferred = control.transferTo(headerLength + copied, kept - copied, out);
+          if (transferred == 0) {
+            throw new IOException("Unexpected end of " + zsyncFile + " at " + (headerLength + copied));
+          }
+          copied += transferred;
+        }
+        while (checksums.hasRemaining()) {
+          out.write(checksums);
+        }
+      }
+      try {
+        Files.move(tmp, zsyncFile, REPLACE_EXISTING, ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmp, zsyncFile, REPLACE_EXISTING);
+      }
+      writeDigestState(digestStateFile, sha1, fileDigest);
+      return new FileResult(new Result(sha1, null, null), zsyncFile);
+    } catch (IOException exception) {
+      throw new RuntimeException("zsyncmake update failed", exception);
+    }
+  }
+
   /*
    * Everything funnels into here.
    */
@@ -196,13 +335,20 @@ public class ZsyncMake {
       options = new Options();
     }
 
-    final MessageDigest fileDigest = ZsyncUtil.newSHA1();
+    final MessageDigest fileDigest = options.isAppendable() ? new ResumableSha1() : ZsyncUtil.newSHA1();
     final MessageDigest blockDigest = ZsyncUtil.newMD4();
 
     // We don't want to modify the Options object that was passed in, so we create a copy. We then
     // populate any missing
     // values using the supplied input file.
-    options = new Options(options).calculateMissingValues(inputFile);
+    options = new Options(options);
+    BlockSizeAnalysis analysis = null;
+    if (options.getBlockSize() == null && options.getSubBlockSize() == null
+        && !options.getPreviousVersions().isEmpty()) {
+      analysis = this.analyzeBlockSizes(inputFile, options.getPreviousVersions());
+      options.setBlockSize(analysis.getBlockSize());
+    }
+    options.calculateMissingValues(inputFile);
 
     final int blockSize = options.getBlockSize();
     final long fileLength;
@@ -215,37 +361,106 @@ public class ZsyncMake {
     final int weakChecksumLength = weakChecksumLength(fileLength, blockSize, sequenceMatches);
     final int strongChecksumLength = strongChecksumLength(fileLength, blockSize, sequenceMatches);
 
-    final ByteBuffer checksums = this.computeChecksums(inputFile, blockSize, fileLength, weakChecksumLength,
-        strongChecksumLength, fileDigest, blockDigest);
+    final ChecksumLevel blocks = new ChecksumLevel(blockSize, fileLength, weakChecksumLength, strongChecksumLength);
 
-    // first read sha1 from end of buffer
-    final int pos = checksums.capacity() - fileDigest.getDigestLength();
-    checksums.position(pos);
-    final String sha1 = ZsyncUtil.toHexString(checksums);
+    // for a hierarchical control file, the checksums of the sub-blocks follow those of the blocks
+    String subBlocks = null;
+    ChecksumLevel subBlockLevel = null;
+    if (options.getSubBlockSize() != null) {
+      final int subBlockSize = options.getSubBlockSize();
+      if (subBlockSize >= blockSize) {
+        throw new IllegalArgumentException("subBlockSize must be smaller than blockSize: " + subBlockSize);
+      }
+      final int subSequenceMatches = fileLength > subBlockSize ? 2 : 1;
+      final int subWeakChecksumLength = weakChecksumLength(fileLength, subBlockSize, subSequenceMatches);
+      final int subStrongChecksumLength = strongChecksumLength(fileLength, subBlockSize, subSequenceMatches);
+      subBlocks = subBlockSize + "," + subSequenceMatches + "," + subWeakChecksumLength + "," + subStrongChecksumLength;
+      subBlockLevel = new ChecksumLevel(subBlockSize, fileLength, subWeakChecksumLength, subStrongChecksumLength);
+    }
 
-    // set buffer to read from beginning to start of fileDigest
-    checksums.clear().limit(pos);
+    // both levels are computed in a single pass over the input file
+    final byte[] digest = subBlockLevel == null ? this.computeChecksums(inputFile, fileDigest, blockDigest, blocks)
+        : this.computeChecksums(inputFile, fileDigest, blockDigest, blocks, subBlockLevel);
+    final String sha1 = ZsyncUtil.toHexString(ByteBuffer.wrap(digest));
+    final ByteBuffer checksums = blocks.checksums;
+    final ByteBuffer subBlockChecksums = subBlockLevel == null ? null : subBlockLevel.checksums;
 
     // first write headers
-    this.writeHeader(out, "zsync", ZSYNC_VERSION);
-    this.writeHeader(out, "Filename", options.getFilename());
-    this.writeHeader(out, "MTime", getFormattedLastModifiedTime(inputFile));
-    this.writeHeader(out, "Blocksize", String.valueOf(blockSize));
-    this.writeHeader(out, "Length", String.valueOf(fileLength));
-    this.writeHeader(out, "Hash-Lengths", sequenceMatches + "," + weakChecksumLength + "," + strongChecksumLength);
-    this.writeHeader(out, "URL", options.getUrl());
-    this.writeHeader(out, "SHA-1", sha1);
-    this.writeHeader(out, "\n");
+    this.writeHeaders(out, options.getFilename(), getFormattedLastModifiedTime(inputFile), blockSize, fileLength,
+        sequenceMatches, weakChecksumLength, strongChecksumLength, subBlocks,
+        options.getUrls(), sha1);
 
     try {
       do {
         out.write(checksums);
       } while (checksums.hasRemaining());
+      while (subBlockChecksums != null && subBlockChecksums.hasRemaining()) {
+        out.write(subBlockChecksums);
+      }
     } catch (IOException exception) {
       throw new RuntimeException("Failed to write checksums", exception);
     }
 
-    return new Result(sha1);
+    return new Result(sha1, analysis, fileDigest instanceof ResumableSha1 ? (ResumableSha1) fileDigest : null);
+  }
+
+  /**
+   * Determines the block size that minimizes the data a client holding one of the given previous versions of the input
+   * file transfers: the size of the control file plus the bytes it has to download from the input file after matching
+   * its previous version. For each candidate block size, a control file is generated in memory and each previous
+   * version is matched against it. The expected download is averaged over the previous versions.
+   *
+   * @param inputFile New version of the file for which to generate a zsync file
+   * @param previousVersions Previous versions of the file that clients are expected to hold
+   * @return The chosen block size and the projections for each candidate block size
+   */
+  public BlockSizeAnalysis analyzeBlockSizes(Path inputFile, List<Path> previousVersions) {
+    if (previousVersions == null || previousVersions.isEmpty()) {
+      throw new IllegalArgumentException("previousVersions cannot be empty");
+    }
+    final List<BlockSizeProjection> projections = new ArrayList<>(CANDIDATE_BLOCK_SIZES.length);
+    BlockSizeProjection best = null;
+    for (int blockSize : CANDIDATE_BLOCK_SIZES) {
+      final ByteArrayOutputStream controlFileBytes = new ByteArrayOutputStream();
+      this.writeToStream(inputFile, controlFileBytes, new Options().setBlockSize(blockSize));
+      long download = 0;
+      try {
+        final ControlFile controlFile = ControlFile.read(new ByteArrayInputStream(controlFileBytes.toByteArray()));
+        for (Path previousVersion : previousVersions) {
+          for (ContentRange range : Zsync.match(controlFile, previousVersion)) {
+            download += range.length();
+          }
+        }
+      } catch (IOException exception) {
+        throw new RuntimeException("Failed to match previous versions at block size " + blockSize, exception);
+      }
+      final BlockSizeProjection projection =
+          new BlockSizeProjection(blockSize, controlFileBytes.size(), download / previousVersions.size());
+      projections.add(projection);
+      if (best == null || projection.getTotalBytes() < best.getTotalBytes()) {
+        best = projection;
+      }
+    }
+    return new BlockSizeAnalysis(best.getBlockSize(), projections);
+  }
+
+  private void writeHeaders(WritableByteChannel out, String filename, String mtime, int blockSize, long fileLength,
+      int sequenceMatches, int weakChecksumLength, int strongChecksumLength, String subBlocks, List<String> urls,
+      String sha1) {
+    this.writeHeader(out, "zsync", ZSYNC_VERSION);
+    this.writeHeader(out, "Filename", filename);
+    this.writeHeader(out, "MTime", mtime);
+    this.writeHeader(out, "Blocksize", String.valueOf(blockSize));
+    this.writeHeader(out, "Length", String.valueOf(fileLength));
+    this.writeHeader(out, "Hash-Lengths", sequenceMatches + "," + weakChecksumLength + "," + strongChecksumLength);
+    if (subBlocks != null) {
+      this.writeHeader(out, Header.SUB_BLOCKS, subBlocks);
+    }
+    for (String url : urls) {
+      this.writeHeader(out, "URL", url);
+    }
+    this.writeHeader(out, "SHA-1", sha1);
+    this.writeHeader(out, "\n");
   }
 
   private void writeHeader(WritableByteChannel out, String name, String value) {
@@ -263,73 +478,196 @@ public class ZsyncMake {
   }
 
   /**
-   * Computes block- and file-level checksums for the inputFile according to the given weak and strong checksum lengths.
-   * The returned buffer contains block-level checksum, each (weakLen + strongLen) bytes in size, followed by the
-   * file-level checksum, which for SHA-1 is 20 bytes.
-   *
-   * @param fileLength Length of the inputFile in bytes
-   * @param weakLen Number of bytes to store for weak checksum in bytes
-   * @param strongLen Number of bytes to store for strong checksum in bytes
-   * @return byte buffer containing both block and file checksums. The block is returned ready for reading: position at
-   *         0 and limit at capacity.
-   * @throws IOException
+   * Block-level checksums of the input file for a single block size, each (weakLen + strongLen) bytes in size
    */
-  private ByteBuffer computeChecksums(final Path inputFile, final int blockSize, final long fileLength,
-      final int weakLen, final int strongLen, MessageDigest fileDigest, MessageDigest blockDigest) {
-    if (weakLen < 1 || weakLen > 4) {
-      throw new IllegalArgumentException("weak checksum length must be in interval [1, 4]");
-    }
-    if (strongLen < 1 || strongLen > 16) {
-      throw new IllegalArgumentException("strong checksum length must be in interval [1, 16]");
+  private static class ChecksumLevel {
+    final int blockSize;
+    final int weakLen;
+    final int strongLen;
+    final ByteBuffer checksums;
+    final byte[] block;
+
+    ChecksumLevel(int blockSize, long fileLength, int weakLen, int strongLen) {
+      if (weakLen < 1 || weakLen > 4) {
+        throw new IllegalArgumentException("weak checksum length must be in interval [1, 4]");
+      }
+      if (strongLen < 1 || strongLen > 16) {
+        throw new IllegalArgumentException("strong checksum length must be in interval [1, 16]");
+      }
+      this.blockSize = blockSize;
+      this.weakLen = weakLen;
+      this.strongLen = strongLen;
+      // capacity of buffer is number of blocks times checksum bytes per block
+      this.checksums = ByteBuffer.allocate(
+          ((int) (fileLength / blockSize) + (fileLength % blockSize > 0 ? 1 : 0)) * (weakLen + strongLen));
+      this.block = new byte[blockSize];
     }
+  }
 
-    // capacity of buffer is number of blocks times checksum bytes per block
-    final int capacity = ((int) (fileLength / blockSize) + (fileLength % blockSize > 0 ? 1 : 0)) * (weakLen + strongLen)
-        + fileDigest.getDigestLength();
-
-    // output buffer: may want to write to disk at certain size
-    final ByteBuffer checksums = ByteBuffer.allocate(capacity);
-
+  /**
+   * Computes the block-level checksums of the given levels and the file-level checksum in a single pass over the input
+   * file. The file is read in blocks of the first level, whose size the block sizes of all further levels must divide;
+   * the last block of each level is padded with zeros. The checksums of each level are ready for reading once done.
+   *
+   * @return the file-level checksum
+   */
+  private byte[] computeChecksums(final Path inputFile, MessageDigest fileDigest, MessageDigest blockDigest,
+      ChecksumLevel... levels) {
     // buffer for converting weak checksum int to bytes
     final ByteBuffer weakBytes = ByteBuffer.allocate(4);
 
     // buffer for each block read from input file
-    final byte[] block = new byte[blockSize];
+    final byte[] block = levels[0].block;
 
     try {
       // wrap file input stream with digest input stream to compute SHA-1 while reading file
       try (final InputStream in = new DigestInputStream(Files.newInputStream(inputFile), fileDigest)) {
         int read;
-        while ((read = in.read(block)) != -1) {
+        while ((read = ByteStreams.read(in, block, 0, block.length)) > 0) {
           // pad last block with 0s
-          if (read < blockSize) {
-            Arrays.fill(block, read, blockSize, (byte) 0);
+          if (read < block.length) {
+            Arrays.fill(block, read, block.length, (byte) 0);
+          }
+          putBlockChecksum(levels[0].checksums, block, levels[0].weakLen, levels[0].strongLen, weakBytes, blockDigest);
+          for (int i = 1; i < levels.length; i++) {
+            final ChecksumLevel level = levels[i];
+            for (int offset = 0; offset < read; offset += level.blockSize) {
+              System.arraycopy(block, offset, level.block, 0, level.blockSize);
+              putBlockChecksum(level.checksums, level.block, level.weakLen, level.strongLen, weakBytes, blockDigest);
+            }
           }
-
-          // write trailing bytes of weak checksum
-          weakBytes.clear();
-          weakBytes.putInt(ZsyncUtil.computeRsum(block));
-          weakBytes.position(weakBytes.limit() - weakLen);
-          checksums.put(weakBytes);
-
-          // write leading bytes of strong checksum
-          final ByteBuffer strongBytes = ByteBuffer.wrap(blockDigest.digest(block));
-          strongBytes.limit(strongLen);
-          checksums.put(strongBytes);
         }
       }
     } catch (IOException exception) {
       throw new RuntimeException("Failed calculating zsync checksum", exception);
     }
 
-    // finally add file checksum
-    final ByteBuffer checksum = ByteBuffer.wrap(fileDigest.digest());
-    checksums.put(checksum);
-
     // flip to allow reading from buffer
-    checksums.flip();
+    for (ChecksumLevel level : levels) {
+      level.checksums.flip();
+    }
+
+    return fileDigest.digest();
+  }
+
+  /**
+   * Appends the truncated weak and strong checksums of the given block to the checksums buffer.
+   */
+  private static void putBlockChecksum(ByteBuffer checksums, byte[] block, int weakLen, int strongLen,
+      ByteBuffer weakBytes, MessageDigest blockDigest) {
+    // write trailing bytes of weak checksum
+    weakBytes.clear();
+    weakBytes.putInt(ZsyncUtil.computeRsum(block));
+    weakBytes.position(weakBytes.limit() - weakLen);
+    checksums.put(weakBytes);
+
+    // write leading bytes of strong checksum
+    final ByteBuffer strongBytes = ByteBuffer.wrap(blockDigest.digest(block));
+    strongBytes.limit(strongLen);
+    checksums.put(strongBytes);
+  }
+
+  /**
+   * Reads length bytes at the given position into the block and pads the rest of the block with 0s.
+   */
+  private static void readBlock(FileChannel channel, long position, int length, byte[] block) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.wrap(block, 0, length);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) == -1) {
+        throw new IOException("Unexpected end of file at " + (position + buffer.position()));
+      }
+    }
+    Arrays.fill(block, length, block.length, (byte) 0);
+  }
 
-    return checksums;
+  private static void hash(Path inputFile, long from, long to, MessageDigest digest) throws IOException {
+    try (final FileChannel channel = FileChannel.open(inputFile)) {
+      final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+      long position = from;
+      while (position < to) {
+        buffer.clear().limit((int) Math.min(buffer.capacity(), to - position));
+        final int read = channel.read(buffer, position);
+        if (read == -1) {
+          throw new IOException("Unexpected end of file at " + position);
+        }
+        buffer.flip();
+        digest.update(buffer);
+        position += read;
+      }
+    }
+  }
+
+  /**
+   * Returns the header section of the given control file including the terminating empty line.
+   */
+  private static byte[] readHeader(FileChannel control) throws IOException {
+    final ByteArrayOutputStream header = new ByteArrayOutputStream();
+    final ByteBuffer buffer = ByteBuffer.allocate(4096);
+    int previous = -1;
+    long position = 0;
+    int read;
+    while ((read = control.read(buffer, position)) != -1) {
+      for (int i = 0; i < read; i++) {
+        final byte b = buffer.get(i);
+        if (b == '\n' && previous == '\n') {
+          header.write(buffer.array(), 0, i + 1);
+          return header.toByteArray();
+        }
+        previous = b;
+      }
+      header.write(buffer.array(), 0, read);
+      position += read;
+      buffer.clear();
+    }
+    throw new IllegalArgumentException("Invalid header: terminating line feed missing.");
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) == -1) {
+        throw new IOException("Unexpected end of file at " + (position + buffer.position()));
+      }
+    }
+    buffer.flip();
+  }
+
+  private static Path digestStateFile(Path zsyncFile) {
+    return zsyncFile.resolveSibling(zsyncFile.getFileName() + ".sha1state");
+  }
+
+  /**
+   * Saves the checkpoint of the given digest along with the SHA-1 of the file it was computed for.
+   */
+  private static void writeDigestState(Path path, String sha1, ResumableSha1 digest) throws IOException {
+    try (final DataOutputStream out = new DataOutputStream(Files.newOutputStream(path))) {
+      out.writeUTF(sha1);
+      out.writeLong(digest.getCheckpointLength());
+      for (int word : digest.getCheckpointState()) {
+        out.writeInt(word);
+      }
+    }
+  }
+
+  /**
+   * Restores the digest saved for the control file with the given SHA-1, or returns a new digest if there is no saved
+   * state or it belongs to a different version of the file.
+   */
+  private static ResumableSha1 readDigestState(Path path, String sha1, long length) throws IOException {
+    if (Files.exists(path)) {
+      try (final DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+        if (sha1.equals(in.readUTF())) {
+          final long checkpointLength = in.readLong();
+          final int[] state = new int[5];
+          for (int i = 0; i < state.length; i++) {
+            state[i] = in.readInt();
+          }
+          if (checkpointLength <= length) {
+            return new ResumableSha1(state, checkpointLength);
+          }
+        }
+      }
+    }
+    return new ResumableSha1();
   }
 
   /**
@@ -348,14 +686,20 @@ public class ZsyncMake {
 
     private Integer blockSize;
     private String filename;
-    private String url;
+    private final List<String> urls = new ArrayList<>(1);
+    private final List<Path> previousVersions = new ArrayList<>(0);
+    private boolean appendable;
+    private Integer subBlockSize;
 
     public Options() {}
 
     public Options(Options other) {
       this.blockSize = other.getBlockSize();
       this.filename = other.getFilename();
-      this.url = other.getUrl();
+      this.urls.addAll(other.getUrls());
+      this.previousVersions.addAll(other.getPreviousVersions());
+      this.appendable = other.isAppendable();
+      this.subBlockSize = other.getSubBlockSize();
     }
 
     public Integer getBlockSize() {
@@ -383,18 +727,96 @@ public class ZsyncMake {
     }
 
     public String getUrl() {
-      return this.url;
+      return this.urls.isEmpty() ? null : this.urls.get(0);
     }
 
     public Options setUrl(String url) {
-      if (url != null) {
+      return this.setUrls(url == null ? Collections.<String>emptyList() : Collections.singletonList(url));
+    }
+
+    /**
+     * URLs of the input file, written as one URL header each, so that clients can retrieve it from any of them. The
+     * first URL is the one returned by {@link #getUrl()}.
+     *
+     * @return
+     */
+    public List<String> getUrls() {
+      return Collections.unmodifiableList(this.urls);
+    }
+
+    public Options setUrls(List<String> urls) {
+      for (String url : urls) {
+        if (url == null) {
+          throw new IllegalArgumentException("url cannot be null");
+        }
         try {
           new URI(url);
         } catch (URISyntaxException exception) {
           throw new IllegalArgumentException("Invalid URL " + url, exception);
         }
       }
-      this.url = url;
+      this.urls.clear();
+      this.urls.addAll(urls);
+      return this;
+    }
+
+    /**
+     * Previous versions of the input file used to {@link ZsyncMake#analyzeBlockSizes(Path, List) analyze} which block
+     * size to use if no block size is set.
+     *
+     * @return
+     */
+    public List<Path> getPreviousVersions() {
+      return this.previousVersions;
+    }
+
+    public Options addPreviousVersion(Path previousVersion) {
+      if (previousVersion == null) {
+        throw new IllegalArgumentException("previousVersion cannot be null");
+      }
+      this.previousVersions.add(previousVersion);
+      return this;
+    }
+
+    /**
+     * Whether the input file only grows by appending data. If set, {@link ZsyncMake#writeToFile(Path, Path, Options)}
+     * saves the SHA-1 digest state next to the control file, so that {@link ZsyncMake#update(Path, Path)} only needs
+     * to hash the appended data.
+     *
+     * @return
+     */
+    public boolean isAppendable() {
+      return this.appendable;
+    }
+
+    public Options setAppendable(boolean appendable) {
+      this.appendable = appendable;
+      return this;
+    }
+
+    /**
+     * Size of the sub-blocks of a hierarchical control file, or null for a standard control file. A hierarchical
+     * control file holds the checksums of the blocks, followed by the checksums of smaller sub-blocks. Clients match
+     * the blocks first and retrieve the checksums of the sub-blocks only for the blocks they could not match, so that
+     * changed regions are retrieved at a fine granularity without downloading fine checksums for the whole file. If
+     * no block size is set, it defaults to {@value #SUB_BLOCKS_PER_BLOCK} times the sub-block size.
+     * <p>
+     * Hierarchical control files are not compatible with other zsync implementations.
+     *
+     * @return
+     */
+    public Integer getSubBlockSize() {
+      return this.subBlockSize;
+    }
+
+    public Options setSubBlockSize(Integer subBlockSize) {
+      if (subBlockSize != null && subBlockSize <= 0) {
+        throw new IllegalArgumentException("subBlockSize must be greater than zero: " + subBlockSize);
+      }
+      if (subBlockSize != null && ((subBlockSize & (subBlockSize - 1)) != 0)) {
+        throw new IllegalArgumentException("subBlockSize must be a power of 2");
+      }
+      this.subBlockSize = subBlockSize;
       return this;
     }
 
@@ -404,7 +826,8 @@ public class ZsyncMake {
     private Options calculateMissingValues(Path inputFile) {
       // blocksize: default chosen based on file size (adopted from standard zsync implementation)
       if (this.blockSize == null) {
-        this.blockSize = calculateDefaultBlockSizeForInputFile(inputFile);
+        this.blockSize = this.subBlockSize == null ? calculateDefaultBlockSizeForInputFile(inputFile)
+            : SUB_BLOCKS_PER_BLOCK * this.subBlockSize;
       }
 
       // TODO - Should we try to extract this from the target URL instead? The case came up when integrating zsync into
@@ -417,7 +840,7 @@ public class ZsyncMake {
       }
 
       // url: default to filename relative URL
-      if (this.url == null) {
+      if (this.urls.isEmpty()) {
         this.setUrl(this.filename);
       }
 
@@ -432,14 +855,109 @@ public class ZsyncMake {
   public static class Result {
 
     private final String sha1;
+    private final BlockSizeAnalysis blockSizeAnalysis;
+    // digest to checkpoint for appendable input files
+    private final ResumableSha1 digest;
 
-    private Result(String sha1) {
+    private Result(String sha1, BlockSizeAnalysis blockSizeAnalysis, ResumableSha1 digest) {
       this.sha1 = sha1;
+      this.blockSizeAnalysis = blockSizeAnalysis;
+      this.digest = digest;
     }
 
     public String getSha1() {
       return this.sha1;
     }
+
+    /**
+     * The analysis from which the block size was chosen, or null if the block size was set or derived from the input
+     * file size.
+     *
+     * @return
+     */
+    public BlockSizeAnalysis getBlockSizeAnalysis() {
+      return this.blockSizeAnalysis;
+    }
+  }
+
+  /**
+   * The result of {@link ZsyncMake#analyzeBlockSizes(Path, List)}: the chosen block size and the projections for all
+   * candidate block sizes in ascending order of block size.
+   */
+  public static class BlockSizeAnalysis {
+
+    private final int blockSize;
+    private final List<BlockSizeProjection> projections;
+
+    private BlockSizeAnalysis(int blockSize, List<BlockSizeProjection> projections) {
+      this.blockSize = blockSize;
+      this.projections = Collections.unmodifiableList(projections);
+    }
+
+    public int getBlockSize() {
+      return this.blockSize;
+    }
+
+    public List<BlockSizeProjection> getProjections() {
+      return this.projections;
+    }
+
+    @Override
+    public String toString() {
+      final StringBuilder sb = new StringBuilder();
+      for (BlockSizeProjection projection : this.projections) {
+        sb.append(projection.getBlockSize() == this.blockSize ? "* " : "  ").append(projection).append('\n');
+      }
+      return sb.toString();
+    }
+  }
+
+  /**
+   * Projected transfer for one candidate block size.
+   */
+  public static class BlockSizeProjection {
+
+    private final int blockSize;
+    private final long controlFileBytes;
+    private final long downloadBytes;
+
+    private BlockSizeProjection(int blockSize, long controlFileBytes, long downloadBytes) {
+      this.blockSize = blockSize;
+      this.controlFileBytes = controlFileBytes;
+      this.downloadBytes = downloadBytes;
+    }
+
+    public int getBlockSize() {
+      return this.blockSize;
+    }
+
+    /**
+     * Size of the control file generated with this block size
+     *
+     * @return
+     */
+    public long getControlFileBytes() {
+      return this.controlFileBytes;
+    }
+
+    /**
+     * Expected number of bytes a client downloads from the input file after matching its previous version
+     *
+     * @return
+     */
+    public long getDownloadBytes() {
+      return this.downloadBytes;
+    }
+
+    public long getTotalBytes() {
+      return this.controlFileBytes + this.downloadBytes;
+    }
+
+    @Override
+    public String toString() {
+      return "blocksize " + this.blockSize + ": control file " + this.controlFileBytes + " bytes, download "
+          + this.downloadBytes + " bytes, total " + this.getTotalBytes() + " bytes";
+    }
   }
 
   /**
@@ -450,8 +968,8 @@ public class ZsyncMake {
 
     private final Path outputFile;
 
-    private FileResult(String sha1, Path outputFile) {
-      super(sha1);
+    private FileResult(Result result, Path outputFile) {
+      super(result.getSha1(), result.getBlockSizeAnalysis(), null);
       this.outputFile = outputFile;
     }
 
@@ -467,11 +985,22 @@ public class ZsyncMake {
    *
    * <pre>
    * java -classpath &lt;path-to-zsync4j-jar&gt; com.salesforce.zsync4j.ZsyncMake &lt;path-to-input-file&gt;
+   *     [&lt;path-to-previous-version&gt; ...]
    * </pre>
+   *
+   * If previous versions of the input file are given, the block size is chosen by
+   * {@link ZsyncMake#analyzeBlockSizes(Path, List) analyzing} them and the projections are printed.
    */
   public static void main(String[] args) {
     final Path inputFile = FileSystems.getDefault().getPath(args[0]);
-    new ZsyncMake().writeToFile(inputFile);
+    final Options options = new Options();
+    for (int i = 1; i < args.length; i++) {
+      options.addPreviousVersion(FileSystems.getDefault().getPath(args[i]));
+    }
+    final FileResult result = new ZsyncMake().writeToFile(inputFile, options);
+    if (result.getBlockSizeAnalysis() != null) {
+      System.out.print(result.getBlockSizeAnalysis());
+    }
   }
 
   /**
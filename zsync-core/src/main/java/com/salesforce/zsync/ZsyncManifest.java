@@ -0,0 +1,487 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ * disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.salesforce.zsync.Zsync.Options;
+import com.salesforce.zsync.ZsyncStatsObserver.ZsyncStats;
+
+/**
+ * A set of files to construct in a single {@link Zsync#zsync(ZsyncManifest)} invocation, e.g. to mirror a directory
+ * tree of a remote repository. Each entry pairs the URI of a zsync control file with the local path at which to store
+ * the corresponding output file.
+ * <p>
+ * Entries are processed concurrently by a pool of worker threads, all issuing requests through the http client of the
+ * same {@link Zsync} instance, so that connections to the same host are reused across files. The output files of all
+ * entries that already exist locally together with any additional seed files form a shared seed pool: in addition to
+ * its own previous version, each entry uses the files of the pool located in the same or in a sibling directory that
+ * have the same file extension as input files. For a maven repository layout, this means a new version of an artifact
+ * is constructed from the previous versions of the artifact.
+ *
+ * @author bbusjaeger
+ *
+ */
+public class ZsyncManifest {
+
+  /**
+   * An output file to construct
+   *
+   * @author bbusjaeger
+   *
+   */
+  public static class Entry {
+
+    private final URI zsyncFile;
+    private final Path outputFile;
+    private final Options options;
+
+    private Entry(URI zsyncFile, Path outputFile, Options options) {
+      this.zsyncFile = zsyncFile;
+      this.outputFile = outputFile;
+      this.options = options;
+    }
+
+    public URI getZsyncFile() {
+      return this.zsyncFile;
+    }
+
+    public Path getOutputFile() {
+      return this.outputFile;
+    }
+
+    public Options getOptions() {
+      return this.options;
+    }
+  }
+
+  /**
+   * Outcome of a manifest-level zsync invocation. A failure to construct one output file does not fail the invocation,
+   * but is recorded in {@link #getFailures()}. Only totals across all output files are kept, unless per file statistics
+   * are requested with {@link ZsyncManifest#setKeepStats(boolean)}.
+   *
+   * @author bbusjaeger
+   *
+   */
+  public static class Result {
+
+    private final Map<Path, ZsyncStats> stats;
+    private final Map<Path, Exception> failures;
+    private final long totalBytesSaved;
+    private final long totalBytesWritten;
+    private final long totalBytesDownloaded;
+
+    Result(Map<Path, ZsyncStats> stats, Map<Path, Exception> failures, long totalBytesSaved, long totalBytesWritten,
+        long totalBytesDownloaded) {
+      this.stats = stats;
+      this.failures = failures;
+      this.totalBytesSaved = totalBytesSaved;
+      this.totalBytesWritten = totalBytesWritten;
+      this.totalBytesDownloaded = totalBytesDownloaded;
+    }
+
+    /**
+     * Statistics of the successfully constructed output files keyed by output file. Empty unless requested with
+     * {@link ZsyncManifest#setKeepStats(boolean)}.
+     *
+     * @return
+     */
+    public Map<Path, ZsyncStats> getStats() {
+      return this.stats;
+    }
+
+    /**
+     * Exceptions of output files that could not be constructed keyed by output file
+     *
+     * @return
+     */
+    public Map<Path, Exception> getFailures() {
+      return this.failures;
+    }
+
+    public boolean isSuccessful() {
+      return this.failures.isEmpty();
+    }
+
+    /**
+     * Number of bytes of the successfully constructed output files that were copied from local input files, i.e. the
+     * number of bytes that did not have to be downloaded.
+     *
+     * @return
+     */
+    public long getTotalBytesSaved() {
+      return this.totalBytesSaved;
+    }
+
+    public long getTotalBytesWritten() {
+      return this.totalBytesWritten;
+    }
+
+    public long getTotalBytesDownloaded() {
+      return this.totalBytesDownloaded;
+    }
+  }
+
+  /**
+   * Totals of a single output file, with its full statistics only if they are to be kept
+   */
+  private static class Outcome {
+
+    final long bytesSaved;
+    final long bytesWritten;
+    final long bytesDownloaded;
+    final ZsyncStats stats;
+
+    Outcome(ZsyncStats stats, boolean keep) {
+      long saved = 0;
+      for (Long written : stats.getTotalBytesWrittenByInputFile().values()) {
+        saved += written;
+      }
+      this.bytesSaved = saved;
+      this.bytesWritten = stats.getTotalBytesWritten();
+      this.bytesDownloaded = stats.getTotalBytesDownloaded();
+      this.stats = keep ? stats : null;
+    }
+  }
+
+  private static final ThreadFactory WORKER_THREAD_FACTORY =
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("zsync-worker-%d").build();
+
+  private final List<Entry> entries = new ArrayList<>();
+  private final Set<Path> seedFiles = new LinkedHashSet<>();
+  private int threads = 4;
+  private ExecutorService executor;
+  private int maxSeedFiles = 2;
+  private boolean keepStats;
+
+  /**
+   * Adds an output file to construct from the given zsync control file.
+   *
+   * @param zsyncFile URI of the zsync control file as passed to {@link Zsync#zsync(URI, Options)}
+   * @param outputFile location at which to store the output file
+   * @return
+   */
+  public ZsyncManifest add(URI zsyncFile, Path outputFile) {
+    return this.add(zsyncFile, outputFile, null);
+  }
+
+  /**
+   * Adds an output file to construct from the given zsync control file with additional options. The output file
+   * location set in the options, if any, is replaced by the given output file.
+   *
+   * @param zsyncFile URI of the zsync control file as passed to {@link Zsync#zsync(URI, Options)}
+   * @param outputFile location at which to store the output file
+   * @param options optional parameters for this output file, may be null
+   * @return
+   */
+  public ZsyncManifest add(URI zsyncFile, Path outputFile, Options options) {
+    if (zsyncFile == null) {
+      throw new IllegalArgumentException("zsyncFile cannot be null");
+    }
+    if (outputFile == null) {
+      throw new IllegalArgumentException("outputFile cannot be null");
+    }
+    this.entries.add(new Entry(zsyncFile, outputFile, new Options(options).setOutputFile(outputFile)));
+    return this;
+  }
+
+  public List<Entry> getEntries() {
+    return this.entries;
+  }
+
+  /**
+   * Adds a local file to the seed pool.
+   *
+   * @param seedFile
+   * @return
+   */
+  public ZsyncManifest addSeedFile(Path seedFile) {
+    this.seedFiles.add(seedFile);
+    return this;
+  }
+
+  /**
+   * Adds all regular files below the given directory to the seed pool, except for zsync control files, partially
+   * written output files, and input file indexes.
+   *
+   * @param directory
+   * @return
+   * @throws IOException if the directory cannot be traversed
+   */
+  public ZsyncManifest addSeedDirectory(Path directory) throws IOException {
+    Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        final String name = file.getFileName().toString();
+        if (attrs.isRegularFile() && !name.endsWith(".zsync") && !name.endsWith(".part")
+            && !name.endsWith(".zsindex")) {
+          ZsyncManifest.this.seedFiles.add(file);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    return this;
+  }
+
+  public Set<Path> getSeedFiles() {
+    return this.seedFiles;
+  }
+
+  /**
+   * Number of output files constructed concurrently. Defaults to 4.
+   *
+   * @param threads
+   * @return
+   */
+  public ZsyncManifest setThreads(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads must be positive");
+    }
+    this.threads = threads;
+    return this;
+  }
+
+  public int getThreads() {
+    return this.threads;
+  }
+
+  /**
+   * Executor on which to construct output files instead of a pool of {@link #getThreads()} threads, e.g.
+   * {@link ZsyncExecutors#newVirtualThreadPerTaskExecutor()} to construct each output file on its own virtual thread.
+   * The executor is not shut down after use.
+   *
+   * @param executor
+   * @return
+   */
+  public ZsyncManifest setExecutor(ExecutorService executor) {
+    this.executor = executor;
+    return this;
+  }
+
+  public ExecutorService getExecutor() {
+    return this.executor;
+  }
+
+  /**
+   * Maximum number of files from the seed pool used as input files for an output file, in addition to the previous
+   * version of the output file itself and any input files set in the entry options. Defaults to 2.
+   *
+   * @param maxSeedFiles
+   * @return
+   */
+  public ZsyncManifest setMaxSeedFiles(int maxSeedFiles) {
+    if (maxSeedFiles < 0) {
+      throw new IllegalArgumentException("maxSeedFiles cannot be negative");
+    }
+    this.maxSeedFiles = maxSeedFiles;
+    return this;
+  }
+
+  public int getMaxSeedFiles() {
+    return this.maxSeedFiles;
+  }
+
+  /**
+   * Whether to keep the full {@link ZsyncStats} of every output file in {@link Result#getStats()}. Defaults to false,
+   * since for large manifests the statistics of all files would take up a lot of memory; the totals are always kept.
+   *
+   * @param keepStats
+   * @return
+   */
+  public ZsyncManifest setKeepStats(boolean keepStats) {
+    this.keepStats = keepStats;
+    return this;
+  }
+
+  public boolean isKeepStats() {
+    return this.keepStats;
+  }
+
+  Result run(final Zsync zsync) throws ZsyncException {
+    final SeedPool pool = new SeedPool();
+    for (Path seedFile : this.seedFiles) {
+      pool.add(seedFile);
+    }
+    for (Entry entry : this.entries) {
+      if (Files.exists(entry.outputFile)) {
+        pool.add(entry.outputFile);
+      }
+    }
+
+    final ExecutorService executor = this.executor != null ? this.executor
+        : Executors.newFixedThreadPool(Math.min(this.threads, Math.max(1, this.entries.size())), WORKER_THREAD_FACTORY);
+    try {
+      final boolean keepStats = this.keepStats;
+      final Map<Entry, Future<Outcome>> futures = new LinkedHashMap<>();
+      for (final Entry entry : this.entries) {
+        final Options options = new Options(entry.options);
+        for (Path seedFile : pool.select(entry.outputFile, this.maxSeedFiles)) {
+          if (!options.getInputFiles().contains(seedFile)) {
+            options.addInputFile(seedFile);
+          }
+        }
+        futures.put(entry, executor.submit(new Callable<Outcome>() {
+          @Override
+          public Outcome call() throws ZsyncException {
+            final ZsyncStatsObserver observer = new ZsyncStatsObserver();
+            zsync.zsync(entry.zsyncFile, options, observer);
+            return new Outcome(observer.build(), keepStats);
+          }
+        }));
+      }
+
+      final ImmutableMap.Builder<Path, ZsyncStats> stats = ImmutableMap.builder();
+      final Map<Path, Exception> failures = new LinkedHashMap<>();
+      long saved = 0;
+      long written = 0;
+      long downloaded = 0;
+      for (Map.Entry<Entry, Future<Outcome>> future : futures.entrySet()) {
+        final Path outputFile = future.getKey().outputFile;
+        try {
+          final Outcome outcome = future.getValue().get();
+          saved += outcome.bytesSaved;
+          written += outcome.bytesWritten;
+          downloaded += outcome.bytesDownloaded;
+          if (outcome.stats != null) {
+            stats.put(outputFile, outcome.stats);
+          }
+        } catch (ExecutionException e) {
+          final Throwable cause = e.getCause();
+          failures.put(outputFile, cause instanceof Exception ? (Exception) cause : e);
+        }
+      }
+      return new Result(stats.build(), Collections.unmodifiableMap(failures), saved, written, downloaded);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ZsyncException("Interrupted waiting for output files to be constructed", e);
+    } finally {
+      if (executor != this.executor) {
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  /**
+   * Local files available as input files indexed by the directory containing their parent directory, so that seeds in
+   * the same or a sibling directory of an output file can be found without scanning the entire pool.
+   */
+  static class SeedPool {
+
+    private final Map<Path, List<Path>> files = new HashMap<>();
+
+    void add(Path file) {
+      final Path normalized = file.toAbsolutePath().normalize();
+      final Path key = key(normalized);
+      List<Path> siblings = this.files.get(key);
+      if (siblings == null) {
+        this.files.put(key, siblings = new ArrayList<>(2));
+      }
+      if (!siblings.contains(normalized)) {
+        siblings.add(normalized);
+      }
+    }
+
+    /**
+     * Selects up to max seed files for the given output file. Only files with the same extension are candidates; files
+     * in the same directory are preferred over files in sibling directories, and files sharing a longer file name
+     * prefix with the output file are preferred among those. Remaining ties favor the lexicographically greater name,
+     * which for versioned file names typically is the most recent version. The output file itself is never selected,
+     * since zsync already uses it as an input file if it exists.
+     */
+    List<Path> select(Path outputFile, int max) {
+      final Path target = outputFile.toAbsolutePath().normalize();
+      final List<Path> siblings = this.files.get(key(target));
+      if (siblings == null || max == 0) {
+        return ImmutableList.of();
+      }
+      final String name = target.getFileName().toString();
+      final String extension = extension(name);
+      final List<Path> candidates = new ArrayList<>();
+      for (Path file : siblings) {
+        if (!file.equals(target) && extension.equals(extension(file.getFileName().toString()))) {
+          candidates.add(file);
+        }
+      }
+      Collections.sort(candidates, new Comparator<Path>() {
+        @Override
+        public int compare(Path o1, Path o2) {
+          final boolean s1 = o1.getParent().equals(target.getParent());
+          final boolean s2 = o2.getParent().equals(target.getParent());
+          if (s1 != s2) {
+            return s1 ? -1 : 1;
+          }
+          final String n1 = o1.getFileName().toString();
+          final String n2 = o2.getFileName().toString();
+          final int c = commonPrefix(name, n2) - commonPrefix(name, n1);
+          return c == 0 ? n2.compareTo(n1) : c;
+        }
+      });
+      return candidates.size() > max ? candidates.subList(0, max) : candidates;
+    }
+
+    private static Path key(Path file) {
+      final Path parent = file.getParent();
+      final Path grandParent = parent == null ? null : parent.getParent();
+      return grandParent == null ? parent : grandParent;
+    }
+
+    private static String extension(String name) {
+      final int dot = name.lastIndexOf('.');
+      return dot < 0 ? "" : name.substring(dot);
+    }
+
+    private static int commonPrefix(String a, String b) {
+      final int n = Math.min(a.length(), b.length());
+      int i = 0;
+      while (i < n && a.charAt(i) == b.charAt(i)) {
+        i++;
+      }
+      return i;
+    }
+  }
+}
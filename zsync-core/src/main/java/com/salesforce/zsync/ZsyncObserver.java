@@ -31,6 +31,7 @@ import java.util.List;
 
 import com.salesforce.zsync.Zsync.Options;
 import com.salesforce.zsync.http.ContentRange;
+import com.salesforce.zsync.transport.ResponseType;
 
 /**
  * Observes events over the course of a single zsync invocation.
@@ -59,14 +60,47 @@ public class ZsyncObserver {
 
   public void inputFileReadingComplete() {}
 
+  /**
+   * Counters of the block matcher for an input file scanned for blocks of the output file, reported once the scan
+   * completes. Not reported for input files whose blocks were all found by {@link Options#setIndexInputFiles(boolean) index}
+   * lookup.
+   */
+  public void inputFileMatched(MatcherMetrics metrics) {}
+
+  /**
+   * Ranges chosen for the next request to the remote file along with the adaptive limits applied to the batch.
+   */
+  public void remoteFileBatchPlanned(List<ContentRange> ranges, int maxRanges, long maxBytes) {}
+
   public void remoteFileDownloadingInitiated(URI uri, List<ContentRange> ranges) {}
 
   public void remoteFileDownloadingStarted(URI uri, long length) {}
 
+  /**
+   * Emitted instead of {@link #remoteFileDownloadingStarted(URI, long)}; by default delegates to it.
+   */
+  public void remoteFileDownloadingStarted(URI uri, ResponseType type, long length) {
+    this.remoteFileDownloadingStarted(uri, length);
+  }
+
   public void remoteFileRangeReceived(ContentRange range) {}
 
   public void remoteFileDownloadingComplete() {}
 
+  /**
+   * Emitted for each request for ranges of the remote file once it completes. Unlike the download events, which report
+   * concurrent requests to mirrors or over HTTP/2 as a single download, this is emitted for every request.
+   *
+   * @param uri Location requested
+   * @param type Form of the response, or null if the request failed before a response was received
+   * @param timeToFirstByteNanos Nanoseconds from issuing the request until its response header was received, or until
+   *        it failed
+   * @param transferNanos Nanoseconds from receiving the response header until the content was read
+   * @param bytes Bytes transferred
+   */
+  public void remoteFileRequestCompleted(URI uri, ResponseType type, long timeToFirstByteNanos, long transferNanos,
+      long bytes) {}
+
   public void bytesRead(long bytes) {}
 
   public void bytesDownloaded(long bytes) {}
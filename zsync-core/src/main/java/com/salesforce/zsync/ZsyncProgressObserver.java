@@ -0,0 +1,324 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ * disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.salesforce.zsync.Zsync.Options;
+import com.salesforce.zsync.http.ContentRange;
+
+/**
+ * Tracks the progress of a single zsync invocation, so that it can be polled from another thread while the invocation
+ * runs. Unlike other observers, it does not push anything: {@link #getProgress()} returns a consistent snapshot of
+ * counters the observer maintains as events arrive, which is cheap enough to poll for thousands of concurrent
+ * invocations.
+ *
+ * <pre>
+ * ZsyncProgressObserver progress = new ZsyncProgressObserver();
+ * ListenableFuture&lt;Path&gt; result = zsync.zsyncAsync(uri, options, progress);
+ * ...
+ * Progress snapshot = progress.getProgress();
+ * </pre>
+ *
+ * The observer can be combined with others through {@link ZsyncForwardingObserver}.
+ *
+ * @author bbusjaeger
+ *
+ */
+public class ZsyncProgressObserver extends ZsyncObserver {
+
+  public static enum Phase {
+    /**
+     * Retrieving and reading the control file
+     */
+    CONTROL_FILE,
+    /**
+     * Matching blocks from input files
+     */
+    MATCHING,
+    /**
+     * Retrieving missing blocks from the remote file
+     */
+    DOWNLOADING,
+    /**
+     * Output file written and validated
+     */
+    COMPLETE,
+    FAILED;
+  }
+
+  /**
+   * Snapshot of the progress of a zsync invocation
+   */
+  public static class Progress {
+    private final Phase phase;
+    private final long length;
+    private final long bytesMatchedLocally;
+    private final long bytesDownloaded;
+    private final long bytesRemaining;
+    private final long downloadRate;
+    private final long scanRate;
+    private final long etaMillis;
+
+    Progress(Phase phase, long length, long bytesMatchedLocally, long bytesDownloaded, long bytesRemaining,
+        long downloadRate, long scanRate, long etaMillis) {
+      this.phase = phase;
+      this.length = length;
+      this.bytesMatchedLocally = bytesMatchedLocally;
+      this.bytesDownloaded = bytesDownloaded;
+      this.bytesRemaining = bytesRemaining;
+      this.downloadRate = downloadRate;
+      this.scanRate = scanRate;
+      this.etaMillis = etaMillis;
+    }
+
+    public Phase getPhase() {
+      return this.phase;
+    }
+
+    /**
+     * Length of the output file, or -1 if the control file has not been read yet
+     */
+    public long getLength() {
+      return this.length;
+    }
+
+    /**
+     * Bytes of the output file written from input files
+     */
+    public long getBytesMatchedLocally() {
+      return this.bytesMatchedLocally;
+    }
+
+    /**
+     * Bytes of the remote file downloaded so far, not including the control file
+     */
+    public long getBytesDownloaded() {
+      return this.bytesDownloaded;
+    }
+
+    /**
+     * Bytes of the output file not written yet, or -1 if the control file has not been read yet
+     */
+    public long getBytesRemaining() {
+      return this.bytesRemaining;
+    }
+
+    /**
+     * Current rate at which the remote file is downloaded in bytes per second, or 0 if not downloading
+     */
+    public long getDownloadRate() {
+      return this.downloadRate;
+    }
+
+    /**
+     * Current rate at which input files are scanned in bytes per second, or 0 if not scanning
+     */
+    public long getScanRate() {
+      return this.scanRate;
+    }
+
+    /**
+     * Estimated time until the output file is complete, or -1 if it cannot be estimated yet, i.e. before the first
+     * bytes of the remote file have been downloaded while bytes remain
+     */
+    public long getEtaMillis() {
+      return this.etaMillis;
+    }
+
+    @Override
+    public String toString() {
+      return "Progress [phase=" + this.phase + ", length=" + this.length + ", bytesMatchedLocally="
+          + this.bytesMatchedLocally + ", bytesDownloaded=" + this.bytesDownloaded + ", bytesRemaining="
+          + this.bytesRemaining + ", downloadRate=" + this.downloadRate + ", scanRate=" + this.scanRate
+          + ", etaMillis=" + this.etaMillis + "]";
+    }
+  }
+
+  // written by the thread emitting events, read by polling threads
+  private volatile Phase phase = Phase.CONTROL_FILE;
+  private volatile long length = -1;
+  private final AtomicLong bytesWritten = new AtomicLong();
+  private final AtomicLong bytesMatchedLocally = new AtomicLong();
+  private final AtomicLong bytesDownloaded = new AtomicLong();
+  private volatile long inputFileLength;
+  private final AtomicLong inputFileBytesRead = new AtomicLong();
+  private final Meter downloadMeter = new Meter();
+  private final Meter scanMeter = new Meter();
+  private volatile boolean downloading;
+  private volatile boolean scanning;
+
+  @Override
+  public void zsyncStarted(URI requestedZsyncUri, Options options) {
+    this.phase = Phase.CONTROL_FILE;
+  }
+
+  @Override
+  public void outputFileWritingStarted(Path outputFile, long length) {
+    this.length = length;
+    this.phase = Phase.MATCHING;
+  }
+
+  @Override
+  public void inputFileReadingStarted(Path inputFile, long length) {
+    this.inputFileLength = length;
+    this.inputFileBytesRead.set(0);
+    this.scanMeter.reset();
+    this.scanning = true;
+  }
+
+  @Override
+  public void inputFileReadingComplete() {
+    this.scanning = false;
+  }
+
+  @Override
+  public void remoteFileDownloadingInitiated(URI uri, List<ContentRange> ranges) {
+    if (this.phase != Phase.DOWNLOADING) {
+      this.phase = Phase.DOWNLOADING;
+      this.downloadMeter.reset();
+    }
+    this.downloading = true;
+  }
+
+  @Override
+  public void bytesRead(long bytes) {
+    if (this.scanning) {
+      this.inputFileBytesRead.addAndGet(bytes);
+      this.scanMeter.add(bytes);
+    }
+  }
+
+  @Override
+  public void bytesDownloaded(long bytes) {
+    if (this.phase == Phase.DOWNLOADING) {
+      this.bytesDownloaded.addAndGet(bytes);
+      this.downloadMeter.add(bytes);
+    }
+  }
+
+  @Override
+  public void bytesWritten(long bytes) {
+    this.bytesWritten.addAndGet(bytes);
+    if (this.phase == Phase.MATCHING) {
+      this.bytesMatchedLocally.addAndGet(bytes);
+    }
+  }
+
+  @Override
+  public void outputFileWritingCompleted() {
+    this.downloading = false;
+  }
+
+  @Override
+  public void zsyncFailed(Exception exception) {
+    this.phase = Phase.FAILED;
+  }
+
+  @Override
+  public void zsyncComplete() {
+    this.downloading = false;
+    this.scanning = false;
+    if (this.phase != Phase.FAILED) {
+      this.phase = Phase.COMPLETE;
+    }
+  }
+
+  /**
+   * Returns a snapshot of the current progress. May be called from any thread at any time.
+   *
+   * @return
+   */
+  public Progress getProgress() {
+    final Phase phase = this.phase;
+    final long length = this.length;
+    final long bytesRemaining = length < 0 ? -1 : Math.max(0, length - this.bytesWritten.get());
+    final long downloadRate = this.downloading ? this.downloadMeter.rate() : 0;
+    final long scanRate = this.scanning ? this.scanMeter.rate() : 0;
+    long etaMillis;
+    if (phase == Phase.COMPLETE || bytesRemaining == 0) {
+      etaMillis = 0;
+    } else if (bytesRemaining < 0 || downloadRate == 0) {
+      etaMillis = -1;
+    } else {
+      etaMillis = SECONDS.toMillis(1) * bytesRemaining / downloadRate;
+      if (scanRate > 0) {
+        final long scanRemaining = Math.max(0, this.inputFileLength - this.inputFileBytesRead.get());
+        etaMillis += SECONDS.toMillis(1) * scanRemaining / scanRate;
+      }
+    }
+    return new Progress(phase, length, this.bytesMatchedLocally.get(), this.bytesDownloaded.get(), bytesRemaining,
+        downloadRate, scanRate, etaMillis);
+  }
+
+  /**
+   * Rate over the last completed window of at least one second, or since the start if no window has completed yet
+   */
+  private static class Meter {
+    private static final long WINDOW_NANOS = SECONDS.toNanos(1);
+
+    private final AtomicLong total = new AtomicLong();
+    private volatile long startNanos;
+    private volatile long windowNanos;
+    private volatile long windowTotal;
+    private volatile long rate;
+
+    Meter() {
+      this.reset();
+    }
+
+    void reset() {
+      this.total.set(0);
+      this.startNanos = System.nanoTime();
+      this.windowNanos = this.startNanos;
+      this.windowTotal = 0;
+      this.rate = -1;
+    }
+
+    void add(long bytes) {
+      final long total = this.total.addAndGet(bytes);
+      final long now = System.nanoTime();
+      final long elapsed = now - this.windowNanos;
+      if (elapsed >= WINDOW_NANOS) {
+        this.rate = (total - this.windowTotal) * SECONDS.toNanos(1) / elapsed;
+        this.windowNanos = now;
+        this.windowTotal = total;
+      }
+    }
+
+    long rate() {
+      final long rate = this.rate;
+      if (rate >= 0) {
+        return rate;
+      }
+      final long elapsed = System.nanoTime() - this.startNanos;
+      return elapsed <= 0 ? 0 : (long) ((double) this.total.get() * SECONDS.toNanos(1) / elapsed);
+    }
+  }
+}
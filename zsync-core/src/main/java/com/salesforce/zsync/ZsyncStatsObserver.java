@@ -26,21 +26,55 @@
 package com.salesforce.zsync;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 import java.net.URI;
 import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.ImmutableMap.Builder;
 import com.salesforce.zsync.Zsync.Options;
 import com.salesforce.zsync.http.ContentRange;
+import com.salesforce.zsync.transport.ResponseType;
 
 public class ZsyncStatsObserver extends ZsyncObserver {
 
+  /**
+   * Distributions over the requests for the remote file
+   */
+  public static interface RequestStats {
+
+    /**
+     * Microseconds from issuing a request until its response header is received
+     */
+    Histogram getTimeToFirstByteMicros();
+
+    /**
+     * Microseconds from receiving the response header of a request until its content is read
+     */
+    Histogram getTransferTimeMicros();
+
+    /**
+     * Bytes transferred per request
+     */
+    Histogram getBytesPerRequest();
+
+    /**
+     * Number of requests by form of the response
+     */
+    Map<ResponseType, Long> getRequestsByResponseType();
+
+    /**
+     * Returns these statistics as a JSON object for ingestion by metrics pipelines
+     */
+    String toJson();
+  }
+
   public static interface ZsyncStats {
 
     long getTotalBytesRead();
@@ -65,8 +99,22 @@ public class ZsyncStatsObserver extends ZsyncObserver {
 
     long getElapsedMillisecondsDownloadingRemoteFile();
 
+    /**
+     * Empty unless the observer was created {@link ZsyncStatsObserver#ZsyncStatsObserver(boolean) recording the time
+     * by request}.
+     *
+     * @deprecated grows with the number of requests; use the histograms of {@link #getRemoteFileRequestStats()}
+     */
+    @Deprecated
     Map<List<ContentRange>, Long> getElapsedMillisecondsDownloadingRemoteFileByRequest();
 
+    RequestStats getRemoteFileRequestStats();
+
+    /**
+     * Counters of the block matcher for each input file scanned
+     */
+    Map<Path, MatcherMetrics> getMatcherMetricsByInputFile();
+
   }
 
 
@@ -77,13 +125,20 @@ public class ZsyncStatsObserver extends ZsyncObserver {
   private long elapsedMillisDownloading = 0;
   private long elapsedMillisDownloadingControlFile = 0;
   private long elapsedMillisDownloadingRemoteFile = 0;
-  private final Builder<List<ContentRange>, Long> elapsedMillisByRangeRequest = ImmutableMap.builder();
+  private final boolean recordElapsedByRequest;
+  private final Map<List<ContentRange>, Long> elapsedMillisByRangeRequest = new LinkedHashMap<>();
   private List<ContentRange> ranges;
+  private final Histogram timeToFirstByteMicros = new Histogram();
+  private final Histogram transferTimeMicros = new Histogram();
+  private final Histogram bytesPerRequest = new Histogram();
+  private final Map<ResponseType, Long> requestsByResponseType = new EnumMap<>(ResponseType.class);
 
   // data
 
-  private final Builder<Path, Long> bytesWrittenByInputFile = ImmutableMap.builder();
-  private final Builder<Path, Long> bytesReadByInputFile = ImmutableMap.builder();
+  // an input file is read once per level of a hierarchical control file
+  private final Map<Path, Long> bytesWrittenByInputFile = new LinkedHashMap<>();
+  private final Map<Path, Long> bytesReadByInputFile = new LinkedHashMap<>();
+  private final Map<Path, MatcherMetrics> matcherMetricsByInputFile = new LinkedHashMap<>();
 
   private long bytesRead = 0;
   private long bytesWritten = 0;
@@ -100,6 +155,19 @@ public class ZsyncStatsObserver extends ZsyncObserver {
   private long bytesReadBefore;
   private long bytesWrittenBefore;
 
+  public ZsyncStatsObserver() {
+    this(false);
+  }
+
+  /**
+   * @param recordElapsedByRequest whether to record the deprecated
+   *        {@link ZsyncStats#getElapsedMillisecondsDownloadingRemoteFileByRequest() time by request}, which holds an
+   *        entry per request
+   */
+  public ZsyncStatsObserver(boolean recordElapsedByRequest) {
+    this.recordElapsedByRequest = recordElapsedByRequest;
+  }
+
   @Override
   public void zsyncStarted(URI requestedZsyncUri, Options options) {
     this.stopwatch.start();
@@ -117,10 +185,12 @@ public class ZsyncStatsObserver extends ZsyncObserver {
 
   @Override
   public void controlFileDownloadingComplete() {
-    this.elapsedMillisDownloadingControlFile += this.downloadStopwatch.stop().elapsed(MILLISECONDS);
+    // hierarchical control files are retrieved in several requests
+    final long elapsed = this.downloadStopwatch.stop().elapsed(MILLISECONDS);
     this.downloadStopwatch.reset();
-    this.elapsedMillisDownloading += this.elapsedMillisDownloadingControlFile;
-    this.bytesDownloadedForControlFile = this.bytesDownloaded;
+    this.elapsedMillisDownloadingControlFile += elapsed;
+    this.elapsedMillisDownloading += elapsed;
+    this.bytesDownloadedForControlFile += this.bytesDownloaded;
     this.totalBytesDownloaded += this.bytesDownloaded;
     this.bytesDownloaded = 0;
   }
@@ -140,21 +210,28 @@ public class ZsyncStatsObserver extends ZsyncObserver {
   public void inputFileReadingStarted(Path inputFile, long length) {
     this.inputFile = inputFile;
     this.bytesReadBefore = this.totalBytesRead;
-    this.bytesWrittenBefore = this.totalBytesWritten;
+    // output file writing is still in progress while input files are read
+    this.bytesWrittenBefore = this.totalBytesWritten + this.bytesWritten;
     this.bytesRead = 0;
   }
 
   @Override
   public void inputFileReadingComplete() {
     this.totalBytesRead += this.bytesRead;
-    this.bytesReadByInputFile.put(this.inputFile, this.totalBytesRead - this.bytesReadBefore);
-    this.bytesWrittenByInputFile.put(this.inputFile, this.totalBytesWritten - this.bytesWrittenBefore);
+    add(this.bytesReadByInputFile, this.inputFile, this.totalBytesRead - this.bytesReadBefore);
+    add(this.bytesWrittenByInputFile, this.inputFile,
+        this.totalBytesWritten + this.bytesWritten - this.bytesWrittenBefore);
     this.inputFile = null;
     this.bytesReadBefore = 0;
     this.bytesWrittenBefore = 0;
     this.bytesRead = 0;
   }
 
+  @Override
+  public void inputFileMatched(MatcherMetrics metrics) {
+    this.matcherMetricsByInputFile.put(metrics.getInputFile(), metrics);
+  }
+
   @Override
   public void outputFileWritingStarted(Path outputFile, long length) {
     this.bytesWritten = 0;
@@ -183,13 +260,30 @@ public class ZsyncStatsObserver extends ZsyncObserver {
     this.downloadStopwatch.reset();
     this.elapsedMillisDownloadingRemoteFile += millis;
     this.elapsedMillisDownloading += millis;
-    this.elapsedMillisByRangeRequest.put(this.ranges, millis);
+    if (this.recordElapsedByRequest) {
+      // the same ranges may be requested again after a failure
+      final Long previous = this.elapsedMillisByRangeRequest.get(this.ranges);
+      this.elapsedMillisByRangeRequest.put(this.ranges, previous == null ? millis : previous + millis);
+    }
     this.ranges = null;
     this.bytesDownloadedFromRemoteTarget += this.bytesDownloaded;
     this.totalBytesDownloaded += this.bytesDownloaded;
     this.bytesDownloaded = 0;
   }
 
+  @Override
+  public void remoteFileRequestCompleted(URI uri, ResponseType type, long timeToFirstByteNanos, long transferNanos,
+      long bytes) {
+    // requests failing before a response was received have no transfer
+    if (type != null) {
+      this.timeToFirstByteMicros.record(NANOSECONDS.toMicros(timeToFirstByteNanos));
+      this.transferTimeMicros.record(NANOSECONDS.toMicros(transferNanos));
+      this.bytesPerRequest.record(bytes);
+      final Long previous = this.requestsByResponseType.get(type);
+      this.requestsByResponseType.put(type, previous == null ? 1 : previous + 1);
+    }
+  }
+
   @Override
   public void bytesDownloaded(long bytes) {
     this.bytesDownloaded += bytes;
@@ -210,14 +304,23 @@ public class ZsyncStatsObserver extends ZsyncObserver {
     this.stopwatch.stop();
   }
 
+  private static void add(Map<Path, Long> map, Path inputFile, long bytes) {
+    final Long previous = map.get(inputFile);
+    map.put(inputFile, previous == null ? bytes : previous + bytes);
+  }
+
   public ZsyncStats build() {
-    final Map<Path, Long> bytesWrittenByInputFile = this.bytesWrittenByInputFile.build();
-    final Map<Path, Long> bytesReadByInputFile = this.bytesReadByInputFile.build();
+    final Map<Path, Long> bytesWrittenByInputFile = ImmutableMap.copyOf(this.bytesWrittenByInputFile);
+    final Map<Path, Long> bytesReadByInputFile = ImmutableMap.copyOf(this.bytesReadByInputFile);
     final long totalElapsedMilliseconds = this.stopwatch.elapsed(TimeUnit.MILLISECONDS);
     final long elapsedMillisecondsDownloading = this.elapsedMillisDownloading;
     final long elapsedMillisecondsDownloadingControlFile = this.elapsedMillisDownloadingControlFile;
     final long elapsedMillisecondsDownloadingRemoteFile = this.elapsedMillisDownloadingRemoteFile;
-    final Map<List<ContentRange>, Long> elapsedMillisByRangeRequest = this.elapsedMillisByRangeRequest.build();
+    final Map<List<ContentRange>, Long> elapsedMillisByRangeRequest = ImmutableMap.copyOf(this.elapsedMillisByRangeRequest);
+    final Map<Path, MatcherMetrics> matcherMetricsByInputFile = ImmutableMap.copyOf(this.matcherMetricsByInputFile);
+    final RequestStats requestStats = new ImmutableRequestStats(new Histogram(this.timeToFirstByteMicros),
+        new Histogram(this.transferTimeMicros), new Histogram(this.bytesPerRequest),
+        ImmutableMap.copyOf(this.requestsByResponseType));
     final long totalBytesDownloaded = this.totalBytesDownloaded;
     final long bytesDownloadedForControlFile = this.bytesDownloadedForControlFile;
     final long bytesDownloadedFromRemoteTarget = this.bytesDownloadedFromRemoteTarget;
@@ -284,6 +387,74 @@ public class ZsyncStatsObserver extends ZsyncObserver {
       public Map<List<ContentRange>, Long> getElapsedMillisecondsDownloadingRemoteFileByRequest() {
         return elapsedMillisByRangeRequest;
       }
+
+      @Override
+      public RequestStats getRemoteFileRequestStats() {
+        return requestStats;
+      }
+
+      @Override
+      public Map<Path, MatcherMetrics> getMatcherMetricsByInputFile() {
+        return matcherMetricsByInputFile;
+      }
     };
   }
+
+  private static class ImmutableRequestStats implements RequestStats {
+    private final Histogram timeToFirstByteMicros;
+    private final Histogram transferTimeMicros;
+    private final Histogram bytesPerRequest;
+    private final Map<ResponseType, Long> requestsByResponseType;
+
+    ImmutableRequestStats(Histogram timeToFirstByteMicros, Histogram transferTimeMicros, Histogram bytesPerRequest,
+        Map<ResponseType, Long> requestsByResponseType) {
+      this.timeToFirstByteMicros = timeToFirstByteMicros;
+      this.transferTimeMicros = transferTimeMicros;
+      this.bytesPerRequest = bytesPerRequest;
+      this.requestsByResponseType = requestsByResponseType;
+    }
+
+    @Override
+    public Histogram getTimeToFirstByteMicros() {
+      return new Histogram(this.timeToFirstByteMicros);
+    }
+
+    @Override
+    public Histogram getTransferTimeMicros() {
+      return new Histogram(this.transferTimeMicros);
+    }
+
+    @Override
+    public Histogram getBytesPerRequest() {
+      return new Histogram(this.bytesPerRequest);
+    }
+
+    @Override
+    public Map<ResponseType, Long> getRequestsByResponseType() {
+      return this.requestsByResponseType;
+    }
+
+    @Override
+    public String toJson() {
+      final StringBuilder b = new StringBuilder();
+      b.append("{\"timeToFirstByteMicros\":").append(this.timeToFirstByteMicros.toJson());
+      b.append(",\"transferTimeMicros\":").append(this.transferTimeMicros.toJson());
+      b.append(",\"bytesPerRequest\":").append(this.bytesPerRequest.toJson());
+      b.append(",\"requestsByResponseType\":{");
+      boolean first = true;
+      for (Map.Entry<ResponseType, Long> entry : this.requestsByResponseType.entrySet()) {
+        if (!first) {
+          b.append(',');
+        }
+        first = false;
+        b.append('"').append(entry.getKey()).append("\":").append(entry.getValue());
+      }
+      return b.append("}}").toString();
+    }
+
+    @Override
+    public String toString() {
+      return this.toJson();
+    }
+  }
 }
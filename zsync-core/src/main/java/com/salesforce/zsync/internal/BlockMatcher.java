@@ -29,6 +29,13 @@ import com.salesforce.zsync.internal.util.ReadableByteBuffer;
 
 public abstract class BlockMatcher {
 
+  // counters reported as MatcherMetrics, only accessed by the thread running the matcher
+  protected long rsumProbes;
+  protected long rsumHits;
+  protected long strongChecksums;
+  protected long falsePositives;
+  protected long blocksMatched;
+
   public static BlockMatcher create(ControlFile controlFile) {
     return controlFile.getHeader().isSeqMatches() ? new DoubleBlockMatcher(controlFile) : new SingleBlockMatcher(
         controlFile);
@@ -38,4 +45,24 @@ public abstract class BlockMatcher {
 
   public abstract int match(OutputFileWriter targetFile, ReadableByteBuffer data);
 
+  public long getRsumProbes() {
+    return this.rsumProbes;
+  }
+
+  public long getRsumHits() {
+    return this.rsumHits;
+  }
+
+  public long getStrongChecksums() {
+    return this.strongChecksums;
+  }
+
+  public long getFalsePositives() {
+    return this.falsePositives;
+  }
+
+  public long getBlocksMatched() {
+    return this.blocksMatched;
+  }
+
 }
@@ -0,0 +1,113 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.nio.file.Path;
+
+import com.salesforce.zsync.MatcherMetrics;
+
+/**
+ * Snapshot of the counters of a {@link BlockMatcher} once it has scanned an input file
+ *
+ * @author bbusjaeger
+ */
+public class BlockMatcherMetrics implements MatcherMetrics {
+
+  private final Path inputFile;
+  private final long bytesScanned;
+  private final long elapsedNanos;
+  private final long rsumProbes;
+  private final long rsumHits;
+  private final long strongChecksums;
+  private final long falsePositives;
+  private final long blocksMatched;
+
+  public BlockMatcherMetrics(Path inputFile, long bytesScanned, long elapsedNanos, BlockMatcher matcher) {
+    this.inputFile = inputFile;
+    this.bytesScanned = bytesScanned;
+    this.elapsedNanos = elapsedNanos;
+    this.rsumProbes = matcher.getRsumProbes();
+    this.rsumHits = matcher.getRsumHits();
+    this.strongChecksums = matcher.getStrongChecksums();
+    this.falsePositives = matcher.getFalsePositives();
+    this.blocksMatched = matcher.getBlocksMatched();
+  }
+
+  @Override
+  public Path getInputFile() {
+    return this.inputFile;
+  }
+
+  @Override
+  public long getBytesScanned() {
+    return this.bytesScanned;
+  }
+
+  @Override
+  public long getElapsedNanos() {
+    return this.elapsedNanos;
+  }
+
+  @Override
+  public long getBytesScannedPerSecond() {
+    return this.elapsedNanos == 0 ? 0 : (long) ((double) this.bytesScanned * SECONDS.toNanos(1) / this.elapsedNanos);
+  }
+
+  @Override
+  public long getRsumProbes() {
+    return this.rsumProbes;
+  }
+
+  @Override
+  public long getRsumHits() {
+    return this.rsumHits;
+  }
+
+  @Override
+  public long getStrongChecksums() {
+    return this.strongChecksums;
+  }
+
+  @Override
+  public long getFalsePositives() {
+    return this.falsePositives;
+  }
+
+  @Override
+  public long getBlocksMatched() {
+    return this.blocksMatched;
+  }
+
+  @Override
+  public String toString() {
+    return "MatcherMetrics [inputFile=" + this.inputFile + ", bytesScanned=" + this.bytesScanned + ", elapsedNanos="
+        + this.elapsedNanos + ", rsumProbes=" + this.rsumProbes + ", rsumHits=" + this.rsumHits + ", strongChecksums="
+        + this.strongChecksums + ", falsePositives=" + this.falsePositives + ", blocksMatched=" + this.blocksMatched
+        + "]";
+  }
+}
@@ -25,6 +25,7 @@
  */
 package com.salesforce.zsync.internal;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
@@ -34,21 +35,67 @@ import com.salesforce.zsync.internal.util.SplitInputStream;
 public class ControlFile {
 
   public static ControlFile read(final InputStream in) throws IOException {
+    return open(in).read();
+  }
+
+  /**
+   * Reads the header of the control file from the given stream, leaving the block checksums to be read by
+   * {@link Reader#read()}. This lets callers start work that only depends on the header, such as indexing input files
+   * at the block size, while the block checksums are still being retrieved.
+   *
+   * @param in
+   * @return
+   * @throws IOException
+   */
+  public static Reader open(final InputStream in) throws IOException {
     final SplitInputStream firstPart = new SplitInputStream(in, new byte[] {'\n', '\n'});
-    final Header header = Header.read(firstPart);
-    final List<? extends BlockSum> blockSums =
-        ImmutableBlockSum.readSums(firstPart.next(), header.getNumBlocks(), header.getRsumBytes(),
-            header.getChecksumBytes());
-    return new ControlFile(header, blockSums);
+    return new Reader(Header.read(firstPart), firstPart);
+  }
+
+  /**
+   * Control file whose header has been read
+   */
+  public static class Reader {
+    private final Header header;
+    private final SplitInputStream firstPart;
+
+    Reader(Header header, SplitInputStream firstPart) {
+      this.header = header;
+      this.firstPart = firstPart;
+    }
+
+    public Header getHeader() {
+      return this.header;
+    }
+
+    /**
+     * Reads the block checksums following the header
+     *
+     * @return
+     * @throws IOException
+     */
+    public ControlFile read() throws IOException {
+      // block sums are read a few bytes at a time: buffer unless the underlying stream already is
+      final List<? extends BlockSum> blockSums = ImmutableBlockSum.readSums(
+          new BufferedInputStream(this.firstPart.next()), this.header.getNumBlocks(), this.header.getRsumBytes(),
+          this.header.getChecksumBytes());
+      return new ControlFile(this.header, blockSums, this.firstPart.getCount());
+    }
   }
 
   private final Header header;
   private final List<? extends BlockSum> blockSums;
+  private final long headerLength;
 
   public ControlFile(Header header, List<? extends BlockSum> blockSums) {
+    this(header, blockSums, -1);
+  }
+
+  public ControlFile(Header header, List<? extends BlockSum> blockSums, long headerLength) {
     super();
     this.header = header;
     this.blockSums = blockSums;
+    this.headerLength = headerLength;
   }
 
   public Header getHeader() {
@@ -59,4 +106,14 @@ public class ControlFile {
     return this.blockSums;
   }
 
+  /**
+   * Number of bytes preceding the block checksums in the control file, or -1 if the control file was not read from a
+   * stream
+   *
+   * @return
+   */
+  public long getHeaderLength() {
+    return this.headerLength;
+  }
+
 }
@@ -77,7 +77,10 @@ public class DoubleBlockMatcher extends BlockMatcher {
       BlockSum prev = it.next();
       while (it.hasNext()) {
         final BlockSum cur = it.next();
-        b.add(toLong(prev.getRsum(), cur.getRsum()));
+        // blocks without checksums are completed already and not matched against
+        if (prev != null && cur != null) {
+          b.add(toLong(prev.getRsum(), cur.getRsum()));
+        }
         prev = cur;
       }
     }
@@ -152,9 +155,11 @@ public class DoubleBlockMatcher extends BlockMatcher {
 
   private int matchedBoth(OutputFileWriter outputFile, ReadableByteBuffer buffer) {
     for (int p : this.matches) {
-      outputFile.writeBlock(p, buffer, 0);
-      if (++p != outputFile.getNumBlocks()) {
-        outputFile.writeBlock(p, buffer, this.blockSize);
+      if (outputFile.writeBlock(p, buffer, 0)) {
+        this.blocksMatched++;
+      }
+      if (++p != outputFile.getNumBlocks() && outputFile.writeBlock(p, buffer, this.blockSize)) {
+        this.blocksMatched++;
       }
     }
     this.state = MATCHED_BOTH;
@@ -164,11 +169,17 @@ public class DoubleBlockMatcher extends BlockMatcher {
   private List<Integer> tryMatchBoth(final OutputFileWriter outputFile, final ReadableByteBuffer buffer) {
     final List<Integer> matches;
     final Long r = toLong(this.currentBlockSum.rsum.toInt(), this.nextBlockSum.rsum.toInt());
+    this.rsumProbes++;
     // cheap negative check followed by more expensive check
     if (this.rsumHashSet.contains(r)) {
+      this.rsumHits++;
       // need to compute current block sum
       this.currentBlockSum.checksum.setChecksum(buffer, 0, this.blockSize);
+      this.strongChecksums++;
       matches = this.tryMatchNext(outputFile, buffer);
+      if (matches.isEmpty()) {
+        this.falsePositives++;
+      }
     } else {
       matches = Collections.emptyList();
     }
@@ -201,10 +212,11 @@ public class DoubleBlockMatcher extends BlockMatcher {
       return true;
     }
     final BlockSum nextTargetBlock = outputFile.get(next);
-    if (nextTargetBlock.getRsum() == this.nextBlockSum.rsum.toInt()) {
+    if (nextTargetBlock != null && nextTargetBlock.getRsum() == this.nextBlockSum.rsum.toInt()) {
       // compute next block sum only once
       if (!this.nextBlockSum.checksum.isSet()) {
         this.nextBlockSum.checksum.setChecksum(buffer, this.blockSize, this.blockSize);
+        this.strongChecksums++;
       }
       return nextTargetBlock.equals(this.nextBlockSum);
     }
@@ -26,20 +26,21 @@
 package com.salesforce.zsync.internal;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URI;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.salesforce.zsync.MatcherMetrics;
 import com.salesforce.zsync.ZsyncObserver;
 import com.salesforce.zsync.Zsync.Options;
 import com.salesforce.zsync.http.ContentRange;
-import com.salesforce.zsync.internal.util.HttpClient.HttpTransferListener;
-import com.salesforce.zsync.internal.util.HttpClient.RangeReceiver;
-import com.salesforce.zsync.internal.util.HttpClient.RangeTransferListener;
+import com.salesforce.zsync.transport.RangeReceiver;
+import com.salesforce.zsync.transport.ResponseType;
+import com.salesforce.zsync.transport.TransportListener;
 import com.salesforce.zsync.internal.util.TransferListener.ResourceTransferListener;
-import com.squareup.okhttp.Request;
-import com.squareup.okhttp.Response;
 
 
 /**
@@ -51,70 +52,108 @@ import com.squareup.okhttp.Response;
 public class EventDispatcher {
 
   private final ZsyncObserver observer;
+  // byte counts are forwarded in batches; pending counts are flushed before any other event is forwarded
+  private final BatchedCounter read;
+  private final BatchedCounter written;
+  private final BatchedCounter downloaded;
 
-  public EventDispatcher(ZsyncObserver observer) {
+  public EventDispatcher(final ZsyncObserver observer) {
     this.observer = observer;
+    this.read = new BatchedCounter() {
+      @Override
+      void flushed(long bytes) {
+        observer.bytesRead(bytes);
+      }
+    };
+    this.written = new BatchedCounter() {
+      @Override
+      void flushed(long bytes) {
+        observer.bytesWritten(bytes);
+      }
+    };
+    this.downloaded = new BatchedCounter() {
+      @Override
+      void flushed(long bytes) {
+        observer.bytesDownloaded(bytes);
+      }
+    };
+  }
+
+  /**
+   * Forwards the pending byte counts to the observer
+   */
+  public void flush() {
+    this.read.flush();
+    this.written.flush();
+    this.downloaded.flush();
   }
 
   public void zsyncStarted(URI requestedZsyncUri, Options options) {
+    this.flush();
     this.observer.zsyncStarted(requestedZsyncUri, options);
   }
 
   public void zsyncFailed(Exception exception) {
+    this.flush();
     this.observer.zsyncFailed(exception);
   }
 
   public void zsyncComplete() {
+    this.flush();
     this.observer.zsyncComplete();
   }
 
+  public void inputFileMatched(MatcherMetrics metrics) {
+    this.flush();
+    this.observer.inputFileMatched(metrics);
+  }
+
   public ResourceTransferListener<Path> getControlFileReadListener() {
     return new ResourceTransferListener<Path>() {
       @Override
       public void start(Path resource, long length) {
+        EventDispatcher.this.flush();
         EventDispatcher.this.observer.controlFileReadingStarted(resource, length);
       }
 
       @Override
       public void transferred(long bytes) {
-        EventDispatcher.this.observer.bytesRead(bytes);
+        EventDispatcher.this.read.add(bytes);
       }
 
       @Override
       public void close() throws IOException {
+        EventDispatcher.this.flush();
         EventDispatcher.this.observer.controlFileReadingComplete();
       }
     };
   }
 
-  public HttpTransferListener getControlFileDownloadListener() {
-    return new HttpTransferListener() {
+  public TransportListener getControlFileDownloadListener() {
+    return new TransportListener() {
+      @Override
+      public void planned(List<ContentRange> ranges, int maxRanges, long maxBytes) {}
 
       @Override
-      public void initiating(Request request) {
-        try {
-          EventDispatcher.this.observer.controlFileDownloadingInitiated(request.uri());
-        } catch (IOException e) {
-          throw new RuntimeException(e);
-        }
+      public void initiating(URI uri, List<ContentRange> ranges) {
+        EventDispatcher.this.flush();
+        EventDispatcher.this.observer.controlFileDownloadingInitiated(uri);
       }
 
       @Override
-      public void start(Response response, long length) {
-        try {
-          EventDispatcher.this.observer.controlFileDownloadingStarted(response.request().uri(), length);
-        } catch (IOException e) {
-          throw new RuntimeException(e);
-        }
+      public void started(URI uri, ResponseType type, long length) {
+        EventDispatcher.this.flush();
+        EventDispatcher.this.observer.controlFileDownloadingStarted(uri, length);
       }
 
       @Override
       public void transferred(long bytes) {
-        EventDispatcher.this.observer.bytesDownloaded(bytes);
+        EventDispatcher.this.downloaded.add(bytes);
       }
 
       @Override
-      public void close() throws IOException {
+      public void completed() {
+        EventDispatcher.this.flush();
         EventDispatcher.this.observer.controlFileDownloadingComplete();
       }
     };
@@ -125,16 +164,18 @@ public class EventDispatcher {
 
       @Override
       public void start(Path path, long length) {
+        EventDispatcher.this.flush();
         EventDispatcher.this.observer.outputFileWritingStarted(path, length);
       }
 
       @Override
       public void transferred(long bytes) {
-        EventDispatcher.this.observer.bytesWritten(bytes);
+        EventDispatcher.this.written.add(bytes);
       }
 
       @Override
       public void close() throws IOException {
+        EventDispatcher.this.flush();
         EventDispatcher.this.observer.outputFileWritingCompleted();
       }
     };
@@ -144,66 +185,143 @@ public class EventDispatcher {
     return new ResourceTransferListener<Path>() {
       @Override
       public void start(Path resource, long length) {
+        EventDispatcher.this.flush();
         EventDispatcher.this.observer.inputFileReadingStarted(resource, length);
       }
 
       @Override
       public void transferred(long bytes) {
-        EventDispatcher.this.observer.bytesRead(bytes);
+        EventDispatcher.this.read.add(bytes);
       }
 
       @Override
       public void close() throws IOException {
+        EventDispatcher.this.flush();
         EventDispatcher.this.observer.inputFileReadingComplete();
       }
     };
   }
 
-  public RangeTransferListener getRemoteFileDownloadListener() {
-    return new RangeTransferListener() {
-      @Override
-      public HttpTransferListener newTransfer(final List<ContentRange> ranges) {
-        return new HttpTransferListener() {
-          @Override
-          public void initiating(Request request) {
-            try {
-              EventDispatcher.this.observer.remoteFileDownloadingInitiated(request.uri(), ranges);
-            } catch (IOException e) {
-              throw new RuntimeException(e);
-            }
-          }
-
-          @Override
-          public void start(Response resource, long length) {
-            try {
-              EventDispatcher.this.observer.remoteFileDownloadingStarted(resource.request().uri(), resource.body()
-                  .contentLength());
-            } catch (IOException e) {
-              throw new RuntimeException(e);
-            }
-          }
-
-          @Override
-          public void transferred(long bytes) {
-            EventDispatcher.this.observer.bytesDownloaded(bytes);
-          }
-
-          @Override
-          public void close() throws IOException {
-            EventDispatcher.this.observer.remoteFileDownloadingComplete();
-          }
-        };
+  public TransportListener getRemoteFileDownloadListener() {
+    return new TransportListener() {
+      @Override
+      public void planned(List<ContentRange> ranges, int maxRanges, long maxBytes) {
+        EventDispatcher.this.flush();
+        EventDispatcher.this.observer.remoteFileBatchPlanned(ranges, maxRanges, maxBytes);
+      }
+
+      @Override
+      public void initiating(URI uri, List<ContentRange> ranges) {
+        EventDispatcher.this.flush();
+        EventDispatcher.this.observer.remoteFileDownloadingInitiated(uri, ranges);
+      }
+
+      @Override
+      public void started(URI uri, ResponseType type, long length) {
+        EventDispatcher.this.flush();
+        EventDispatcher.this.observer.remoteFileDownloadingStarted(uri, type, length);
+      }
+
+      @Override
+      public void transferred(long bytes) {
+        EventDispatcher.this.downloaded.add(bytes);
+      }
+
+      @Override
+      public void completed() {
+        EventDispatcher.this.flush();
+        EventDispatcher.this.observer.remoteFileDownloadingComplete();
       }
     };
   }
 
+  /**
+   * Same as {@link #getRemoteFileDownloadListener()}, but also reports each request to the observer as it completes.
+   * Only for a single transport call at a time: listeners that merge concurrent calls into one download report the
+   * requests of each call with a {@link RequestTimer} instead.
+   */
+  public TransportListener getRemoteFileRequestListener() {
+    final TransportListener listener = this.getRemoteFileDownloadListener();
+    final RequestTimer timer = new RequestTimer();
+    return new TransportListener() {
+      @Override
+      public void planned(List<ContentRange> ranges, int maxRanges, long maxBytes) {
+        listener.planned(ranges, maxRanges, maxBytes);
+      }
+
+      @Override
+      public void initiating(URI uri, List<ContentRange> ranges) {
+        timer.initiating(uri);
+        listener.initiating(uri, ranges);
+      }
+
+      @Override
+      public void started(URI uri, ResponseType type, long length) {
+        timer.started(type);
+        listener.started(uri, type, length);
+      }
+
+      @Override
+      public void transferred(long bytes) {
+        timer.transferred(bytes);
+        listener.transferred(bytes);
+      }
+
+      @Override
+      public void completed() {
+        timer.completed(EventDispatcher.this);
+        listener.completed();
+      }
+    };
+  }
+
+  public void remoteFileRequestCompleted(URI uri, ResponseType type, long timeToFirstByteNanos, long transferNanos,
+      long bytes) {
+    this.flush();
+    this.observer.remoteFileRequestCompleted(uri, type, timeToFirstByteNanos, transferNanos, bytes);
+  }
+
   public RangeReceiver getRangeReceiverListener(final RangeReceiver rangeReceiver) {
     return new RangeReceiver() {
       @Override
-      public void receive(ContentRange range, InputStream in) throws IOException {
+      public void receive(ContentRange range, ReadableByteChannel in) throws IOException {
         rangeReceiver.receive(range, in);
-        EventDispatcher.this.observer.remoteFileRangeReceived(range);
+        EventDispatcher.this.remoteFileRangeReceived(range);
       }
     };
   }
+
+  public void remoteFileRangeReceived(ContentRange range) {
+    this.flush();
+    this.observer.remoteFileRangeReceived(range);
+  }
+
+  /**
+   * Accumulates the byte counts reported for every read or write and forwards them once enough bytes or time have
+   * accumulated, so that observers are not invoked on the I/O hot path. Callers on different threads only contend on a
+   * single atomic add.
+   */
+  abstract static class BatchedCounter {
+    private static final long FLUSH_BYTES = 64 * 1024;
+    private static final long FLUSH_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final AtomicLong pending = new AtomicLong();
+    private volatile long flushedNanos = System.nanoTime();
+
+    void add(long bytes) {
+      if (this.pending.addAndGet(bytes) >= FLUSH_BYTES || System.nanoTime() - this.flushedNanos >= FLUSH_NANOS) {
+        this.flush();
+      }
+    }
+
+    void flush() {
+      final long bytes = this.pending.getAndSet(0);
+      this.flushedNanos = System.nanoTime();
+      if (bytes != 0) {
+        this.flushed(bytes);
+      }
+    }
+
+    abstract void flushed(long bytes);
+  }
 }
@@ -35,9 +35,14 @@ import java.io.InputStreamReader;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
 
 public class Header {
 
+  public static final String SUB_BLOCKS = "Sub-Blocks";
+
   public static Header read(InputStream in) throws IOException {
     String version = null;
     String filename = null;
@@ -48,8 +53,9 @@ public class Header {
     int checksumBytes = 16;
     int rsumBytes = 4;
     boolean seqMatches = false;
-    String url = null;
+    final ImmutableList.Builder<String> urls = ImmutableList.builder();
     String sha1 = null;
+    int[] subBlocks = null;
 
     boolean terminated = false;
     String line;
@@ -80,7 +86,7 @@ public class Header {
       } else if ("Length".equals(name)) {
         try {
           length = Long.parseLong(value);
-          if (length <= 0) {
+          if (length < 0) {
             throw new NumberFormatException();
           }
         } catch (NumberFormatException e) {
@@ -89,7 +95,8 @@ public class Header {
       } else if ("Filename".equals(name)) {
         filename = value;
       } else if ("URL".equals(name)) {
-        url = value;
+        // repeated for mirrors of the same file
+        urls.add(value);
       } else if ("Blocksize".equals(name)) {
         try {
           blocksize = Integer.parseInt(value);
@@ -115,6 +122,24 @@ public class Header {
         } catch (NumberFormatException e) {
           throwInvalidHeaderValue(name, value);
         }
+      } else if (SUB_BLOCKS.equals(name)) {
+        // block size and hash lengths of the second level of checksums following the block checksums
+        try {
+          final String[] split = value.split(",");
+          if (split.length != 4) {
+            throw new NumberFormatException();
+          }
+          subBlocks = new int[4];
+          for (int i = 0; i < 4; i++) {
+            subBlocks[i] = Integer.parseInt(split[i]);
+          }
+          if (subBlocks[0] <= 0 || subBlocks[1] > 2 || subBlocks[1] < 1 || subBlocks[2] < 1 || subBlocks[2] > 4
+              || subBlocks[3] < 3 || subBlocks[3] > 16) {
+            throw new NumberFormatException();
+          }
+        } catch (NumberFormatException e) {
+          throwInvalidHeaderValue(name, value);
+        }
       } else if ("SHA-1".equals(name)) {
         if (value.length() != 40) {
           throwInvalidHeaderValue(name, value);
@@ -149,7 +174,17 @@ public class Header {
     if (sha1 == null) {
       throwMissingHeader("SHA-1");
     }
-    return new Header(version, filename, mtime, blocksize, length, checksumBytes, rsumBytes, seqMatches, url, sha1);
+    if (subBlocks == null) {
+      return new Header(version, filename, mtime, blocksize, length, checksumBytes, rsumBytes, seqMatches,
+          urls.build(), sha1);
+    }
+    if (subBlocks[0] >= blocksize || blocksize % subBlocks[0] != 0) {
+      throw new IllegalArgumentException("Sub-block size " + subBlocks[0] + " does not divide block size " + blocksize);
+    }
+    final Header subBlockHeader = new Header(version, filename, mtime, subBlocks[0], length, subBlocks[3],
+        subBlocks[2], subBlocks[1] == 2, urls.build(), sha1);
+    return new Header(version, filename, mtime, blocksize, length, checksumBytes, rsumBytes, seqMatches,
+        urls.build(), sha1, subBlockHeader);
   }
 
   private static void throwInvalidHeaderValue(String name, String value) {
@@ -168,11 +203,17 @@ public class Header {
   private final int checksumBytes;
   private final int rsumBytes;
   private final boolean seqMatches;
-  private final String url;
+  private final List<String> urls;
   private final String sha1;
+  private final Header subBlockHeader;
+
+  public Header(String version, String filename, Date mtime, int blocksize, long length, int checksumBytes,
+      int rsumBytes, boolean seqMatches, List<String> urls, String sha1) {
+    this(version, filename, mtime, blocksize, length, checksumBytes, rsumBytes, seqMatches, urls, sha1, null);
+  }
 
   public Header(String version, String filename, Date mtime, int blocksize, long length, int checksumBytes,
-      int rsumBytes, boolean seqMatches, String url, String sha1) {
+      int rsumBytes, boolean seqMatches, List<String> urls, String sha1, Header subBlockHeader) {
     this.version = version;
     this.filename = filename;
     this.mtime = mtime;
@@ -181,8 +222,9 @@ public class Header {
     this.checksumBytes = checksumBytes;
     this.rsumBytes = rsumBytes;
     this.seqMatches = seqMatches;
-    this.url = url;
+    this.urls = urls;
     this.sha1 = sha1;
+    this.subBlockHeader = subBlockHeader;
   }
 
   public String getVersion() {
@@ -218,13 +260,28 @@ public class Header {
   }
 
   public String getUrl() {
-    return this.url;
+    return this.urls.isEmpty() ? null : this.urls.get(0);
+  }
+
+  /**
+   * Returns the values of all URL headers in the order listed. Additional URLs refer to mirrors of the first one.
+   */
+  public List<String> getUrls() {
+    return this.urls;
   }
 
   public String getSha1() {
     return this.sha1;
   }
 
+  /**
+   * Returns the header describing the second level of smaller blocks whose checksums follow the block checksums in a
+   * hierarchical control file, or null if the control file has a single level.
+   */
+  public Header getSubBlockHeader() {
+    return this.subBlockHeader;
+  }
+
   public int getNumBlocks() {
     return (int) ((this.length + this.blocksize - 1) / this.blocksize);
   }
@@ -75,11 +75,13 @@ public class ImmutableBlockSum extends BlockSum {
   private final int rsum;
   private final byte[] checksum;
 
-  private volatile Integer hashCode;
+  // computed eagerly rather than boxed on first use, which would take more memory than the checksum itself
+  private final int hashCode;
 
   public ImmutableBlockSum(int rsum, byte[] checksum) {
     this.rsum = rsum;
     this.checksum = checksum;
+    this.hashCode = super.hashCode();
   }
 
   @Override
@@ -99,9 +101,6 @@ public class ImmutableBlockSum extends BlockSum {
 
   @Override
   public int hashCode() {
-    if (this.hashCode == null) {
-      this.hashCode = super.hashCode();
-    }
     return this.hashCode;
   }
 }
@@ -0,0 +1,543 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ * disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.collect.ImmutableList;
+import com.salesforce.zsync.http.ContentRange;
+import com.salesforce.zsync.http.Credentials;
+import com.salesforce.zsync.internal.util.TransferListener;
+import com.salesforce.zsync.transport.Cancellation;
+import com.salesforce.zsync.transport.RangeReceiver;
+import com.salesforce.zsync.transport.ResponseType;
+import com.salesforce.zsync.transport.Transport;
+import com.salesforce.zsync.transport.TransportListener;
+
+/**
+ * Retrieves ranges of the remote file from several mirrors in parallel. The ranges are split into block aligned chunks,
+ * which one worker per mirror takes from a shared queue. Each take is sized so that the request lasts about two seconds
+ * at the throughput observed for the mirror, but is limited to the mirror's share of the combined throughput of all
+ * mirrors, so that faster mirrors retrieve a larger part of the file. A mirror that fails is not used any further and
+ * the chunks it did not deliver are returned to the queue for the remaining mirrors. Retrieval fails with the last
+ * error once all mirrors have failed.
+ * <p>
+ * Ranges are streamed into the output file by each worker directly, without holding any lock, so transfers and writes
+ * proceed in parallel without buffering. Observer events are serialized under a lock; byte counts are accumulated and
+ * only forwarded under the lock in batches, so that workers do not contend on every read. Overlapping requests are
+ * reported to the observer as a single download.
+ * <p>
+ * Mirrors for which the transport reports a concurrency above one, such as hosts serving HTTP/2, are retrieved with
+ * that many concurrent workers, each requesting a single range at a time. Over HTTP/2 the requests share one
+ * connection and avoid multipart responses altogether.
+ *
+ * @author bbusjaeger
+ */
+public class MirrorRangeRetriever {
+
+  static final long CHUNK_SIZE = 1024 * 1024;
+  static final long MIN_TAKE_BYTES = 256 * 1024;
+  static final long MAX_TAKE_BYTES = 16 * 1024 * 1024;
+  static final long TARGET_TAKE_MILLIS = 2000;
+  private static final double EWMA_WEIGHT = 0.3;
+  // number of bytes transferred or written after which the counts are forwarded to the observer
+  private static final long FLUSH_BYTES = 64 * 1024;
+
+  private static class Mirror {
+    final URI uri;
+    final int streams;
+    // guarded by lock
+    boolean failed;
+    // throughput of a single request
+    double bytesPerMilli = -1;
+
+    Mirror(URI uri, int streams) {
+      this.uri = uri;
+      this.streams = streams;
+    }
+  }
+
+  private final Transport transport;
+  private final List<Mirror> mirrors;
+  private final Map<String, ? extends Credentials> credentials;
+  private final OutputFileWriter outputFileWriter;
+  private final EventDispatcher events;
+  private final TransportListener listener;
+  private final Executor executor;
+  private final Cancellation cancellation;
+  private final long chunkSize;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final RangeReceiver writingReceiver = new WritingReceiver();
+  private final AtomicLong bytesTransferred = new AtomicLong();
+  private final AtomicLong bytesWritten = new AtomicLong();
+  // guarded by lock
+  private final Deque<ContentRange> chunks = new ArrayDeque<>();
+  private long queuedBytes;
+  private IOException failure;
+  private RuntimeException fatal;
+  private int activeTransfers;
+  private boolean transferStarted;
+
+  /**
+   * @param transport transport to issue range requests with
+   * @param uris locations of the remote file
+   * @param credentials
+   * @param outputFileWriter writer to write the retrieved ranges to
+   * @param events dispatcher to notify of range requests and received ranges
+   * @param executor executor to run the workers for all but the first mirror on
+   * @param cancellation optional cancellation to abort all requests with
+   */
+  public MirrorRangeRetriever(Transport transport, List<URI> uris, Map<String, ? extends Credentials> credentials,
+      OutputFileWriter outputFileWriter, EventDispatcher events, Executor executor, Cancellation cancellation) {
+    this.transport = transport;
+    final ImmutableList.Builder<Mirror> mirrors = ImmutableList.builder();
+    for (URI uri : uris) {
+      mirrors.add(new Mirror(uri, max(1, transport.getConcurrency(uri))));
+    }
+    this.mirrors = mirrors.build();
+    this.credentials = credentials;
+    this.outputFileWriter = outputFileWriter;
+    this.events = events;
+    this.listener = events.getRemoteFileDownloadListener();
+    this.executor = executor;
+    this.cancellation = cancellation == null ? new Cancellation() : cancellation;
+    final int blockSize = outputFileWriter.getBlockSize();
+    this.chunkSize = max(blockSize, CHUNK_SIZE / blockSize * blockSize);
+  }
+
+  /**
+   * Retrieves the given block aligned ranges, returning once all of them have been received.
+   *
+   * @param ranges
+   * @throws IOException if all mirrors failed, with the last failure, or retrieval was interrupted
+   */
+  public void retrieve(List<ContentRange> ranges) throws IOException {
+    this.lock.lock();
+    try {
+      this.enqueue(ranges, false);
+    } finally {
+      this.lock.unlock();
+    }
+    while (true) {
+      final List<Mirror> available = new ArrayList<>(this.mirrors.size());
+      final IOException failure;
+      this.lock.lock();
+      try {
+        if (this.fatal != null) {
+          throw this.fatal;
+        }
+        if (this.chunks.isEmpty()) {
+          return;
+        }
+        for (Mirror mirror : this.mirrors) {
+          if (!mirror.failed) {
+            available.add(mirror);
+          }
+        }
+        failure = this.failure;
+      } finally {
+        this.lock.unlock();
+      }
+      if (available.isEmpty()) {
+        throw failure;
+      }
+      this.round(available);
+    }
+  }
+
+  /**
+   * Runs one worker per mirror, or per stream of multiplexed mirrors, until the queue is drained or the mirrors fail.
+   * The first worker runs on the calling thread, so that retrieval proceeds even if the executor does not get to the
+   * others; those are skipped then.
+   */
+  private void round(List<Mirror> available) throws IOException {
+    final List<Worker> workers = new ArrayList<>(available.size());
+    for (Mirror mirror : available) {
+      for (int i = 0; i < mirror.streams; i++) {
+        workers.add(new Worker(mirror, this.cancellation.fork()));
+      }
+    }
+    for (Worker worker : workers.subList(1, workers.size())) {
+      try {
+        this.executor.execute(worker);
+      } catch (RejectedExecutionException e) {
+        // left to be claimed below
+      }
+    }
+    workers.get(0).run();
+    for (Worker worker : workers.subList(1, workers.size())) {
+      if (worker.claimed.compareAndSet(false, true)) {
+        worker.cancellation.release();
+      } else {
+        try {
+          worker.done.await();
+        } catch (InterruptedException e) {
+          for (Worker w : workers) {
+            w.cancellation.cancel();
+          }
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted waiting for range requests to complete");
+        }
+      }
+    }
+    this.lock.lock();
+    try {
+      this.flush();
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  private class Worker implements Runnable {
+    final Mirror mirror;
+    final Cancellation cancellation;
+    final AtomicBoolean claimed = new AtomicBoolean();
+    final CountDownLatch done = new CountDownLatch(1);
+
+    Worker(Mirror mirror, Cancellation cancellation) {
+      this.mirror = mirror;
+      this.cancellation = cancellation;
+    }
+
+    @Override
+    public void run() {
+      if (!this.claimed.compareAndSet(false, true)) {
+        return;
+      }
+      try {
+        MirrorRangeRetriever.this.fetch(this.mirror, this.cancellation);
+      } finally {
+        this.cancellation.release();
+        this.done.countDown();
+      }
+    }
+  }
+
+  private void fetch(Mirror mirror, Cancellation cancellation) {
+    List<ContentRange> ranges;
+    while (!(ranges = this.take(mirror)).isEmpty()) {
+      final long start = System.nanoTime();
+      try {
+        this.transport.getRanges(mirror.uri, ranges, this.credentials, this.writingReceiver,
+            new MergingListener(), cancellation);
+      } catch (IOException e) {
+        this.failed(mirror, ranges, e);
+        return;
+      } catch (RuntimeException e) {
+        this.lock.lock();
+        try {
+          this.fatal = e;
+        } finally {
+          this.lock.unlock();
+        }
+        return;
+      }
+      this.completed(mirror, length(ranges), System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Takes the next chunks for the given mirror off the queue, merging adjacent chunks into a single range. Takes for
+   * multiplexed mirrors end at the first gap, so that each request is for a single range.
+   */
+  private List<ContentRange> take(Mirror mirror) {
+    this.lock.lock();
+    try {
+      if (this.fatal != null || mirror.failed) {
+        return ImmutableList.of();
+      }
+      long budget = mirror.bytesPerMilli < 0 ? MIN_TAKE_BYTES
+          : min(MAX_TAKE_BYTES, max(MIN_TAKE_BYTES, (long) (mirror.bytesPerMilli * TARGET_TAKE_MILLIS)));
+      budget = min(budget, max(this.chunkSize, (long) (this.queuedBytes * this.share(mirror))));
+
+      final ImmutableList.Builder<ContentRange> ranges = ImmutableList.builder();
+      ContentRange current = null;
+      long taken = 0;
+      while (!this.chunks.isEmpty() && (taken == 0 || taken + this.chunks.peekFirst().length() <= budget)) {
+        if (mirror.streams > 1 && current != null && current.last() + 1 != this.chunks.peekFirst().first()) {
+          break;
+        }
+        final ContentRange chunk = this.chunks.pollFirst();
+        taken += chunk.length();
+        if (current != null && current.last() + 1 == chunk.first()) {
+          current = new ContentRange(current.first(), chunk.last());
+        } else {
+          if (current != null) {
+            ranges.add(current);
+          }
+          current = chunk;
+        }
+      }
+      if (current != null) {
+        ranges.add(current);
+      }
+      this.queuedBytes -= taken;
+      return ranges.build();
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Fraction of the combined throughput of the available mirrors contributed by a single worker of the given mirror.
+   * Mirrors without measurements yet are assumed to be as fast as the average.
+   */
+  private double share(Mirror mirror) {
+    int available = 0;
+    int measured = 0;
+    double total = 0;
+    for (Mirror m : this.mirrors) {
+      if (!m.failed) {
+        available += m.streams;
+        if (m.bytesPerMilli > 0) {
+          measured += m.streams;
+          total += m.bytesPerMilli * m.streams;
+        }
+      }
+    }
+    if (mirror.bytesPerMilli <= 0 || measured == 0) {
+      return 1.0 / available;
+    }
+    // share of a single stream, since each worker takes for itself
+    final double average = total / measured;
+    return mirror.bytesPerMilli / (total + (available - measured) * average);
+  }
+
+  private void completed(Mirror mirror, long bytes, long nanos) {
+    final double bytesPerMilli = bytes / max(1.0, nanos / 1e6);
+    this.lock.lock();
+    try {
+      mirror.bytesPerMilli = mirror.bytesPerMilli < 0 ? bytesPerMilli
+          : EWMA_WEIGHT * bytesPerMilli + (1 - EWMA_WEIGHT) * mirror.bytesPerMilli;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Retires the mirror and returns the blocks it did not deliver to the front of the queue. A range that failed part
+   * way has its blocks written completely kept.
+   */
+  private void failed(Mirror mirror, List<ContentRange> ranges, IOException e) {
+    final OutputFileWriter writer = this.outputFileWriter;
+    final int blockSize = writer.getBlockSize();
+    final List<ContentRange> missing = new ArrayList<>(ranges.size());
+    for (ContentRange range : ranges) {
+      long start = -1;
+      for (long first = range.first(); first <= range.last(); first += blockSize) {
+        final boolean completed = writer.isCompleted((int) (first / blockSize));
+        if (!completed && start < 0) {
+          start = first;
+        } else if (completed && start >= 0) {
+          missing.add(new ContentRange(start, first - 1));
+          start = -1;
+        }
+      }
+      if (start >= 0) {
+        missing.add(new ContentRange(start, range.last()));
+      }
+    }
+    this.lock.lock();
+    try {
+      mirror.failed = true;
+      this.failure = e;
+      this.enqueue(missing, true);
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  private void enqueue(List<ContentRange> ranges, boolean front) {
+    final List<ContentRange> split = new ArrayList<>();
+    for (ContentRange range : ranges) {
+      for (long first = range.first(); first <= range.last(); first += this.chunkSize) {
+        split.add(new ContentRange(first, min(range.last(), first + this.chunkSize - 1)));
+      }
+      this.queuedBytes += range.length();
+    }
+    if (front) {
+      for (int i = split.size() - 1; i >= 0; i--) {
+        this.chunks.addFirst(split.get(i));
+      }
+    } else {
+      this.chunks.addAll(split);
+    }
+  }
+
+  private static long length(List<ContentRange> ranges) {
+    long length = 0;
+    for (ContentRange range : ranges) {
+      length += range.length();
+    }
+    return length;
+  }
+
+  /**
+   * Adds the given number of bytes to the given counter, forwarding the counts under the lock once enough have
+   * accumulated.
+   */
+  private void count(AtomicLong counter, long bytes) {
+    if (counter.addAndGet(bytes) >= FLUSH_BYTES) {
+      this.lock.lock();
+      try {
+        this.flush();
+      } finally {
+        this.lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Forwards the accumulated byte counts, must be called under the lock before forwarding any other event.
+   */
+  private void flush() {
+    final long transferred = this.bytesTransferred.getAndSet(0);
+    if (transferred > 0) {
+      this.listener.transferred(transferred);
+    }
+    final long written = this.bytesWritten.getAndSet(0);
+    if (written > 0) {
+      this.outputFileWriter.getListener().transferred(written);
+    }
+  }
+
+  /**
+   * Writes each range to the output file on the calling worker's thread and reports it under the lock once written.
+   */
+  private class WritingReceiver implements RangeReceiver {
+    private final TransferListener written = new TransferListener() {
+      @Override
+      public void transferred(long bytes) {
+        MirrorRangeRetriever.this.count(MirrorRangeRetriever.this.bytesWritten, bytes);
+      }
+
+      @Override
+      public void close() {}
+    };
+
+    @Override
+    public void receive(ContentRange range, ReadableByteChannel in) throws IOException {
+      final MirrorRangeRetriever r = MirrorRangeRetriever.this;
+      r.outputFileWriter.receive(range, in, this.written);
+      r.lock.lock();
+      try {
+        r.flush();
+        r.events.remoteFileRangeReceived(range);
+      } finally {
+        r.lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Forwards events under the lock, merging overlapping requests into one transfer. Each request of the transport call
+   * the listener is created for is still reported individually.
+   */
+  private class MergingListener implements TransportListener {
+    private final RequestTimer timer = new RequestTimer();
+
+    @Override
+    public void planned(List<ContentRange> ranges, int maxRanges, long maxBytes) {
+      final MirrorRangeRetriever r = MirrorRangeRetriever.this;
+      r.lock.lock();
+      try {
+        r.flush();
+        r.listener.planned(ranges, maxRanges, maxBytes);
+      } finally {
+        r.lock.unlock();
+      }
+    }
+
+    @Override
+    public void initiating(URI uri, List<ContentRange> ranges) {
+      final MirrorRangeRetriever r = MirrorRangeRetriever.this;
+      this.timer.initiating(uri);
+      r.lock.lock();
+      try {
+        r.flush();
+        if (r.activeTransfers++ == 0) {
+          r.transferStarted = false;
+          r.listener.initiating(uri, ranges);
+        }
+      } finally {
+        r.lock.unlock();
+      }
+    }
+
+    @Override
+    public void started(URI uri, ResponseType type, long length) {
+      final MirrorRangeRetriever r = MirrorRangeRetriever.this;
+      this.timer.started(type);
+      r.lock.lock();
+      try {
+        r.flush();
+        if (!r.transferStarted) {
+          r.transferStarted = true;
+          r.listener.started(uri, type, length);
+        }
+      } finally {
+        r.lock.unlock();
+      }
+    }
+
+    @Override
+    public void transferred(long bytes) {
+      this.timer.transferred(bytes);
+      MirrorRangeRetriever.this.count(MirrorRangeRetriever.this.bytesTransferred, bytes);
+    }
+
+    @Override
+    public void completed() {
+      final MirrorRangeRetriever r = MirrorRangeRetriever.this;
+      r.lock.lock();
+      try {
+        r.flush();
+        this.timer.completed(r.events);
+        if (--r.activeTransfers == 0) {
+          r.listener.completed();
+        }
+      } finally {
+        r.lock.unlock();
+      }
+    }
+  }
+}
@@ -34,24 +34,27 @@ import static java.nio.file.attribute.FileTime.fromMillis;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.channels.Channels;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ListMultimap;
 import com.salesforce.zsync.http.ContentRange;
+import com.salesforce.zsync.internal.util.FlightRecorderEvents;
 import com.salesforce.zsync.internal.util.ReadableByteBuffer;
 import com.salesforce.zsync.internal.util.TransferListener;
 import com.salesforce.zsync.internal.util.ZsyncUtil;
-import com.salesforce.zsync.internal.util.HttpClient.RangeReceiver;
+import com.salesforce.zsync.transport.RangeReceiver;
 import com.salesforce.zsync.internal.util.TransferListener.ResourceTransferListener;
 
 public class OutputFileWriter implements RangeReceiver, Closeable {
@@ -67,14 +70,36 @@ public class OutputFileWriter implements RangeReceiver, Closeable {
   private final long mtime;
   private final List<BlockSum> blockSums;
   private final ListMultimap<BlockSum, Integer> positions;
-  // mutable state
+  // mutable state, channel is null if blocks are only tracked in memory
   private final FileChannel channel;
   private final boolean[] completed;
   private int blocksRemaining;
   private TransferListener listener;
+  // guards updates of the completed blocks and the position of the channel by concurrent receives
+  private final ReentrantLock lock = new ReentrantLock();
 
   public OutputFileWriter(Path path, ControlFile controlFile, ResourceTransferListener<Path> listener)
       throws IOException {
+    this(path, controlFile, listener, true);
+  }
+
+  /**
+   * Creates a writer that only tracks which blocks of the given output file are completed, without creating a part
+   * file or writing any content. Closing it does not validate or move the output file.
+   *
+   * @param path
+   * @param controlFile
+   * @param listener
+   * @return
+   * @throws IOException
+   */
+  public static OutputFileWriter inMemory(Path path, ControlFile controlFile, ResourceTransferListener<Path> listener)
+      throws IOException {
+    return new OutputFileWriter(path, controlFile, listener, false);
+  }
+
+  private OutputFileWriter(Path path, ControlFile controlFile, ResourceTransferListener<Path> listener, boolean write)
+      throws IOException {
     this.path = path;
     this.listener = listener;
 
@@ -87,18 +112,17 @@ public class OutputFileWriter implements RangeReceiver, Closeable {
 
     listener.start(this.path, this.length);
 
-    final String tmpName = path.getFileName().toString() + ".part";
-    final Path parent = path.getParent();
-    if (parent != null) {
-      if (!Files.isDirectory(parent)) {
-        Files.createDirectories(parent);
-      }
-      this.tempPath = parent.resolve(tmpName);
+    if (!write) {
+      this.tempPath = null;
+      this.channel = null;
     } else {
-      this.tempPath = Paths.get(tmpName);
+      this.tempPath = tempPath(path);
+      this.channel = FileChannel.open(this.tempPath, CREATE, WRITE, READ);
+      // transferFrom does not write past the end of the file, so extend it up front for ranges received out of order
+      if (this.length > 0 && this.channel.size() < this.length) {
+        this.channel.write(ByteBuffer.allocate(1), this.length - 1);
+      }
     }
-    this.channel = FileChannel.open(this.tempPath, CREATE, WRITE, READ);
-
 
     this.blockSums = ImmutableList.copyOf(controlFile.getBlockSums());
     this.positions = indexPositions(this.blockSums);
@@ -106,14 +130,71 @@ public class OutputFileWriter implements RangeReceiver, Closeable {
     this.blocksRemaining = this.completed.length;
   }
 
+  private OutputFileWriter(OutputFileWriter parent, ControlFile subBlockControlFile) {
+    this.path = parent.path;
+    this.tempPath = parent.tempPath;
+    this.channel = parent.channel;
+    this.listener = parent.listener;
+    this.sha1 = parent.sha1;
+    this.mtime = parent.mtime;
+    this.length = parent.length;
+    this.blockSize = subBlockControlFile.getHeader().getBlocksize();
+    this.lastBlockSize = (int) (this.length % this.blockSize == 0 ? this.blockSize : this.length % this.blockSize);
+
+    // sub-blocks of completed blocks have no checksums
+    this.blockSums = Collections.unmodifiableList(new ArrayList<BlockSum>(subBlockControlFile.getBlockSums()));
+    this.positions = indexPositions(this.blockSums);
+    this.completed = new boolean[this.blockSums.size()];
+    this.blocksRemaining = this.completed.length;
+    final int subBlocks = parent.blockSize / this.blockSize;
+    for (int i = 0; i < parent.completed.length; i++) {
+      if (parent.completed[i]) {
+        for (int j = i * subBlocks; j < Math.min((i + 1) * subBlocks, this.completed.length); j++) {
+          this.completed[j] = true;
+          this.blocksRemaining--;
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns a writer for the same output file at the granularity of the sub-blocks of a hierarchical control file. The
+   * sub-blocks of the blocks completed by this writer are completed already. The returned writer shares the part file
+   * with this writer and must not be closed; closing this writer validates and moves the content written by either.
+   *
+   * @param subBlockControlFile
+   * @return
+   */
+  public OutputFileWriter refine(ControlFile subBlockControlFile) {
+    return new OutputFileWriter(this, subBlockControlFile);
+  }
+
+  private static Path tempPath(Path path) throws IOException {
+    final String tmpName = path.getFileName().toString() + ".part";
+    final Path parent = path.getParent();
+    if (parent != null) {
+      if (!Files.isDirectory(parent)) {
+        Files.createDirectories(parent);
+      }
+      return parent.resolve(tmpName);
+    }
+    return Paths.get(tmpName);
+  }
+
   static ListMultimap<BlockSum, Integer> indexPositions(List<BlockSum> blockSums) {
     final ImmutableListMultimap.Builder<BlockSum, Integer> b = ImmutableListMultimap.builder();
     for (int i = 0; i < blockSums.size(); i++) {
-      b.put(blockSums.get(i), i);
+      if (blockSums.get(i) != null) {
+        b.put(blockSums.get(i), i);
+      }
     }
     return b.build();
   }
 
+  public int getBlockSize() {
+    return this.blockSize;
+  }
+
   public int getNumBlocks() {
     return this.blockSums.size();
   }
@@ -136,8 +217,10 @@ public class OutputFileWriter implements RangeReceiver, Closeable {
     }
     final int l = position == this.completed.length - 1 ? this.lastBlockSize : this.blockSize;
     try {
-      this.channel.position(position * this.blockSize);
-      data.write(this.channel, offset, l);
+      if (this.channel != null) {
+        this.channel.position(position * this.blockSize);
+        data.write(this.channel, offset, l);
+      }
       this.listener.transferred(l);
     } catch (IOException e) {
       throw new RuntimeException("Failed to read block at position " + position, e);
@@ -174,8 +257,24 @@ public class OutputFileWriter implements RangeReceiver, Closeable {
     return this.blocksRemaining == 0;
   }
 
+  public boolean isCompleted(int position) {
+    return this.completed[position];
+  }
+
   @Override
-  public void receive(ContentRange range, InputStream in) throws IOException {
+  public void receive(ContentRange range, ReadableByteChannel src) throws IOException {
+    this.receive(range, src, this.listener);
+  }
+
+  TransferListener getListener() {
+    return this.listener;
+  }
+
+  /**
+   * Same as {@link #receive(ContentRange, ReadableByteChannel)}, but reports the bytes written to the given listener.
+   * May be called concurrently for disjoint ranges.
+   */
+  void receive(ContentRange range, ReadableByteChannel src, TransferListener listener) throws IOException {
     if (range.first() % this.blockSize != 0) {
       throw new RuntimeException("Invalid range received: first byte not block aligned");
     }
@@ -183,39 +282,97 @@ public class OutputFileWriter implements RangeReceiver, Closeable {
       throw new RuntimeException("Invalid range received: last byte not block aligned");
     }
 
-    final ReadableByteChannel src = Channels.newChannel(in);
     final long length = range.length();
+    // copy directly between the files if the range is read from a local file, without passing through user space
+    final FileChannel file = src instanceof FileChannel ? (FileChannel) src : null;
+    final long srcPosition = file == null ? 0 : file.position();
     long remaining = length;
-    do {
-      long transferred = this.channel.transferFrom(src, range.first(), length);
-      remaining -= transferred;
-      this.listener.transferred(transferred);
-    } while (remaining > 0);
-
-    final int first = (int) (range.first() / this.blockSize);
-    final int last =
-        (int) (range.last() + 1 == this.length ? this.completed.length - 1 : (range.last() + 1) / this.blockSize - 1);
-    for (int i = first; i <= last; i++) {
-      if (!this.completed[i]) {
-        this.blocksRemaining--;
-        this.completed[i] = true;
+    try {
+      do {
+        final long offset = length - remaining;
+        final long transferred;
+        if (file == null) {
+          transferred = this.channel.transferFrom(src, range.first() + offset, remaining);
+        } else {
+          // transferTo writes at the position of the channel, which concurrent receives must not move in between
+          this.lock.lock();
+          try {
+            this.channel.position(range.first() + offset);
+            transferred = file.transferTo(srcPosition + offset, remaining, this.channel);
+          } finally {
+            this.lock.unlock();
+          }
+        }
+        if (transferred == 0) {
+          throw new IOException("Range " + range + " ended with " + remaining + " bytes remaining");
+        }
+        remaining -= transferred;
+        listener.transferred(transferred);
+      } while (remaining > 0);
+    } finally {
+      // if the transfer failed part way, keep the blocks written completely, so that only the rest is requested again
+      this.complete(range.first(), range.first() + length - remaining);
+    }
+  }
+
+  /**
+   * Marks the blocks fully contained in the given block-aligned byte range [start, end) as completed.
+   */
+  private void complete(long start, long end) {
+    final int first = (int) (start / this.blockSize);
+    final int last = (int) (end == this.length ? this.completed.length : end / this.blockSize);
+    this.lock.lock();
+    try {
+      for (int i = first; i < last; i++) {
+        if (!this.completed[i]) {
+          this.blocksRemaining--;
+          this.completed[i] = true;
+        }
       }
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Releases the output file without validating it or moving it into place and deletes the partially written content.
+   *
+   * @throws IOException
+   */
+  public void abort() throws IOException {
+    if (this.channel == null) {
+      this.listener.close();
+      return;
+    }
+    try {
+      this.channel.close();
+    } finally {
+      this.listener.close();
+      Files.deleteIfExists(this.tempPath);
     }
   }
 
   @Override
   public void close() throws IOException {
+    if (this.channel == null) {
+      this.listener.close();
+      return;
+    }
     try {
+      final FlightRecorderEvents.Event verify = FlightRecorderEvents.OUTPUT_FILE_VERIFY.begin();
       this.channel.position(0); // reset channel to beginning to compute full SHA1
       String calculatedSha1 = ZsyncUtil.computeSha1(this.channel);
       if (!this.sha1.equals(calculatedSha1)) {
         throw new ChecksumValidationIOException(this.sha1, calculatedSha1);
       }
+      verify.set(0, this.path.toString()).set(1, this.length).commit();
+      final FlightRecorderEvents.Event move = FlightRecorderEvents.OUTPUT_FILE_MOVE.begin();
       try {
         Files.move(this.tempPath, this.path, REPLACE_EXISTING, ATOMIC_MOVE);
       } catch (AtomicMoveNotSupportedException e) {
         Files.move(this.tempPath, this.path, REPLACE_EXISTING);
       }
+      move.set(0, this.path.toString()).commit();
       Files.setLastModifiedTime(this.path, fromMillis(this.mtime));
     } finally {
       this.channel.close();
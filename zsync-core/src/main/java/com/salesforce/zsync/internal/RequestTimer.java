@@ -0,0 +1,73 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal;
+
+import java.net.URI;
+
+import com.salesforce.zsync.transport.ResponseType;
+
+/**
+ * Measures the requests of a single transport call from its listener events, reporting each one to the event
+ * dispatcher as it completes. Calls to a timer must not overlap.
+ *
+ * @author bbusjaeger
+ */
+class RequestTimer {
+
+  private URI uri;
+  private ResponseType type;
+  private long initiatedNanos;
+  private long startedNanos;
+  private long bytes;
+
+  void initiating(URI uri) {
+    this.uri = uri;
+    this.type = null;
+    this.initiatedNanos = System.nanoTime();
+    this.startedNanos = 0;
+    this.bytes = 0;
+  }
+
+  void started(ResponseType type) {
+    this.type = type;
+    this.startedNanos = System.nanoTime();
+  }
+
+  void transferred(long bytes) {
+    this.bytes += bytes;
+  }
+
+  void completed(EventDispatcher events) {
+    final long now = System.nanoTime();
+    if (this.type == null) {
+      events.remoteFileRequestCompleted(this.uri, null, now - this.initiatedNanos, 0, this.bytes);
+    } else {
+      events.remoteFileRequestCompleted(this.uri, this.type, this.startedNanos - this.initiatedNanos,
+          now - this.startedNanos, this.bytes);
+    }
+    this.uri = null;
+  }
+}
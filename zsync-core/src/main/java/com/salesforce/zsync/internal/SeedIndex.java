@@ -0,0 +1,516 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.List;
+
+import com.salesforce.zsync.internal.util.ReadableByteBuffer;
+import com.salesforce.zsync.internal.util.RollingBuffer;
+import com.salesforce.zsync.internal.util.TransferListener;
+import com.salesforce.zsync.internal.util.ZeroPaddedReadableByteChannel;
+import com.salesforce.zsync.internal.util.ZsyncUtil;
+
+/**
+ * Block index over a local input file that lets repeated zsync runs against the same seed avoid a full rolling scan.
+ * The index holds the full rsum and MD4 of every block-aligned block in the seed plus a bitmap of the lower bits of the
+ * rolling sum at every byte offset. Aligned blocks can then be matched by lookup alone, and the bitmap tells whether a
+ * rolling scan could possibly match any of the blocks that are still missing. The bitmap is sized from the length of
+ * the seed, but is capped, so it gives false positives and on large seeds may become too dense to rule out a scan; the
+ * index then only saves the scan if the aligned blocks complete the target.
+ * <p>
+ * The index is persisted next to the seed and is rebuilt whenever the size or last modified time of the seed no longer
+ * agree with the values recorded in the index. Since those do not reliably detect every modification, blocks looked up
+ * in the index are verified against the control file before they are written.
+ *
+ * @author bbusjaeger
+ */
+public class SeedIndex {
+
+  private static final int MAGIC = 0x5a534932; // "ZSI2"
+  private static final int CHECKSUM_LENGTH = 16;
+  private static final int MIN_BITMAP_BITS = 16;
+  private static final int MAX_BITMAP_BITS = 28;
+  private static final int MAX_PROBE_BITS = 16;
+  private static final int HEADER_LENGTH = 4 + 8 + 8 + 4 + 4 + 4;
+  private static final int SUM_LENGTH = 4 + CHECKSUM_LENGTH;
+  // block sums are read and written in chunks of this many blocks
+  private static final int SUMS_PER_CHUNK = 4096;
+  // the checksums of all blocks are held in a single array
+  private static final long MAX_BLOCKS = (Integer.MAX_VALUE - 8) / CHECKSUM_LENGTH;
+
+  /**
+   * Returns the location of the index file for the given seed and block size
+   *
+   * @param seed
+   * @param blockSize
+   * @return
+   */
+  public static Path getIndexFile(Path seed, int blockSize) {
+    return seed.resolveSibling(seed.getFileName() + "." + blockSize + ".zsindex");
+  }
+
+  /**
+   * Whether a seed of the given size can be indexed with the given block size. The index of a larger seed would not fit
+   * in memory, so it has to be scanned instead.
+   *
+   * @param size
+   * @param blockSize
+   * @return
+   */
+  public static boolean isIndexable(long size, int blockSize) {
+    return numBlocks(size, blockSize) <= MAX_BLOCKS;
+  }
+
+  /**
+   * Loads the index for the given seed and block size if a valid one exists, otherwise builds a new index by reading
+   * the seed and attempts to persist it for subsequent runs.
+   *
+   * @param seed
+   * @param blockSize
+   * @return
+   * @throws IOException
+   * @throws IllegalArgumentException if the seed is not {@link #isIndexable(long, int) indexable}
+   */
+  public static SeedIndex open(Path seed, int blockSize) throws IOException {
+    final BasicFileAttributes attributes = Files.readAttributes(seed, BasicFileAttributes.class);
+    final long size = attributes.size();
+    if (!isIndexable(size, blockSize)) {
+      throw new IllegalArgumentException("Seed " + seed + " too large to index with block size " + blockSize);
+    }
+    final long mtime = attributes.lastModifiedTime().toMillis();
+    final Path indexFile = getIndexFile(seed, blockSize);
+    final SeedIndex existing = read(indexFile, size, mtime, blockSize);
+    if (existing != null) {
+      return existing;
+    }
+    final SeedIndex index;
+    try (final FileChannel channel = FileChannel.open(seed)) {
+      index = build(channel, size, mtime, blockSize);
+    }
+    try {
+      index.write(indexFile);
+    } catch (IOException e) {
+      // the index is only an optimization: if the seed's directory is not writable, use it in memory
+    }
+    return index;
+  }
+
+  /**
+   * Reads the index from the given file. Returns null if the file does not exist or was built for a different version
+   * of the seed.
+   */
+  static SeedIndex read(Path indexFile, long size, long mtime, int blockSize) throws IOException {
+    try (final FileChannel channel = FileChannel.open(indexFile)) {
+      final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+      readFully(channel, header);
+      if (header.getInt() != MAGIC || header.getLong() != size || header.getLong() != mtime
+          || header.getInt() != blockSize) {
+        return null;
+      }
+      final int numBlocks = header.getInt();
+      final int bitmapBits = header.getInt();
+      if (numBlocks != numBlocks(size, blockSize) || bitmapBits < MIN_BITMAP_BITS || bitmapBits > MAX_BITMAP_BITS) {
+        return null;
+      }
+      final int[] rsums = new int[numBlocks];
+      final byte[] checksums = new byte[numBlocks * CHECKSUM_LENGTH];
+      final ByteBuffer sums = ByteBuffer.allocate(Math.min(numBlocks, SUMS_PER_CHUNK) * SUM_LENGTH);
+      sums.limit(0);
+      for (int i = 0; i < numBlocks; i++) {
+        if (!sums.hasRemaining()) {
+          sums.clear().limit(Math.min(numBlocks - i, SUMS_PER_CHUNK) * SUM_LENGTH);
+          readFully(channel, sums);
+        }
+        rsums[i] = sums.getInt();
+        sums.get(checksums, i * CHECKSUM_LENGTH, CHECKSUM_LENGTH);
+      }
+      final ByteBuffer bitmap = ByteBuffer.allocate((1 << bitmapBits) / 8);
+      readFully(channel, bitmap);
+      final long[] rolling = new long[bitmap.capacity() / 8];
+      bitmap.asLongBuffer().get(rolling);
+      return new SeedIndex(size, mtime, blockSize, rsums, checksums, bitmapBits, rolling);
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException e) {
+      // truncated or otherwise corrupt index: rebuild
+      return null;
+    }
+  }
+
+  /**
+   * Builds the index by reading the given channel once. The content is zero padded the same way {@link BlockMatcher}s
+   * see it, so that the recorded rolling sums are a superset of the ones a rolling scan would compute. The bitmap has
+   * roughly eight bits per rolling sum, within bounds.
+   */
+  static SeedIndex build(ReadableByteChannel channel, long size, long mtime, int blockSize) throws IOException {
+    final long paddedSize = paddedSize(size, blockSize);
+    final int numBlocks = (int) (paddedSize / blockSize);
+    final int[] rsums = new int[numBlocks];
+    final byte[] checksums = new byte[numBlocks * CHECKSUM_LENGTH];
+    final int bitmapBits = bitmapBits(paddedSize);
+    final int bitmapMask = (1 << bitmapBits) - 1;
+    final long[] rolling = new long[(1 << bitmapBits) / 64];
+
+    final ReadableByteChannel c = new ZeroPaddedReadableByteChannel(channel, (int) (paddedSize - size));
+    final RollingBuffer buffer = new RollingBuffer(c, blockSize, 16 * blockSize);
+    final Rsum rsum = new Rsum(4, blockSize);
+    final Checksum checksum = new Checksum(ZsyncUtil.newMD4(), CHECKSUM_LENGTH);
+    rsum.init(buffer);
+    for (long offset = 0;; offset++) {
+      set(rolling, rsum.toInt() & bitmapMask);
+      if (offset % blockSize == 0) {
+        final int block = (int) (offset / blockSize);
+        rsums[block] = rsum.toInt();
+        checksum.setChecksum(buffer);
+        System.arraycopy(checksum.getBytes(), 0, checksums, block * CHECKSUM_LENGTH, CHECKSUM_LENGTH);
+      }
+      final byte first = buffer.get(0);
+      if (!buffer.advance(1)) {
+        break;
+      }
+      rsum.update(first, buffer.get(buffer.length() - 1));
+    }
+    return new SeedIndex(size, mtime, blockSize, rsums, checksums, bitmapBits, rolling);
+  }
+
+  private static long paddedSize(long size, int blockSize) {
+    if (size < 2L * blockSize) {
+      return 2L * blockSize;
+    }
+    return size % blockSize == 0 ? size : size + blockSize - size % blockSize;
+  }
+
+  private static long numBlocks(long size, int blockSize) {
+    return paddedSize(size, blockSize) / blockSize;
+  }
+
+  private static int bitmapBits(long windows) {
+    final int bits = 64 - Long.numberOfLeadingZeros(windows) + 3;
+    return Math.max(MIN_BITMAP_BITS, Math.min(MAX_BITMAP_BITS, bits));
+  }
+
+  private static void set(long[] bitmap, int bit) {
+    bitmap[bit >>> 6] |= 1L << bit;
+  }
+
+  private static boolean isSet(long[] bitmap, int bit) {
+    return (bitmap[bit >>> 6] & (1L << bit)) != 0;
+  }
+
+  private static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) == -1) {
+        throw new IOException("Premature end of index file");
+      }
+    }
+    buffer.flip();
+  }
+
+  private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  private final long size;
+  private final long mtime;
+  private final int blockSize;
+  private final int[] rsums;
+  private final byte[] checksums;
+  private final int bitmapBits;
+  private final long[] rolling;
+  private final boolean dense;
+
+  SeedIndex(long size, long mtime, int blockSize, int[] rsums, byte[] checksums, int bitmapBits, long[] rolling) {
+    this.size = size;
+    this.mtime = mtime;
+    this.blockSize = blockSize;
+    this.rsums = rsums;
+    this.checksums = checksums;
+    this.bitmapBits = bitmapBits;
+    this.rolling = rolling;
+    long set = 0;
+    for (long word : rolling) {
+      set += Long.bitCount(word);
+    }
+    this.dense = 2 * set > 64L * rolling.length;
+  }
+
+  public int getBlockSize() {
+    return this.blockSize;
+  }
+
+  /**
+   * Writes the index to the given location, replacing any existing index atomically where supported.
+   *
+   * @param indexFile
+   * @throws IOException
+   */
+  void write(Path indexFile) throws IOException {
+    // unique per writer, so that concurrent syncs using the same seed never interleave their writes
+    final Path tmp = Files.createTempFile(indexFile.getParent(), indexFile.getFileName().toString(), ".part");
+    try {
+      this.writeTo(tmp);
+      try {
+        Files.move(tmp, indexFile, REPLACE_EXISTING, ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmp, indexFile, REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  private void writeTo(Path file) throws IOException {
+    try (final FileChannel channel = FileChannel.open(file, WRITE, TRUNCATE_EXISTING)) {
+      final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+      header.putInt(MAGIC).putLong(this.size).putLong(this.mtime).putInt(this.blockSize).putInt(this.rsums.length)
+          .putInt(this.bitmapBits);
+      writeFully(channel, header);
+      final ByteBuffer sums = ByteBuffer.allocate(Math.min(this.rsums.length, SUMS_PER_CHUNK) * SUM_LENGTH);
+      for (int i = 0; i < this.rsums.length; i++) {
+        sums.putInt(this.rsums[i]).put(this.checksums, i * CHECKSUM_LENGTH, CHECKSUM_LENGTH);
+        if (!sums.hasRemaining()) {
+          writeFully(channel, sums);
+          sums.clear();
+        }
+      }
+      writeFully(channel, sums);
+      final ByteBuffer bitmap = ByteBuffer.allocate(this.rolling.length * 8);
+      final LongBuffer longs = bitmap.asLongBuffer();
+      longs.put(this.rolling);
+      bitmap.position(longs.position() * 8);
+      writeFully(channel, bitmap);
+    }
+  }
+
+  /**
+   * Writes all block-aligned blocks of the seed that match blocks of the target file. Blocks are looked up in the index
+   * and only read from the seed if they are written to the target. If the control file requires sequential matches, a
+   * block is only accepted if its successor matches as well, mirroring {@link DoubleBlockMatcher}. Each block read is
+   * verified against the checksum in the control file before it is written; if it does not match, the seed was modified
+   * without changing its size or last modified time and matching stops.
+   *
+   * @param targetFile target to write matching blocks to
+   * @param controlFile control file of the target
+   * @param seed channel over the seed this index was built for
+   * @param listener notified of bytes read from the seed
+   * @return false if the index turned out to be stale, true otherwise
+   * @throws IOException
+   */
+  public boolean match(OutputFileWriter targetFile, ControlFile controlFile, FileChannel seed,
+      TransferListener listener) throws IOException {
+    final Header header = controlFile.getHeader();
+    if (header.getBlocksize() != this.blockSize) {
+      throw new IllegalArgumentException("Index block size " + this.blockSize + " does not match control file");
+    }
+    final int rsumMask = header.getRsumBytes() == 4 ? -1 : (1 << (8 * header.getRsumBytes())) - 1;
+    final int checksumBytes = header.getChecksumBytes();
+    final boolean seqMatches = header.isSeqMatches();
+    final int numTargetBlocks = targetFile.getNumBlocks();
+    final SeedBlock block = new SeedBlock(seed, listener, new Checksum(ZsyncUtil.newMD4(), checksumBytes));
+
+    BlockSum next = this.blockSum(0, rsumMask, checksumBytes);
+    for (int i = 0; i < this.rsums.length; i++) {
+      final BlockSum current = next;
+      next = i + 1 < this.rsums.length ? this.blockSum(i + 1, rsumMask, checksumBytes) : null;
+      final List<Integer> positions = targetFile.getPositions(current);
+      for (Integer position : positions) {
+        final int successor = position + 1;
+        if (seqMatches && successor != numTargetBlocks) {
+          if (next == null || !next.equals(targetFile.get(successor))) {
+            continue;
+          }
+          if (!targetFile.isCompleted(position) || !targetFile.isCompleted(successor)) {
+            if (!block.load(i).matches(current) || !block.load(i + 1).matches(next)) {
+              return false;
+            }
+            targetFile.writeBlock(position, block.load(i));
+            targetFile.writeBlock(successor, block.load(i + 1));
+          }
+        } else if (!targetFile.isCompleted(position)) {
+          if (!block.load(i).matches(current)) {
+            return false;
+          }
+          targetFile.writeBlock(position, block.load(i));
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if a rolling scan over the seed could match any block of the target file that has not been completed
+   * yet, false if the index proves that it cannot. Always true if the rolling sum bitmap is too dense to tell.
+   *
+   * @param targetFile
+   * @param header
+   * @return
+   */
+  public boolean isScanRequired(OutputFileWriter targetFile, Header header) {
+    if (this.dense) {
+      return !targetFile.isComplete();
+    }
+    final int rsumBytes = header.getRsumBytes();
+    for (int i = 0; i < targetFile.getNumBlocks(); i++) {
+      if (!targetFile.isCompleted(i) && this.mightContainRollingSum(targetFile.get(i).getRsum(), rsumBytes)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns true if the seed contains a window whose rolling sum, truncated to the given number of bytes, may equal the
+   * given sum.
+   *
+   * @param rsum
+   * @param rsumBytes
+   * @return
+   */
+  boolean mightContainRollingSum(int rsum, int rsumBytes) {
+    final int lowBits = 8 * rsumBytes;
+    if (lowBits >= this.bitmapBits) {
+      return isSet(this.rolling, rsum & ((1 << this.bitmapBits) - 1));
+    }
+    if (this.bitmapBits - lowBits > MAX_PROBE_BITS) {
+      return true;
+    }
+    // fewer bits than the bitmap holds: probe every possible value of the missing high bits
+    final int low = rsum & ((1 << lowBits) - 1);
+    for (int high = 0; high < 1 << (this.bitmapBits - lowBits); high++) {
+      if (isSet(this.rolling, (high << lowBits) | low)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private BlockSum blockSum(int block, int rsumMask, int checksumBytes) {
+    final int offset = block * CHECKSUM_LENGTH;
+    return new ImmutableBlockSum(this.rsums[block] & rsumMask,
+        Arrays.copyOfRange(this.checksums, offset, offset + checksumBytes));
+  }
+
+  /**
+   * Reads blocks of the seed on demand, zero padding the last block
+   */
+  private class SeedBlock implements ReadableByteBuffer {
+
+    private final FileChannel channel;
+    private final TransferListener listener;
+    private final ByteBuffer buffer;
+    private final Checksum checksum;
+    private int loaded;
+
+    SeedBlock(FileChannel channel, TransferListener listener, Checksum checksum) {
+      this.channel = channel;
+      this.listener = listener;
+      this.buffer = ByteBuffer.allocate(SeedIndex.this.blockSize);
+      this.checksum = checksum;
+      this.loaded = -1;
+    }
+
+    /**
+     * Returns true if the strong checksum of the loaded block matches that of the given block sum
+     */
+    boolean matches(BlockSum blockSum) {
+      if (!this.checksum.isSet()) {
+        this.checksum.setChecksum(this);
+      }
+      final byte[] expected = blockSum.getChecksum();
+      final byte[] actual = this.checksum.getBytes();
+      for (int i = 0; i < blockSum.getChecksumLength(); i++) {
+        if (expected[i] != actual[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    SeedBlock load(int block) throws IOException {
+      if (this.loaded != block) {
+        this.checksum.unset();
+        this.buffer.clear();
+        final long position = (long) block * SeedIndex.this.blockSize;
+        int read;
+        while (this.buffer.hasRemaining()
+            && (read = this.channel.read(this.buffer, position + this.buffer.position())) != -1) {
+          this.listener.transferred(read);
+        }
+        while (this.buffer.hasRemaining()) {
+          this.buffer.put((byte) 0);
+        }
+        this.buffer.flip();
+        this.loaded = block;
+      }
+      return this;
+    }
+
+    @Override
+    public int length() {
+      return this.buffer.limit();
+    }
+
+    @Override
+    public byte get(int i) {
+      return this.buffer.get(i);
+    }
+
+    @Override
+    public void write(WritableByteChannel channel) throws IOException {
+      this.write(channel, 0, this.buffer.limit());
+    }
+
+    @Override
+    public void write(WritableByteChannel channel, int offset, int length) throws IOException {
+      final ByteBuffer b = this.buffer.duplicate();
+      b.position(offset).limit(offset + length);
+      while (b.hasRemaining()) {
+        channel.write(b);
+      }
+    }
+  }
+
+}
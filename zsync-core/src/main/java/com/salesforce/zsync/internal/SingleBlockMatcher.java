@@ -25,6 +25,7 @@
  */
 package com.salesforce.zsync.internal;
 
+import static com.google.common.base.Predicates.notNull;
 import static com.salesforce.zsync.internal.BlockSum.getRsum;
 import static com.salesforce.zsync.internal.SingleBlockMatcher.State.INIT;
 import static com.salesforce.zsync.internal.SingleBlockMatcher.State.MATCHED;
@@ -54,7 +55,9 @@ public class SingleBlockMatcher extends BlockMatcher {
   public SingleBlockMatcher(ControlFile controlFile) {
     final Header header = controlFile.getHeader();
     this.blockSize = header.getBlocksize();
-    this.rsumHashSet = ImmutableSet.copyOf(Iterables.transform(controlFile.getBlockSums(), getRsum));
+    // blocks without checksums are completed already and not matched against
+    this.rsumHashSet =
+        ImmutableSet.copyOf(Iterables.transform(Iterables.filter(controlFile.getBlockSums(), notNull()), getRsum));
     this.state = INIT;
     this.blockSum = new MutableBlockSum(newMD4(), this.blockSize, header.getRsumBytes(), header.getChecksumBytes());
   }
@@ -81,18 +84,24 @@ public class SingleBlockMatcher extends BlockMatcher {
     }
 
     final int r = this.blockSum.rsum.toInt();
+    this.rsumProbes++;
     // cheap negative check followed by more expensive positive check
     if (this.rsumHashSet.contains(r)) {
+      this.rsumHits++;
       // only compute strong checksum if weak matched some block
       this.blockSum.checksum.setChecksum(buffer);
+      this.strongChecksums++;
       final List<Integer> matches = targetFile.getPositions(this.blockSum);
       if (!matches.isEmpty()) {
         for (Integer position : matches) {
-          targetFile.writeBlock(position, buffer);
+          if (targetFile.writeBlock(position, buffer)) {
+            this.blocksMatched++;
+          }
         }
         this.state = MATCHED;
         return this.blockSize;
       }
+      this.falsePositives++;
     }
     this.state = MISSED;
     this.firstByte = buffer.get(0);
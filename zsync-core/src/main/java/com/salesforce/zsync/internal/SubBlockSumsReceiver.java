@@ -0,0 +1,115 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.salesforce.zsync.http.ContentRange;
+import com.salesforce.zsync.transport.RangeReceiver;
+
+/**
+ * Receives the checksums of sub-blocks from a hierarchical control file. The checksums of all sub-blocks follow the
+ * checksums of the blocks, so that those of the sub-blocks of blocks that could not be matched can be retrieved with
+ * range requests on the control file. Sub-blocks whose checksums are not retrieved are left out as null entries, so
+ * that they are not matched against; they are expected to be completed already.
+ *
+ * @author bbusjaeger
+ */
+public class SubBlockSumsReceiver implements RangeReceiver {
+
+  private final Header subBlockHeader;
+  private final long offset;
+  private final int sumLength;
+  private final BlockSum[] sums;
+
+  public SubBlockSumsReceiver(ControlFile controlFile) {
+    final Header header = controlFile.getHeader();
+    this.subBlockHeader = header.getSubBlockHeader();
+    if (this.subBlockHeader == null || controlFile.getHeaderLength() < 0) {
+      throw new IllegalArgumentException("Not a hierarchical control file read from a stream");
+    }
+    this.offset = controlFile.getHeaderLength()
+        + (long) header.getNumBlocks() * (header.getRsumBytes() + header.getChecksumBytes());
+    this.sumLength = this.subBlockHeader.getRsumBytes() + this.subBlockHeader.getChecksumBytes();
+    this.sums = new BlockSum[this.subBlockHeader.getNumBlocks()];
+  }
+
+  /**
+   * Returns the ranges of the control file holding the checksums of the sub-blocks within the given block-aligned
+   * ranges of the target file.
+   *
+   * @param missingRanges
+   * @return
+   */
+  public List<ContentRange> getRanges(List<ContentRange> missingRanges) {
+    final int subBlockSize = this.subBlockHeader.getBlocksize();
+    final List<ContentRange> ranges = new ArrayList<>(missingRanges.size());
+    for (ContentRange range : missingRanges) {
+      final long first = range.first() / subBlockSize;
+      final long end = range.last() / subBlockSize + 1;
+      ranges.add(new ContentRange(this.offset + first * this.sumLength, this.offset + end * this.sumLength - 1));
+    }
+    return ranges;
+  }
+
+  @Override
+  public void receive(ContentRange range, ReadableByteChannel in) throws IOException {
+    if ((range.first() - this.offset) % this.sumLength != 0 || range.length() % this.sumLength != 0) {
+      throw new IOException("Invalid range received: " + range + " not aligned to sub-block checksums");
+    }
+    final int first = (int) ((range.first() - this.offset) / this.sumLength);
+    final int count = (int) (range.length() / this.sumLength);
+    final ByteBuffer buffer = ByteBuffer.allocate(count * this.sumLength);
+    while (buffer.hasRemaining()) {
+      if (in.read(buffer) == -1) {
+        throw new IOException("Range " + range + " ended with " + buffer.remaining() + " bytes remaining");
+      }
+    }
+    final InputStream stream = new ByteArrayInputStream(buffer.array());
+    for (int i = first; i < first + count; i++) {
+      this.sums[i] =
+          ImmutableBlockSum.read(stream, this.subBlockHeader.getRsumBytes(), this.subBlockHeader.getChecksumBytes());
+    }
+  }
+
+  /**
+   * Returns the control file describing the target file at the granularity of the sub-blocks, with null entries for
+   * the sub-blocks whose checksums were not retrieved.
+   *
+   * @return
+   */
+  public ControlFile build() {
+    return new ControlFile(this.subBlockHeader, Arrays.asList(this.sums));
+  }
+
+}
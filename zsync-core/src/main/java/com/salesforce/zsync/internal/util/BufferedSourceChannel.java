@@ -0,0 +1,104 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal.util;
+
+import static java.lang.Math.min;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import okio.Buffer;
+import okio.BufferedSource;
+
+/**
+ * A readable byte channel over a limited number of bytes of a {@link BufferedSource}. Bytes are copied straight out of
+ * the buffered segments of the source. Closing the channel does not close the source.
+ *
+ * @author bbusjaeger
+ */
+public class BufferedSourceChannel implements ReadableByteChannel {
+
+  private final BufferedSource source;
+  // staging area for destination buffers without accessible array, e.g. direct buffers used by FileChannel
+  private final byte[] scratch = new byte[8192];
+  private long remaining;
+
+  public BufferedSourceChannel(BufferedSource source, long limit) {
+    this.source = source;
+    this.remaining = limit;
+  }
+
+  /**
+   * Number of bytes remaining until this channel reaches end of stream
+   *
+   * @return
+   */
+  public long remaining() {
+    return this.remaining;
+  }
+
+  /**
+   * Resets the number of bytes remaining, so that the channel can be reused for a subsequent section of the source.
+   *
+   * @param limit
+   */
+  public void limit(long limit) {
+    this.remaining = limit;
+  }
+
+  @Override
+  public int read(ByteBuffer dst) throws IOException {
+    if (this.remaining == 0) {
+      return -1;
+    }
+    if (!this.source.request(1)) {
+      throw new EOFException("Source exhausted with " + this.remaining + " bytes remaining");
+    }
+    // copy only what is already buffered to avoid blocking for more than one segment
+    final Buffer buffer = this.source.buffer();
+    final int n = (int) min(min(dst.remaining(), this.remaining), buffer.size());
+    final int read;
+    if (dst.hasArray()) {
+      read = buffer.read(dst.array(), dst.arrayOffset() + dst.position(), n);
+      dst.position(dst.position() + read);
+    } else {
+      read = buffer.read(this.scratch, 0, min(n, this.scratch.length));
+      dst.put(this.scratch, 0, read);
+    }
+    this.remaining -= read;
+    return read;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return true;
+  }
+
+  @Override
+  public void close() {}
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal.util;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.salesforce.zsync.http.ContentRange;
+import com.salesforce.zsync.http.Credentials;
+import com.salesforce.zsync.transport.Cancellation;
+import com.salesforce.zsync.transport.RangeReceiver;
+import com.salesforce.zsync.transport.ResponseType;
+import com.salesforce.zsync.transport.Transport;
+import com.salesforce.zsync.transport.TransportListener;
+import com.salesforce.zsync.transport.TransportStatusException;
+
+/**
+ * Serves <code>file:</code> URIs, such as origins on network or shared volumes, from the local file system and delegates
+ * all other URIs to another transport. Ranges are passed to the receiver as a {@link FileChannel} positioned at the
+ * start of the range, so that a receiver writing to a file can copy them with
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)} without reading them into memory.
+ * Receivers must therefore read no more than the length of the range. A missing file is reported as status 404.
+ *
+ * @author bbusjaeger
+ */
+public class FileTransport implements Transport {
+
+  private static final int HTTP_NOT_FOUND = 404;
+
+  private final Transport delegate;
+
+  public FileTransport(Transport delegate) {
+    this.delegate = delegate;
+  }
+
+  private static boolean isFile(URI uri) {
+    return "file".equalsIgnoreCase(uri.getScheme());
+  }
+
+  @Override
+  public InputStream get(URI uri, Map<String, ? extends Credentials> credentials, TransportListener listener,
+      Cancellation cancellation) throws IOException {
+    if (!isFile(uri)) {
+      return this.delegate.get(uri, credentials, listener, cancellation);
+    }
+    final Path path = Paths.get(uri);
+    listener.initiating(uri, Collections.<ContentRange>emptyList());
+    final InputStream in;
+    try {
+      in = Files.newInputStream(path);
+    } catch (IOException e) {
+      listener.completed();
+      throw notFound(uri, e);
+    }
+    listener.started(uri, ResponseType.FULL, Files.size(path));
+    return new ObservableInputStream(in, adapt(listener));
+  }
+
+  @Override
+  public InputStream getIfModifiedSince(URI uri, long ifModifiedSince, Map<String, ? extends Credentials> credentials,
+      TransportListener listener, Cancellation cancellation) throws IOException {
+    if (!isFile(uri)) {
+      return this.delegate.getIfModifiedSince(uri, ifModifiedSince, credentials, listener, cancellation);
+    }
+    final long lastModified;
+    try {
+      lastModified = Files.getLastModifiedTime(Paths.get(uri)).toMillis();
+    } catch (IOException e) {
+      throw notFound(uri, e);
+    }
+    return lastModified > ifModifiedSince ? this.get(uri, credentials, listener, cancellation) : null;
+  }
+
+  @Override
+  public void getRanges(URI uri, List<ContentRange> ranges, Map<String, ? extends Credentials> credentials,
+      RangeReceiver receiver, TransportListener listener, Cancellation cancellation) throws IOException {
+    if (!isFile(uri)) {
+      this.delegate.getRanges(uri, ranges, credentials, receiver, listener, cancellation);
+      return;
+    }
+    listener.initiating(uri, ranges);
+    try {
+      final FileChannel channel;
+      try {
+        channel = FileChannel.open(Paths.get(uri), READ);
+      } catch (IOException e) {
+        throw notFound(uri, e);
+      }
+      try {
+        if (cancellation != null) {
+          // closing the channel aborts a transfer in progress
+          cancellation.register(channel);
+        }
+        final long size = channel.size();
+        long length = 0;
+        for (ContentRange range : ranges) {
+          if (range.last() >= size) {
+            throw new IOException("Range " + range + " exceeds length " + size + " of " + uri);
+          }
+          length += range.length();
+        }
+        listener.started(uri, ranges.size() == 1 ? ResponseType.SINGLE_PART : ResponseType.MULTIPART, length);
+        for (ContentRange range : ranges) {
+          channel.position(range.first());
+          receiver.receive(range, channel);
+          listener.transferred(range.length());
+        }
+      } finally {
+        channel.close();
+      }
+    } finally {
+      listener.completed();
+    }
+  }
+
+  @Override
+  public int getConcurrency(URI uri) {
+    return isFile(uri) ? 1 : this.delegate.getConcurrency(uri);
+  }
+
+  private static IOException notFound(URI uri, IOException e) {
+    return e instanceof NoSuchFileException ? new TransportStatusException(uri + " does not exist", HTTP_NOT_FOUND, e)
+        : e;
+  }
+
+  private static TransferListener adapt(final TransportListener listener) {
+    return new TransferListener() {
+      @Override
+      public void transferred(long bytes) {
+        listener.transferred(bytes);
+      }
+
+      @Override
+      public void close() {
+        listener.completed();
+      }
+    };
+  }
+}
@@ -0,0 +1,272 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal.util;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Custom Java Flight Recorder events for the phases of a zsync invocation, so that production syncs can be profiled
+ * with continuous recordings. The event types are defined through <code>jdk.jfr.EventFactory</code>, resolved
+ * reflectively since this library is compiled for Java 7; on JVMs without JFR, events are silently dropped. Events are
+ * only instantiated while their type is enabled in a running recording, and each event marks a whole phase rather than
+ * individual reads or writes.
+ *
+ * <pre>
+ * final FlightRecorderEvents.Event event = FlightRecorderEvents.RANGE_REQUEST.begin();
+ * ...
+ * event.set(0, uri.toString()).set(1, ranges.size()).set(2, bytes).commit();
+ * </pre>
+ *
+ * @author bbusjaeger
+ */
+public final class FlightRecorderEvents {
+
+  private static final String CATEGORY = "Zsync";
+
+  /**
+   * Control file retrieved and parsed: uri, length of the remote file, number of blocks
+   */
+  public static final EventType CONTROL_FILE = new EventType("ControlFile", "Control File",
+      "Retrieval and parsing of a zsync control file", "uri", String.class, "length", long.class, "blocks", int.class);
+
+  /**
+   * Input file scanned for blocks of the output file: input file, bytes scanned, blocks matched
+   */
+  public static final EventType INPUT_FILE_SCAN = new EventType("InputFileScan", "Input File Scan",
+      "Rolling checksum scan of an input file", "inputFile", String.class, "bytes", long.class, "blocksMatched",
+      long.class);
+
+  /**
+   * Single range request to the remote file: uri, number of ranges, bytes requested
+   */
+  public static final EventType RANGE_REQUEST = new EventType("RangeRequest", "Range Request",
+      "Request for missing ranges of the remote file", "uri", String.class, "ranges", int.class, "bytes", long.class);
+
+  /**
+   * SHA-1 verification of the output file: output file, bytes verified
+   */
+  public static final EventType OUTPUT_FILE_VERIFY = new EventType("OutputFileVerify", "Output File Verify",
+      "SHA-1 verification of the completed output file", "outputFile", String.class, "bytes", long.class);
+
+  /**
+   * Move of the verified output file into place: output file
+   */
+  public static final EventType OUTPUT_FILE_MOVE = new EventType("OutputFileMove", "Output File Move",
+      "Atomic move of the verified output file into place", "outputFile", String.class);
+
+  private FlightRecorderEvents() {}
+
+  /**
+   * An event type defined with the flight recorder, or a placeholder if the flight recorder is not available
+   */
+  public static final class EventType {
+
+    private final String name;
+    // jdk.jfr.EventFactory and jdk.jfr.EventType, or null
+    private final Object factory;
+    private final Object eventType;
+
+    EventType(String name, String label, String description, Object... fields) {
+      this.name = "com.salesforce.zsync." + name;
+      Object factory = null;
+      Object eventType = null;
+      if (Jfr.AVAILABLE) {
+        try {
+          final List<Object> annotations = new ArrayList<>(4);
+          annotations.add(Jfr.ANNOTATION_ELEMENT.newInstance(Jfr.NAME, this.name));
+          annotations.add(Jfr.ANNOTATION_ELEMENT.newInstance(Jfr.LABEL, label));
+          annotations.add(Jfr.ANNOTATION_ELEMENT.newInstance(Jfr.DESCRIPTION, description));
+          annotations.add(Jfr.ANNOTATION_ELEMENT.newInstance(Jfr.CATEGORY, new String[] {CATEGORY}));
+          final List<Object> values = new ArrayList<>(fields.length / 2);
+          for (int i = 0; i < fields.length; i += 2) {
+            values.add(Jfr.VALUE_DESCRIPTOR.newInstance(fields[i + 1], fields[i]));
+          }
+          factory = Jfr.CREATE.invoke(null, annotations, values);
+          eventType = Jfr.GET_EVENT_TYPE.invoke(factory);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+          factory = null;
+          eventType = null;
+        }
+      }
+      this.factory = factory;
+      this.eventType = eventType;
+    }
+
+    public String getName() {
+      return this.name;
+    }
+
+    /**
+     * Whether events of this type are currently recorded
+     *
+     * @return
+     */
+    public boolean isEnabled() {
+      if (this.eventType == null) {
+        return false;
+      }
+      try {
+        return (Boolean) Jfr.IS_ENABLED.invoke(this.eventType);
+      } catch (ReflectiveOperationException e) {
+        return false;
+      }
+    }
+
+    /**
+     * Starts timing a new event of this type. If the type is not enabled, returns an event that ignores all calls.
+     *
+     * @return
+     */
+    public Event begin() {
+      if (!this.isEnabled()) {
+        return Event.DISABLED;
+      }
+      try {
+        final Object event = Jfr.NEW_EVENT.invoke(this.factory);
+        Jfr.BEGIN.invoke(event);
+        return new Event(event);
+      } catch (ReflectiveOperationException e) {
+        return Event.DISABLED;
+      }
+    }
+  }
+
+  /**
+   * An event in progress
+   */
+  public static final class Event {
+
+    static final Event DISABLED = new Event(null);
+
+    // jdk.jfr.Event, or null
+    private final Object event;
+
+    Event(Object event) {
+      this.event = event;
+    }
+
+    /**
+     * Sets the value of the field at the given index in the order the fields of the event type are declared
+     *
+     * @param index
+     * @param value
+     * @return
+     */
+    public Event set(int index, Object value) {
+      if (this.event != null) {
+        try {
+          Jfr.SET.invoke(this.event, index, value);
+        } catch (ReflectiveOperationException e) {
+          // dropped like the rest of an event that cannot be recorded
+        }
+      }
+      return this;
+    }
+
+    /**
+     * Ends timing the event and writes it to the running recordings
+     */
+    public void commit() {
+      if (this.event != null) {
+        try {
+          Jfr.COMMIT.invoke(this.event);
+        } catch (ReflectiveOperationException e) {
+          // not recorded
+        }
+      }
+    }
+  }
+
+  /**
+   * Reflective handles to the flight recorder API, resolved once
+   */
+  private static final class Jfr {
+    static final boolean AVAILABLE;
+    static final Method CREATE;
+    static final Method GET_EVENT_TYPE;
+    static final Method IS_ENABLED;
+    static final Method NEW_EVENT;
+    static final Method BEGIN;
+    static final Method SET;
+    static final Method COMMIT;
+    static final Constructor<?> ANNOTATION_ELEMENT;
+    static final Constructor<?> VALUE_DESCRIPTOR;
+    static final Class<?> NAME;
+    static final Class<?> LABEL;
+    static final Class<?> DESCRIPTION;
+    static final Class<?> CATEGORY;
+
+    static {
+      Method create = null, getEventType = null, isEnabled = null, newEvent = null, begin = null, set = null,
+          commit = null;
+      Constructor<?> annotationElement = null, valueDescriptor = null;
+      Class<?> name = null, label = null, description = null, category = null;
+      boolean available;
+      try {
+        final Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+        final Class<?> event = Class.forName("jdk.jfr.Event");
+        create = eventFactory.getMethod("create", List.class, List.class);
+        getEventType = eventFactory.getMethod("getEventType");
+        isEnabled = Class.forName("jdk.jfr.EventType").getMethod("isEnabled");
+        newEvent = eventFactory.getMethod("newEvent");
+        begin = event.getMethod("begin");
+        set = event.getMethod("set", int.class, Object.class);
+        commit = event.getMethod("commit");
+        annotationElement = Class.forName("jdk.jfr.AnnotationElement").getConstructor(Class.class, Object.class);
+        valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class);
+        name = annotation("jdk.jfr.Name");
+        label = annotation("jdk.jfr.Label");
+        description = annotation("jdk.jfr.Description");
+        category = annotation("jdk.jfr.Category");
+        available = true;
+      } catch (ReflectiveOperationException | LinkageError e) {
+        available = false;
+      }
+      AVAILABLE = available;
+      CREATE = create;
+      GET_EVENT_TYPE = getEventType;
+      IS_ENABLED = isEnabled;
+      NEW_EVENT = newEvent;
+      BEGIN = begin;
+      SET = set;
+      COMMIT = commit;
+      ANNOTATION_ELEMENT = annotationElement;
+      VALUE_DESCRIPTOR = valueDescriptor;
+      NAME = name;
+      LABEL = label;
+      DESCRIPTION = description;
+      CATEGORY = category;
+    }
+
+    private static Class<? extends Annotation> annotation(String name) throws ClassNotFoundException {
+      return Class.forName(name).asSubclass(Annotation.class);
+    }
+  }
+}
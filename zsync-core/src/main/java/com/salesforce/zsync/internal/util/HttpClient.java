@@ -27,9 +27,8 @@ package com.salesforce.zsync.internal.util;
 
 import static com.google.common.base.Joiner.on;
 import static com.google.common.base.Preconditions.checkArgument;
-import static com.google.common.collect.ImmutableList.copyOf;
-import static com.google.common.collect.Iterables.limit;
-import static java.lang.Math.min;
+import static java.net.HttpURLConnection.HTTP_ENTITY_TOO_LARGE;
+import static java.net.HttpURLConnection.HTTP_NOT_MODIFIED;
 import static java.net.HttpURLConnection.HTTP_OK;
 import static java.net.HttpURLConnection.HTTP_PARTIAL;
 import static java.net.HttpURLConnection.HTTP_PROXY_AUTH;
@@ -39,6 +38,7 @@ import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static java.util.Collections.newSetFromMap;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.Proxy;
@@ -46,28 +46,49 @@ import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.text.ParseException;
-import java.util.Arrays;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.TimeZone;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
-import com.google.common.io.ByteStreams;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
 import com.google.common.net.MediaType;
 import com.salesforce.zsync.http.ContentRange;
 import com.salesforce.zsync.http.Credentials;
 import com.salesforce.zsync.internal.util.ObservableInputStream.ObservableResourceInputStream;
+import com.salesforce.zsync.internal.util.ObservableSource.ObservableResourceSource;
 import com.salesforce.zsync.internal.util.TransferListener.ResourceTransferListener;
+import com.salesforce.zsync.server.CompressedRangesFilter;
+import com.salesforce.zsync.transport.Cancellation;
+import com.salesforce.zsync.transport.InvalidResponseException;
+import com.salesforce.zsync.transport.RangeReceiver;
 import com.squareup.okhttp.Authenticator;
+import com.squareup.okhttp.Call;
 import com.squareup.okhttp.Challenge;
 import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Protocol;
 import com.squareup.okhttp.Request;
 import com.squareup.okhttp.Request.Builder;
 import com.squareup.okhttp.Response;
 import com.squareup.okhttp.ResponseBody;
 
+import okio.BufferedSource;
+import okio.GzipSource;
+import okio.Okio;
+import okio.Source;
+
 /**
  * A thin wrapper around {@link OkHttpClient} to facilitate full and partial download of resources
  * with
@@ -116,22 +137,37 @@ public class HttpClient {
   }
 
   public static interface RangeTransferListener {
-    HttpTransferListener newTransfer(List<ContentRange> ranges);
-  }
+    /**
+     * Reports the next batch of ranges chosen for a request along with the limits applied to the batch
+     */
+    void planned(List<ContentRange> ranges, int maxRanges, long maxBytes);
 
-  public static interface RangeReceiver {
-    void receive(ContentRange range, InputStream in) throws IOException;
+    HttpTransferListener newTransfer(List<ContentRange> ranges);
   }
 
-  private static final int MAXIMUM_RANGES_PER_HTTP_REQUEST = 100;
+  private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+  // how long a server found to ignore range requests is sent requests for the full content instead
+  static final long RANGES_UNSUPPORTED_EXPIRY_MINUTES = 10;
 
   private final OkHttpClient okHttpClient;
   private final Set<String> basicChallengeReceived;
+  private final Cache<String, Boolean> rangesUnsupported;
+  private final Set<String> multiplexed;
+  private final Set<String> compressedRanges;
 
   HttpClient(OkHttpClient okHttpClient) {
+    this(okHttpClient, Ticker.systemTicker());
+  }
+
+  HttpClient(OkHttpClient okHttpClient, Ticker ticker) {
     checkArgument(okHttpClient != null, "httpClient cannot be null");
     this.okHttpClient = okHttpClient;
     this.basicChallengeReceived = newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    this.rangesUnsupported =
+        CacheBuilder.newBuilder().expireAfterWrite(RANGES_UNSUPPORTED_EXPIRY_MINUTES, TimeUnit.MINUTES).ticker(ticker)
+            .<String, Boolean>build();
+    this.multiplexed = newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    this.compressedRanges = newSetFromMap(new ConcurrentHashMap<String, Boolean>());
     // setting authenticator to null, so it does not delegate to java Authenticator
     this.okHttpClient.setAuthenticator(new Authenticator() {
       @Override
@@ -159,10 +195,27 @@ public class HttpClient {
    */
   public void get(URI uri, Path output, Map<String, ? extends Credentials> credentials, HttpTransferListener listener)
       throws IOException, HttpError {
+    this.get(uri, output, credentials, listener, null);
+  }
+
+  /**
+   * Same as {@link #get(URI, Path, Map, HttpTransferListener)}, but allows the transfer to be aborted via the given
+   * cancellation.
+   *
+   * @param uri
+   * @param output
+   * @param credentials
+   * @param listener
+   * @param cancellation
+   * @throws IOException
+   * @throws HttpError
+   */
+  public void get(URI uri, Path output, Map<String, ? extends Credentials> credentials, HttpTransferListener listener,
+      Cancellation cancellation) throws IOException, HttpError {
     final Path parent = output.getParent();
     final Path tmp = parent.resolve(output.getFileName() + ".part");
     Files.createDirectories(parent);
-    try (InputStream in = this.get(uri, credentials, listener)) {
+    try (InputStream in = this.get(uri, credentials, listener, cancellation)) {
       Files.copy(in, tmp, REPLACE_EXISTING);
     }
     Files.move(tmp, output, REPLACE_EXISTING, ATOMIC_MOVE);
@@ -181,9 +234,59 @@ public class HttpClient {
    */
   public InputStream get(URI uri, Map<String, ? extends Credentials> credentials, HttpTransferListener listener)
       throws IOException, HttpError {
-    final Response response = executeWithAuthRetry(uri, credentials, listener, Collections.<ContentRange>emptyList());
+    return this.get(uri, credentials, listener, null);
+  }
+
+  /**
+   * Same as {@link #get(URI, Map, HttpTransferListener)}, but allows the transfer to be aborted via the given
+   * cancellation.
+   *
+   * @param uri
+   * @param credentials
+   * @param listener
+   * @param cancellation
+   * @return
+   * @throws IOException
+   * @throws HttpError
+   */
+  public InputStream get(URI uri, Map<String, ? extends Credentials> credentials, HttpTransferListener listener,
+      Cancellation cancellation) throws IOException, HttpError {
+    final Response response =
+        this.executeWithAuthRetry(uri, credentials, listener, Collections.<ContentRange>emptyList(), cancellation);
+    final int code = response.code();
+    if (code != HTTP_OK) {
+      throw new HttpError(response.message(), code);
+    }
+    return inputStream(response, listener);
+  }
+
+  /**
+   * Same as {@link #get(URI, Map, HttpTransferListener, Cancellation)}, but sends the request with an
+   * If-Modified-Since header for the given time.
+   *
+   * @param uri
+   * @param ifModifiedSince time in milliseconds since the epoch
+   * @param credentials
+   * @param listener
+   * @param cancellation
+   * @return the response content, or null if the server responded with 304 Not Modified
+   * @throws IOException
+   * @throws HttpError
+   */
+  public InputStream getIfModifiedSince(URI uri, long ifModifiedSince, Map<String, ? extends Credentials> credentials,
+      HttpTransferListener listener, Cancellation cancellation) throws IOException, HttpError {
+    final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    final Request request = this.buildRequest(uri, credentials, Collections.<ContentRange>emptyList()).newBuilder()
+        .header("If-Modified-Since", format.format(new Date(ifModifiedSince))).build();
+    final Response response = this.executeWithAuthRetry(request, credentials, listener, cancellation);
     final int code = response.code();
+    if (code == HTTP_NOT_MODIFIED) {
+      discard(response, listener);
+      return null;
+    }
     if (code != HTTP_OK) {
+      discard(response, listener);
       throw new HttpError(response.message(), code);
     }
     return inputStream(response, listener);
@@ -201,37 +304,122 @@ public class HttpClient {
    */
   public void partialGet(URI uri, List<ContentRange> ranges, Map<String, ? extends Credentials> credentials,
       RangeReceiver receiver, RangeTransferListener listener) throws IOException, HttpError {
+    this.partialGet(uri, ranges, credentials, receiver, listener, null);
+  }
+
+  /**
+   * Same as {@link #partialGet(URI, List, Map, RangeReceiver, RangeTransferListener)}, but allows the transfers to
+   * be aborted via the given cancellation.
+   *
+   * @param uri
+   * @param ranges
+   * @param receiver
+   * @param listener
+   * @param cancellation
+   * @throws IOException
+   * @throws HttpError
+   */
+  public void partialGet(URI uri, List<ContentRange> ranges, Map<String, ? extends Credentials> credentials,
+      RangeReceiver receiver, RangeTransferListener listener, Cancellation cancellation) throws IOException, HttpError {
+    final RangeBatchPlanner planner = new RangeBatchPlanner();
     final Set<ContentRange> remaining = new LinkedHashSet<>(ranges);
     while (!remaining.isEmpty()) {
-      final List<ContentRange> next = copyOf(limit(remaining, min(remaining.size(), MAXIMUM_RANGES_PER_HTTP_REQUEST)));
+      // if the server is known to ignore ranges, request the full content once and pick the ranges from it; the server
+      // may be reconfigured or replaced, so this is only assumed for a while
+      final boolean rangesUnsupported = this.rangesUnsupported.getIfPresent(origin(uri)) != null;
+      final List<ContentRange> next =
+          rangesUnsupported ? ImmutableList.copyOf(remaining) : planner.next(remaining);
+      listener.planned(next, planner.getMaxRanges(), planner.getMaxBytes());
       final HttpTransferListener requestListener = listener.newTransfer(next);
-      final Response response = executeWithAuthRetry(uri, credentials, requestListener, next);
+      final FlightRecorderEvents.Event event = FlightRecorderEvents.RANGE_REQUEST.begin();
+      final long start = System.nanoTime();
+      final Response response;
+      try {
+        response = this.executeWithAuthRetry(uri, credentials, requestListener,
+            rangesUnsupported ? Collections.<ContentRange>emptyList() : next, cancellation);
+      } catch (IOException e) {
+        // complete the transfer, so that observers see the request end before it is retried
+        requestListener.close();
+        throw e;
+      }
+      final long header = System.nanoTime() - start;
       final int code = response.code();
       // tolerate case that server does not support range requests
       if (code == HTTP_OK) {
-        receiver.receive(new ContentRange(0, response.body().contentLength()), inputStream(response, requestListener));
+        final long length = contentLength(response);
+        // a server may also ignore requests with too many ranges: retry with fewer if the full content is much larger
+        if (!rangesUnsupported && next.size() > 1 && length > 2 * length(remaining)) {
+          discard(response, requestListener);
+          planner.collapsed();
+          continue;
+        }
+        // the full content in response to a single range, or without advertising range support, means the server does
+        // not support ranges at all
+        if (next.size() == 1 || !"bytes".equalsIgnoreCase(response.header("Accept-Ranges"))) {
+          this.rangesUnsupported.put(origin(uri), Boolean.TRUE);
+        }
+        handleFullBody(response, receiver, remaining, requestListener);
+        event.set(0, uri.toString()).set(1, next.size()).set(2, length(next)).commit();
         return;
       }
+      // some servers reject requests with too many ranges or too long headers
+      if ((code == HTTP_ENTITY_TOO_LARGE || code == HTTP_RANGE_NOT_SATISFIABLE) && planner.rejected(next)) {
+        discard(response, requestListener);
+        continue;
+      }
       // otherwise only accept partial content response
       if (code != HTTP_PARTIAL) {
+        discard(response, requestListener);
         throw new HttpError(response.message(), code);
       }
       // check if we're dealing with multipart (multiple ranges) or simple (single range) response
-      final MediaType mediaType = parseContentType(response);
-      if (mediaType != null && "multipart".equals(mediaType.type())) {
-        final byte[] boundary = getBoundary(mediaType);
+      final MediaType mediaType;
+      final byte[] boundary;
+      try {
+        mediaType = parseContentType(response);
+        boundary = mediaType != null && "multipart".equals(mediaType.type()) ? getBoundary(mediaType) : null;
+      } catch (IOException e) {
+        discard(response, requestListener);
+        throw e;
+      }
+      if (boundary != null) {
         handleMultiPartBody(response, receiver, remaining, requestListener, boundary);
       } else {
         handleSinglePartBody(response, receiver, remaining, requestListener);
       }
+      event.set(0, uri.toString()).set(1, next.size()).set(2, length(next)).commit();
+      planner.completed(next, header, System.nanoTime() - start);
+    }
+  }
+
+  private static long length(Iterable<ContentRange> ranges) {
+    long length = 0;
+    for (ContentRange range : ranges) {
+      length += range.length();
+    }
+    return length;
+  }
+
+  /**
+   * Closes the response without reading the body and completes the transfer
+   */
+  private static void discard(Response response, HttpTransferListener listener) throws IOException {
+    try {
+      response.body().close();
+    } finally {
+      listener.close();
     }
   }
 
   Response executeWithAuthRetry(URI uri, Map<String, ? extends Credentials> credentials, HttpTransferListener listener,
-      List<ContentRange> ranges) throws IOException {
-    Request request = buildRequest(uri, credentials, ranges);
+      List<ContentRange> ranges, Cancellation cancellation) throws IOException {
+    return this.executeWithAuthRetry(this.buildRequest(uri, credentials, ranges), credentials, listener, cancellation);
+  }
+
+  private Response executeWithAuthRetry(Request request, Map<String, ? extends Credentials> credentials,
+      HttpTransferListener listener, Cancellation cancellation) throws IOException {
     listener.initiating(request);
-    Response response = this.okHttpClient.newCall(request).execute();
+    Response response = this.execute(request, cancellation);
     for (int i = 0; i < 10; i++) {
       final int code = response.code();
       if (!((code == HTTP_UNAUTHORIZED || code == HTTP_PROXY_AUTH) && containsBasic(response.challenges()))) {
@@ -246,11 +434,57 @@ public class HttpClient {
       }
       final String name = code == HTTP_UNAUTHORIZED ? "Authorization" : "Proxy-Authorization";
       request = response.request().newBuilder().header(name, creds.basic()).build();
-      response = this.okHttpClient.newCall(request).execute();
+      response = this.execute(request, cancellation);
+    }
+    return response;
+  }
+
+  private Response execute(Request request, Cancellation cancellation) throws IOException {
+    final Call call = this.okHttpClient.newCall(request);
+    if (cancellation != null) {
+      cancellation.register(new Closeable() {
+        @Override
+        public void close() {
+          call.cancel();
+        }
+      });
+    }
+    final Response response = call.execute();
+    if (response.protocol() == Protocol.HTTP_2 || response.protocol() == Protocol.SPDY_3) {
+      this.multiplexed.add(origin(request.uri()));
+    }
+    if (response.header(CompressedRangesFilter.ANNOUNCE_HEADER) != null) {
+      this.compressedRanges.add(origin(request.uri()));
     }
     return response;
   }
 
+  /**
+   * Whether a previous response from the server (scheme, host and port) of the given uri was received over a
+   * multiplexed protocol, i.e. HTTP/2 or SPDY as negotiated by the underlying OkHttpClient. Concurrent requests to such
+   * a server share a single connection, so that ranges are best requested individually and in parallel rather than in
+   * multipart batches.
+   *
+   * @param uri
+   * @return
+   */
+  public boolean isMultiplexed(URI uri) {
+    return this.multiplexed.contains(origin(uri));
+  }
+
+  /**
+   * Returns the scheme, host and port of the given uri, so that different servers on the same host are told apart
+   */
+  static String origin(URI uri) {
+    final String scheme = uri.getScheme() == null ? "" : uri.getScheme().toLowerCase(Locale.ROOT);
+    final String host = uri.getHost() == null ? "" : uri.getHost().toLowerCase(Locale.ROOT);
+    int port = uri.getPort();
+    if (port == -1) {
+      port = "https".equals(scheme) ? 443 : "http".equals(scheme) ? 80 : -1;
+    }
+    return scheme + "://" + host + ":" + port;
+  }
+
   Request buildRequest(URI uri, Map<String, ? extends Credentials> credentials, List<ContentRange> ranges) {
     final Builder builder = new Request.Builder();
     builder.url(uri.toString());
@@ -262,6 +496,10 @@ public class HttpClient {
     }
     if (!ranges.isEmpty()) {
       builder.addHeader("Range", "bytes=" + on(',').join(ranges));
+      // only servers that announced compressing the selected ranges with CompressedRangesFilter are asked to, since
+      // compressing ranges of resources that are compressed already is wasted effort; decompressed in source. Others
+      // are asked for identity explicitly, as OkHttp would otherwise request gzip on its own
+      builder.header("Accept-Encoding", this.compressedRanges.contains(origin(uri)) ? "gzip" : "identity");
     }
     return builder.build();
   }
@@ -279,35 +517,70 @@ public class HttpClient {
       HttpTransferListener listener) throws IOException {
     final String contentRange = response.header("Content-Range");
     if (contentRange == null) {
-      throw new IOException("Content-Range header missing");
+      discard(response, listener);
+      throw new InvalidResponseException("Content-Range header missing");
     }
 
     ContentRange range;
     try {
       range = parseContentRange(contentRange);
     } catch (ParseException e) {
-      throw new IOException("Failed to parse Content-Range header " + contentRange, e);
+      discard(response, listener);
+      throw new InvalidResponseException("Failed to parse Content-Range header " + contentRange, e);
     }
     if (!remaining.remove(range)) {
-      throw new IOException("Received range " + range + " not one of requested " + remaining);
+      discard(response, listener);
+      throw new InvalidResponseException("Received range " + range + " not one of requested " + remaining);
+    }
+
+    try (final BufferedSource source = source(response, listener)) {
+      receiver.receive(range, new BufferedSourceChannel(source, range.length()));
+    }
+  }
+
+  /**
+   * Handles a full content response to a range request by passing only the requested ranges to the receiver, skipping
+   * the content in between. The rest of the content after the last range is not read.
+   */
+  static void handleFullBody(Response response, RangeReceiver receiver, final Set<ContentRange> remaining,
+      HttpTransferListener listener) throws IOException {
+    final List<ContentRange> ranges = new ArrayList<>(remaining);
+    Collections.sort(ranges, new Comparator<ContentRange>() {
+      @Override
+      public int compare(ContentRange o1, ContentRange o2) {
+        return Long.compare(o1.first(), o2.first());
+      }
+    });
+    final long length = contentLength(response);
+    final ContentRange last = ranges.get(ranges.size() - 1);
+    if (length >= 0 && last.last() >= length) {
+      discard(response, listener);
+      throw new InvalidResponseException("Content length " + length + " does not cover requested range " + last);
     }
 
-    InputStream in = inputStream(response, listener);
-    receiver.receive(range, in);
+    try (final BufferedSource source = source(response, listener)) {
+      long position = 0;
+      for (ContentRange range : ranges) {
+        source.skip(range.first() - position);
+        receiver.receive(range, new BufferedSourceChannel(source, range.length()));
+        remaining.remove(range);
+        position = range.last() + 1;
+      }
+    }
   }
 
   static void handleMultiPartBody(Response response, RangeReceiver receiver, final Set<ContentRange> remaining,
       HttpTransferListener listener, byte[] boundary) throws IOException {
-    try (InputStream in = inputStream(response, listener)) {
+    try (final BufferedSource source = source(response, listener)) {
+      final MultipartByteRangesReader reader = new MultipartByteRangesReader(source, boundary);
       ContentRange range;
-      while ((range = nextPart(in, boundary)) != null) {
+      while ((range = reader.nextPart()) != null) {
         // technically it's OK for server to combine or re-order ranges. However, since we
         // already combine and sort ranges, this should not happen
         if (!remaining.remove(range)) {
-          throw new IOException("Received range " + range + " not one of requested " + remaining);
+          throw new InvalidResponseException("Received range " + range + " not one of requested " + remaining);
         }
-        final InputStream part = ByteStreams.limit(in, range.length());
-        receiver.receive(range, part);
+        receiver.receive(range, reader.body());
       }
     }
   }
@@ -318,74 +591,25 @@ public class HttpClient {
     return new ObservableResourceInputStream<>(in, listener, response, response.body().contentLength());
   }
 
-  static ContentRange nextPart(InputStream in, byte[] boundary) throws IOException {
-    int c = in.read();
-    if (c == '\r') {
-      if (!(in.read() == '\n' && in.read() == '-' && in.read() == '-')) {
-        throw new IOException("Expected part being not matched");
-      }
-    } else if (c == '-') {
-      if (!(in.read() == '-')) {
-        throw new IOException("Expected part being not matched");
-      }
-    }
-    final byte[] b = new byte[boundary.length];
-    int read = 0, r;
-    while (read < b.length && (r = in.read(b, read, b.length - read)) != -1) {
-      read += r;
-    }
-    if (read != b.length || !Arrays.equals(boundary, b)) {
-      throw new IOException("Invalid multipart boundary");
-    }
-    final int r1 = in.read();
-    final int r2 = in.read();
-    if (r1 == '-' && r2 == '-') {
-      if (!(in.read() == '\r' && in.read() == '\n' && in.read() == -1)) {
-        throw new IOException("unexpected end of body");
-      }
-      return null;
-    } else if (!(r1 == '\r' && r2 == '\n')) {
-      throw new IOException("Missing control line feed");
-    }
+  /**
+   * Returns the decoded response body, observing the bytes transferred before decoding. OkHttp only decodes the body of
+   * requests for which it negotiated the encoding itself, which excludes range requests.
+   */
+  static BufferedSource source(Response response, ResourceTransferListener<Response> listener) throws IOException {
+    final ResponseBody body = response.body();
+    final Source source = new ObservableResourceSource<>(body.source(), listener, response, body.contentLength());
+    return Okio.buffer(isGzipEncoded(response) ? new GzipSource(source) : source);
+  }
 
-    ContentRange range = null;
-    String header;
-    while ((header = readHeader(in)) != null) {
-      if (header.startsWith("Content-Range") || header.startsWith("Content-range")) {
-        if (range != null) {
-          throw new IOException("Multiple content range headers in multipart");
-        }
-        int idx = header.indexOf(':');
-        if (idx == -1) {
-          throw new IOException("Invalid Content-Range header " + header + " in multipart");
-        }
-        final String value = header.substring(idx + 2);
-        try {
-          range = parseContentRange(value);
-        } catch (ParseException e) {
-          throw new IOException("Failed to parse Content-Range header " + value, e);
-        }
-      }
-    }
-    return range;
+  /**
+   * Returns the length of the decoded response body, or -1 if unknown
+   */
+  static long contentLength(Response response) throws IOException {
+    return isGzipEncoded(response) ? -1 : response.body().contentLength();
   }
 
-  static String readHeader(InputStream in) throws IOException {
-    byte[] buf = new byte[256];
-    int pos = 0;
-    byte prev = -1;
-    int read;
-    while ((read = in.read()) != -1) {
-      if (prev == '\r' && read == '\n') {
-        return pos == 1 ? null : new String(buf, 0, pos - 1, ISO_8859_1);
-      }
-      if (pos == buf.length) {
-        buf = Arrays.copyOf(buf, buf.length * 2);
-      }
-      prev = (byte) read;
-      buf[pos++] = prev;
-    }
-    throw new IOException("Body ended before finding multipart delimiter");
+  static boolean isGzipEncoded(Response response) {
+    return "gzip".equalsIgnoreCase(response.header("Content-Encoding"));
   }
 
   /**
@@ -399,11 +623,12 @@ public class HttpClient {
    */
   static byte[] getBoundary(final MediaType mediaType) throws IOException {
     if (!"byteranges".equals(mediaType.subtype())) {
-      throw new IOException("Invalid multipart subtype " + mediaType.subtype() + ", expected 'byteranges'");
+      throw new InvalidResponseException(
+          "Invalid multipart subtype " + mediaType.subtype() + ", expected 'byteranges'");
     }
     final List<String> value = mediaType.parameters().get("boundary");
     if (value.isEmpty()) {
-      throw new IOException("Missing multipart boundary parameter");
+      throw new InvalidResponseException("Missing multipart boundary parameter");
     }
     return value.get(0).getBytes(ISO_8859_1);
   }
@@ -424,7 +649,7 @@ public class HttpClient {
     try {
       return MediaType.parse(contentType);
     } catch (IllegalArgumentException e) {
-      throw new IOException("Failed to parse Content-Type header " + contentType, e);
+      throw new InvalidResponseException("Failed to parse Content-Type header " + contentType, e);
     }
   }
 
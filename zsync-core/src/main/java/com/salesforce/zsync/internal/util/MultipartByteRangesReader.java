@@ -0,0 +1,222 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal.util;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+
+import com.salesforce.zsync.http.ContentRange;
+
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
+
+/**
+ * Streaming reader for <code>multipart/byteranges</code> response bodies. The framing is parsed in place on the
+ * buffered segments of the underlying source: the first delimiter is located by byte search, subsequent delimiters are
+ * expected right after the end of the preceding part, and Content-Range header values are parsed as bytes, so that no
+ * arrays or strings are allocated per part. Part bodies are exposed as a channel reading straight from the source.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc7233#appendix-A">RFC 7233 Appendix A</a>
+ * @author bbusjaeger
+ */
+public class MultipartByteRangesReader {
+
+  private static final ByteString CRLF = ByteString.encodeUtf8("\r\n");
+  private static final ByteString DASHES = ByteString.encodeUtf8("--");
+  private static final ByteString CONTENT_RANGE = ByteString.encodeUtf8("content-range:");
+  private static final ByteString BYTES_UNIT = ByteString.encodeUtf8("bytes ");
+
+  private final BufferedSource source;
+  private final ByteString delimiter;
+  private final BufferedSourceChannel part;
+  private boolean first = true;
+  // position of the next byte to parse within the current header line
+  private long cursor;
+
+  /**
+   * @param source Response body positioned at the beginning of the multipart body
+   * @param boundary Value of the boundary parameter of the multipart media type
+   */
+  public MultipartByteRangesReader(BufferedSource source, byte[] boundary) {
+    this.source = source;
+    final byte[] delimiter = new byte[boundary.length + 2];
+    delimiter[0] = delimiter[1] = '-';
+    System.arraycopy(boundary, 0, delimiter, 2, boundary.length);
+    this.delimiter = ByteString.of(delimiter);
+    this.part = new BufferedSourceChannel(source, 0);
+  }
+
+  /**
+   * Advances to the next part and returns its content range, or null if the close delimiter has been reached. Bytes of
+   * the previous part not consumed via {@link #body()} are skipped.
+   *
+   * @return
+   * @throws IOException if the body is not a well-formed multipart/byteranges body
+   */
+  public ContentRange nextPart() throws IOException {
+    if (this.part.remaining() > 0) {
+      this.source.skip(this.part.remaining());
+      this.part.limit(0);
+    }
+    if (this.first) {
+      // the preamble before the first delimiter is ignored
+      final long index = this.source.indexOf(this.delimiter);
+      if (index == -1) {
+        throw new IOException("Invalid multipart boundary");
+      }
+      this.source.skip(index + this.delimiter.size());
+      this.first = false;
+    } else {
+      if (!this.startsWith(CRLF, 0) || !this.startsWith(this.delimiter, CRLF.size())) {
+        throw new IOException("Invalid multipart boundary");
+      }
+      this.source.skip(CRLF.size() + this.delimiter.size());
+    }
+    if (this.startsWith(DASHES, 0)) {
+      // close delimiter: the epilogue is ignored
+      return null;
+    }
+    if (!this.startsWith(CRLF, 0)) {
+      throw new IOException("Missing control line feed");
+    }
+    this.source.skip(CRLF.size());
+
+    ContentRange range = null;
+    while (true) {
+      final long lf = this.source.indexOf((byte) '\n');
+      if (lf == -1) {
+        throw new IOException("Body ended before finding multipart delimiter");
+      }
+      final Buffer buffer = this.source.buffer();
+      if (lf == 0 || buffer.getByte(lf - 1) != '\r') {
+        throw new IOException("Missing control line feed");
+      }
+      if (lf == 1) {
+        this.source.skip(2);
+        break;
+      }
+      if (regionMatchesIgnoreCase(buffer, 0, lf - 1, CONTENT_RANGE)) {
+        if (range != null) {
+          throw new IOException("Multiple content range headers in multipart");
+        }
+        range = this.parseContentRange(buffer, CONTENT_RANGE.size(), lf - 1);
+      }
+      this.source.skip(lf + 1);
+    }
+    if (range == null) {
+      throw new IOException("Missing Content-Range header in multipart");
+    }
+    this.part.limit(range.length());
+    return range;
+  }
+
+  /**
+   * Channel over the body of the current part. Returns end of stream once the number of bytes given by the content
+   * range of the part have been read. The channel is reused across parts and closing it has no effect.
+   *
+   * @return
+   */
+  public ReadableByteChannel body() {
+    return this.part;
+  }
+
+  private boolean startsWith(ByteString prefix, long offset) throws IOException {
+    if (!this.source.request(offset + prefix.size())) {
+      return false;
+    }
+    return regionMatches(this.source.buffer(), offset, prefix);
+  }
+
+  static boolean regionMatches(Buffer buffer, long offset, ByteString prefix) {
+    for (int i = 0; i < prefix.size(); i++) {
+      if (buffer.getByte(offset + i) != prefix.getByte(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Compares the given region to the given lower case prefix ignoring the case of ASCII letters in the region.
+   */
+  static boolean regionMatchesIgnoreCase(Buffer buffer, long offset, long end, ByteString lowerCasePrefix) {
+    if (end - offset < lowerCasePrefix.size()) {
+      return false;
+    }
+    for (int i = 0; i < lowerCasePrefix.size(); i++) {
+      byte b = buffer.getByte(offset + i);
+      if (b >= 'A' && b <= 'Z') {
+        b += 'a' - 'A';
+      }
+      if (b != lowerCasePrefix.getByte(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Parses a Content-Range header value of the form <code>bytes first-last/length</code> from the given region of the
+   * buffer. The complete length is not validated, consistent with {@link HttpClient#parseContentRange(String)}.
+   */
+  ContentRange parseContentRange(Buffer buffer, long offset, long end) throws IOException {
+    this.cursor = offset;
+    while (this.cursor < end && (buffer.getByte(this.cursor) == ' ' || buffer.getByte(this.cursor) == '\t')) {
+      this.cursor++;
+    }
+    if (end - this.cursor < BYTES_UNIT.size() || !regionMatches(buffer, this.cursor, BYTES_UNIT)) {
+      throw new IOException("Unrecognized bytes-unit in multipart Content-Range (only \"bytes\" supported)");
+    }
+    this.cursor += BYTES_UNIT.size();
+    final long first = this.parseDecimal(buffer, end, '-');
+    final long last = this.parseDecimal(buffer, end, '/');
+    if (last < first) {
+      throw new IOException("Invalid multipart Content-Range: last-byte-pos before first-byte-pos");
+    }
+    return new ContentRange(first, last);
+  }
+
+  /**
+   * Parses a non-negative decimal number at the cursor terminated by the given separator and advances the cursor past
+   * the separator.
+   */
+  private long parseDecimal(Buffer buffer, long end, char separator) throws IOException {
+    final long start = this.cursor;
+    long value = 0;
+    while (this.cursor < end) {
+      final byte b = buffer.getByte(this.cursor++);
+      if (b == separator && this.cursor - 1 > start) {
+        return value;
+      }
+      if (b < '0' || b > '9' || this.cursor - start > 18) {
+        break;
+      }
+      value = value * 10 + (b - '0');
+    }
+    throw new IOException("Invalid multipart Content-Range: expected digits followed by '" + separator + "'");
+  }
+}
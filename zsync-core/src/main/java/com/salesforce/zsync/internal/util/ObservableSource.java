@@ -0,0 +1,81 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal.util;
+
+import java.io.IOException;
+
+import com.salesforce.zsync.internal.util.TransferListener.ResourceTransferListener;
+
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.Source;
+
+/**
+ * An okio source wrapper that lets you observe bytes read from the wrapped {@link Source}.
+ *
+ * @author bbusjaeger
+ */
+public class ObservableSource extends ForwardingSource {
+
+  private final TransferListener observer;
+
+  public ObservableSource(Source source, TransferListener observer) {
+    super(source);
+    this.observer = observer;
+  }
+
+  @Override
+  public long read(Buffer sink, long byteCount) throws IOException {
+    final long read = super.read(sink, byteCount);
+    if (read > 0) {
+      this.observer.transferred(read);
+    }
+    return read;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      super.close();
+    } finally {
+      this.observer.close();
+    }
+  }
+
+  /**
+   * A source wrapper that lets you observe bytes of a resource with up-front known size.
+   *
+   * @author bbusjaeger
+   */
+  public static class ObservableResourceSource<T> extends ObservableSource {
+
+    public ObservableResourceSource(Source source, ResourceTransferListener<T> observer, T resource, long size) {
+      super(source, observer);
+      observer.start(resource, size);
+    }
+  }
+
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal.util;
+
+import static java.net.HttpURLConnection.HTTP_PARTIAL;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.salesforce.zsync.http.ContentRange;
+import com.salesforce.zsync.http.Credentials;
+import com.salesforce.zsync.transport.Cancellation;
+import com.salesforce.zsync.transport.RangeReceiver;
+import com.salesforce.zsync.transport.ResponseType;
+import com.salesforce.zsync.transport.Transport;
+import com.salesforce.zsync.transport.TransportListener;
+import com.salesforce.zsync.transport.TransportStatusException;
+import com.salesforce.zsync.internal.util.HttpClient.HttpError;
+import com.salesforce.zsync.internal.util.HttpClient.HttpTransferListener;
+import com.salesforce.zsync.internal.util.HttpClient.RangeTransferListener;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+/**
+ * Default {@link Transport} issuing http requests via {@link HttpClient}
+ * <p>
+ * Hosts that answered over HTTP/2 or SPDY are sent {@link #MULTIPLEXED_STREAMS} concurrent range requests. OkHttp 2.x
+ * only negotiates these protocols over TLS with ALPN: on Java 7 and 8 this requires the jetty alpn-boot jar matching
+ * the exact JVM version on the boot class path ({@code -Xbootclasspath/p}); on Java 9 and later OkHttp 2.x does not
+ * find the platform's ALPN support at all. Without ALPN every host is served HTTP/1.1 and ranges are requested in
+ * multipart batches over a single connection instead.
+ *
+ * @author bbusjaeger
+ */
+public class OkHttpTransport implements Transport {
+
+  // concurrent range requests worth issuing to hosts serving HTTP/2 or SPDY
+  static final int MULTIPLEXED_STREAMS = 8;
+
+  private final HttpClient httpClient;
+
+  public OkHttpTransport(OkHttpClient okHttpClient) {
+    this(HttpClient.newHttpClient(okHttpClient));
+  }
+
+  public OkHttpTransport(HttpClient httpClient) {
+    this.httpClient = httpClient;
+  }
+
+  @Override
+  public InputStream get(URI uri, Map<String, ? extends Credentials> credentials, TransportListener listener,
+      Cancellation cancellation) throws IOException {
+    try {
+      return this.httpClient.get(uri, credentials, adapt(listener, Collections.<ContentRange>emptyList()),
+          cancellation);
+    } catch (HttpError e) {
+      throw status(e);
+    }
+  }
+
+  @Override
+  public InputStream getIfModifiedSince(URI uri, long ifModifiedSince, Map<String, ? extends Credentials> credentials,
+      TransportListener listener, Cancellation cancellation) throws IOException {
+    try {
+      return this.httpClient.getIfModifiedSince(uri, ifModifiedSince, credentials,
+          adapt(listener, Collections.<ContentRange>emptyList()), cancellation);
+    } catch (HttpError e) {
+      throw status(e);
+    }
+  }
+
+  @Override
+  public void getRanges(URI uri, List<ContentRange> ranges, Map<String, ? extends Credentials> credentials,
+      RangeReceiver receiver, final TransportListener listener, Cancellation cancellation) throws IOException {
+    try {
+      this.httpClient.partialGet(uri, ranges, credentials, receiver, new RangeTransferListener() {
+        @Override
+        public void planned(List<ContentRange> ranges, int maxRanges, long maxBytes) {
+          listener.planned(ranges, maxRanges, maxBytes);
+        }
+
+        @Override
+        public HttpTransferListener newTransfer(List<ContentRange> ranges) {
+          return adapt(listener, ranges);
+        }
+      }, cancellation);
+    } catch (HttpError e) {
+      throw status(e);
+    }
+  }
+
+  @Override
+  public int getConcurrency(URI uri) {
+    return this.httpClient.isMultiplexed(uri) ? MULTIPLEXED_STREAMS : 1;
+  }
+
+  private static TransportStatusException status(HttpError e) {
+    return new TransportStatusException(e.getMessage(), e.getCode(), e);
+  }
+
+  /**
+   * Reports the events of a single request to the given listener, completing it only if the request was initiated
+   */
+  private static HttpTransferListener adapt(final TransportListener listener, final List<ContentRange> ranges) {
+    return new HttpTransferListener() {
+      private boolean initiated;
+
+      @Override
+      public void initiating(Request request) {
+        this.initiated = true;
+        listener.initiating(uri(request), ranges);
+      }
+
+      @Override
+      public void start(Response response, long length) {
+        listener.started(uri(response.request()), type(response), length);
+      }
+
+      @Override
+      public void transferred(long bytes) {
+        listener.transferred(bytes);
+      }
+
+      @Override
+      public void close() {
+        if (this.initiated) {
+          this.initiated = false;
+          listener.completed();
+        }
+      }
+    };
+  }
+
+  private static ResponseType type(Response response) {
+    if (response.code() != HTTP_PARTIAL) {
+      return ResponseType.FULL;
+    }
+    final String contentType = response.header("Content-Type");
+    return contentType != null && contentType.toLowerCase().startsWith("multipart/") ? ResponseType.MULTIPART
+        : ResponseType.SINGLE_PART;
+  }
+
+  private static URI uri(Request request) {
+    try {
+      return request.uri();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
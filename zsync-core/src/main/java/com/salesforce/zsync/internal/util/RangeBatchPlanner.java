@@ -0,0 +1,156 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal.util;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.salesforce.zsync.http.ContentRange;
+
+/**
+ * Decides which of the remaining ranges to request next in a single http range request. A batch is limited by
+ * <ul>
+ * <li>the number of ranges, starting at 100: doubled while requests are dominated by round trip time rather than
+ * transfer time, and reduced if the server rejects a request with 413 or 416 or ignores a multi-range request with a
+ * 200 response,</li>
+ * <li>the length of the Range header, to stay below common server limits on request header size, and</li>
+ * <li>the number of bytes, sized from the measured throughput so that a request takes about two seconds.</li>
+ * </ul>
+ * A batch always includes at least one range.
+ *
+ * @author bbusjaeger
+ */
+public class RangeBatchPlanner {
+
+  static final int INITIAL_MAX_RANGES = 100;
+  static final int MAX_RANGES_CEILING = 1000;
+  // common servers limit request header lines or total header size to 8K
+  static final int MAX_RANGE_HEADER_LENGTH = 4096;
+  static final long TARGET_REQUEST_MILLIS = 2000;
+  static final long MIN_BATCH_BYTES = 256 * 1024;
+
+  private int maxRanges = INITIAL_MAX_RANGES;
+  private long maxBytes = Long.MAX_VALUE;
+  // exponentially weighted averages of observed values, negative until first measured
+  private double roundTripMillis = -1;
+  private double bytesPerMilli = -1;
+
+  public int getMaxRanges() {
+    return this.maxRanges;
+  }
+
+  public long getMaxBytes() {
+    return this.maxBytes;
+  }
+
+  /**
+   * Returns the next batch of ranges to request, taken in order from the given remaining ranges.
+   *
+   * @param remaining
+   * @return
+   */
+  public List<ContentRange> next(Iterable<ContentRange> remaining) {
+    final ImmutableList.Builder<ContentRange> batch = ImmutableList.builder();
+    int count = 0;
+    long bytes = 0;
+    int headerLength = "bytes=".length();
+    for (ContentRange range : remaining) {
+      final int rangeLength = digits(range.first()) + 1 + digits(range.last()) + (count == 0 ? 0 : 1);
+      if (count > 0 && (count == this.maxRanges || bytes + range.length() > this.maxBytes
+          || headerLength + rangeLength > MAX_RANGE_HEADER_LENGTH)) {
+        break;
+      }
+      batch.add(range);
+      count++;
+      bytes += range.length();
+      headerLength += rangeLength;
+    }
+    return batch.build();
+  }
+
+  /**
+   * Records a successfully completed request.
+   *
+   * @param batch The ranges retrieved
+   * @param headerNanos Time from sending the request to receiving the response header
+   * @param totalNanos Time from sending the request to receiving the last byte
+   */
+  public void completed(List<ContentRange> batch, long headerNanos, long totalNanos) {
+    long bytes = 0;
+    for (ContentRange range : batch) {
+      bytes += range.length();
+    }
+    final double rtt = max(headerNanos, 1) / 1e6;
+    final double transfer = max(totalNanos - headerNanos, 1) / 1e6;
+    this.roundTripMillis = average(this.roundTripMillis, rtt);
+    this.bytesPerMilli = average(this.bytesPerMilli, bytes / transfer);
+
+    this.maxBytes = max(MIN_BATCH_BYTES, (long) (this.bytesPerMilli * TARGET_REQUEST_MILLIS));
+    // if waiting for the response takes a significant share of the request, fewer larger requests are faster
+    if (batch.size() == this.maxRanges && transfer < 4 * this.roundTripMillis) {
+      this.maxRanges = min(MAX_RANGES_CEILING, this.maxRanges * 2);
+    }
+  }
+
+  /**
+   * Reduces the number of ranges per request after the server rejected the given batch. Returns false if the batch
+   * cannot be split any further, in which case the rejection is not caused by the batch size.
+   *
+   * @param batch
+   * @return
+   */
+  public boolean rejected(List<ContentRange> batch) {
+    if (batch.size() <= 1) {
+      return false;
+    }
+    this.maxRanges = batch.size() / 2;
+    return true;
+  }
+
+  /**
+   * Limits subsequent requests to a single range after the server responded to a multi-range request with the full
+   * content.
+   */
+  public void collapsed() {
+    this.maxRanges = 1;
+  }
+
+  private static double average(double average, double value) {
+    return average < 0 ? value : 0.7 * average + 0.3 * value;
+  }
+
+  private static int digits(long value) {
+    int digits = 1;
+    while (value >= 10) {
+      value /= 10;
+      digits++;
+    }
+    return digits;
+  }
+}
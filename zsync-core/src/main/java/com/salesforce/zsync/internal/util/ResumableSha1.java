@@ -0,0 +1,206 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal.util;
+
+import java.security.MessageDigest;
+
+/**
+ * SHA-1 digest whose intermediate state can be saved and restored, so that the digest of a file that only grows can be
+ * updated by hashing just the appended bytes. The state is checkpointed at the last complete 64 byte block whenever
+ * the digest is computed; bytes after the checkpoint have to be fed again when resuming.
+ *
+ * @author bbusjaeger
+ */
+public class ResumableSha1 extends MessageDigest {
+
+  private static final int[] INITIAL_STATE = {0x67452301, 0xEFCDAB89, 0x98BADCFE, 0x10325476, 0xC3D2E1F0};
+
+  private final int[] state = new int[5];
+  private final int[] w = new int[80];
+  private final byte[] buffer = new byte[64];
+  private int buffered;
+  private long length;
+
+  private int[] checkpointState;
+  private long checkpointLength;
+
+  public ResumableSha1() {
+    super("SHA-1");
+    this.engineReset();
+    this.checkpointState = INITIAL_STATE.clone();
+  }
+
+  /**
+   * Resumes the digest from a checkpoint previously obtained from {@link #getCheckpointState()} and
+   * {@link #getCheckpointLength()}.
+   *
+   * @param state
+   * @param length Number of bytes digested at the checkpoint, a multiple of 64
+   */
+  public ResumableSha1(int[] state, long length) {
+    super("SHA-1");
+    if (state.length != 5 || length < 0 || length % 64 != 0) {
+      throw new IllegalArgumentException("Invalid SHA-1 checkpoint");
+    }
+    System.arraycopy(state, 0, this.state, 0, 5);
+    this.length = length;
+    this.checkpointState = state.clone();
+    this.checkpointLength = length;
+  }
+
+  /**
+   * State as of the last complete block before the digest was last computed, or the state resumed from
+   *
+   * @return
+   */
+  public int[] getCheckpointState() {
+    return this.checkpointState.clone();
+  }
+
+  /**
+   * Number of bytes digested at the checkpoint, i.e. the offset at which to continue feeding bytes after resuming
+   *
+   * @return
+   */
+  public long getCheckpointLength() {
+    return this.checkpointLength;
+  }
+
+  @Override
+  protected int engineGetDigestLength() {
+    return 20;
+  }
+
+  @Override
+  protected void engineUpdate(byte input) {
+    this.buffer[this.buffered++] = input;
+    this.length++;
+    if (this.buffered == 64) {
+      this.compress(this.buffer, 0);
+      this.buffered = 0;
+    }
+  }
+
+  @Override
+  protected void engineUpdate(byte[] input, int offset, int len) {
+    this.length += len;
+    if (this.buffered > 0) {
+      final int n = Math.min(len, 64 - this.buffered);
+      System.arraycopy(input, offset, this.buffer, this.buffered, n);
+      this.buffered += n;
+      offset += n;
+      len -= n;
+      if (this.buffered < 64) {
+        return;
+      }
+      this.compress(this.buffer, 0);
+      this.buffered = 0;
+    }
+    while (len >= 64) {
+      this.compress(input, offset);
+      offset += 64;
+      len -= 64;
+    }
+    System.arraycopy(input, offset, this.buffer, 0, len);
+    this.buffered = len;
+  }
+
+  @Override
+  protected byte[] engineDigest() {
+    this.checkpointState = this.state.clone();
+    this.checkpointLength = this.length - this.buffered;
+
+    final long bits = this.length << 3;
+    this.engineUpdate((byte) 0x80);
+    while (this.buffered != 56) {
+      this.engineUpdate((byte) 0);
+    }
+    for (int i = 7; i >= 0; i--) {
+      this.engineUpdate((byte) (bits >>> (i * 8)));
+    }
+    final byte[] digest = new byte[20];
+    for (int i = 0; i < 5; i++) {
+      digest[i * 4] = (byte) (this.state[i] >>> 24);
+      digest[i * 4 + 1] = (byte) (this.state[i] >>> 16);
+      digest[i * 4 + 2] = (byte) (this.state[i] >>> 8);
+      digest[i * 4 + 3] = (byte) this.state[i];
+    }
+    this.engineReset();
+    return digest;
+  }
+
+  @Override
+  protected void engineReset() {
+    System.arraycopy(INITIAL_STATE, 0, this.state, 0, 5);
+    this.buffered = 0;
+    this.length = 0;
+  }
+
+  private void compress(byte[] block, int offset) {
+    final int[] w = this.w;
+    for (int i = 0; i < 16; i++) {
+      final int j = offset + i * 4;
+      w[i] = (block[j] << 24) | ((block[j + 1] & 0xff) << 16) | ((block[j + 2] & 0xff) << 8) | (block[j + 3] & 0xff);
+    }
+    for (int i = 16; i < 80; i++) {
+      w[i] = Integer.rotateLeft(w[i - 3] ^ w[i - 8] ^ w[i - 14] ^ w[i - 16], 1);
+    }
+    int a = this.state[0];
+    int b = this.state[1];
+    int c = this.state[2];
+    int d = this.state[3];
+    int e = this.state[4];
+    for (int i = 0; i < 80; i++) {
+      final int f;
+      final int k;
+      if (i < 20) {
+        f = (b & c) | (~b & d);
+        k = 0x5A827999;
+      } else if (i < 40) {
+        f = b ^ c ^ d;
+        k = 0x6ED9EBA1;
+      } else if (i < 60) {
+        f = (b & c) | (b & d) | (c & d);
+        k = 0x8F1BBCDC;
+      } else {
+        f = b ^ c ^ d;
+        k = 0xCA62C1D6;
+      }
+      final int t = Integer.rotateLeft(a, 5) + f + e + k + w[i];
+      e = d;
+      d = c;
+      c = Integer.rotateLeft(b, 30);
+      b = a;
+      a = t;
+    }
+    this.state[0] += a;
+    this.state[1] += b;
+    this.state[2] += c;
+    this.state[3] += d;
+    this.state[4] += e;
+  }
+
+}
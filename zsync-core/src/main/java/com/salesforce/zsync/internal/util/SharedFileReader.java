@@ -0,0 +1,243 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lets several consumers read the same file while reading each chunk of it from disk only once, as
+ * long as the consumers run concurrently. Chunks are kept until every open consumer has moved past
+ * them; a consumer that gets more than a given number of chunks ahead of the slowest one waits for
+ * it to catch up. Consumers should therefore only be created by the thread that reads from them,
+ * once it is ready to do so: consumers created later, for example because their tasks were queued
+ * on an executor, read the chunks no longer kept from disk again instead of holding up the others.
+ * Hence consumers never wait for each other indefinitely, regardless of how they are scheduled. Chunks
+ * are read from disk without holding the lock shared by the consumers, so a consumer only waits for
+ * the read of a chunk it needs itself.
+ *
+ * @author bbusjaeger
+ */
+public class SharedFileReader {
+
+  private final FileChannel channel;
+  private final int chunkSize;
+  private final int window;
+  private final ReentrantLock lock;
+  private final Condition advanced;
+  private final TreeMap<Long, Chunk> chunks;
+  private final List<Consumer> active;
+  private long bytesRead;
+
+  /**
+   * Creates a new reader
+   *
+   * @param channel File to read, only read with positional reads
+   * @param chunkSize Size of the chunks the file is read in
+   * @param window Maximum number of chunks a consumer may get ahead of the slowest one
+   */
+  public SharedFileReader(FileChannel channel, int chunkSize, int window) {
+    if (channel == null) {
+      throw new IllegalArgumentException("channel must not be null");
+    }
+    if (chunkSize <= 0 || window <= 0) {
+      throw new IllegalArgumentException("chunk size and window must be positive");
+    }
+    this.channel = channel;
+    this.chunkSize = chunkSize;
+    this.window = window;
+    this.lock = new ReentrantLock();
+    this.advanced = this.lock.newCondition();
+    this.chunks = new TreeMap<>();
+    this.active = new ArrayList<>();
+  }
+
+  /**
+   * Returns a new channel over the full content of the file for a single consumer. The channel must
+   * be closed once the consumer is done, so that other consumers no longer wait for it.
+   *
+   * @return
+   */
+  public ReadableByteChannel newChannel() {
+    final Consumer consumer = new Consumer();
+    this.lock.lock();
+    try {
+      this.active.add(consumer);
+    } finally {
+      this.lock.unlock();
+    }
+    return consumer;
+  }
+
+  /**
+   * Returns the number of bytes read from the file so far
+   *
+   * @return
+   */
+  public long getBytesRead() {
+    this.lock.lock();
+    try {
+      return this.bytesRead;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  private ByteBuffer chunk(Consumer consumer, long index) throws IOException {
+    final Chunk chunk;
+    this.lock.lock();
+    try {
+      consumer.index = index;
+      this.evict();
+      this.advanced.signalAll();
+      while (index - this.minIndex() >= this.window) {
+        this.advanced.await();
+      }
+      Chunk existing;
+      while ((existing = this.chunks.get(index)) != null && existing.data == null) {
+        // being read by another consumer
+        this.advanced.await();
+      }
+      if (existing != null) {
+        return existing.data.asReadOnlyBuffer();
+      }
+      chunk = new Chunk();
+      this.chunks.put(index, chunk);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for other consumers of shared file");
+    } finally {
+      this.lock.unlock();
+    }
+
+    final ByteBuffer data = ByteBuffer.allocate(this.chunkSize);
+    final long position = index * this.chunkSize;
+    long bytes = 0;
+    boolean read = false;
+    try {
+      int n;
+      while (data.hasRemaining() && (n = this.channel.read(data, position + data.position())) != -1) {
+        bytes += n;
+      }
+      data.flip();
+      read = true;
+    } finally {
+      this.lock.lock();
+      try {
+        this.bytesRead += bytes;
+        if (read) {
+          chunk.data = data;
+        } else if (this.chunks.get(index) == chunk) {
+          // let a waiting consumer read it instead
+          this.chunks.remove(index);
+        }
+        this.advanced.signalAll();
+      } finally {
+        this.lock.unlock();
+      }
+    }
+    return data.asReadOnlyBuffer();
+  }
+
+  private void close(Consumer consumer) {
+    this.lock.lock();
+    try {
+      this.active.remove(consumer);
+      this.evict();
+      this.advanced.signalAll();
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  private long minIndex() {
+    long min = Long.MAX_VALUE;
+    for (Consumer consumer : this.active) {
+      min = Math.min(min, consumer.index);
+    }
+    return min;
+  }
+
+  private void evict() {
+    this.chunks.headMap(this.minIndex()).clear();
+  }
+
+  private static class Chunk {
+    // null while being read
+    private ByteBuffer data;
+  }
+
+  private class Consumer implements ReadableByteChannel {
+
+    private long index = -1;
+    private ByteBuffer current;
+    private boolean open = true;
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+      if (!this.open) {
+        throw new ClosedChannelException();
+      }
+      if (this.current == null || !this.current.hasRemaining()) {
+        if (this.current != null && this.current.limit() < SharedFileReader.this.chunkSize) {
+          return -1;
+        }
+        this.current = SharedFileReader.this.chunk(this, this.index + 1);
+        if (!this.current.hasRemaining()) {
+          return -1;
+        }
+      }
+      final int n = Math.min(this.current.remaining(), dst.remaining());
+      final ByteBuffer slice = this.current.duplicate();
+      slice.limit(slice.position() + n);
+      dst.put(slice);
+      this.current.position(this.current.position() + n);
+      return n;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return this.open;
+    }
+
+    @Override
+    public void close() {
+      if (this.open) {
+        this.open = false;
+        SharedFileReader.this.close(this);
+      }
+    }
+  }
+}
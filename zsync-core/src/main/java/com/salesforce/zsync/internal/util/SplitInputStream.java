@@ -46,6 +46,8 @@ public class SplitInputStream extends InputStream {
   private int pos = 0;
   // if we read too far to find boundary, prepend bytes to next input stream to read them again
   private ByteArrayInputStream prefix;
+  // number of bytes returned up to and including the boundary
+  private long count = 0;
 
   public SplitInputStream(InputStream in, byte[] boundary) {
     this.in = in;
@@ -66,6 +68,7 @@ public class SplitInputStream extends InputStream {
     if (next == -1) {
       return -1;
     }
+    this.count++;
     if (next == this.boundary[this.pos]) {
       if (++this.pos == this.boundary.length) {
         this.prefix = new ByteArrayInputStream(new byte[0], 0, 0);
@@ -99,15 +102,27 @@ public class SplitInputStream extends InputStream {
           final int r = next - off;
           final byte[] remaining = Arrays.copyOfRange(b, next, next + (read - r));
           this.prefix = new ByteArrayInputStream(remaining);
+          this.count += r;
           return r;
         }
       } else {
         this.pos = 0;
       }
     }
+    this.count += read;
     return read;
   }
 
+  /**
+   * Returns the number of bytes read from this stream, which once the boundary has been read is the offset of the
+   * stream returned by {@link #next()} in the underlying stream.
+   *
+   * @return
+   */
+  public long getCount() {
+    return this.count;
+  }
+
   /**
    * If the current stream was read up to (and including) the boundary, returns a new stream that
    * reads bytes starting at the boundary. Otherwise, throws an {@link IllegalStateException}.
@@ -0,0 +1,295 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ * disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Enumeration;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Servlet filter for the servlet serving remote files that compresses partial content responses with gzip, if the
+ * request accepts it, so that text heavy remote files are transferred with a fraction of the bytes on the wire. The
+ * filter announces itself with the {@value #ANNOUNCE_HEADER} header on every response it handles; the zsync client only
+ * accepts gzip for range requests to servers that announced it, since compressing ranges of resources that are
+ * already compressed wastes server cycles for no gain. The filter is placed in front of any servlet that already
+ * supports range requests, such as the default servlet of the container, and should be mapped to the control files as
+ * well, so that the client learns about it before its first range request:
+ *
+ * <pre>
+ * &lt;filter&gt;
+ *   &lt;filter-name&gt;compressedRanges&lt;/filter-name&gt;
+ *   &lt;filter-class&gt;com.salesforce.zsync.server.CompressedRangesFilter&lt;/filter-class&gt;
+ * &lt;/filter&gt;
+ * </pre>
+ *
+ * The encoding is applied to the selected ranges, i.e. the single range or the complete multipart/byteranges body, and
+ * not to the full representation the ranges refer to. Since caches may interpret partial responses differently,
+ * responses are marked <code>Cache-Control: no-transform</code> and vary by <code>Accept-Encoding</code>, and their
+ * entity tag is suffixed with <code>-gzip</code>, so that it does not match the identity encoded response. Responses
+ * other than 206 Partial Content and responses already carrying a Content-Encoding are passed through unchanged.
+ *
+ * @author bbusjaeger
+ *
+ */
+public class CompressedRangesFilter implements Filter {
+
+  /**
+   * Response header announcing that range requests accepting gzip are answered compressed
+   */
+  public static final String ANNOUNCE_HEADER = "Zsync-Compressed-Ranges";
+
+  @Override
+  public void init(FilterConfig filterConfig) {}
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+      throws IOException, ServletException {
+    if (response instanceof HttpServletResponse) {
+      ((HttpServletResponse) response).setHeader(ANNOUNCE_HEADER, "gzip");
+    }
+    if (!(request instanceof HttpServletRequest) || !acceptsGzip((HttpServletRequest) request)
+        || ((HttpServletRequest) request).getHeader("Range") == null) {
+      chain.doFilter(request, response);
+      return;
+    }
+    final CompressingResponse compressing = new CompressingResponse((HttpServletResponse) response);
+    chain.doFilter(request, compressing);
+    compressing.finish();
+  }
+
+  @Override
+  public void destroy() {}
+
+  static boolean acceptsGzip(HttpServletRequest request) {
+    final Enumeration<String> values = request.getHeaders("Accept-Encoding");
+    while (values != null && values.hasMoreElements()) {
+      for (String coding : values.nextElement().split(",")) {
+        final String[] params = coding.trim().split(";");
+        if ("gzip".equalsIgnoreCase(params[0].trim())) {
+          for (int i = 1; i < params.length; i++) {
+            if (params[i].trim().replace(" ", "").matches("q=0(\\.0*)?")) {
+              return false;
+            }
+          }
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Distinguishes the entity tag of the encoded response from that of the identity encoded one, keeping it weak or
+   * strong
+   */
+  static String encodedEtag(String etag) {
+    final int end = etag.lastIndexOf('"');
+    return end > 0 && etag.indexOf('"') < end ? etag.substring(0, end) + "-gzip" + etag.substring(end) : etag;
+  }
+
+  /**
+   * Withholds the content length until the body is first written, at which point the status decides whether to
+   * compress. Servlets commonly obtain the output stream before setting the status.
+   */
+  private static class CompressingResponse extends HttpServletResponseWrapper {
+
+    private long contentLength = -1;
+    private ServletOutputStream out;
+    private PrintWriter writer;
+    // decided on first write: the stream of the wrapped response or the gzip stream around it
+    private OutputStream target;
+    private GZIPOutputStream gzip;
+
+    CompressingResponse(HttpServletResponse response) {
+      super(response);
+    }
+
+    @Override
+    public void setContentLength(int len) {
+      this.setContentLengthLong(len);
+    }
+
+    @Override
+    public void setContentLengthLong(long len) {
+      if (this.target == null) {
+        this.contentLength = len;
+      } else if (this.gzip == null) {
+        super.setContentLengthLong(len);
+      }
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+      if ("Content-Length".equalsIgnoreCase(name)) {
+        this.setContentLengthLong(value == null ? -1 : Long.parseLong(value));
+      } else {
+        super.setHeader(name, value);
+      }
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+      if ("Content-Length".equalsIgnoreCase(name)) {
+        this.setContentLengthLong(Long.parseLong(value));
+      } else {
+        super.addHeader(name, value);
+      }
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+      if ("Content-Length".equalsIgnoreCase(name)) {
+        this.setContentLengthLong(value);
+      } else {
+        super.setIntHeader(name, value);
+      }
+    }
+
+    @Override
+    public void addIntHeader(String name, int value) {
+      if ("Content-Length".equalsIgnoreCase(name)) {
+        this.setContentLengthLong(value);
+      } else {
+        super.addIntHeader(name, value);
+      }
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+      if (this.out == null) {
+        final ServletOutputStream delegate = super.getOutputStream();
+        this.out = new ServletOutputStream() {
+          @Override
+          public void write(int b) throws IOException {
+            CompressingResponse.this.target().write(b);
+          }
+
+          @Override
+          public void write(byte[] b, int off, int len) throws IOException {
+            CompressingResponse.this.target().write(b, off, len);
+          }
+
+          @Override
+          public void flush() throws IOException {
+            CompressingResponse.this.target().flush();
+          }
+
+          @Override
+          public void close() throws IOException {
+            CompressingResponse.this.target().close();
+          }
+
+          @Override
+          public boolean isReady() {
+            return delegate.isReady();
+          }
+
+          @Override
+          public void setWriteListener(WriteListener writeListener) {
+            delegate.setWriteListener(writeListener);
+          }
+        };
+      }
+      return this.out;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+      if (this.writer == null) {
+        this.writer = new PrintWriter(new OutputStreamWriter(this.getOutputStream(), this.getCharacterEncoding()));
+      }
+      return this.writer;
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+      if (this.writer != null) {
+        this.writer.flush();
+      }
+      this.target().flush();
+      super.flushBuffer();
+    }
+
+    @Override
+    public void reset() {
+      if (this.target != null) {
+        throw new IllegalStateException("Response body already written");
+      }
+      super.reset();
+      this.contentLength = -1;
+    }
+
+    private OutputStream target() throws IOException {
+      if (this.target == null) {
+        final ServletOutputStream delegate = super.getOutputStream();
+        if (this.getStatus() != HttpServletResponse.SC_PARTIAL_CONTENT || this.containsHeader("Content-Encoding")) {
+          if (this.contentLength >= 0) {
+            super.setContentLengthLong(this.contentLength);
+          }
+          this.target = delegate;
+        } else {
+          super.setHeader("Content-Encoding", "gzip");
+          super.addHeader("Vary", "Accept-Encoding");
+          super.addHeader("Cache-Control", "no-transform");
+          final String etag = this.getHeader("ETag");
+          if (etag != null) {
+            super.setHeader("ETag", encodedEtag(etag));
+          }
+          this.gzip = new GZIPOutputStream(delegate, 8192, true);
+          this.target = this.gzip;
+        }
+      }
+      return this.target;
+    }
+
+    /**
+     * Completes the compressed body, or applies the content length withheld from a response without a body
+     */
+    void finish() throws IOException {
+      if (this.writer != null) {
+        this.writer.flush();
+      }
+      if (this.gzip != null) {
+        this.gzip.finish();
+      } else if (this.target == null && this.contentLength >= 0 && !this.isCommitted()) {
+        super.setContentLengthLong(this.contentLength);
+      }
+    }
+  }
+}
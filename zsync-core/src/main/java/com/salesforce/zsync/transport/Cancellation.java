@@ -0,0 +1,114 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ * disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Allows aborting the requests issued on behalf of one operation from another thread. Cancelling aborts the request
+ * currently in progress, including a response body still being transferred, and causes subsequent requests to fail
+ * with an IOException. Requests issued concurrently on behalf of the same operation each use their own
+ * {@link #fork() forked} cancellation.
+ *
+ * @author bbusjaeger
+ */
+public class Cancellation {
+  private volatile boolean cancelled;
+  private volatile Closeable request;
+  private final List<Cancellation> children = new CopyOnWriteArrayList<>();
+  private final Cancellation parent;
+
+  public Cancellation() {
+    this(null);
+  }
+
+  private Cancellation(Cancellation parent) {
+    this.parent = parent;
+  }
+
+  public void cancel() {
+    this.cancelled = true;
+    abort(this.request);
+    for (Cancellation child : this.children) {
+      child.cancel();
+    }
+  }
+
+  public boolean isCancelled() {
+    return this.cancelled;
+  }
+
+  /**
+   * Returns a new cancellation that is cancelled along with this one. The returned cancellation should be
+   * {@link #release() released} once the requests it was forked for are done.
+   */
+  public Cancellation fork() {
+    final Cancellation child = new Cancellation(this);
+    this.children.add(child);
+    // re-check after publishing the child, so that a concurrent cancel either sees the child or is seen here
+    if (this.cancelled) {
+      child.cancel();
+    }
+    return child;
+  }
+
+  /**
+   * Detaches this cancellation from the one it was forked from, so that it is no longer retained or cancelled by it
+   */
+  public void release() {
+    this.request = null;
+    if (this.parent != null) {
+      this.parent.children.remove(this);
+    }
+  }
+
+  /**
+   * Registers the request about to be issued, replacing the previous one. Closing the given handle must abort the
+   * request. Transports call this before each request.
+   *
+   * @param request
+   * @throws IOException if already cancelled
+   */
+  public void register(Closeable request) throws IOException {
+    this.request = request;
+    // re-check after publishing the request, so that a concurrent cancel either sees the request or is seen here
+    if (this.cancelled) {
+      abort(request);
+      throw new IOException("Canceled");
+    }
+  }
+
+  private static void abort(Closeable request) {
+    if (request != null) {
+      try {
+        request.close();
+      } catch (IOException e) {
+        // ignore, the request fails either way
+      }
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ * disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+
+import com.salesforce.zsync.http.ContentRange;
+import com.salesforce.zsync.http.Credentials;
+
+/**
+ * Retrieves the zsync control file and ranges of the remote file on behalf of {@link com.salesforce.zsync.Zsync}. The
+ * default implementation issues http requests via OkHttp; alternative implementations may use a different http stack,
+ * read from a locally mounted origin, or serve content from memory, choosing their own concurrency and copy
+ * strategies.
+ * <p>
+ * Implementations must be safe for use by multiple threads. Each operation reports progress to the given listener as
+ * described by {@link TransportListener}. A request that fails because the origin responded with an unexpected status
+ * is signaled with a {@link TransportStatusException}, a missing resource with status 404. A response that does not
+ * match the request, which is not retried, is signaled with an {@link InvalidResponseException}.
+ *
+ * @author bbusjaeger
+ */
+public interface Transport {
+
+  /**
+   * Retrieves the full content of the resource referred to by the given uri. The listener is completed once the
+   * returned stream is closed.
+   *
+   * @param uri
+   * @param credentials credentials by host name, may be empty
+   * @param listener
+   * @param cancellation optional cancellation to abort the transfer with
+   * @return
+   * @throws IOException
+   */
+  InputStream get(URI uri, Map<String, ? extends Credentials> credentials, TransportListener listener,
+      Cancellation cancellation) throws IOException;
+
+  /**
+   * Same as {@link #get(URI, Map, TransportListener, Cancellation)}, but only retrieves the content if the resource
+   * has been modified after the given time.
+   *
+   * @param uri
+   * @param ifModifiedSince time in milliseconds since the epoch
+   * @param credentials credentials by host name, may be empty
+   * @param listener
+   * @param cancellation optional cancellation to abort the transfer with
+   * @return the content, or null if the resource has not been modified
+   * @throws IOException
+   */
+  InputStream getIfModifiedSince(URI uri, long ifModifiedSince, Map<String, ? extends Credentials> credentials,
+      TransportListener listener, Cancellation cancellation) throws IOException;
+
+  /**
+   * Retrieves the given ranges of the resource referred to by the given uri and passes each of them to the receiver.
+   * Ranges may be passed in any order and may be retrieved in as many requests as the implementation sees fit.
+   *
+   * @param uri
+   * @param ranges sorted, non-overlapping ranges to retrieve
+   * @param credentials credentials by host name, may be empty
+   * @param receiver
+   * @param listener
+   * @param cancellation optional cancellation to abort the transfers with
+   * @throws IOException
+   */
+  void getRanges(URI uri, List<ContentRange> ranges, Map<String, ? extends Credentials> credentials,
+      RangeReceiver receiver, TransportListener listener, Cancellation cancellation) throws IOException;
+
+  /**
+   * Number of {@link #getRanges} invocations worth issuing concurrently for the given uri, for example because the
+   * requests are multiplexed over a single connection.
+   *
+   * @param uri
+   * @return
+   */
+  int getConcurrency(URI uri);
+
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following
+ * disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or promote products
+ * derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.transport;
+
+import java.net.URI;
+import java.util.List;
+
+import com.salesforce.zsync.http.ContentRange;
+
+/**
+ * Notified of the requests a {@link Transport} issues. Each request emits an <code>initiating</code> event before it is
+ * sent, a <code>started</code> event once the response is available, <code>transferred</code> events while the content
+ * is read, and a <code>completed</code> event once it ends, successfully or not. A listener may observe several
+ * requests, one after another.
+ *
+ * @author bbusjaeger
+ */
+public interface TransportListener {
+
+  /**
+   * Reports the next batch of ranges chosen for a request along with the limits applied to the batch. Only emitted by
+   * transports that batch ranges.
+   */
+  void planned(List<ContentRange> ranges, int maxRanges, long maxBytes);
+
+  /**
+   * @param uri the resource requested
+   * @param ranges the ranges requested, or empty for the full content
+   */
+  void initiating(URI uri, List<ContentRange> ranges);
+
+  /**
+   * @param uri the resource the response is for, which may differ from the requested one after redirects
+   * @param type form of the response content
+   * @param length length of the response content, or -1 if unknown
+   */
+  void started(URI uri, ResponseType type, long length);
+
+  void transferred(long bytes);
+
+  void completed();
+
+}
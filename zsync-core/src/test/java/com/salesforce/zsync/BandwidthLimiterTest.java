@@ -0,0 +1,163 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.salesforce.zsync.BandwidthLimiter.Share;
+import com.salesforce.zsync.http.ContentRange;
+import com.salesforce.zsync.http.Credentials;
+import com.salesforce.zsync.transport.Cancellation;
+import com.salesforce.zsync.transport.RangeReceiver;
+import com.salesforce.zsync.transport.Transport;
+import com.salesforce.zsync.transport.TransportListener;
+
+public class BandwidthLimiterTest {
+
+  @Test
+  public void testRate() throws InterruptedIOException {
+    final BandwidthLimiter limiter = new BandwidthLimiter(1024 * 1024);
+    final Share share = new Share(1);
+    final long start = System.nanoTime();
+    for (int i = 0; i < 64; i++) {
+      limiter.acquire(share, 8192);
+    }
+    final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    // 512K at 1M/s less the initial 52K burst
+    assertTrue("elapsed " + elapsed, elapsed >= 400);
+    assertTrue("elapsed " + elapsed, elapsed < 2000);
+  }
+
+  @Test
+  public void testWeights() throws InterruptedException {
+    final BandwidthLimiter limiter = new BandwidthLimiter(2 * 1024 * 1024);
+    final AtomicBoolean done = new AtomicBoolean();
+    final AtomicLong light = new AtomicLong();
+    final AtomicLong heavy = new AtomicLong();
+    final Thread t1 = consume(limiter, new Share(1), light, done);
+    final Thread t2 = consume(limiter, new Share(3), heavy, done);
+    Thread.sleep(1000);
+    done.set(true);
+    t1.join();
+    t2.join();
+    final double ratio = (double) heavy.get() / light.get();
+    assertTrue("ratio " + ratio, ratio > 2 && ratio < 4);
+  }
+
+  @Test
+  public void testFileChannelChargedWithoutWrapping() throws IOException {
+    final Path file = Files.createTempFile("zsync", ".bin");
+    try {
+      Files.write(file, new byte[512 * 1024]);
+      // passes the ranges as a file channel, like the transport for file: origins
+      final Transport transport = new Transport() {
+        @Override
+        public InputStream get(URI uri, Map<String, ? extends Credentials> credentials, TransportListener listener,
+            Cancellation cancellation) {
+          throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public InputStream getIfModifiedSince(URI uri, long ifModifiedSince,
+            Map<String, ? extends Credentials> credentials, TransportListener listener, Cancellation cancellation) {
+          throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void getRanges(URI uri, List<ContentRange> ranges, Map<String, ? extends Credentials> credentials,
+            RangeReceiver receiver, TransportListener listener, Cancellation cancellation) throws IOException {
+          try (FileChannel channel = FileChannel.open(file, READ)) {
+            for (ContentRange range : ranges) {
+              channel.position(range.first());
+              receiver.receive(range, channel);
+            }
+          }
+        }
+
+        @Override
+        public int getConcurrency(URI uri) {
+          return 1;
+        }
+      };
+      final Transport throttled = new BandwidthLimiter(1024 * 1024).throttle(transport, 1);
+      final boolean[] unwrapped = new boolean[1];
+      final long start = System.nanoTime();
+
+      throttled.getRanges(file.toUri(), Collections.singletonList(new ContentRange(0, 512 * 1024 - 1)),
+          Collections.<String, Credentials>emptyMap(), new RangeReceiver() {
+            @Override
+            public void receive(ContentRange range, ReadableByteChannel in) {
+              unwrapped[0] = in instanceof FileChannel;
+            }
+          }, null, null);
+
+      final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      assertTrue("file channel wrapped", unwrapped[0]);
+      // 512K at 1M/s less the initial 52K burst
+      assertTrue("elapsed " + elapsed, elapsed >= 400);
+      assertTrue("elapsed " + elapsed, elapsed < 2000);
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  private static Thread consume(final BandwidthLimiter limiter, final Share share, final AtomicLong consumed,
+      final AtomicBoolean done) {
+    final Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          while (!done.get()) {
+            limiter.acquire(share, 8192);
+            consumed.addAndGet(8192);
+          }
+        } catch (InterruptedIOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    thread.start();
+    return thread;
+  }
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+  @Test
+  public void testBucketsCoverValues() {
+    for (long value : new long[] {0, 1, 31, 32, 33, 63, 64, 1000, 123456789, Long.MAX_VALUE}) {
+      final int index = Histogram.index(value);
+      assertTrue(value + " below bucket", Histogram.lowestEquivalentValue(index) <= value);
+      assertTrue(value + " above bucket", Histogram.highestEquivalentValue(index) >= value);
+      // relative precision of 1/16
+      assertTrue(Histogram.highestEquivalentValue(index) - Histogram.lowestEquivalentValue(index) <= value / 16);
+    }
+  }
+
+  @Test
+  public void testPercentiles() {
+    final Histogram histogram = new Histogram();
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i);
+    }
+    assertEquals(1000, histogram.getCount());
+    assertEquals(1, histogram.getMin());
+    assertEquals(1000, histogram.getMax());
+    assertEquals(500.5, histogram.getMean(), 0.001);
+    assertEquals(500, histogram.getValueAtPercentile(50), 500 / 16);
+    assertEquals(990, histogram.getValueAtPercentile(99), 990 / 16);
+    assertEquals(1000, histogram.getValueAtPercentile(100));
+  }
+
+  @Test
+  public void testJson() {
+    final Histogram histogram = new Histogram();
+    histogram.record(3);
+    histogram.record(3);
+    histogram.record(100);
+    assertEquals("{\"count\":3,\"min\":3,\"max\":100,\"mean\":35.333333333333336,\"p50\":3,\"p90\":100,\"p99\":100,"
+        + "\"p999\":100,\"buckets\":[[3,3,2],[100,103,1]]}", histogram.toJson());
+  }
+
+  @Test
+  public void testEmpty() {
+    final Histogram histogram = new Histogram();
+    assertEquals(0, histogram.getMin());
+    assertEquals(0, histogram.getValueAtPercentile(50));
+  }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+import org.junit.Test;
+
+import com.salesforce.zsync.internal.EventDispatcher;
+import com.salesforce.zsync.internal.OutputFileWriter;
+import com.salesforce.zsync.internal.util.HttpClient;
+
+public class ZsyncExecutorsTest {
+
+  /**
+   * Blocking inside a synchronized method pins the carrier thread of a virtual thread, so the classes on the I/O path
+   * must not declare any. Covers nested and anonymous classes, e.g. the listeners created by the event dispatcher. This
+   * is only a quick check on any JVM: synchronized blocks, including those within OkHttp, are covered by recording
+   * pinned virtual threads in GetTest.testConcurrentAsyncOnVirtualThreads on Java 21 and later.
+   */
+  @Test
+  public void testNoSynchronizedMethodsOnIoPath() throws Exception {
+    for (Class<?> type : Arrays.asList(HttpClient.class, OutputFileWriter.class, EventDispatcher.class)) {
+      for (Class<?> c : withInnerClasses(type)) {
+        for (Method method : c.getDeclaredMethods()) {
+          assertFalse(method + " is synchronized", Modifier.isSynchronized(method.getModifiers()));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testIoExecutor() throws Exception {
+    final ExecutorService executor = ZsyncExecutors.newIoExecutor();
+    try {
+      assertTrue(executor.submit(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          return true;
+        }
+      }).get());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static List<Class<?>> withInnerClasses(Class<?> type) {
+    final List<Class<?>> classes = new ArrayList<>();
+    classes.add(type);
+    for (Class<?> c : type.getDeclaredClasses()) {
+      classes.addAll(withInnerClasses(c));
+    }
+    // anonymous classes are not reported as declared classes
+    for (int i = 1;; i++) {
+      try {
+        classes.add(Class.forName(type.getName() + "$" + i, false, type.getClassLoader()));
+      } catch (ClassNotFoundException e) {
+        return classes;
+      }
+    }
+  }
+
+}
@@ -25,15 +25,36 @@
  */
 package com.salesforce.zsync;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import com.salesforce.zsync.ZsyncMake;
+import com.salesforce.zsync.ZsyncMake.BlockSizeAnalysis;
+import com.salesforce.zsync.ZsyncMake.BlockSizeProjection;
+import com.salesforce.zsync.ZsyncMake.Options;
+import com.salesforce.zsync.ZsyncMake.Result;
 
 
 public class ZsyncMakeTest {
 
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
   @Test
   public void testWeakChecksumLength() {
     assertEquals(2, ZsyncMake.weakChecksumLength(1024, 2048, 2));
@@ -53,4 +74,144 @@ public class ZsyncMakeTest {
     assertEquals(5, ZsyncMake.strongChecksumLength(57323443l, 2048, 2));
   }
 
+  @Test
+  public void testBlockSizeAnalysis() throws Exception {
+    // previous version with a single byte changed every 3000 bytes
+    final byte[] content = new byte[512 * 1024];
+    new Random(42).nextBytes(content);
+    final Path previous = this.tmp.newFile("previous").toPath();
+    Files.write(previous, content);
+    for (int i = 0; i < content.length; i += 3000) {
+      content[i]++;
+    }
+    final Path current = this.tmp.newFile("current").toPath();
+    Files.write(current, content);
+
+    final Result result =
+        new ZsyncMake().writeToStream(current, new ByteArrayOutputStream(), new Options().addPreviousVersion(previous));
+
+    final BlockSizeAnalysis analysis = result.getBlockSizeAnalysis();
+    long min = Long.MAX_VALUE;
+    for (BlockSizeProjection projection : analysis.getProjections()) {
+      assertTrue(projection.getControlFileBytes() > 0);
+      assertTrue(projection.getDownloadBytes() > 0 && projection.getDownloadBytes() <= content.length);
+      min = Math.min(min, projection.getTotalBytes());
+    }
+    assertEquals(7, analysis.getProjections().size());
+    // scattered changes favor small blocks
+    assertTrue(analysis.getBlockSize() <= 1024);
+    for (BlockSizeProjection projection : analysis.getProjections()) {
+      if (projection.getBlockSize() == analysis.getBlockSize()) {
+        assertEquals(min, projection.getTotalBytes());
+      }
+    }
+    assertNull(new ZsyncMake().writeToStream(current, new ByteArrayOutputStream()).getBlockSizeAnalysis());
+  }
+
+  @Test
+  public void testSubBlockChecksums() throws Exception {
+    final byte[] content = new byte[300 * 1024 + 123];
+    new Random(5).nextBytes(content);
+    final Path inputFile = this.tmp.newFile("file").toPath();
+    Files.write(inputFile, content);
+    final ByteArrayOutputStream hierarchical = new ByteArrayOutputStream();
+    new ZsyncMake().writeToStream(inputFile, hierarchical, new Options().setBlockSize(8192).setSubBlockSize(1024));
+    final ByteArrayOutputStream flat = new ByteArrayOutputStream();
+    new ZsyncMake().writeToStream(inputFile, flat, new Options().setBlockSize(1024));
+
+    // the sub-block checksums computed along with the blocks are those of a control file with the sub-block size
+    final byte[] expected = checksums(flat.toByteArray());
+    final byte[] actual = checksums(hierarchical.toByteArray());
+    assertArrayEquals(expected, Arrays.copyOfRange(actual, actual.length - expected.length, actual.length));
+  }
+
+  @Test
+  public void testUpdate() throws Exception {
+    final byte[] content = new byte[300 * 1024 + 123];
+    new Random(3).nextBytes(content);
+    final Path inputFile = this.tmp.newFile("log").toPath();
+    final Path zsyncFile = inputFile.resolveSibling("log.zsync");
+    final Path expectedFile = inputFile.resolveSibling("expected.zsync");
+    final Options options = new Options().setBlockSize(2048).setAppendable(true);
+    Files.write(inputFile, Arrays.copyOf(content, 100 * 1024 + 7));
+    new ZsyncMake().writeToFile(inputFile, zsyncFile, options);
+
+    // grow twice, the second time without the saved digest state
+    Files.write(inputFile, Arrays.copyOfRange(content, 100 * 1024 + 7, 200 * 1024), StandardOpenOption.APPEND);
+    assertUpdated(inputFile, zsyncFile, expectedFile, options);
+    Files.delete(zsyncFile.resolveSibling("log.zsync.sha1state"));
+    Files.write(inputFile, Arrays.copyOfRange(content, 200 * 1024, content.length), StandardOpenOption.APPEND);
+    assertUpdated(inputFile, zsyncFile, expectedFile, options);
+  }
+
+  @Test
+  public void testUpdateEmpty() throws Exception {
+    final Path inputFile = this.tmp.newFile("log").toPath();
+    final Path zsyncFile = inputFile.resolveSibling("log.zsync");
+    final Path expectedFile = inputFile.resolveSibling("expected.zsync");
+    final Options options = new Options().setBlockSize(2048).setAppendable(true);
+    new ZsyncMake().writeToFile(inputFile, zsyncFile, options);
+    // small enough to keep the checksum lengths, so that the checksums are appended rather than regenerated
+    final byte[] content = new byte[10];
+    new Random(7).nextBytes(content);
+    Files.write(inputFile, content);
+    assertUpdated(inputFile, zsyncFile, expectedFile, options);
+  }
+
+  @Test
+  public void testUpdateKeepsUrls() throws Exception {
+    final byte[] content = new byte[100 * 1024];
+    new Random(9).nextBytes(content);
+    final Path inputFile = this.tmp.newFile("log").toPath();
+    final Path zsyncFile = inputFile.resolveSibling("log.zsync");
+    final Path expectedFile = inputFile.resolveSibling("expected.zsync");
+    final Options options = new Options().setBlockSize(2048).setAppendable(true)
+        .setUrls(Arrays.asList("http://primary/log", "http://mirror/log"));
+    Files.write(inputFile, Arrays.copyOf(content, 1000));
+    new ZsyncMake().writeToFile(inputFile, zsyncFile, options);
+
+    // the checksum lengths change, so the control file is regenerated
+    Files.write(inputFile, Arrays.copyOfRange(content, 1000, content.length), StandardOpenOption.APPEND);
+    assertUpdated(inputFile, zsyncFile, expectedFile, options);
+    final String header = new String(Files.readAllBytes(zsyncFile), StandardCharsets.ISO_8859_1);
+    assertTrue(header, header.contains("URL: http://primary/log\n") && header.contains("URL: http://mirror/log\n"));
+  }
+
+  @Test
+  public void testUpdateModified() throws Exception {
+    final Path inputFile = this.tmp.newFile("log").toPath();
+    final Path zsyncFile = inputFile.resolveSibling("log.zsync");
+    final byte[] content = new byte[10000];
+    new Random(5).nextBytes(content);
+    Files.write(inputFile, content);
+    new ZsyncMake().writeToFile(inputFile, zsyncFile, new Options().setBlockSize(2048).setAppendable(true));
+    content[content.length - 1]++;
+    Files.write(inputFile, content);
+    Files.write(inputFile, new byte[100], StandardOpenOption.APPEND);
+    try {
+      new ZsyncMake().update(inputFile, zsyncFile);
+      fail("modified file not detected");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  private static void assertUpdated(Path inputFile, Path zsyncFile, Path expectedFile, Options options)
+      throws Exception {
+    final String sha1 = new ZsyncMake().update(inputFile, zsyncFile).getSha1();
+    assertEquals(sha1, new ZsyncMake().writeToFile(inputFile, expectedFile, options).getSha1());
+    assertArrayEquals(Files.readAllBytes(expectedFile), Files.readAllBytes(zsyncFile));
+  }
+
+  /**
+   * Returns the checksums following the header of the given control file
+   */
+  private static byte[] checksums(byte[] controlFile) {
+    for (int i = 1; i < controlFile.length; i++) {
+      if (controlFile[i] == '\n' && controlFile[i - 1] == '\n') {
+        return Arrays.copyOfRange(controlFile, i + 1, controlFile.length);
+      }
+    }
+    throw new AssertionError("header not terminated");
+  }
 }
@@ -0,0 +1,60 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.salesforce.zsync.ZsyncManifest.SeedPool;
+
+public class ZsyncManifestTest {
+
+  @Test
+  public void testSeedSelection() {
+    final Path root = Paths.get("/repo/guava").toAbsolutePath();
+    final SeedPool pool = new SeedPool();
+    pool.add(root.resolve("15.0/guava-15.0.jar"));
+    pool.add(root.resolve("15.0/guava-15.0.pom"));
+    pool.add(root.resolve("17.0/guava-17.0.jar"));
+    pool.add(root.resolve("18.0/guava-18.0.jar"));
+    pool.add(root.resolve("18.0/other-18.0.jar"));
+    pool.add(root.resolve("../guice/4.0/guice-4.0.jar"));
+
+    // same directory first, then longest common file name prefix and latest name, never the output file itself
+    assertEquals(ImmutableList.of(root.resolve("18.0/other-18.0.jar"), root.resolve("17.0/guava-17.0.jar")),
+        pool.select(root.resolve("18.0/guava-18.0.jar"), 2));
+    assertEquals(ImmutableList.of(root.resolve("15.0/guava-15.0.pom")),
+        pool.select(root.resolve("19.0/guava-19.0.pom"), 2));
+    assertEquals(ImmutableList.of(), pool.select(root.resolve("19.0/guava-19.0.jar"), 0));
+    assertEquals(ImmutableList.of(), pool.select(Paths.get("/elsewhere/x/y.jar"), 2));
+  }
+
+}
@@ -0,0 +1,339 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.salesforce.zsync.Zsync.Options;
+import com.salesforce.zsync.ZsyncStatsObserver.ZsyncStats;
+import com.salesforce.zsync.http.ContentRange;
+import com.salesforce.zsync.http.Credentials;
+import com.salesforce.zsync.transport.Cancellation;
+import com.salesforce.zsync.transport.RangeReceiver;
+import com.salesforce.zsync.transport.ResponseType;
+import com.salesforce.zsync.transport.Transport;
+import com.salesforce.zsync.transport.TransportListener;
+
+public class ZsyncTransportTest {
+
+  /**
+   * Serves a control file and the remote file from memory and records the requests
+   */
+  private static class InMemoryTransport implements Transport {
+    private final byte[] controlFile;
+    private final byte[] remoteFile;
+    private final int concurrency;
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+    // number of ranges in each request for the remote file
+    private final List<Integer> rangeCounts = Collections.synchronizedList(new ArrayList<Integer>());
+    private final AtomicLong rangeBytes = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    // holds the first requests for the remote file until enough of them are in flight at the same time
+    private final CountDownLatch overlap;
+
+    InMemoryTransport(byte[] controlFile, byte[] remoteFile) {
+      this(controlFile, remoteFile, 1);
+    }
+
+    InMemoryTransport(byte[] controlFile, byte[] remoteFile, int concurrency) {
+      this.controlFile = controlFile;
+      this.remoteFile = remoteFile;
+      this.concurrency = concurrency;
+      this.overlap = new CountDownLatch(Math.min(concurrency, 2));
+    }
+
+    @Override
+    public InputStream get(URI uri, Map<String, ? extends Credentials> credentials, TransportListener listener,
+        Cancellation cancellation) throws IOException {
+      this.requests.add("get " + uri);
+      return new ByteArrayInputStream(this.controlFile);
+    }
+
+    @Override
+    public InputStream getIfModifiedSince(URI uri, long ifModifiedSince, Map<String, ? extends Credentials> credentials,
+        TransportListener listener, Cancellation cancellation) throws IOException {
+      this.requests.add("getIfModifiedSince " + uri);
+      return null;
+    }
+
+    @Override
+    public void getRanges(URI uri, List<ContentRange> ranges, Map<String, ? extends Credentials> credentials,
+        RangeReceiver receiver, TransportListener listener, Cancellation cancellation) throws IOException {
+      this.requests.add("getRanges " + uri);
+      // sub-block checksums of hierarchical control files are retrieved by range
+      final boolean remote = !uri.getPath().endsWith(".zsync");
+      final byte[] content = remote ? this.remoteFile : this.controlFile;
+      if (remote) {
+        this.rangeCounts.add(ranges.size());
+        final int n = this.inFlight.incrementAndGet();
+        if (n > this.maxInFlight.get()) {
+          this.maxInFlight.set(n);
+        }
+        this.overlap.countDown();
+        try {
+          this.overlap.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+      }
+      try {
+        listener.initiating(uri, ranges);
+        listener.started(uri, ResponseType.MULTIPART, -1);
+        for (ContentRange range : ranges) {
+          receiver.receive(range, Channels.newChannel(
+              new ByteArrayInputStream(content, (int) range.first(), (int) range.length())));
+          listener.transferred(range.length());
+          if (remote) {
+            this.rangeBytes.addAndGet(range.length());
+          }
+        }
+      } finally {
+        listener.completed();
+        if (remote) {
+          this.inFlight.decrementAndGet();
+        }
+      }
+    }
+
+    @Override
+    public int getConcurrency(URI uri) {
+      return this.concurrency;
+    }
+  }
+
+  @Test
+  public void testCustomTransport() throws Exception {
+    // Arrange
+    final Path oldGuava = Paths.get(this.getClass().getResource(
+        "/.m2/repository/com/google/guava/guava/15.0/guava-15.0.jar").toURI());
+    final Path newGuava = Paths.get(this.getClass().getResource(
+        "/jetty/content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar").toURI());
+    final ByteArrayOutputStream controlFile = new ByteArrayOutputStream();
+    new ZsyncMake().writeToStream(newGuava, controlFile);
+    final byte[] expected = Files.readAllBytes(newGuava);
+    final InMemoryTransport transport = new InMemoryTransport(controlFile.toByteArray(), expected);
+    final Path dir = Files.createTempDirectory("zsync");
+    final Path saved = dir.resolve("guava-18.0.jar.zsync");
+    final Options options =
+        new Options().addInputFile(oldGuava).setOutputFile(dir.resolve("guava-18.0.jar")).setSaveZsyncFile(saved);
+    final ZsyncStatsObserver observer = new ZsyncStatsObserver();
+
+    // Act
+    final Path first = new Zsync(transport).zsync(URI.create("mem://repo/guava-18.0.jar.zsync"), options, observer);
+    Files.delete(first);
+    final Path second = new Zsync(transport).zsync(URI.create("mem://repo/guava-18.0.jar.zsync"), options);
+
+    // Assert
+    assertArrayEquals(expected, Files.readAllBytes(second));
+    assertTrue("seed not used", observer.build().getTotalBytesDownloaded() < expected.length);
+    // the saved control file is only revalidated on the second run
+    assertEquals(ImmutableList.of("get mem://repo/guava-18.0.jar.zsync", "getRanges mem://repo/guava-18.0.jar",
+        "getIfModifiedSince mem://repo/guava-18.0.jar.zsync", "getRanges mem://repo/guava-18.0.jar"),
+        transport.requests);
+  }
+
+  @Test
+  public void testConcurrentStreams() throws Exception {
+    // Arrange
+    final Path newGuava = Paths.get(this.getClass().getResource(
+        "/jetty/content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar").toURI());
+    final ByteArrayOutputStream controlFile = new ByteArrayOutputStream();
+    new ZsyncMake().writeToStream(newGuava, controlFile);
+    final byte[] expected = Files.readAllBytes(newGuava);
+    // e.g. a host serving HTTP/2, for which requests are multiplexed over a single connection
+    final InMemoryTransport transport = new InMemoryTransport(controlFile.toByteArray(), expected, 4);
+    final Path dir = Files.createTempDirectory("zsync");
+    final Options options = new Options().setOutputFile(dir.resolve("guava-18.0.jar"));
+    final ZsyncStatsObserver observer = new ZsyncStatsObserver();
+
+    // Act
+    final Path result = new Zsync(transport).zsync(URI.create("mem://repo/guava-18.0.jar.zsync"), options, observer);
+
+    // Assert
+    final ZsyncStats stats = observer.build();
+    assertArrayEquals(expected, Files.readAllBytes(result));
+    assertEquals(expected.length, stats.getTotalBytesDownloaded());
+    assertTrue("requests not concurrent", transport.maxInFlight.get() > 1);
+    assertTrue("more than one request expected", transport.rangeCounts.size() > 1);
+    for (int count : transport.rangeCounts) {
+      assertEquals("each stream requests a single range at a time", 1, count);
+    }
+    // overlapping requests form a single download, but are measured individually
+    assertEquals(transport.rangeCounts.size(), stats.getRemoteFileRequestStats().getBytesPerRequest().getCount());
+    assertEquals(expected.length, stats.getRemoteFileRequestStats().getBytesPerRequest().getMean()
+        * transport.rangeCounts.size(), 1);
+  }
+
+  @Test
+  public void testIndexBuiltOnCallerWhenExecutorNeverRunsTasks() throws Exception {
+    // Arrange
+    final Path dir = Files.createTempDirectory("zsync");
+    final Path oldGuava = Files.copy(Paths.get(this.getClass().getResource(
+        "/.m2/repository/com/google/guava/guava/15.0/guava-15.0.jar").toURI()), dir.resolve("guava-15.0.jar"));
+    final Path newGuava = Paths.get(this.getClass().getResource(
+        "/jetty/content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar").toURI());
+    final ByteArrayOutputStream controlFile = new ByteArrayOutputStream();
+    new ZsyncMake().writeToStream(newGuava, controlFile, new ZsyncMake.Options());
+    final byte[] expected = Files.readAllBytes(newGuava);
+    final Options options = new Options().addInputFile(oldGuava).setOutputFile(dir.resolve("guava-18.0.jar"))
+        .setIndexInputFiles(true);
+    // queues tasks without ever running them, like a saturated bounded executor
+    final List<Runnable> queued = new ArrayList<>();
+    final Executor stalled = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        queued.add(command);
+      }
+    };
+
+    // Act
+    final Path result = new Zsync(new InMemoryTransport(controlFile.toByteArray(), expected), null, stalled)
+        .zsync(URI.create("mem://repo/guava-18.0.jar.zsync"), options, null);
+
+    // Assert
+    assertArrayEquals(expected, Files.readAllBytes(result));
+    assertEquals(1, queued.size());
+    assertTrue(((Future<?>) queued.get(0)).isDone());
+  }
+
+  @Test
+  public void testFileOrigin() throws Exception {
+    // Arrange
+    final Path oldGuava = Paths.get(this.getClass().getResource(
+        "/.m2/repository/com/google/guava/guava/15.0/guava-15.0.jar").toURI());
+    final Path newGuava = Paths.get(this.getClass().getResource(
+        "/jetty/content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar").toURI());
+    final Path dir = Files.createTempDirectory("zsync");
+    final Path controlFile = dir.resolve("guava-18.0.jar.zsync");
+    new ZsyncMake().writeToFile(newGuava, controlFile,
+        new ZsyncMake.Options().setUrl(newGuava.toUri().toString()));
+    final Options options = new Options().addInputFile(oldGuava).setOutputFile(dir.resolve("guava-18.0.jar"));
+    final ZsyncStatsObserver observer = new ZsyncStatsObserver();
+
+    // Act
+    final Path result = new Zsync().zsync(controlFile.toUri(), options, observer);
+
+    // Assert
+    final byte[] expected = Files.readAllBytes(newGuava);
+    assertArrayEquals(expected, Files.readAllBytes(result));
+    assertTrue("seed not used", observer.build().getTotalBytesDownloaded() < expected.length);
+  }
+
+  @Test
+  public void testHierarchicalControlFile() throws Exception {
+    // Arrange
+    final Path oldGuava = Paths.get(this.getClass().getResource(
+        "/.m2/repository/com/google/guava/guava/15.0/guava-15.0.jar").toURI());
+    final Path newGuava = Paths.get(this.getClass().getResource(
+        "/jetty/content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar").toURI());
+    final ByteArrayOutputStream controlFile = new ByteArrayOutputStream();
+    new ZsyncMake().writeToStream(newGuava, controlFile, new ZsyncMake.Options().setSubBlockSize(2048));
+    final ByteArrayOutputStream flatControlFile = new ByteArrayOutputStream();
+    new ZsyncMake().writeToStream(newGuava, flatControlFile, new ZsyncMake.Options().setBlockSize(65536));
+    final byte[] expected = Files.readAllBytes(newGuava);
+    final InMemoryTransport transport = new InMemoryTransport(controlFile.toByteArray(), expected);
+    final Path dir = Files.createTempDirectory("zsync");
+    final Options options = new Options().addInputFile(oldGuava).setOutputFile(dir.resolve("guava-18.0.jar"));
+    final ZsyncStatsObserver observer = new ZsyncStatsObserver();
+
+    // Act
+    final Path result = new Zsync(transport).zsync(URI.create("mem://repo/guava-18.0.jar.zsync"), options, observer);
+
+    // Assert
+    assertArrayEquals(expected, Files.readAllBytes(result));
+    assertEquals(ImmutableList.of("get mem://repo/guava-18.0.jar.zsync", "getRanges mem://repo/guava-18.0.jar.zsync",
+        "getRanges mem://repo/guava-18.0.jar"), transport.requests);
+    // fewer bytes are retrieved than with 64K blocks alone
+    Files.delete(result);
+    final ZsyncStatsObserver flatObserver = new ZsyncStatsObserver();
+    new Zsync(new InMemoryTransport(flatControlFile.toByteArray(), expected)).zsync(
+        URI.create("mem://repo/guava-18.0.jar.zsync"), options, flatObserver);
+    final ZsyncStats stats = observer.build();
+    final ZsyncStats flatStats = flatObserver.build();
+    assertTrue(stats.getTotalBytesDownloaded() < flatStats.getTotalBytesDownloaded());
+    assertTrue(stats.getBytesDownloadedForControlFile() > flatStats.getBytesDownloadedForControlFile());
+  }
+
+  @Test
+  public void testHierarchicalControlFilePlanAndAsync() throws Exception {
+    // Arrange
+    final Path oldGuava = Paths.get(this.getClass().getResource(
+        "/.m2/repository/com/google/guava/guava/15.0/guava-15.0.jar").toURI());
+    final Path newGuava = Paths.get(this.getClass().getResource(
+        "/jetty/content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar").toURI());
+    final ByteArrayOutputStream controlFile = new ByteArrayOutputStream();
+    new ZsyncMake().writeToStream(newGuava, controlFile, new ZsyncMake.Options().setSubBlockSize(2048));
+    final ByteArrayOutputStream flatControlFile = new ByteArrayOutputStream();
+    new ZsyncMake().writeToStream(newGuava, flatControlFile, new ZsyncMake.Options().setBlockSize(65536));
+    final byte[] expected = Files.readAllBytes(newGuava);
+    final URI uri = URI.create("mem://repo/guava-18.0.jar.zsync");
+    final Path dir = Files.createTempDirectory("zsync");
+    final Options options = new Options().addInputFile(oldGuava).setOutputFile(dir.resolve("guava-18.0.jar"));
+
+    // Act
+    final Zsync.Plan plan = new Zsync(new InMemoryTransport(controlFile.toByteArray(), expected)).plan(uri, options);
+    final Zsync.Plan flatPlan =
+        new Zsync(new InMemoryTransport(flatControlFile.toByteArray(), expected)).plan(uri, options);
+    final InMemoryTransport transport = new InMemoryTransport(controlFile.toByteArray(), expected);
+    final Path result = new Zsync(transport, MoreExecutors.directExecutor(), MoreExecutors.directExecutor())
+        .zsyncAsync(uri, options, null).get();
+
+    // Assert
+    assertTrue(plan.getBytesToDownload() < flatPlan.getBytesToDownload());
+    assertArrayEquals(expected, Files.readAllBytes(result));
+    assertEquals(ImmutableList.of("get mem://repo/guava-18.0.jar.zsync", "getRanges mem://repo/guava-18.0.jar.zsync",
+        "getRanges mem://repo/guava-18.0.jar"), transport.requests);
+    assertEquals(plan.getBytesToDownload(), transport.rangeBytes.get());
+  }
+
+}
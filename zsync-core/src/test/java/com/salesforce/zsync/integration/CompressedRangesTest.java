@@ -0,0 +1,138 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.integration;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.junit.Test;
+
+import com.salesforce.zsync.Zsync;
+import com.salesforce.zsync.Zsync.Options;
+import com.salesforce.zsync.server.CompressedRangesFilter;
+import com.squareup.okhttp.OkHttpClient;
+
+/**
+ * Tests retrieving the remote file from a server that compresses partial content responses.
+ *
+ * @author bbusjaeger
+ */
+public class CompressedRangesTest extends BaseJettyTest {
+
+  // content encodings and entity tags of the responses for the remote file
+  private final List<String> encodings = new CopyOnWriteArrayList<>();
+  private final List<String> etags = new CopyOnWriteArrayList<>();
+
+  @Override
+  protected void configure(ServletContextHandler servletContextHandler) {
+    servletContextHandler.getServletHandler().getServlet("default").setInitParameter("etags", "true");
+    servletContextHandler.addFilter(new FilterHolder(new RecordEncodingFilter()), "*.jar",
+        EnumSet.of(DispatcherType.REQUEST));
+    // also mapped to the control file, so that the client knows to accept gzip before the first range request
+    final FilterHolder compressedRanges = new FilterHolder(new CompressedRangesFilter());
+    servletContextHandler.addFilter(compressedRanges, "*.jar", EnumSet.of(DispatcherType.REQUEST));
+    servletContextHandler.addFilter(compressedRanges, "*.zsync", EnumSet.of(DispatcherType.REQUEST));
+  }
+
+  @Test
+  public void testCompressedRanges() throws Exception {
+    // Arrange
+    URL oldGuava = this.getClass().getResource("/.m2/repository/com/google/guava/guava/15.0/guava-15.0.jar");
+    URI uri = new URI(super.makeUrl("content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar.zsync"));
+    Path outputPath = super.getTempDirectory().resolve("guava-18.0.jar");
+    Options options = new Options().addInputFile(Paths.get(oldGuava.toURI())).setOutputFile(outputPath);
+
+    // Act
+    Path result = new Zsync(new OkHttpClient()).zsync(uri, options);
+
+    // Assert
+    byte[] expected = Files.readAllBytes(Paths.get(this.getClass()
+        .getResource("/jetty/content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar").toURI()));
+    assertArrayEquals(expected, Files.readAllBytes(result));
+    assertFalse(this.encodings.isEmpty());
+    for (String encoding : this.encodings) {
+      assertTrue(this.encodings.toString(), "gzip".equals(encoding));
+    }
+    // the entity tag of the compressed ranges differs from that of the identity encoded file
+    assertFalse(this.etags.isEmpty());
+    for (String etag : this.etags) {
+      assertTrue(this.etags.toString(), etag.endsWith("-gzip\""));
+    }
+  }
+
+  /**
+   * Records the Content-Encoding set by the filters and servlet behind it and the resulting ETag
+   */
+  private class RecordEncodingFilter implements Filter {
+
+    @Override
+    public void init(FilterConfig filterConfig) {}
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+        throws IOException, ServletException {
+      final HttpServletResponse httpResponse = (HttpServletResponse) response;
+      final String[] encoding = new String[1];
+      chain.doFilter(request, new HttpServletResponseWrapper(httpResponse) {
+        @Override
+        public void setHeader(String name, String value) {
+          if ("Content-Encoding".equalsIgnoreCase(name)) {
+            encoding[0] = value;
+          }
+          super.setHeader(name, value);
+        }
+      });
+      CompressedRangesTest.this.encodings.add(String.valueOf(encoding[0]));
+      CompressedRangesTest.this.etags.add(String.valueOf(httpResponse.getHeader("ETag")));
+    }
+
+    @Override
+    public void destroy() {}
+  }
+}
@@ -25,19 +25,54 @@
  */
 package com.salesforce.zsync.integration;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.net.URI;
 import java.net.URL;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import org.junit.Assume;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.salesforce.zsync.MatcherMetrics;
 import com.salesforce.zsync.Zsync;
 import com.salesforce.zsync.Zsync.Options;
+import com.salesforce.zsync.Zsync.Plan;
+import com.salesforce.zsync.Zsync.Target;
+import com.salesforce.zsync.ZsyncExecutors;
+import com.salesforce.zsync.ZsyncManifest;
+import com.salesforce.zsync.ZsyncProgressObserver;
+import com.salesforce.zsync.ZsyncProgressObserver.Phase;
+import com.salesforce.zsync.ZsyncProgressObserver.Progress;
+import com.salesforce.zsync.ZsyncStatsObserver;
+import com.salesforce.zsync.ZsyncStatsObserver.RequestStats;
+import com.salesforce.zsync.ZsyncStatsObserver.ZsyncStats;
+import com.salesforce.zsync.internal.SeedIndex;
+import com.salesforce.zsync.transport.ResponseType;
 import com.squareup.okhttp.OkHttpClient;
 
 /**
@@ -64,6 +99,358 @@ public class GetTest extends BaseJettyTest {
     assertEquals("results has wrong output file path", outputPath, result);
   }
 
+  @Test
+  public void testMatcherMetrics() throws Exception {
+    // Arrange
+    URL oldGuava = this.getClass().getResource(REPO_ROOT + "com/google/guava/guava/15.0/guava-15.0.jar");
+    URI uri = new URI(super.makeUrl("content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar.zsync"));
+    Path inputFile = Paths.get(oldGuava.toURI());
+    Path outputPath = super.getTempDirectory().resolve("guava-18.0.jar");
+    Options options = new Options().addInputFile(inputFile).setOutputFile(outputPath);
+    ZsyncStatsObserver observer = new ZsyncStatsObserver();
+
+    // Act
+    new Zsync(new OkHttpClient()).zsync(uri, options, observer);
+
+    // Assert
+    ZsyncStats stats = observer.build();
+    MatcherMetrics metrics = stats.getMatcherMetricsByInputFile().get(inputFile);
+    assertEquals(Files.size(inputFile), metrics.getBytesScanned());
+    assertTrue(metrics.getRsumProbes() >= metrics.getRsumHits());
+    assertTrue(metrics.getRsumHits() >= metrics.getFalsePositives());
+    assertTrue(metrics.getStrongChecksums() >= metrics.getRsumHits());
+    assertTrue(metrics.getBytesScannedPerSecond() > 0);
+    long written = stats.getTotalBytesWrittenByInputFile().get(inputFile);
+    assertTrue(metrics.getBlocksMatched() > 0);
+    assertTrue(written > (metrics.getBlocksMatched() - 1) * 2048 && written <= metrics.getBlocksMatched() * 2048);
+  }
+
+  @Test
+  public void testPlan() throws Exception {
+    // Arrange
+    URL oldGuava = this.getClass().getResource(REPO_ROOT + "com/google/guava/guava/15.0/guava-15.0.jar");
+    URI uri = new URI(super.makeUrl("content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar.zsync"));
+    Path inputFile = Paths.get(oldGuava.toURI());
+    Path outputPath = super.getTempDirectory().resolve("guava-18.0.jar");
+    Options options = new Options().addInputFile(inputFile).setOutputFile(outputPath);
+    Zsync zsync = new Zsync(new OkHttpClient());
+
+    // Act
+    Plan plan = zsync.plan(uri, options);
+
+    // Assert
+    assertFalse(Files.exists(outputPath));
+    assertFalse(Files.exists(outputPath.resolveSibling("guava-18.0.jar.part")));
+    assertEquals(outputPath, plan.getOutputFile());
+    assertFalse(plan.getMissingRanges().isEmpty());
+    assertTrue(plan.getRequestCount() >= 1);
+    assertTrue(plan.getBytesMatchedLocally() > 0);
+    assertEquals(plan.getLength(), plan.getBytesMatchedLocally() + plan.getBytesToDownload());
+
+    // the actual invocation matches and downloads the same number of bytes
+    ZsyncStatsObserver observer = new ZsyncStatsObserver();
+    zsync.zsync(uri, options, observer);
+    ZsyncStats stats = observer.build();
+    assertEquals(plan.getLength(), Files.size(outputPath));
+    assertEquals(plan.getBytesMatchedLocally(), (long) stats.getTotalBytesWrittenByInputFile().get(inputFile));
+  }
+
+  @Test
+  public void testProgress() throws Exception {
+    // Arrange
+    URL oldGuava = this.getClass().getResource(REPO_ROOT + "com/google/guava/guava/15.0/guava-15.0.jar");
+    URI uri = new URI(super.makeUrl("content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar.zsync"));
+    Path outputPath = super.getTempDirectory().resolve("guava-18.0.jar");
+    Options options = new Options().addInputFile(Paths.get(oldGuava.toURI())).setOutputFile(outputPath);
+    ZsyncProgressObserver observer = new ZsyncProgressObserver();
+    Progress before = observer.getProgress();
+
+    // Act
+    Path result = new Zsync(new OkHttpClient()).zsync(uri, options, observer);
+
+    // Assert
+    Progress after = observer.getProgress();
+    assertEquals(-1, before.getLength());
+    assertEquals(-1, before.getEtaMillis());
+    assertEquals(Phase.COMPLETE, after.getPhase());
+    assertEquals(Files.size(result), after.getLength());
+    assertEquals(0, after.getBytesRemaining());
+    assertEquals(0, after.getEtaMillis());
+    assertTrue(after.getBytesMatchedLocally() > 0);
+    assertTrue(after.getBytesMatchedLocally() < after.getLength());
+    assertTrue(after.getBytesDownloaded() >= after.getLength() - after.getBytesMatchedLocally());
+  }
+
+  @Test
+  public void testRemoteFileRequestStats() throws Exception {
+    // Arrange
+    URL oldGuava = this.getClass().getResource(REPO_ROOT + "com/google/guava/guava/15.0/guava-15.0.jar");
+    URI uri = new URI(super.makeUrl("content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar.zsync"));
+    Path outputPath = super.getTempDirectory().resolve("guava-18.0.jar");
+    Options options = new Options().addInputFile(Paths.get(oldGuava.toURI())).setOutputFile(outputPath);
+    ZsyncStatsObserver observer = new ZsyncStatsObserver();
+
+    // Act
+    new Zsync(new OkHttpClient()).zsync(uri, options, observer);
+
+    // Assert
+    ZsyncStats stats = observer.build();
+    RequestStats requests = stats.getRemoteFileRequestStats();
+    long count = requests.getTimeToFirstByteMicros().getCount();
+    assertTrue(count > 0);
+    assertEquals(count, requests.getTransferTimeMicros().getCount());
+    assertEquals(count, requests.getBytesPerRequest().getCount());
+    assertEquals(Long.valueOf(count), requests.getRequestsByResponseType().get(ResponseType.MULTIPART));
+    assertTrue(requests.getBytesPerRequest().getMax() <= stats.getBytesDownloadedFromRemoteFile());
+    assertTrue(requests.toJson().startsWith("{\"timeToFirstByteMicros\":{\"count\":" + count + ","));
+  }
+
+  @Test
+  public void testWithIndexedInputFile() throws Exception {
+    // Arrange
+    URL oldGuava = this.getClass().getResource(REPO_ROOT + "com/google/guava/guava/15.0/guava-15.0.jar");
+    URI uri = new URI(super.makeUrl("content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar.zsync"));
+    Path inputFile = super.getTempDirectory().resolve("guava-15.0.jar");
+    Files.copy(Paths.get(oldGuava.toURI()), inputFile);
+    Path outputPath = super.getTempDirectory().resolve("guava-18.0.jar");
+    Options options = new Options().addInputFile(inputFile).setOutputFile(outputPath).setIndexInputFiles(true);
+
+    // Act
+    Path first = new Zsync(new OkHttpClient()).zsync(uri, options);
+    byte[] expected = Files.readAllBytes(first);
+    Files.delete(first);
+    Path second = new Zsync(new OkHttpClient()).zsync(uri, options);
+
+    // Assert
+    assertTrue("index not persisted", Files.exists(SeedIndex.getIndexFile(inputFile, 2048)));
+    assertArrayEquals("indexed output differs", expected, Files.readAllBytes(second));
+  }
+
+  @Test
+  public void testMultipleTargetsSharingInputFiles() throws Exception {
+    // Arrange
+    URL oldGuava = this.getClass().getResource(REPO_ROOT + "com/google/guava/guava/15.0/guava-15.0.jar");
+    URL olderGuava = this.getClass().getResource(REPO_ROOT + "com/google/guava/guava/13.0-rc2/guava-13.0-rc2.jar");
+    URI uri = new URI(super.makeUrl("content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar.zsync"));
+    Path firstOutput = super.getTempDirectory().resolve("first.jar");
+    Path secondOutput = super.getTempDirectory().resolve("second.jar");
+    Options firstOptions = new Options().addInputFile(Paths.get(oldGuava.toURI())).setOutputFile(firstOutput);
+    Options secondOptions = new Options().addInputFile(Paths.get(oldGuava.toURI()))
+        .addInputFile(Paths.get(olderGuava.toURI())).setOutputFile(secondOutput);
+    ZsyncStatsObserver firstObserver = new ZsyncStatsObserver();
+    ZsyncStatsObserver secondObserver = new ZsyncStatsObserver();
+    // an executor that never gets around to running its tasks: the calling thread must run the matchers
+    final List<Runnable> queued = new ArrayList<>();
+    Executor starved = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        queued.add(command);
+      }
+    };
+
+    // Act
+    List<Path> result = new Zsync(new OkHttpClient(), null, starved).zsync(ImmutableList.of(
+        new Target(uri, firstOptions, firstObserver), new Target(uri, secondOptions, secondObserver)));
+
+    // Assert
+    assertEquals("matcher not submitted to CPU executor", 1, queued.size());
+    assertEquals(ImmutableList.of(firstOutput, secondOutput), result);
+    assertArrayEquals(Files.readAllBytes(firstOutput), Files.readAllBytes(secondOutput));
+    // both targets matched the same blocks from the shared input file
+    Path shared = Paths.get(oldGuava.toURI());
+    assertEquals(firstObserver.build().getTotalBytesWrittenByInputFile().get(shared), secondObserver.build()
+        .getTotalBytesWrittenByInputFile().get(shared));
+  }
+
+  @Test
+  public void testMultipleTargetsWithSaturatedExecutor() throws Exception {
+    // Arrange
+    URL oldGuava = this.getClass().getResource(REPO_ROOT + "com/google/guava/guava/15.0/guava-15.0.jar");
+    URI uri = new URI(super.makeUrl("content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar.zsync"));
+    Path firstOutput = super.getTempDirectory().resolve("first.jar");
+    Path secondOutput = super.getTempDirectory().resolve("second.jar");
+    Options firstOptions = new Options().addInputFile(Paths.get(oldGuava.toURI())).setOutputFile(firstOutput);
+    Options secondOptions = new Options().addInputFile(Paths.get(oldGuava.toURI())).setOutputFile(secondOutput);
+    // a single thread without a queue that is kept busy: every matcher submitted is rejected
+    final CountDownLatch release = new CountDownLatch(1);
+    ThreadPoolExecutor saturated = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>(), new ThreadPoolExecutor.AbortPolicy());
+    saturated.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+
+    // Act
+    List<Path> result;
+    try {
+      result = new Zsync(new OkHttpClient(), null, saturated).zsync(ImmutableList.of(
+          new Target(uri, firstOptions, null), new Target(uri, secondOptions, null)));
+    } finally {
+      release.countDown();
+      saturated.shutdown();
+    }
+
+    // Assert
+    assertEquals(ImmutableList.of(firstOutput, secondOutput), result);
+    assertArrayEquals(Files.readAllBytes(firstOutput), Files.readAllBytes(secondOutput));
+  }
+
+  @Test
+  public void testManifestUsesSeedPool() throws Exception {
+    // Arrange
+    URL oldGuava = this.getClass().getResource(REPO_ROOT + "com/google/guava/guava/15.0/guava-15.0.jar");
+    URI uri = new URI(super.makeUrl("content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar.zsync"));
+    Path root = super.getTempDirectory().resolve("guava");
+    Path seed = Files.createDirectories(root.resolve("15.0")).resolve("guava-15.0.jar");
+    Files.copy(Paths.get(oldGuava.toURI()), seed);
+    Path first = root.resolve("18.0").resolve("guava-18.0.jar");
+    Path second = root.resolve("18.0-copy").resolve("guava-18.0.jar");
+    Files.createDirectories(first.getParent());
+    Files.createDirectories(second.getParent());
+    ZsyncManifest manifest = new ZsyncManifest().add(uri, first).add(uri, second).addSeedDirectory(root);
+
+    // Act
+    ZsyncManifest.Result result = new Zsync(new OkHttpClient()).zsync(manifest);
+
+    // Assert
+    assertTrue("failures: " + result.getFailures(), result.isSuccessful());
+    byte[] expected = Files.readAllBytes(Paths.get(this.getClass()
+        .getResource("/jetty/content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar").toURI()));
+    assertArrayEquals(expected, Files.readAllBytes(first));
+    assertArrayEquals(expected, Files.readAllBytes(second));
+    assertEquals(2 * expected.length, result.getTotalBytesWritten());
+    assertTrue("no bytes reused from seed pool", result.getTotalBytesSaved() > 0);
+    assertTrue("per file stats kept by default", result.getStats().isEmpty());
+  }
+
+  @Test
+  public void testMirrorsWithFailover() throws Exception {
+    // Arrange
+    URI uri = new URI(super.makeUrl("content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar.zsync"));
+    Path outputPath = super.getTempDirectory().resolve("guava-18.0.jar");
+    // same file under a different host name, and a mirror that does not have the file
+    URI mirror = new URI(super.makeUrl("content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar")
+        .replace("localhost", "127.0.0.1"));
+    Options options =
+        new Options().setOutputFile(outputPath).addMirror(mirror).addMirror(new URI("missing/guava-18.0.jar"));
+    ZsyncStatsObserver observer = new ZsyncStatsObserver();
+
+    // Act
+    Path result = new Zsync(new OkHttpClient()).zsync(uri, options, observer);
+
+    // Assert
+    byte[] expected = Files.readAllBytes(Paths.get(this.getClass()
+        .getResource("/jetty/content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar").toURI()));
+    assertArrayEquals(expected, Files.readAllBytes(result));
+    assertEquals(expected.length, observer.build().getTotalBytesWritten());
+  }
+
+  @Test
+  public void testAsync() throws Exception {
+    // Arrange
+    URL oldGuava = this.getClass().getResource(REPO_ROOT + "com/google/guava/guava/15.0/guava-15.0.jar");
+    URI uri = new URI(super.makeUrl("content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar.zsync"));
+    Path outputPath = super.getTempDirectory().resolve("guava-18.0.jar");
+    Options options = new Options().addInputFile(Paths.get(oldGuava.toURI())).setOutputFile(outputPath);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    ZsyncProgressObserver observer = new ZsyncProgressObserver();
+
+    // Act
+    Path result;
+    try {
+      result = new Zsync(new OkHttpClient(), executor, executor).zsyncAsync(uri, options, observer).get();
+    } finally {
+      executor.shutdown();
+    }
+
+    // Assert: observer complete as soon as the future is
+    assertEquals(Phase.COMPLETE, observer.getProgress().getPhase());
+    assertEquals(outputPath, result);
+    assertArrayEquals(Files.readAllBytes(Paths.get(this.getClass()
+        .getResource("/jetty/content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar").toURI())),
+        Files.readAllBytes(result));
+  }
+
+  @Test
+  public void testConcurrentAsyncOnVirtualThreads() throws Exception {
+    Assume.assumeTrue(ZsyncExecutors.isVirtualThreadSupported());
+    // Arrange
+    URL oldGuava = this.getClass().getResource(REPO_ROOT + "com/google/guava/guava/15.0/guava-15.0.jar");
+    URI uri = new URI(super.makeUrl("content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar.zsync"));
+    ExecutorService io = ZsyncExecutors.newVirtualThreadPerTaskExecutor();
+    ExecutorService cpu = Executors.newFixedThreadPool(2);
+    Zsync zsync = new Zsync(new OkHttpClient(), io, cpu);
+    // record every time a virtual thread blocks while pinned to its carrier, no matter how briefly
+    Class<?> recordingClass = Class.forName("jdk.jfr.Recording");
+    Object recording = recordingClass.getConstructor().newInstance();
+    recordingClass.getMethod("setSettings", Map.class).invoke(recording,
+        ImmutableMap.of("jdk.VirtualThreadPinned#enabled", "true", "jdk.VirtualThreadPinned#threshold", "0 ms",
+            "jdk.VirtualThreadPinned#stackTrace", "true"));
+    recordingClass.getMethod("start").invoke(recording);
+
+    // Act
+    List<ListenableFuture<Path>> futures = new ArrayList<>();
+    try {
+      for (int i = 0; i < 32; i++) {
+        Path outputPath = super.getTempDirectory().resolve("guava-18.0-" + i + ".jar");
+        futures.add(zsync.zsyncAsync(uri,
+            new Options().addInputFile(Paths.get(oldGuava.toURI())).setOutputFile(outputPath), null));
+      }
+      Futures.allAsList(futures).get();
+    } finally {
+      io.shutdown();
+      cpu.shutdown();
+      recordingClass.getMethod("stop").invoke(recording);
+    }
+    Path recorded = super.getTempDirectory().resolve("pinned.jfr");
+    recordingClass.getMethod("dump", Path.class).invoke(recording, recorded);
+    recordingClass.getMethod("close").invoke(recording);
+    List<?> pinned = (List<?>) Class.forName("jdk.jfr.consumer.RecordingFile").getMethod("readAllEvents", Path.class)
+        .invoke(null, recorded);
+
+    // Assert
+    byte[] expected = Files.readAllBytes(Paths.get(this.getClass()
+        .getResource("/jetty/content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar").toURI()));
+    for (ListenableFuture<Path> future : futures) {
+      assertArrayEquals(expected, Files.readAllBytes(future.get()));
+    }
+    assertTrue("virtual threads pinned: " + pinned, pinned.isEmpty());
+  }
+
+  @Test
+  public void testAsyncCancelDeletesPartFile() throws Exception {
+    // Arrange
+    URI uri = new URI(super.makeUrl("content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar.zsync"));
+    Path outputPath = super.getTempDirectory().resolve("guava-18.0.jar");
+    final Queue<Runnable> stages = new ArrayDeque<>();
+    Executor executor = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        stages.add(command);
+      }
+    };
+    Future<Path> future =
+        new Zsync(new OkHttpClient(), executor, executor).zsyncAsync(uri, new Options().setOutputFile(outputPath), null);
+
+    // Act: read the control file, which opens the output file, then cancel before matching
+    stages.remove().run();
+    assertTrue("part file not created", Files.exists(outputPath.resolveSibling("guava-18.0.jar.part")));
+    future.cancel(false);
+    stages.remove().run();
+
+    // Assert
+    assertTrue(future.isCancelled());
+    assertTrue("no further stages expected", stages.isEmpty());
+    assertFalse(Files.exists(outputPath.resolveSibling("guava-18.0.jar.part")));
+    assertFalse(Files.exists(outputPath));
+  }
+
   @Test
   @Ignore
   public void testWithTwoInputFiles() throws Exception {
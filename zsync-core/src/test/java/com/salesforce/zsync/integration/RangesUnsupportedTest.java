@@ -0,0 +1,157 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.integration;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.junit.Test;
+
+import com.salesforce.zsync.Zsync;
+import com.salesforce.zsync.Zsync.Options;
+import com.salesforce.zsync.ZsyncObserver;
+import com.salesforce.zsync.http.ContentRange;
+import com.squareup.okhttp.OkHttpClient;
+
+/**
+ * Tests retrieving the remote file from a server that ignores range requests.
+ *
+ * @author bbusjaeger
+ */
+public class RangesUnsupportedTest extends BaseJettyTest {
+
+  // whether each request for the remote file carried a Range header
+  private final List<Boolean> rangeRequested = new CopyOnWriteArrayList<>();
+
+  @Override
+  protected void configure(ServletContextHandler servletContextHandler) {
+    servletContextHandler.addFilter(new FilterHolder(new IgnoreRangeFilter()), "*.jar",
+        EnumSet.of(DispatcherType.REQUEST));
+  }
+
+  @Test
+  public void testOnlyMissingBlocksWritten() throws Exception {
+    // Arrange
+    URL oldGuava = this.getClass().getResource("/.m2/repository/com/google/guava/guava/15.0/guava-15.0.jar");
+    URI uri = new URI(super.makeUrl("content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar.zsync"));
+    Path outputPath = super.getTempDirectory().resolve("guava-18.0.jar");
+    Options options = new Options().addInputFile(Paths.get(oldGuava.toURI())).setOutputFile(outputPath);
+    final long[] received = new long[1];
+    ZsyncObserver observer = new ZsyncObserver() {
+      @Override
+      public void remoteFileRangeReceived(ContentRange range) {
+        received[0] += range.length();
+      }
+    };
+    Zsync zsync = new Zsync(new OkHttpClient());
+
+    // Act
+    Path result = zsync.zsync(uri, options, observer);
+    Files.delete(result);
+    this.rangeRequested.clear();
+    zsync.zsync(uri, options);
+
+    // Assert
+    byte[] expected = Files.readAllBytes(Paths.get(this.getClass()
+        .getResource("/jetty/content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar").toURI()));
+    assertArrayEquals(expected, Files.readAllBytes(result));
+    assertTrue("blocks matched locally written again", received[0] < expected.length);
+    // once the server is known to ignore ranges, the full content is requested right away
+    assertEquals(Collections.singletonList(false), this.rangeRequested);
+  }
+
+  /**
+   * Hides the Range header from the default servlet, so that it responds with the full content, and drops the
+   * Accept-Ranges header from the response
+   */
+  private class IgnoreRangeFilter implements Filter {
+
+    @Override
+    public void init(FilterConfig filterConfig) {}
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+        throws IOException, ServletException {
+      final HttpServletRequest httpRequest = (HttpServletRequest) request;
+      RangesUnsupportedTest.this.rangeRequested.add(httpRequest.getHeader("Range") != null);
+      chain.doFilter(new HttpServletRequestWrapper(httpRequest) {
+        @Override
+        public String getHeader(String name) {
+          return "Range".equalsIgnoreCase(name) ? null : super.getHeader(name);
+        }
+
+        @Override
+        public Enumeration<String> getHeaders(String name) {
+          return "Range".equalsIgnoreCase(name) ? Collections.<String>emptyEnumeration() : super.getHeaders(name);
+        }
+      }, new HttpServletResponseWrapper((HttpServletResponse) response) {
+        @Override
+        public void setHeader(String name, String value) {
+          if (!"Accept-Ranges".equalsIgnoreCase(name)) {
+            super.setHeader(name, value);
+          }
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+          if (!"Accept-Ranges".equalsIgnoreCase(name)) {
+            super.addHeader(name, value);
+          }
+        }
+      });
+    }
+
+    @Override
+    public void destroy() {}
+  }
+}
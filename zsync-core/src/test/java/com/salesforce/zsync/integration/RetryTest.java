@@ -0,0 +1,264 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.integration;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.junit.Test;
+
+import com.salesforce.zsync.Zsync;
+import com.salesforce.zsync.Zsync.Options;
+import com.salesforce.zsync.ZsyncException;
+import com.salesforce.zsync.ZsyncObserver;
+import com.salesforce.zsync.http.ContentRange;
+import com.salesforce.zsync.transport.InvalidResponseException;
+import com.squareup.okhttp.OkHttpClient;
+
+/**
+ * Tests recovery from range responses that fail part way.
+ *
+ * @author bbusjaeger
+ */
+public class RetryTest extends BaseJettyTest {
+
+  // number of body bytes after which the first range response is cut off
+  private static final int FAIL_AFTER_BYTES = 32 * 1024;
+
+  // how long the stalled response waits before writing the rest of the body
+  private static final int STALL_MILLIS = 2000;
+
+  private final AtomicBoolean failed = new AtomicBoolean();
+  private volatile boolean stall;
+  private volatile boolean dropContentRange;
+
+  @Override
+  protected void configure(ServletContextHandler servletContextHandler) {
+    servletContextHandler.addFilter(new FilterHolder(new FailOnceFilter()), "/*", EnumSet.of(DispatcherType.REQUEST));
+  }
+
+  @Test
+  public void testRetryKeepsReceivedBlocks() throws Exception {
+    // Arrange
+    URL oldGuava = this.getClass().getResource("/.m2/repository/com/google/guava/guava/15.0/guava-15.0.jar");
+    URI uri = new URI(super.makeUrl("content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar.zsync"));
+    Path outputPath = super.getTempDirectory().resolve("guava-18.0.jar");
+    Options options =
+        new Options().addInputFile(Paths.get(oldGuava.toURI())).setOutputFile(outputPath).setRetryDelayMillis(10);
+    final List<List<ContentRange>> requests = new ArrayList<>();
+    ZsyncObserver observer = new ZsyncObserver() {
+      @Override
+      public void remoteFileDownloadingInitiated(URI uri, List<ContentRange> ranges) {
+        requests.add(ranges);
+      }
+    };
+
+    // Act
+    Path result = new Zsync(new OkHttpClient()).zsync(uri, options, observer);
+
+    // Assert
+    assertTrue("first response not cut off", this.failed.get());
+    assertArrayEquals(Files.readAllBytes(Paths.get(this.getClass()
+        .getResource("/jetty/content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar").toURI())),
+        Files.readAllBytes(result));
+    assertTrue("no retry", requests.size() > 1);
+    // blocks received before the failure are not requested again
+    assertTrue(requests.get(1).get(0).first() > requests.get(0).get(0).first());
+  }
+
+  @Test
+  public void testRetryAfterReadTimeout() throws Exception {
+    // Arrange
+    this.stall = true;
+    URI uri = new URI(super.makeUrl("content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar.zsync"));
+    Path outputPath = super.getTempDirectory().resolve("guava-18.0.jar");
+    Options options = new Options().setOutputFile(outputPath).setRetryDelayMillis(10);
+    OkHttpClient okHttpClient = new OkHttpClient();
+    okHttpClient.setReadTimeout(STALL_MILLIS / 4, TimeUnit.MILLISECONDS);
+    final List<List<ContentRange>> requests = new ArrayList<>();
+    ZsyncObserver observer = new ZsyncObserver() {
+      @Override
+      public void remoteFileDownloadingInitiated(URI uri, List<ContentRange> ranges) {
+        requests.add(ranges);
+      }
+    };
+
+    // Act
+    Path result = new Zsync(okHttpClient).zsync(uri, options, observer);
+
+    // Assert
+    assertTrue("first response not stalled", this.failed.get());
+    assertArrayEquals(Files.readAllBytes(Paths.get(this.getClass()
+        .getResource("/jetty/content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar").toURI())),
+        Files.readAllBytes(result));
+    assertTrue("read timeout not retried", requests.size() > 1);
+  }
+
+  @Test
+  public void testMissingContentRangeNotRetried() throws Exception {
+    // Arrange
+    this.dropContentRange = true;
+    URI uri = new URI(super.makeUrl("content/repositories/public/com/google/guava/guava/18.0/guava-18.0.jar.zsync"));
+    Path outputPath = super.getTempDirectory().resolve("guava-18.0.jar");
+    Options options = new Options().setOutputFile(outputPath).setRetryDelayMillis(10);
+    final AtomicInteger initiated = new AtomicInteger();
+    final AtomicInteger completed = new AtomicInteger();
+    ZsyncObserver observer = new ZsyncObserver() {
+      @Override
+      public void remoteFileDownloadingInitiated(URI uri, List<ContentRange> ranges) {
+        initiated.incrementAndGet();
+      }
+
+      @Override
+      public void remoteFileDownloadingComplete() {
+        completed.incrementAndGet();
+      }
+    };
+
+    // Act
+    try {
+      new Zsync(new OkHttpClient()).zsync(uri, options, observer);
+      fail("missing Content-Range accepted");
+    } catch (ZsyncException e) {
+      // Assert
+      assertTrue(e.getCause() instanceof InvalidResponseException);
+    }
+    assertEquals("protocol error retried", 1, initiated.get());
+    assertEquals("transfer not completed", 1, completed.get());
+  }
+
+  /**
+   * Cuts off or stalls the body of the first range request after a fixed number of bytes, or removes the Content-Range
+   * header from range responses
+   */
+  private class FailOnceFilter implements Filter {
+
+    @Override
+    public void init(FilterConfig filterConfig) {}
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+        throws IOException, ServletException {
+      if (RetryTest.this.dropContentRange) {
+        response = new HttpServletResponseWrapper((HttpServletResponse) response) {
+          @Override
+          public void setHeader(String name, String value) {
+            if (!"Content-Range".equalsIgnoreCase(name)) {
+              super.setHeader(name, value);
+            }
+          }
+
+          @Override
+          public void addHeader(String name, String value) {
+            if (!"Content-Range".equalsIgnoreCase(name)) {
+              super.addHeader(name, value);
+            }
+          }
+        };
+      } else if (((HttpServletRequest) request).getHeader("Range") != null && RetryTest.this.failed.compareAndSet(false, true)) {
+        response = new TruncatingResponse((HttpServletResponse) response, RetryTest.this.stall);
+      }
+      chain.doFilter(request, response);
+    }
+
+    @Override
+    public void destroy() {}
+  }
+
+  private static class TruncatingResponse extends HttpServletResponseWrapper {
+
+    private final ServletOutputStream out;
+
+    TruncatingResponse(HttpServletResponse response, final boolean stall) throws IOException {
+      super(response);
+      final ServletOutputStream delegate = response.getOutputStream();
+      this.out = new ServletOutputStream() {
+        private int written;
+
+        @Override
+        public void write(int b) throws IOException {
+          if (this.written++ == FAIL_AFTER_BYTES) {
+            delegate.flush();
+            if (!stall) {
+              throw new IOException("connection reset");
+            }
+            try {
+              Thread.sleep(STALL_MILLIS);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+          delegate.write(b);
+        }
+
+        @Override
+        public boolean isReady() {
+          return delegate.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+          delegate.setWriteListener(writeListener);
+        }
+      };
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+      return this.out;
+    }
+  }
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.salesforce.zsync.ZsyncMake;
+
+public class ControlFileTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testHeaderReadBeforeBlockSums() throws Exception {
+    final byte[] content = new byte[100000];
+    new Random(1).nextBytes(content);
+    final Path file = this.tmp.newFile("file").toPath();
+    Files.write(file, content);
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new ZsyncMake().writeToStream(file, out, new ZsyncMake.Options().setBlockSize(1024));
+    final byte[] bytes = out.toByteArray();
+
+    final ControlFile controlFile = ControlFile.read(new ByteArrayInputStream(bytes));
+    final int headerLength = (int) controlFile.getHeaderLength();
+    assertEquals('\n', bytes[headerLength - 1]);
+    assertEquals('\n', bytes[headerLength - 2]);
+    assertEquals(98, controlFile.getBlockSums().size());
+
+    // the header is available from a stream that ends before the block sums
+    final ControlFile.Reader reader =
+        ControlFile.open(new ByteArrayInputStream(Arrays.copyOf(bytes, headerLength + 10)));
+    assertEquals(1024, reader.getHeader().getBlocksize());
+    assertEquals(content.length, reader.getHeader().getLength());
+    try {
+      reader.read();
+      fail("truncated block sums read");
+    } catch (IOException | IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Test;
+
+import com.salesforce.zsync.ZsyncObserver;
+import com.salesforce.zsync.internal.util.TransferListener.ResourceTransferListener;
+
+public class EventDispatcherTest {
+
+  @Test
+  public void testBytesBatchedAndFlushedBeforeNextEvent() throws IOException {
+    final long[] bytesRead = new long[1];
+    final int[] calls = new int[1];
+    final long[] bytesReadOnComplete = new long[1];
+    final EventDispatcher events = new EventDispatcher(new ZsyncObserver() {
+      @Override
+      public void bytesRead(long bytes) {
+        bytesRead[0] += bytes;
+        calls[0]++;
+      }
+
+      @Override
+      public void inputFileReadingComplete() {
+        bytesReadOnComplete[0] = bytesRead[0];
+      }
+    });
+    final Path inputFile = Paths.get("input");
+
+    final ResourceTransferListener<Path> listener = events.getInputFileReadListener();
+    listener.start(inputFile, 100000);
+    for (int i = 0; i < 1000; i++) {
+      listener.transferred(100);
+    }
+    listener.close();
+
+    assertEquals(100000, bytesReadOnComplete[0]);
+    assertTrue("observer invoked for every read", calls[0] < 1000);
+  }
+
+}
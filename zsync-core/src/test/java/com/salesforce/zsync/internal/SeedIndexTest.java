@@ -0,0 +1,241 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.salesforce.zsync.ZsyncMake;
+import com.salesforce.zsync.ZsyncObserver;
+import com.salesforce.zsync.http.ContentRange;
+import com.salesforce.zsync.internal.util.TransferListener;
+import com.salesforce.zsync.internal.util.ZsyncUtil;
+
+public class SeedIndexTest {
+
+  private static final int BLOCK_SIZE = 2048;
+
+  private Path dir;
+
+  @Before
+  public void createTempDirectory() throws IOException {
+    this.dir = Files.createTempDirectory(SeedIndexTest.class.getSimpleName());
+  }
+
+  @After
+  public void deleteTempDirectory() throws IOException {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(this.dir)) {
+      for (Path file : files) {
+        Files.delete(file);
+      }
+    }
+    Files.delete(this.dir);
+  }
+
+  @Test
+  public void testIdenticalSeedMatchedWithoutScan() throws IOException {
+    final byte[] content = randomBytes(20 * BLOCK_SIZE + 100, 1);
+    final Path seed = this.write("seed", content);
+    final ControlFile controlFile = this.controlFile(content);
+    final Path output = this.dir.resolve("output");
+
+    final SeedIndex index = SeedIndex.open(seed, BLOCK_SIZE);
+    try (final OutputFileWriter writer = newWriter(output, controlFile);
+        final FileChannel channel = FileChannel.open(seed)) {
+      assertTrue(index.match(writer, controlFile, channel, new NoopListener()));
+      assertTrue(writer.isComplete());
+      assertFalse(index.isScanRequired(writer, controlFile.getHeader()));
+    }
+    assertArrayEquals(content, Files.readAllBytes(output));
+  }
+
+  @Test
+  public void testShiftedSeedRequiresScan() throws IOException {
+    final byte[] content = randomBytes(20 * BLOCK_SIZE, 2);
+    final byte[] shifted = new byte[content.length + 1];
+    System.arraycopy(content, 0, shifted, 1, content.length);
+    final Path seed = this.write("seed", shifted);
+    final ControlFile controlFile = this.controlFile(content);
+
+    final SeedIndex index = SeedIndex.open(seed, BLOCK_SIZE);
+    try (final OutputFileWriter writer = newWriter(this.dir.resolve("output"), controlFile);
+        final FileChannel channel = FileChannel.open(seed)) {
+      index.match(writer, controlFile, channel, new NoopListener());
+      assertFalse(writer.isComplete());
+      assertTrue(index.isScanRequired(writer, controlFile.getHeader()));
+      // fill in the rest so that closing the writer succeeds
+      writer.receive(new ContentRange(0, content.length - 1), Channels.newChannel(new ByteArrayInputStream(content)));
+    }
+  }
+
+  @Test
+  public void testIndexPersistedAndInvalidated() throws IOException {
+    final Path seed = this.write("seed", randomBytes(5 * BLOCK_SIZE, 3));
+    final Path indexFile = SeedIndex.getIndexFile(seed, BLOCK_SIZE);
+    assertFalse(Files.exists(indexFile));
+
+    SeedIndex.open(seed, BLOCK_SIZE);
+    assertTrue(Files.exists(indexFile));
+
+    final long size = Files.size(seed);
+    final long mtime = Files.getLastModifiedTime(seed).toMillis();
+    assertNotNull(SeedIndex.read(indexFile, size, mtime, BLOCK_SIZE));
+    assertNull(SeedIndex.read(indexFile, size, mtime, 2 * BLOCK_SIZE));
+    assertNull(SeedIndex.read(indexFile, size + 1, mtime, BLOCK_SIZE));
+
+    // touching the seed invalidates the index, which is rebuilt on next open
+    Files.setLastModifiedTime(seed, FileTime.fromMillis(mtime - 10000));
+    assertNull(SeedIndex.read(indexFile, size, mtime - 10000, BLOCK_SIZE));
+    SeedIndex.open(seed, BLOCK_SIZE);
+    assertNotNull(SeedIndex.read(indexFile, size, mtime - 10000, BLOCK_SIZE));
+  }
+
+  @Test
+  public void testIndexPersistedInChunks() throws IOException {
+    // more blocks than are read and written at once
+    final byte[] content = randomBytes(5000 * BLOCK_SIZE + 100, 6);
+    final Path seed = this.write("seed", content);
+    final ControlFile controlFile = this.controlFile(content);
+    final Path output = this.dir.resolve("output");
+    SeedIndex.open(seed, BLOCK_SIZE);
+
+    final SeedIndex index = SeedIndex.read(SeedIndex.getIndexFile(seed, BLOCK_SIZE), Files.size(seed),
+        Files.getLastModifiedTime(seed).toMillis(), BLOCK_SIZE);
+    assertNotNull(index);
+    try (final OutputFileWriter writer = newWriter(output, controlFile);
+        final FileChannel channel = FileChannel.open(seed)) {
+      assertTrue(index.match(writer, controlFile, channel, new NoopListener()));
+      assertTrue(writer.isComplete());
+    }
+    assertArrayEquals(content, Files.readAllBytes(output));
+  }
+
+  @Test
+  public void testIndexable() {
+    assertTrue(SeedIndex.isIndexable(0, BLOCK_SIZE));
+    assertTrue(SeedIndex.isIndexable(1L << 36, BLOCK_SIZE));
+    // the checksums of every block would no longer fit in a single array
+    assertFalse(SeedIndex.isIndexable(1L << 40, BLOCK_SIZE));
+    assertFalse(SeedIndex.isIndexable(Long.MAX_VALUE / 2, BLOCK_SIZE));
+  }
+
+  @Test
+  public void testStaleIndexDetected() throws IOException {
+    final byte[] content = randomBytes(8 * BLOCK_SIZE, 5);
+    final Path seed = this.write("seed", content);
+    final ControlFile controlFile = this.controlFile(content);
+    SeedIndex.open(seed, BLOCK_SIZE);
+
+    // rewrite a block in place and restore the modification time, so the index is still considered valid
+    final FileTime mtime = Files.getLastModifiedTime(seed);
+    final byte[] modified = content.clone();
+    modified[3 * BLOCK_SIZE + 5]++;
+    Files.write(seed, modified);
+    Files.setLastModifiedTime(seed, mtime);
+
+    final SeedIndex index = SeedIndex.open(seed, BLOCK_SIZE);
+    try (final OutputFileWriter writer = newWriter(this.dir.resolve("output"), controlFile);
+        final FileChannel channel = FileChannel.open(seed)) {
+      assertFalse(index.match(writer, controlFile, channel, new NoopListener()));
+      assertFalse(writer.isCompleted(3));
+      writer.receive(new ContentRange(0, content.length - 1), Channels.newChannel(new ByteArrayInputStream(content)));
+    }
+  }
+
+  @Test
+  public void testIndexWrittenWithoutTemporaryFiles() throws IOException {
+    final Path seed = this.write("seed", randomBytes(5 * BLOCK_SIZE, 6));
+    SeedIndex.open(seed, BLOCK_SIZE);
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(this.dir, "*.part")) {
+      assertFalse(files.iterator().hasNext());
+    }
+  }
+
+  @Test
+  public void testMightContainRollingSum() throws IOException {
+    final byte[] content = randomBytes(4 * BLOCK_SIZE, 4);
+    final SeedIndex index;
+    try (FileChannel channel = FileChannel.open(this.write("seed", content))) {
+      index = SeedIndex.build(channel, content.length, 0, BLOCK_SIZE);
+    }
+    // rolling sum of the window at offset 7
+    final byte[] window = new byte[BLOCK_SIZE];
+    System.arraycopy(content, 7, window, 0, BLOCK_SIZE);
+    final int rsum = ZsyncUtil.computeRsum(window);
+    assertTrue(index.mightContainRollingSum(rsum, 4));
+    assertTrue(index.mightContainRollingSum(rsum & 0xffffff, 3));
+    assertTrue(index.mightContainRollingSum(rsum & 0xffff, 2));
+    assertTrue(index.mightContainRollingSum(rsum & 0xff, 1));
+  }
+
+  private Path write(String name, byte[] content) throws IOException {
+    return Files.write(this.dir.resolve(name), content);
+  }
+
+  private ControlFile controlFile(byte[] content) throws IOException {
+    final Path target = this.write("target", content);
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new ZsyncMake().writeToStream(target, out, new ZsyncMake.Options().setBlockSize(BLOCK_SIZE));
+    return ControlFile.read(new ByteArrayInputStream(out.toByteArray()));
+  }
+
+  private static OutputFileWriter newWriter(Path output, ControlFile controlFile) throws IOException {
+    return new OutputFileWriter(output, controlFile, new EventDispatcher(new ZsyncObserver())
+        .getOutputFileWriteListener());
+  }
+
+  private static byte[] randomBytes(int length, long seed) {
+    final byte[] bytes = new byte[length];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+
+  private static class NoopListener implements TransferListener {
+    @Override
+    public void transferred(long bytes) {}
+
+    @Override
+    public void close() {}
+  }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.salesforce.zsync.http.ContentRange;
+import com.salesforce.zsync.transport.RangeReceiver;
+import com.salesforce.zsync.transport.ResponseType;
+import com.salesforce.zsync.transport.TransportListener;
+
+public class FileTransportTest {
+
+  @Test
+  public void testGetRangesReportsRangeLength() throws IOException {
+    // Arrange
+    final Path file = Files.createTempFile("zsync", ".bin");
+    Files.write(file, new byte[1024]);
+    final List<ContentRange> ranges = ImmutableList.of(new ContentRange(0, 9), new ContentRange(100, 199));
+    final RecordingListener listener = new RecordingListener();
+
+    // Act
+    new FileTransport(null).getRanges(file.toUri(), ranges, null, new DrainingReceiver(), listener, null);
+
+    // Assert
+    assertEquals(ImmutableList.of("started MULTIPART 110", "transferred 10", "transferred 100", "completed"),
+        listener.events);
+    Files.delete(file);
+  }
+
+  private static class DrainingReceiver implements RangeReceiver {
+    @Override
+    public void receive(ContentRange range, ReadableByteChannel in) throws IOException {
+      final ByteBuffer buffer = ByteBuffer.allocate((int) range.length());
+      while (buffer.hasRemaining() && in.read(buffer) >= 0) {
+      }
+    }
+  }
+
+  private static class RecordingListener implements TransportListener {
+    final List<String> events = new ArrayList<>();
+
+    @Override
+    public void planned(List<ContentRange> ranges, int maxRanges, long maxBytes) {}
+
+    @Override
+    public void initiating(URI uri, List<ContentRange> ranges) {}
+
+    @Override
+    public void started(URI uri, ResponseType type, long length) {
+      this.events.add("started " + type + " " + length);
+    }
+
+    @Override
+    public void transferred(long bytes) {
+      this.events.add("transferred " + bytes);
+    }
+
+    @Override
+    public void completed() {
+      this.events.add("completed");
+    }
+  }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.salesforce.zsync.internal.util.FlightRecorderEvents.EventType;
+
+public class FlightRecorderEventsTest {
+
+  @Test
+  public void testDisabled() {
+    assertFalse(FlightRecorderEvents.OUTPUT_FILE_MOVE.isEnabled());
+    // ignored rather than failing
+    FlightRecorderEvents.OUTPUT_FILE_MOVE.begin().set(0, "out").commit();
+  }
+
+  @Test
+  public void testRecorded() throws Exception {
+    final Class<?> recordingClass;
+    try {
+      recordingClass = Class.forName("jdk.jfr.Recording");
+    } catch (ClassNotFoundException e) {
+      Assume.assumeNoException(e);
+      return;
+    }
+    final EventType type = FlightRecorderEvents.RANGE_REQUEST;
+    final Path file = Files.createTempFile("zsync", ".jfr");
+    final Object recording = recordingClass.newInstance();
+    try {
+      recordingClass.getMethod("enable", String.class).invoke(recording, type.getName());
+      recordingClass.getMethod("start").invoke(recording);
+      assertTrue(type.isEnabled());
+      type.begin().set(0, "http://localhost/file").set(1, 2).set(2, 100L).commit();
+      recordingClass.getMethod("stop").invoke(recording);
+      recordingClass.getMethod("dump", Path.class).invoke(recording, file);
+
+      final List<Object> recorded = new ArrayList<>();
+      for (Object event : (List<?>) Class.forName("jdk.jfr.consumer.RecordingFile")
+          .getMethod("readAllEvents", Path.class).invoke(null, file)) {
+        final Object eventType = event.getClass().getMethod("getEventType").invoke(event);
+        if (type.getName().equals(eventType.getClass().getMethod("getName").invoke(eventType))) {
+          recorded.add(event);
+        }
+      }
+      assertEquals(1, recorded.size());
+      final Object event = recorded.get(0);
+      assertEquals("http://localhost/file", event.getClass().getMethod("getString", String.class).invoke(event, "uri"));
+      assertEquals(2, event.getClass().getMethod("getInt", String.class).invoke(event, "ranges"));
+      assertEquals(100L, event.getClass().getMethod("getLong", String.class).invoke(event, "bytes"));
+    } finally {
+      recordingClass.getMethod("close").invoke(recording);
+      Files.delete(file);
+    }
+  }
+}
@@ -34,6 +34,7 @@ import static java.net.HttpURLConnection.HTTP_UNAUTHORIZED;
 import static java.nio.charset.StandardCharsets.ISO_8859_1;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
@@ -44,17 +45,21 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import okio.BufferedSource;
 
 import org.junit.Test;
 
 import com.google.common.base.Function;
+import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMultimap;
@@ -70,8 +75,9 @@ import com.salesforce.zsync.internal.util.EventLogHttpTransferListener.Started;
 import com.salesforce.zsync.internal.util.EventLogHttpTransferListener.Transferred;
 import com.salesforce.zsync.internal.util.HttpClient.HttpError;
 import com.salesforce.zsync.internal.util.HttpClient.HttpTransferListener;
-import com.salesforce.zsync.internal.util.HttpClient.RangeReceiver;
 import com.salesforce.zsync.internal.util.HttpClient.RangeTransferListener;
+import com.salesforce.zsync.server.CompressedRangesFilter;
+import com.salesforce.zsync.transport.RangeReceiver;
 import com.squareup.okhttp.Call;
 import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Protocol;
@@ -326,6 +332,103 @@ public class HttpClientTest {
     httpClient.get(httpUri, credentials, listener);
   }
 
+  @Test
+  public void testRangesUnsupportedPerServerAndExpiring() throws IOException, HttpError {
+    final byte[] data = new byte[100];
+    final List<String> ranges = new ArrayList<>();
+    final MockOkHttpClient okHttpClient = new MockOkHttpClient();
+    okHttpClient.setNewCall(new Function<Request, Call>() {
+      @Override
+      public Call apply(final Request request) {
+        ranges.add(request.header("Range"));
+        // ignores the requested ranges and does not advertise range support
+        return new Call(okHttpClient, request) {
+          @Override
+          public Response execute() {
+            return new Response.Builder().code(HTTP_OK).body(ResponseBody.create(null, data)).request(request)
+                .protocol(HTTP_1_1).build();
+          }
+        };
+      }
+    });
+    final long[] nanos = new long[1];
+    final HttpClient httpClient = new HttpClient(okHttpClient, new Ticker() {
+      @Override
+      public long read() {
+        return nanos[0];
+      }
+    });
+    final URI uri = URI.create("http://host:8080/file");
+
+    this.partialGet(httpClient, uri);
+    this.partialGet(httpClient, uri);
+    this.partialGet(httpClient, URI.create("http://host:8081/file"));
+    nanos[0] += TimeUnit.MINUTES.toNanos(HttpClient.RANGES_UNSUPPORTED_EXPIRY_MINUTES) + 1;
+    this.partialGet(httpClient, uri);
+
+    // full content requested right away only from the same server and only until the entry expires
+    assertEquals(Lists.newArrayList("bytes=0-9", null, "bytes=0-9", "bytes=0-9"), ranges);
+  }
+
+  @Test
+  public void testGzipOnlyAcceptedFromAnnouncingServers() throws IOException, HttpError {
+    final MockOkHttpClient okHttpClient = new MockOkHttpClient();
+    okHttpClient.setNewCall(new Function<Request, Call>() {
+      @Override
+      public Call apply(final Request request) {
+        return new Call(okHttpClient, request) {
+          @Override
+          public Response execute() {
+            return new Response.Builder().code(HTTP_OK).header(CompressedRangesFilter.ANNOUNCE_HEADER, "gzip")
+                .body(ResponseBody.create(null, new byte[0])).request(request).protocol(HTTP_1_1).build();
+          }
+        };
+      }
+    });
+    final HttpClient httpClient = new HttpClient(okHttpClient);
+    final URI uri = URI.create("http://host/file");
+    final List<ContentRange> ranges = createSomeRanges(1);
+    final Map<String, Credentials> credentials = Collections.emptyMap();
+    assertEquals("identity", httpClient.buildRequest(uri, credentials, ranges).header("Accept-Encoding"));
+
+    httpClient.get(URI.create("http://host/file.zsync"), credentials, new EventLogHttpTransferListener()).close();
+
+    assertEquals("gzip", httpClient.buildRequest(uri, credentials, ranges).header("Accept-Encoding"));
+    assertEquals("identity",
+        httpClient.buildRequest(URI.create("http://host:8080/file"), credentials, ranges).header("Accept-Encoding"));
+  }
+
+  @Test
+  public void testOrigin() {
+    assertEquals("http://host:80", HttpClient.origin(URI.create("http://HOST/file")));
+    assertEquals("https://host:443", HttpClient.origin(URI.create("https://host/file")));
+    assertEquals("http://host:8080", HttpClient.origin(URI.create("http://host:8080/file")));
+    assertFalse(HttpClient.origin(URI.create("http://host/file")).equals(
+        HttpClient.origin(URI.create("https://host/file"))));
+  }
+
+  private void partialGet(HttpClient httpClient, URI uri) throws IOException, HttpError {
+    final List<ContentRange> received = new ArrayList<>();
+    httpClient.partialGet(uri, createSomeRanges(1), Collections.<String, Credentials>emptyMap(), new RangeReceiver() {
+      @Override
+      public void receive(ContentRange range, ReadableByteChannel in) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate((int) range.length());
+        while (buffer.hasRemaining() && in.read(buffer) != -1) {
+        }
+        received.add(range);
+      }
+    }, new RangeTransferListener() {
+      @Override
+      public void planned(List<ContentRange> ranges, int maxRanges, long maxBytes) {}
+
+      @Override
+      public HttpTransferListener newTransfer(List<ContentRange> ranges) {
+        return new EventLogHttpTransferListener();
+      }
+    }, null);
+    assertEquals(createSomeRanges(1), received);
+  }
+
   Function<Request, Call> newUnauthorizedRequestCall(final URI uri) {
     final Function<Request, Call> noAuthRequest = new Function<Request, Call>() {
       @Override
@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal.util;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import org.junit.Test;
+
+import com.salesforce.zsync.http.ContentRange;
+
+import okio.Buffer;
+
+public class MultipartByteRangesReaderTest {
+
+  private static final byte[] BOUNDARY = "THIS_STRING_SEPARATES".getBytes(ISO_8859_1);
+
+  @Test
+  public void testParts() throws IOException {
+    final MultipartByteRangesReader reader = reader("preamble\r\n"
+        + "--THIS_STRING_SEPARATES\r\n"
+        + "Content-type: application/octet-stream\r\n"
+        + "Content-range: bytes 0-3/10\r\n"
+        + "\r\n"
+        + "abcd\r\n"
+        + "--THIS_STRING_SEPARATES\r\n"
+        + "CONTENT-RANGE:bytes 6-9/*\r\n"
+        + "\r\n"
+        + "ghij\r\n"
+        + "--THIS_STRING_SEPARATES--\r\n");
+
+    assertEquals(new ContentRange(0, 3), reader.nextPart());
+    assertEquals("abcd", read(reader.body(), ByteBuffer.allocate(16)));
+    assertEquals(new ContentRange(6, 9), reader.nextPart());
+    assertEquals("ghij", read(reader.body(), ByteBuffer.allocateDirect(16)));
+    assertNull(reader.nextPart());
+  }
+
+  @Test
+  public void testUnreadPartSkipped() throws IOException {
+    final MultipartByteRangesReader reader = reader("--THIS_STRING_SEPARATES\r\n"
+        + "Content-Range: bytes 0-3/10\r\n"
+        + "\r\n"
+        + "abcd\r\n"
+        + "--THIS_STRING_SEPARATES--");
+
+    assertEquals(new ContentRange(0, 3), reader.nextPart());
+    assertNull(reader.nextPart());
+  }
+
+  @Test(expected = IOException.class)
+  public void testMissingBoundary() throws IOException {
+    reader("--OTHER\r\nContent-Range: bytes 0-3/10\r\n\r\nabcd\r\n--OTHER--\r\n").nextPart();
+  }
+
+  @Test(expected = IOException.class)
+  public void testMissingContentRange() throws IOException {
+    reader("--THIS_STRING_SEPARATES\r\nContent-Type: text/plain\r\n\r\nabcd\r\n").nextPart();
+  }
+
+  @Test(expected = IOException.class)
+  public void testUnsupportedUnit() throws IOException {
+    reader("--THIS_STRING_SEPARATES\r\nContent-Range: items 0-3/10\r\n\r\nabcd\r\n").nextPart();
+  }
+
+  @Test(expected = IOException.class)
+  public void testInvalidRange() throws IOException {
+    reader("--THIS_STRING_SEPARATES\r\nContent-Range: bytes 3-/10\r\n\r\nabcd\r\n").nextPart();
+  }
+
+  @Test(expected = IOException.class)
+  public void testPartLongerThanBody() throws IOException {
+    final MultipartByteRangesReader reader =
+        reader("--THIS_STRING_SEPARATES\r\nContent-Range: bytes 0-9/10\r\n\r\nabcd");
+    reader.nextPart();
+    read(reader.body(), ByteBuffer.allocate(16));
+  }
+
+  private static MultipartByteRangesReader reader(String body) {
+    return new MultipartByteRangesReader(new Buffer().writeString(body, ISO_8859_1), BOUNDARY);
+  }
+
+  private static String read(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+    while (channel.read(buffer) != -1) {
+      continue;
+    }
+    buffer.flip();
+    final byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return new String(bytes, ISO_8859_1);
+  }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal.util;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.salesforce.zsync.http.ContentRange;
+
+public class RangeBatchPlannerTest {
+
+  @Test
+  public void testInitialBatchLimitedByRangeCount() {
+    final RangeBatchPlanner planner = new RangeBatchPlanner();
+    assertEquals(RangeBatchPlanner.INITIAL_MAX_RANGES, planner.next(ranges(150, 0, 10)).size());
+  }
+
+  @Test
+  public void testBatchLimitedByHeaderLength() {
+    final RangeBatchPlanner planner = new RangeBatchPlanner();
+    // each range of two 11 digit positions takes 24 characters with separator, so only 170 fit into the header
+    final List<ContentRange> batch = planner.next(ranges(RangeBatchPlanner.INITIAL_MAX_RANGES, 10000000000L, 10));
+    assertEquals(RangeBatchPlanner.INITIAL_MAX_RANGES, batch.size());
+    for (int i = 0; i < 3; i++) {
+      planner.completed(planner.next(ranges(1000, 0, 10)), MILLISECONDS.toNanos(100), MILLISECONDS.toNanos(101));
+    }
+    assertEquals(800, planner.getMaxRanges());
+    assertEquals(170, planner.next(ranges(1000, 10000000000L, 10)).size());
+  }
+
+  @Test
+  public void testBatchLimitedByThroughput() {
+    final RangeBatchPlanner planner = new RangeBatchPlanner();
+    // 100 ranges of 1MB in 1 second transfer time: target 2 seconds worth of data
+    planner.completed(planner.next(ranges(100, 0, 1 << 20)), MILLISECONDS.toNanos(10), MILLISECONDS.toNanos(1010));
+    assertEquals(100 << 21, planner.getMaxBytes());
+    assertEquals(RangeBatchPlanner.INITIAL_MAX_RANGES, planner.getMaxRanges());
+    assertEquals(2, planner.next(ranges(100, 0, 100 << 20)).size());
+    // at least one range regardless of size
+    assertEquals(1, planner.next(ranges(2, 0, 1000 << 20)).size());
+  }
+
+  @Test
+  public void testRejected() {
+    final RangeBatchPlanner planner = new RangeBatchPlanner();
+    assertTrue(planner.rejected(planner.next(ranges(100, 0, 10))));
+    assertEquals(50, planner.getMaxRanges());
+    assertEquals(50, planner.next(ranges(100, 0, 10)).size());
+    assertFalse(planner.rejected(ranges(1, 0, 10)));
+  }
+
+  @Test
+  public void testCollapsed() {
+    final RangeBatchPlanner planner = new RangeBatchPlanner();
+    planner.collapsed();
+    assertEquals(1, planner.next(ranges(100, 0, 10)).size());
+  }
+
+  /**
+   * Returns count non-adjacent ranges of the given length starting at the given offset
+   */
+  private static List<ContentRange> ranges(int count, long offset, long length) {
+    final List<ContentRange> ranges = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      final long first = offset + 2 * i * length;
+      ranges.add(new ContentRange(first, first + length - 1));
+    }
+    return ranges;
+  }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ResumableSha1Test {
+
+  @Test
+  public void testDigest() {
+    final Random random = new Random(7);
+    for (int length : new int[] {0, 1, 55, 56, 63, 64, 65, 119, 128, 1000, 65537}) {
+      final byte[] data = new byte[length];
+      random.nextBytes(data);
+      final MessageDigest sha1 = new ResumableSha1();
+      // feed in uneven pieces to exercise buffering
+      for (int i = 0; i < length; i += 37) {
+        sha1.update(data, i, Math.min(37, length - i));
+      }
+      assertArrayEquals("length " + length, ZsyncUtil.newSHA1().digest(data), sha1.digest());
+    }
+  }
+
+  @Test
+  public void testResume() {
+    final byte[] data = new byte[10000];
+    new Random(11).nextBytes(data);
+    final ResumableSha1 first = new ResumableSha1();
+    first.update(data, 0, 4321);
+    assertArrayEquals(ZsyncUtil.newSHA1().digest(Arrays.copyOf(data, 4321)), first.digest());
+
+    final long checkpoint = first.getCheckpointLength();
+    final ResumableSha1 resumed = new ResumableSha1(first.getCheckpointState(), checkpoint);
+    assertEquals(checkpoint, resumed.getCheckpointLength());
+    resumed.update(data, (int) checkpoint, data.length - (int) checkpoint);
+    assertArrayEquals(ZsyncUtil.newSHA1().digest(data), resumed.digest());
+  }
+
+}
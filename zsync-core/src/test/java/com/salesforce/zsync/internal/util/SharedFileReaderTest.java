@@ -0,0 +1,296 @@
+/**
+ * Copyright (c) 2015, Salesforce.com, Inc. All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted
+ * provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions
+ * and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions
+ * and the following disclaimer in the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * Neither the name of Salesforce.com nor the names of its contributors may be used to endorse or
+ * promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.zsync.internal.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests {@link SharedFileReader}
+ *
+ * @author bbusjaeger
+ */
+public class SharedFileReaderTest {
+
+  private static final int CHUNK_SIZE = 1024;
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  /**
+   * Test that concurrent consumers each see the full content, which is read from disk only once
+   */
+  @Test
+  public void testConcurrentConsumersReadOnce() throws Exception {
+    final byte[] content = this.content(100 * CHUNK_SIZE + 17);
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try (final FileChannel channel = FileChannel.open(this.file(content))) {
+      final SharedFileReader reader = new SharedFileReader(channel, CHUNK_SIZE, 2);
+      final List<ReadableByteChannel> channels = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        channels.add(reader.newChannel());
+      }
+      final List<Future<byte[]>> consumers = new ArrayList<>();
+      for (final ReadableByteChannel consumer : channels) {
+        consumers.add(executor.submit(new Callable<byte[]>() {
+          @Override
+          public byte[] call() throws IOException {
+            try (final ReadableByteChannel c = consumer) {
+              return readFully(c, content.length);
+            }
+          }
+        }));
+      }
+      for (Future<byte[]> consumer : consumers) {
+        assertArrayEquals(content, consumer.get());
+      }
+      assertEquals(content.length, reader.getBytesRead());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Test that a consumer does not wait for consumers created after it, which read the chunks already
+   * evicted from disk again
+   */
+  @Test
+  public void testSequentialConsumers() throws IOException {
+    final byte[] content = this.content(10 * CHUNK_SIZE);
+    try (final FileChannel channel = FileChannel.open(this.file(content))) {
+      final SharedFileReader reader = new SharedFileReader(channel, CHUNK_SIZE, 2);
+      final ReadableByteChannel first = reader.newChannel();
+      assertArrayEquals(content, readFully(first, content.length));
+      final ReadableByteChannel second = reader.newChannel();
+      first.close();
+      assertArrayEquals(content, readFully(second, content.length));
+      second.close();
+      assertEquals(2L * content.length, reader.getBytesRead());
+    }
+  }
+
+  /**
+   * Test that a consumer reading a chunk from disk does not hold up consumers of chunks already read
+   */
+  @Test
+  public void testReadOutsideLock() throws Exception {
+    final byte[] content = this.content(4 * CHUNK_SIZE);
+    final CountDownLatch reading = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+    try (final FileChannel channel = new BlockingFileChannel(FileChannel.open(this.file(content)), reading, release)) {
+      final SharedFileReader reader = new SharedFileReader(channel, CHUNK_SIZE, 4);
+      final ReadableByteChannel first = reader.newChannel();
+      final ReadableByteChannel second = reader.newChannel();
+      assertArrayEquals(Arrays.copyOf(content, CHUNK_SIZE), readFully(first, CHUNK_SIZE, CHUNK_SIZE));
+      // first consumer blocks reading the second chunk from disk
+      final Future<byte[]> blocked = executor.submit(new Callable<byte[]>() {
+        @Override
+        public byte[] call() throws IOException {
+          return readFully(first, CHUNK_SIZE, CHUNK_SIZE);
+        }
+      });
+      assertTrue(reading.await(10, TimeUnit.SECONDS));
+      final Future<byte[]> cached = executor.submit(new Callable<byte[]>() {
+        @Override
+        public byte[] call() throws IOException {
+          return readFully(second, CHUNK_SIZE, CHUNK_SIZE);
+        }
+      });
+      assertArrayEquals(Arrays.copyOf(content, CHUNK_SIZE), cached.get(10, TimeUnit.SECONDS));
+      release.countDown();
+      assertArrayEquals(Arrays.copyOfRange(content, CHUNK_SIZE, 2 * CHUNK_SIZE), blocked.get(10, TimeUnit.SECONDS));
+    } finally {
+      release.countDown();
+      executor.shutdownNow();
+    }
+  }
+
+  private static byte[] readFully(ReadableByteChannel channel, int length, int limit) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.allocate(limit);
+    while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+      // keep reading
+    }
+    assertEquals(length, buffer.position());
+    return Arrays.copyOf(buffer.array(), length);
+  }
+
+  private static byte[] readFully(ReadableByteChannel channel, int length) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.allocate(length + 1);
+    while (channel.read(buffer) != -1) {
+      // keep reading
+    }
+    assertEquals(length, buffer.position());
+    return Arrays.copyOf(buffer.array(), length);
+  }
+
+  private byte[] content(int length) {
+    final byte[] content = new byte[length];
+    new Random(length).nextBytes(content);
+    return content;
+  }
+
+  private Path file(byte[] content) throws IOException {
+    return Files.write(this.tmp.newFile().toPath(), content);
+  }
+
+  /**
+   * Blocks positional reads beyond the first chunk until released
+   */
+  private static class BlockingFileChannel extends FileChannel {
+    private final FileChannel delegate;
+    private final CountDownLatch reading;
+    private final CountDownLatch release;
+
+    BlockingFileChannel(FileChannel delegate, CountDownLatch reading, CountDownLatch release) {
+      this.delegate = delegate;
+      this.reading = reading;
+      this.release = release;
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+      if (position >= CHUNK_SIZE) {
+        this.reading.countDown();
+        try {
+          this.release.await();
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException();
+        }
+      }
+      return this.delegate.read(dst, position);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+      return this.delegate.read(dst);
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+      return this.delegate.read(dsts, offset, length);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+      return this.delegate.write(src);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+      return this.delegate.write(srcs, offset, length);
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException {
+      return this.delegate.write(src, position);
+    }
+
+    @Override
+    public long position() throws IOException {
+      return this.delegate.position();
+    }
+
+    @Override
+    public FileChannel position(long newPosition) throws IOException {
+      this.delegate.position(newPosition);
+      return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+      return this.delegate.size();
+    }
+
+    @Override
+    public FileChannel truncate(long size) throws IOException {
+      this.delegate.truncate(size);
+      return this;
+    }
+
+    @Override
+    public void force(boolean metaData) throws IOException {
+      this.delegate.force(metaData);
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+      return this.delegate.transferTo(position, count, target);
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+      return this.delegate.transferFrom(src, position, count);
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+      return this.delegate.map(mode, position, size);
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) throws IOException {
+      return this.delegate.lock(position, size, shared);
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+      return this.delegate.tryLock(position, size, shared);
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException {
+      this.delegate.close();
+    }
+  }
+
+}